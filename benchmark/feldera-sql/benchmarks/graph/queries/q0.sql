@@ -0,0 +1,13 @@
+-- Nodes reachable from node 0.
+-- The filter on 'src' is pushed into the fixpoint computation,
+-- so only the paths that start at node 0 are explored.
+DECLARE RECURSIVE VIEW reach(src BIGINT NOT NULL, dst BIGINT NOT NULL);
+
+CREATE LOCAL VIEW reach AS
+SELECT src, dst FROM edges
+UNION
+SELECT reach.src, edges.dst
+FROM reach JOIN edges ON reach.dst = edges.src;
+
+CREATE VIEW q0 AS
+SELECT * FROM reach WHERE src = 0;
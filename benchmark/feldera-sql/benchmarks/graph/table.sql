@@ -0,0 +1,21 @@
+CREATE TABLE edges (
+    src BIGINT NOT NULL,
+    dst BIGINT NOT NULL
+) WITH ('connectors' = '[
+    {{
+        "transport": {{
+            "name": "datagen",
+            "config": {{
+                "plan": [
+                    {{
+                        "limit": {events},
+                        "fields": {{
+                            "src": {{ "strategy": "uniform", "range": [0, 1000000] }},
+                            "dst": {{ "strategy": "uniform", "range": [0, 1000000] }}
+                        }}
+                    }}
+                ]
+            }}
+        }}
+    }}
+]');
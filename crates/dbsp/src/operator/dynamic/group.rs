@@ -303,9 +303,154 @@ where
             input_factories,
             output_factories,
             transformer,
+            TraceBounds::unbounded(),
         )
     }
 
+    /// Like [`dyn_group_transform`](`Self::dyn_group_transform`), but bounds
+    /// the traces of previous inputs and outputs of the operator.
+    ///
+    /// The retainment policy in `output_bounds` is applied to the trace of
+    /// previously produced outputs.  The transformer consults this trace to
+    /// retract outputs affected by new inputs; it is only correct to discard
+    /// outputs that can no longer be affected by any future input.
+    ///
+    /// At each step, `input_gc` receives the new inputs, the trace of
+    /// previous inputs, and the current value of `waterline`, and returns
+    /// the updates to apply to the trace of previous inputs in addition to
+    /// the new inputs.  These updates are not passed to the transformer as
+    /// changes to its input: it is only correct to retract values that the
+    /// transformer will never need to read again.
+    #[allow(clippy::too_many_arguments)]
+    #[allow(clippy::type_complexity)]
+    fn dyn_group_transform_with_input_gc<OV, TS>(
+        &self,
+        persistent_id: Option<&str>,
+        input_factories: &B::Factories,
+        output_factories: &OrdIndexedWSetFactories<B::Key, OV, DynZWeight>,
+        transformer: Box<dyn GroupTransformer<B::Val, OV>>,
+        output_bounds: TraceBounds<B::Key, OV>,
+        waterline: &Stream<RootCircuit, Box<TS>>,
+        input_gc: Box<dyn Fn(&Spine<B>, &Spine<B>, &TS) -> B>,
+    ) -> Stream<RootCircuit, OrdIndexedZSet<B::Key, OV>>
+    where
+        OV: DataTrait + ?Sized,
+        TS: DataTrait + ?Sized,
+        Box<TS>: Clone,
+    {
+        let gc_factories = input_factories.clone();
+        let waterline = waterline.clone();
+        self.dyn_group_transform_collecting_input(
+            persistent_id,
+            input_factories,
+            output_factories,
+            transformer,
+            output_bounds,
+            Box::new(move |delta: &Stream<_, _>, trace: &Stream<_, _>| {
+                delta.apply3(trace, &waterline, move |delta, trace, waterline| {
+                    match (*delta).as_ref() {
+                        Some(delta) => input_gc(delta, trace, &**waterline),
+                        None => B::dyn_empty(&gc_factories),
+                    }
+                })
+            }),
+        )
+    }
+
+    /// Like [`dyn_group_transform_with_input_gc`](`Self::dyn_group_transform_with_input_gc`),
+    /// but without a waterline: `input_gc` only receives the new inputs and
+    /// the trace of previous inputs.
+    #[allow(clippy::type_complexity)]
+    fn dyn_group_transform_with_input_gc_no_waterline<OV>(
+        &self,
+        persistent_id: Option<&str>,
+        input_factories: &B::Factories,
+        output_factories: &OrdIndexedWSetFactories<B::Key, OV, DynZWeight>,
+        transformer: Box<dyn GroupTransformer<B::Val, OV>>,
+        input_gc: Box<dyn Fn(&Spine<B>, &Spine<B>) -> B>,
+    ) -> Stream<RootCircuit, OrdIndexedZSet<B::Key, OV>>
+    where
+        OV: DataTrait + ?Sized,
+    {
+        let gc_factories = input_factories.clone();
+        self.dyn_group_transform_collecting_input(
+            persistent_id,
+            input_factories,
+            output_factories,
+            transformer,
+            TraceBounds::unbounded(),
+            Box::new(move |delta: &Stream<_, _>, trace: &Stream<_, _>| {
+                delta.apply2(trace, move |delta, trace| match (*delta).as_ref() {
+                    Some(delta) => input_gc(delta, trace),
+                    None => B::dyn_empty(&gc_factories),
+                })
+            }),
+        )
+    }
+
+    /// Shared implementation of the group transformers which garbage-collect
+    /// the trace of their inputs.  `gc` builds, from the stream of new inputs
+    /// and the stream of delayed traces of previous inputs, the stream of
+    /// updates to add to the trace along with the new inputs.
+    #[allow(clippy::type_complexity)]
+    fn dyn_group_transform_collecting_input<OV>(
+        &self,
+        persistent_id: Option<&str>,
+        input_factories: &B::Factories,
+        output_factories: &OrdIndexedWSetFactories<B::Key, OV, DynZWeight>,
+        transformer: Box<dyn GroupTransformer<B::Val, OV>>,
+        output_bounds: TraceBounds<B::Key, OV>,
+        gc: Box<
+            dyn FnOnce(
+                &Stream<RootCircuit, Option<Spine<B>>>,
+                &Stream<RootCircuit, Spine<B>>,
+            ) -> Stream<RootCircuit, B>,
+        >,
+    ) -> Stream<RootCircuit, OrdIndexedZSet<B::Key, OV>>
+    where
+        OV: DataTrait + ?Sized,
+    {
+        let circuit = self.circuit();
+        let stream = self.dyn_shard(input_factories);
+
+        // Like `dyn_group_transform_generic`, except that the integral of the
+        // input is built as a feedback loop, so that the updates computed by
+        // `gc` from the delayed integral are added to it along with the new
+        // inputs.
+        let input_feedback = circuit.add_accumulate_integrate_trace_feedback::<Spine<B>>(
+            persistent_id
+                .map(|name| format!("{name}-input"))
+                .as_deref(),
+            input_factories,
+            TraceBounds::unbounded(),
+        );
+        let delayed_input_trace = input_feedback.delayed_trace.clone();
+        let delta = stream.dyn_accumulate(input_factories);
+
+        let gc = gc(&delta, &delayed_input_trace).mark_sharded();
+        input_feedback.connect(&stream.plus(&gc).mark_sharded(), input_factories);
+
+        let feedback = circuit
+            .add_accumulate_integrate_trace_feedback::<Spine<OrdIndexedZSet<B::Key, OV>>>(
+                persistent_id,
+                output_factories,
+                output_bounds,
+            );
+
+        let output = circuit
+            .add_ternary_operator(
+                StreamingTernaryWrapper::new(GroupTransform::new(output_factories, transformer)),
+                &delta,
+                &delayed_input_trace,
+                &feedback.delayed_trace,
+            )
+            .mark_sharded();
+
+        feedback.connect(&output, output_factories);
+
+        output
+    }
+
     /// Like [`group_transform`](`Self::group_transform`), but can output any
     /// indexed Z-set, not just [`OrdIndexedZSet`]
     fn dyn_group_transform_generic<OB>(
@@ -314,6 +459,7 @@ where
         input_factories: &B::Factories,
         output_factories: &OB::Factories,
         transform: Box<dyn GroupTransformer<B::Val, OB::Val>>,
+        bounds: TraceBounds<B::Key, OB::Val>,
     ) -> Stream<RootCircuit, OB>
     where
         OB: IndexedZSet<Key = B::Key>,
@@ -334,7 +480,6 @@ where
         //                                                    └────────────────────────┤Z^-1│◄────────────┘
         //                                                                             └────┘
         // ```
-        let bounds = TraceBounds::unbounded();
         let feedback = circuit.add_accumulate_integrate_trace_feedback::<Spine<OB>>(
             persistent_id,
             output_factories,
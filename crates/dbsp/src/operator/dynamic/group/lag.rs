@@ -7,10 +7,10 @@ use crate::{
         ClonableTrait, DataTrait, DynData, DynPair, DynUnit, DynVec, Erase, Factory, LeanVec,
         WithFactory,
     },
-    operator::dynamic::MonoIndexedZSet,
+    operator::dynamic::{trace::TraceBounds, MonoIndexedZSet},
     trace::{
         cursor::{CursorPair, ReverseKeyCursor},
-        BatchReaderFactories,
+        BatchReader, BatchReaderFactories, Builder, Cursor, Filter, Spine, TupleBuilder,
     },
     utils::Tup2,
     DBData, DynZWeight, RootCircuit, Stream, ZWeight,
@@ -113,6 +113,159 @@ where
             )),
         )
     }
+
+    /// Like [`Self::dyn_lag`], but discards inputs and outputs that are no
+    /// longer needed.
+    ///
+    /// `retain_output_func` computes, for each value of the `waterline`
+    /// stream, the condition that output values must satisfy to be kept in
+    /// the trace of previous outputs.  The caller must guarantee that
+    /// outputs discarded by this condition cannot be affected by future
+    /// inputs.
+    ///
+    /// `retain_input_func` computes the condition satisfied by all future
+    /// input values.  A new input only reads the `|offset|` values that
+    /// precede it, so for each partition updated by new inputs the operator
+    /// keeps, among the previous inputs that do not satisfy the condition,
+    /// only the `|offset|` values closest to those that do.  The values
+    /// that do not satisfy the condition must come first in the order of
+    /// the partition when `offset > 0`, and last when `offset < 0`.
+    #[allow(clippy::too_many_arguments)]
+    #[allow(clippy::type_complexity)]
+    pub fn dyn_lag_with_waterline<OV, TS>(
+        &self,
+        persistent_id: Option<&str>,
+        factories: &LagFactories<B, OV>,
+        offset: isize,
+        project: Box<dyn Fn(Option<&B::Val>, &mut OV)>,
+        waterline: &Stream<RootCircuit, Box<TS>>,
+        retain_input_func: Box<dyn Fn(&TS) -> Filter<B::Val>>,
+        retain_output_func: Box<dyn Fn(&TS) -> Filter<DynPair<B::Val, OV>>>,
+    ) -> Stream<RootCircuit, OrdIndexedZSet<B::Key, DynPair<B::Val, OV>>>
+    where
+        OV: DataTrait + ?Sized,
+        TS: DataTrait + ?Sized,
+        Box<TS>: Clone,
+    {
+        let bounds = TraceBounds::unbounded();
+        bounds.set_unique_val_bound_name(waterline.get_persistent_id().as_deref());
+        let output_bounds = bounds.clone();
+        waterline.inspect(move |ts| {
+            output_bounds.set_val_filter(retain_output_func(ts.as_ref()));
+        });
+
+        let lag = offset.unsigned_abs() as ZWeight;
+        let asc = offset > 0;
+        let gc_factories = factories.input_factories.clone();
+
+        self.dyn_group_transform_with_input_gc(
+            persistent_id,
+            &factories.input_factories,
+            &factories.output_factories,
+            Box::new(Lag::new(
+                factories.output_factories.val_factory(),
+                factories.keys_factory,
+                factories.output_val_factory,
+                offset.unsigned_abs(),
+                offset > 0,
+                project,
+                if offset > 0 {
+                    |k1: &B::Val, k2: &B::Val| k1.cmp(k2)
+                } else {
+                    |k1: &B::Val, k2: &B::Val| k2.cmp(k1)
+                },
+            )),
+            bounds,
+            waterline,
+            Box::new(move |delta: &Spine<B>, trace: &Spine<B>, ts: &TS| {
+                lag_input_retractions(
+                    &gc_factories,
+                    delta,
+                    trace,
+                    &retain_input_func(ts),
+                    lag,
+                    asc,
+                )
+            }),
+        )
+    }
+}
+
+/// Computes the retractions that remove unneeded values from the `trace`
+/// of previous inputs of a `lag` operator, for the partitions in `delta`.
+///
+/// Values that do not satisfy `retain` are kept only if they are among the
+/// values closest to those that do, with a total weight of at least `lag`.
+/// When `asc` is true these values form a prefix of each partition,
+/// otherwise they form a suffix.
+fn lag_input_retractions<B>(
+    factories: &B::Factories,
+    delta: &Spine<B>,
+    trace: &Spine<B>,
+    retain: &Filter<B::Val>,
+    lag: ZWeight,
+    asc: bool,
+) -> B
+where
+    B: IndexedZSet,
+{
+    let retain = retain.filter_func();
+    let mut builder = TupleBuilder::new(factories, B::Builder::with_capacity(factories, 0, 0));
+    let mut delta_cursor = delta.cursor();
+    let mut trace_cursor = trace.cursor();
+
+    while delta_cursor.key_valid() {
+        if trace_cursor.seek_key_exact(delta_cursor.key(), None) {
+            if asc {
+                // Total weight of the values that do not satisfy `retain`.
+                let mut remaining: ZWeight = 0;
+                while trace_cursor.val_valid() && !retain(trace_cursor.val()) {
+                    remaining += (**trace_cursor.weight()).max(0);
+                    trace_cursor.step_val();
+                }
+                trace_cursor.rewind_vals();
+                while trace_cursor.val_valid() && !retain(trace_cursor.val()) {
+                    let weight = **trace_cursor.weight();
+                    if weight > 0 {
+                        if remaining - weight < lag {
+                            break;
+                        }
+                        remaining -= weight;
+                        builder.push_refs(
+                            trace_cursor.key(),
+                            trace_cursor.val(),
+                            &(),
+                            weight.neg().erase(),
+                        );
+                    }
+                    trace_cursor.step_val();
+                }
+            } else {
+                // Total weight of the values that do not satisfy `retain`
+                // seen so far.
+                let mut kept: ZWeight = 0;
+                while trace_cursor.val_valid() {
+                    let weight = **trace_cursor.weight();
+                    if weight > 0 && !retain(trace_cursor.val()) {
+                        if kept >= lag {
+                            builder.push_refs(
+                                trace_cursor.key(),
+                                trace_cursor.val(),
+                                &(),
+                                weight.neg().erase(),
+                            );
+                        } else {
+                            kept += weight;
+                        }
+                    }
+                    trace_cursor.step_val();
+                }
+            }
+        }
+        delta_cursor.step_key();
+    }
+
+    builder.done()
 }
 
 impl Stream<RootCircuit, MonoIndexedZSet> {
@@ -127,6 +280,32 @@ impl Stream<RootCircuit, MonoIndexedZSet> {
     ) -> Stream<RootCircuit, MonoIndexedZSet> {
         self.dyn_lag_custom_order(persistent_id, factories, offset, encode, project, decode)
     }
+
+    #[allow(clippy::too_many_arguments)]
+    pub fn dyn_lag_custom_order_with_waterline_mono(
+        &self,
+        persistent_id: Option<&str>,
+        factories: &LagCustomOrdFactories<MonoIndexedZSet, DynData, DynData, DynData>,
+        offset: isize,
+        encode: Box<dyn Fn(&DynData, &mut DynData)>,
+        project: Box<dyn Fn(Option<&DynData>, &mut DynData)>,
+        decode: Box<dyn Fn(&DynData, &DynData, &mut DynData)>,
+        waterline: &Stream<RootCircuit, Box<DynData>>,
+        retain_input_func: Box<dyn Fn(&DynData) -> Filter<DynData>>,
+        retain_output_func: Box<dyn Fn(&DynData) -> Filter<DynPair<DynData, DynData>>>,
+    ) -> Stream<RootCircuit, MonoIndexedZSet> {
+        self.dyn_lag_custom_order_with_waterline(
+            persistent_id,
+            factories,
+            offset,
+            encode,
+            project,
+            decode,
+            waterline,
+            retain_input_func,
+            retain_output_func,
+        )
+    }
 }
 
 impl<B, K, V> Stream<RootCircuit, B>
@@ -175,6 +354,63 @@ where
             }),
         )
     }
+
+    /// Like [`Self::dyn_lag_custom_order`], but uses `waterline` to discard
+    /// inputs and outputs that are no longer needed.  See
+    /// [`Stream::dyn_lag_with_waterline`].
+    #[allow(clippy::too_many_arguments)]
+    pub fn dyn_lag_custom_order_with_waterline<V2, VL, OV, TS>(
+        &self,
+        persistent_id: Option<&str>,
+        factories: &LagCustomOrdFactories<B, V2, VL, OV>,
+        offset: isize,
+        encode: Box<dyn Fn(&V, &mut V2)>,
+        project: Box<dyn Fn(Option<&V2>, &mut VL)>,
+        decode: Box<dyn Fn(&V2, &VL, &mut OV)>,
+        waterline: &Stream<RootCircuit, Box<TS>>,
+        retain_input_func: Box<dyn Fn(&TS) -> Filter<V2>>,
+        retain_output_func: Box<dyn Fn(&TS) -> Filter<DynPair<V2, VL>>>,
+    ) -> Stream<RootCircuit, OrdIndexedZSet<K, OV>>
+    where
+        V2: DataTrait + ?Sized,
+        VL: DataTrait + ?Sized,
+        OV: DataTrait + ?Sized,
+        TS: DataTrait + ?Sized,
+        Box<TS>: Clone,
+        B: for<'a> DynFilterMap<DynItemRef<'a> = (&'a K, &'a V)>,
+    {
+        self.dyn_map_index(
+            &factories.lag_factories.input_factories,
+            Box::new(move |(k, v), kv| {
+                let (out_k, out_v) = kv.split_mut();
+                k.clone_to(out_k);
+                encode(v, out_v);
+            }),
+        )
+        .set_persistent_id(
+            persistent_id
+                .map(|name| format!("{name}-ordered"))
+                .as_deref(),
+        )
+        .dyn_lag_with_waterline(
+            persistent_id,
+            &factories.lag_factories,
+            offset,
+            project,
+            waterline,
+            retain_input_func,
+            retain_output_func,
+        )
+        .dyn_map_index(
+            &factories.output_factories,
+            Box::new(move |(k, v), kv| {
+                let (out_k, out_v) = kv.split_mut();
+                let (v1, v2) = v.split();
+                k.clone_to(out_k);
+                decode(v1, v2, out_v);
+            }),
+        )
+    }
 }
 
 /// Implement both `lag` and `lead` operators.
@@ -681,3 +917,98 @@ where
         cursor.step_key_reverse();
     }
 }
+
+#[cfg(test)]
+mod test {
+    use super::lag_input_retractions;
+    use crate::{
+        dynamic::{DowncastTrait, DynData},
+        indexed_zset,
+        trace::{BatchReaderFactories, Filter, Spine, Trace},
+        typed_batch::{DynOrdIndexedZSet, OrdIndexedZSet},
+        utils::Tup2,
+        ZWeight,
+    };
+
+    type Batch = DynOrdIndexedZSet<DynData, DynData>;
+
+    fn spine(tuples: Vec<Tup2<Tup2<i32, i32>, ZWeight>>) -> Spine<Batch> {
+        let factories = BatchReaderFactories::new::<i32, i32, ZWeight>();
+        let mut spine: Spine<Batch> = Spine::new(&factories);
+        spine.insert(OrdIndexedZSet::<i32, i32>::from_tuples((), tuples).into_inner());
+        spine
+    }
+
+    fn retractions(
+        delta: Vec<Tup2<Tup2<i32, i32>, ZWeight>>,
+        trace: Vec<Tup2<Tup2<i32, i32>, ZWeight>>,
+        retain: fn(&i32) -> bool,
+        lag: ZWeight,
+        asc: bool,
+    ) -> OrdIndexedZSet<i32, i32> {
+        let retain = Filter::new(Box::new(move |v: &DynData| retain(v.downcast_checked::<i32>())));
+        OrdIndexedZSet::new(lag_input_retractions::<Batch>(
+            &BatchReaderFactories::new::<i32, i32, ZWeight>(),
+            &spine(delta),
+            &spine(trace),
+            &retain,
+            lag,
+            asc,
+        ))
+    }
+
+    fn tuples(partition: i32, values: &[(i32, ZWeight)]) -> Vec<Tup2<Tup2<i32, i32>, ZWeight>> {
+        values
+            .iter()
+            .map(|(v, w)| Tup2(Tup2(partition, *v), *w))
+            .collect()
+    }
+
+    #[test]
+    fn keeps_last_rows_below_waterline() {
+        let mut trace = tuples(1, &[(1, 1), (2, 1), (3, 1), (4, 1), (5, 1), (11, 1)]);
+        trace.extend(tuples(2, &[(1, 1), (2, 1), (3, 1)]));
+
+        // Only the partitions with new rows are collected.
+        let result = retractions(tuples(1, &[(12, 1)]), trace.clone(), |v| *v >= 10, 2, true);
+        let expected: OrdIndexedZSet<i32, i32> = indexed_zset! {
+            1 => { 1 => -1, 2 => -1, 3 => -1 }
+        };
+        assert_eq!(result, expected);
+
+        let result = retractions(tuples(2, &[(12, 1)]), trace, |v| *v >= 10, 2, true);
+        let expected: OrdIndexedZSet<i32, i32> = indexed_zset! {
+            2 => { 1 => -1 }
+        };
+        assert_eq!(result, expected);
+    }
+
+    #[test]
+    fn keeps_rows_above_waterline() {
+        let trace = tuples(1, &[(4, 1), (5, 1), (11, 1), (12, 1)]);
+        let result = retractions(tuples(1, &[(13, 1)]), trace, |v| *v >= 10, 2, true);
+        assert_eq!(result, OrdIndexedZSet::<i32, i32>::empty());
+    }
+
+    #[test]
+    fn counts_weights_below_waterline() {
+        // Row 3 alone accounts for the two rows read by later rows.
+        let trace = tuples(1, &[(1, 1), (2, 1), (3, 2), (11, 1)]);
+        let result = retractions(tuples(1, &[(12, 1)]), trace, |v| *v >= 10, 2, true);
+        let expected: OrdIndexedZSet<i32, i32> = indexed_zset! {
+            1 => { 1 => -1, 2 => -1 }
+        };
+        assert_eq!(result, expected);
+    }
+
+    #[test]
+    fn keeps_first_rows_in_descending_order() {
+        // With a negative offset the rows that fail the retain condition come last.
+        let trace = tuples(1, &[(1, 1), (2, 1), (3, 1), (4, 1), (5, 1), (6, 1)]);
+        let result = retractions(tuples(1, &[(0, 1)]), trace, |v| *v <= 3, 2, false);
+        let expected: OrdIndexedZSet<i32, i32> = indexed_zset! {
+            1 => { 6 => -1 }
+        };
+        assert_eq!(result, expected);
+    }
+}
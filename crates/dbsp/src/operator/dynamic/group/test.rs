@@ -6,16 +6,17 @@ use crate::{
     circuit::CircuitConfig,
     dynamic::{DowncastTrait, DynData, DynPair},
     indexed_zset,
-    operator::{CmpFunc, IndexedZSetHandle, OutputHandle},
+    operator::{CmpFunc, IndexedZSetHandle, OutputHandle, ZSetHandle},
     trace::{
         test::test_batch::{assert_batch_eq, assert_typed_batch_eq, TestBatch, TestBatchFactories},
         Cursor, SpineSnapshot as DynSpineSnapshot, Trace,
     },
     typed_batch::{
         BatchReader, DynBatchReader, DynOrdIndexedZSet, OrdIndexedZSet, SpineSnapshot, TypedBatch,
+        TypedBox,
     },
     utils::{Tup2, Tup3, Tup4},
-    DBData, DynZWeight, RootCircuit, Runtime, ZWeight,
+    DBData, DynZWeight, RootCircuit, Runtime, Stream, ZWeight,
 };
 use anyhow::Result as AnyResult;
 use proptest::{collection::vec, prelude::*};
@@ -372,6 +373,67 @@ fn lag_custom_order_test_circuit(
     Ok((input_handle, lag_handle))
 }
 
+fn lag_with_waterline_test_circuit(
+    circuit: &mut RootCircuit,
+) -> AnyResult<(
+    IndexedZSetHandle<i32, i32>,
+    ZSetHandle<i32>,
+    OutputHandle<SpineSnapshot<OrdIndexedZSet<i32, Tup2<i32, Option<i32>>>>>,
+)> {
+    struct Asc;
+
+    impl CmpFunc<i32> for Asc {
+        fn cmp(left: &i32, right: &i32) -> std::cmp::Ordering {
+            left.cmp(right)
+        }
+    }
+
+    let (input_stream, input_handle) = circuit.add_input_indexed_zset::<i32, i32>();
+    let (ts_stream, ts_handle) = circuit.add_input_zset::<i32>();
+
+    let waterline: Stream<_, TypedBox<i32, DynData>> =
+        ts_stream.waterline_monotonic(|| i32::MIN, |ts| *ts);
+
+    let lag_handle = input_stream
+        .lag_custom_order_with_waterline::<_, _, _, _, Asc, _, _>(
+            2,
+            |v| v.cloned(),
+            |v, vl| Tup2(*v, *vl),
+            &waterline,
+            |v, ts| v >= ts,
+        )
+        .accumulate_output();
+
+    Ok((input_handle, ts_handle, lag_handle))
+}
+
+fn topk_row_number_append_only_test_circuit(
+    circuit: &mut RootCircuit,
+) -> AnyResult<(
+    IndexedZSetHandle<i32, i32>,
+    OutputHandle<SpineSnapshot<OrdIndexedZSet<i32, Tup2<i64, i32>>>>,
+    OutputHandle<SpineSnapshot<OrdIndexedZSet<i32, Tup2<i64, i32>>>>,
+)> {
+    struct Asc;
+
+    impl CmpFunc<i32> for Asc {
+        fn cmp(left: &i32, right: &i32) -> std::cmp::Ordering {
+            left.cmp(right)
+        }
+    }
+
+    let (input_stream, input_handle) = circuit.add_input_indexed_zset::<i32, i32>();
+
+    let topk_handle = input_stream
+        .topk_row_number_custom_order::<Asc, _, _>(3, |rank, v| Tup2(rank, *v))
+        .accumulate_output();
+    let append_only_handle = input_stream
+        .topk_row_number_custom_order_append_only::<Asc, _, _>(3, |rank, v| Tup2(rank, *v))
+        .accumulate_output();
+
+    Ok((input_handle, topk_handle, append_only_handle))
+}
+
 fn lead_test(trace: Vec<Vec<(i32, i32, ZWeight)>>, transaction: bool) {
     let (mut dbsp, (input_handle, lead_handle)) = Runtime::init_circuit(
         CircuitConfig::from(4).with_splitter_chunk_size_records(2),
@@ -511,6 +573,115 @@ fn test_lag_regressions() {
     }
 }
 
+/// Rows below the waterline are removed from the input trace of the
+/// operator, except the last `|offset|` rows of each partition, which later
+/// rows still read.  The removals do not produce any output.
+#[test]
+fn test_lag_with_waterline() {
+    let (mut dbsp, (input_handle, ts_handle, lag_handle)) = Runtime::init_circuit(
+        CircuitConfig::from(4).with_splitter_chunk_size_records(2),
+        lag_with_waterline_test_circuit,
+    )
+    .unwrap();
+
+    // (waterline, inputs) for each step
+    let trace: Vec<(Option<i32>, Vec<(i32, i32, ZWeight)>)> = vec![
+        (
+            Some(0),
+            vec![
+                (1, 1, 1),
+                (1, 2, 1),
+                (1, 3, 1),
+                (1, 4, 1),
+                (1, 5, 1),
+                (2, 1, 1),
+                (2, 2, 1),
+                (2, 3, 1),
+            ],
+        ),
+        // Rows 1, 2, 3 of partition 1 are removed.
+        (Some(10), vec![(1, 11, 1)]),
+        // Row 1 of partition 2 is removed; partition 2 was not updated before.
+        (None, vec![(1, 12, 1), (2, 13, 1)]),
+        // Rows 4, 5 of partition 1 and row 2 of partition 2 are removed.
+        (Some(20), vec![(1, 21, 1), (2, 14, 1)]),
+        (None, vec![(1, 22, 1), (2, 23, 1)]),
+    ];
+    let expected_output: Vec<OrdIndexedZSet<i32, Tup2<i32, Option<i32>>>> = vec![
+        indexed_zset! {
+            1 => { Tup2(1, None) => 1
+                 , Tup2(2, None) => 1
+                 , Tup2(3, Some(1)) => 1
+                 , Tup2(4, Some(2)) => 1
+                 , Tup2(5, Some(3)) => 1 },
+            2 => { Tup2(1, None) => 1
+                 , Tup2(2, None) => 1
+                 , Tup2(3, Some(1)) => 1 }
+        },
+        indexed_zset! {
+            1 => { Tup2(11, Some(4)) => 1 }
+        },
+        indexed_zset! {
+            1 => { Tup2(12, Some(5)) => 1 },
+            2 => { Tup2(13, Some(2)) => 1 }
+        },
+        indexed_zset! {
+            1 => { Tup2(21, Some(11)) => 1 },
+            2 => { Tup2(14, Some(3)) => 1 }
+        },
+        indexed_zset! {
+            1 => { Tup2(22, Some(12)) => 1 },
+            2 => { Tup2(23, Some(13)) => 1 }
+        },
+    ];
+
+    for ((waterline, batch), expected) in trace.into_iter().zip(expected_output.iter()) {
+        if let Some(ts) = waterline {
+            ts_handle.push(ts, 1);
+        }
+        for (k, v, r) in batch.into_iter() {
+            input_handle.push(k, (v, r));
+        }
+        dbsp.transaction().unwrap();
+
+        let lag_result = lag_handle.concat().consolidate();
+
+        assert_typed_batch_eq(&lag_result, expected);
+    }
+}
+
+#[test]
+fn test_topk_row_number_append_only() {
+    let (mut dbsp, (input_handle, topk_handle, append_only_handle)) = Runtime::init_circuit(
+        CircuitConfig::from(4).with_splitter_chunk_size_records(2),
+        topk_row_number_append_only_test_circuit,
+    )
+    .unwrap();
+
+    let trace: Vec<Vec<(i32, i32, ZWeight)>> = vec![
+        vec![(1, 5, 1), (1, 7, 1), (1, 9, 1), (1, 11, 1), (2, 4, 1)],
+        // Rows 9 and 11 of partition 1 are discarded.
+        vec![(1, 6, 1), (2, 8, 1)],
+        // Row 8 of partition 2 is no longer among the first rows.
+        vec![(2, 1, 2), (2, 2, 1), (1, 10, 1)],
+        // Discarded rows must not reappear in the output.
+        vec![(1, 8, 1), (1, 12, 1), (2, 3, 1)],
+        vec![(1, 1, 1), (1, 2, 1), (1, 3, 1), (2, 0, 1)],
+    ];
+
+    for batch in trace.into_iter() {
+        for (k, v, r) in batch.into_iter() {
+            input_handle.push(k, (v, r));
+        }
+        dbsp.transaction().unwrap();
+
+        let expected = topk_handle.concat().consolidate();
+        let result = append_only_handle.concat().consolidate();
+
+        assert_typed_batch_eq(&result, &expected);
+    }
+}
+
 #[test]
 fn test_topk_custom_ord() {
     let (
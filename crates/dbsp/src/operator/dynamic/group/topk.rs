@@ -8,7 +8,10 @@ use crate::{
     },
     dynamic::{DataTrait, DynData, DynUnit, Erase, Factory, WeightTrait},
     operator::dynamic::MonoIndexedZSet,
-    trace::{BatchReaderFactories, OrdIndexedWSetFactories},
+    trace::{
+        BatchReader, BatchReaderFactories, Builder, Cursor, OrdIndexedWSetFactories, Spine,
+        TupleBuilder,
+    },
     DBData, DBWeight, DynZWeight, RootCircuit, Stream, ZWeight,
 };
 use std::{marker::PhantomData, ops::Neg};
@@ -198,6 +201,23 @@ impl Stream<RootCircuit, MonoIndexedZSet> {
     ) -> Stream<RootCircuit, MonoIndexedZSet> {
         self.dyn_topk_row_number_custom_order(persistent_id, factories, k, encode, output_func)
     }
+
+    pub fn dyn_topk_row_number_custom_order_append_only_mono(
+        &self,
+        persistent_id: Option<&str>,
+        factories: &TopKRankCustomOrdFactories<DynData, DynData, DynData>,
+        k: usize,
+        encode: Box<dyn Fn(&DynData, &mut DynData)>,
+        output_func: Box<dyn Fn(i64, &DynData, &mut DynData)>,
+    ) -> Stream<RootCircuit, MonoIndexedZSet> {
+        self.dyn_topk_row_number_custom_order_append_only(
+            persistent_id,
+            factories,
+            k,
+            encode,
+            output_func,
+        )
+    }
 }
 
 impl<K, V> Stream<RootCircuit, OrdIndexedZSet<K, V>>
@@ -371,6 +391,99 @@ where
             )),
         )
     }
+
+    /// See [`Stream::topk_row_number_custom_order_append_only`].
+    pub fn dyn_topk_row_number_custom_order_append_only<V2, OV>(
+        &self,
+        persistent_id: Option<&str>,
+        factories: &TopKRankCustomOrdFactories<K, V2, OV>,
+        k: usize,
+        encode: Box<dyn Fn(&V, &mut V2)>,
+        output_func: Box<dyn Fn(i64, &V2, &mut OV)>,
+    ) -> Stream<RootCircuit, OrdIndexedZSet<K, OV>>
+    where
+        V2: DataTrait + ?Sized,
+        OV: DataTrait + ?Sized,
+    {
+        let gc_factories = factories.inner_factories.clone();
+
+        self.dyn_map_index(
+            &factories.inner_factories,
+            Box::new(move |(k, v), kv| {
+                let (out_k, out_v) = kv.split_mut();
+                k.clone_to(out_k);
+                encode(v, out_v);
+            }),
+        )
+        .set_persistent_id(
+            persistent_id
+                .map(|name| format!("{name}-ordered"))
+                .as_deref(),
+        )
+        .dyn_group_transform_with_input_gc_no_waterline(
+            persistent_id,
+            &factories.inner_factories,
+            &factories.output_factories,
+            Box::new(DiffGroupTransformer::new(
+                factories.output_factories.val_factory(),
+                TopKRowNumber::new(factories.output_factories.val_factory(), k, output_func),
+            )),
+            Box::new(
+                move |delta: &Spine<OrdIndexedZSet<K, V2>>, trace: &Spine<OrdIndexedZSet<K, V2>>| {
+                    topk_input_retractions(&gc_factories, delta, trace, k as ZWeight)
+                },
+            ),
+        )
+    }
+}
+
+/// Computes the retractions that remove from the `trace` of previous inputs
+/// of a `ROW_NUMBER` top-k operator the values that are not among the first
+/// `k` rows of their partition, for the partitions in `delta`.
+///
+/// This is only correct when the input of the operator is append-only: such
+/// values can then never again be among the first `k` rows.  The values
+/// added to a partition in the current step are only discarded the next time
+/// the partition changes, so each partition keeps at most `k` rows plus the
+/// rows added by its last change.
+fn topk_input_retractions<B>(
+    factories: &B::Factories,
+    delta: &Spine<B>,
+    trace: &Spine<B>,
+    k: ZWeight,
+) -> B
+where
+    B: IndexedZSet,
+{
+    let mut builder = TupleBuilder::new(factories, B::Builder::with_capacity(factories, 0, 0));
+    let mut delta_cursor = delta.cursor();
+    let mut trace_cursor = trace.cursor();
+
+    while delta_cursor.key_valid() {
+        if trace_cursor.seek_key_exact(delta_cursor.key(), None) {
+            // Total weight of the values seen so far.
+            let mut kept: ZWeight = 0;
+            while trace_cursor.val_valid() {
+                let weight = **trace_cursor.weight();
+                if weight > 0 {
+                    if kept >= k {
+                        builder.push_refs(
+                            trace_cursor.key(),
+                            trace_cursor.val(),
+                            &(),
+                            weight.neg().erase(),
+                        );
+                    } else {
+                        kept += weight;
+                    }
+                }
+                trace_cursor.step_val();
+            }
+        }
+        delta_cursor.step_key();
+    }
+
+    builder.done()
 }
 
 struct TopK<I, const ASCENDING: bool>
@@ -621,3 +734,81 @@ where
         }
     }
 }
+
+#[cfg(test)]
+mod test {
+    use super::topk_input_retractions;
+    use crate::{
+        dynamic::DynData,
+        indexed_zset,
+        trace::{BatchReaderFactories, Spine, Trace},
+        typed_batch::{DynOrdIndexedZSet, OrdIndexedZSet},
+        utils::Tup2,
+        ZWeight,
+    };
+
+    type Batch = DynOrdIndexedZSet<DynData, DynData>;
+
+    fn spine(tuples: Vec<Tup2<Tup2<i32, i32>, ZWeight>>) -> Spine<Batch> {
+        let factories = BatchReaderFactories::new::<i32, i32, ZWeight>();
+        let mut spine: Spine<Batch> = Spine::new(&factories);
+        spine.insert(OrdIndexedZSet::<i32, i32>::from_tuples((), tuples).into_inner());
+        spine
+    }
+
+    fn retractions(
+        delta: Vec<Tup2<Tup2<i32, i32>, ZWeight>>,
+        trace: Vec<Tup2<Tup2<i32, i32>, ZWeight>>,
+        k: ZWeight,
+    ) -> OrdIndexedZSet<i32, i32> {
+        OrdIndexedZSet::new(topk_input_retractions::<Batch>(
+            &BatchReaderFactories::new::<i32, i32, ZWeight>(),
+            &spine(delta),
+            &spine(trace),
+            k,
+        ))
+    }
+
+    fn tuples(partition: i32, values: &[(i32, ZWeight)]) -> Vec<Tup2<Tup2<i32, i32>, ZWeight>> {
+        values
+            .iter()
+            .map(|(v, w)| Tup2(Tup2(partition, *v), *w))
+            .collect()
+    }
+
+    #[test]
+    fn keeps_first_rows_of_changed_partitions() {
+        let mut trace = tuples(1, &[(1, 1), (2, 1), (3, 1), (4, 1)]);
+        trace.extend(tuples(2, &[(1, 1), (2, 1), (3, 1)]));
+
+        let result = retractions(tuples(1, &[(0, 1)]), trace.clone(), 2);
+        let expected: OrdIndexedZSet<i32, i32> = indexed_zset! {
+            1 => { 3 => -1, 4 => -1 }
+        };
+        assert_eq!(result, expected);
+
+        let result = retractions(tuples(2, &[(5, 1)]), trace, 2);
+        let expected: OrdIndexedZSet<i32, i32> = indexed_zset! {
+            2 => { 3 => -1 }
+        };
+        assert_eq!(result, expected);
+    }
+
+    #[test]
+    fn counts_duplicate_rows() {
+        // Row 1 alone fills the first two rows.
+        let trace = tuples(1, &[(1, 2), (2, 1), (3, 1)]);
+        let result = retractions(tuples(1, &[(4, 1)]), trace, 2);
+        let expected: OrdIndexedZSet<i32, i32> = indexed_zset! {
+            1 => { 2 => -1, 3 => -1 }
+        };
+        assert_eq!(result, expected);
+    }
+
+    #[test]
+    fn keeps_short_partitions() {
+        let trace = tuples(1, &[(1, 1), (2, 1)]);
+        let result = retractions(tuples(1, &[(3, 1)]), trace, 2);
+        assert_eq!(result, OrdIndexedZSet::<i32, i32>::empty());
+    }
+}
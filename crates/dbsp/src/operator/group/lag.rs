@@ -1,12 +1,15 @@
 use crate::operator::dynamic::group::LagCustomOrdFactories;
 use crate::operator::group::custom_ord::WithCustomOrd;
 use crate::{
-    dynamic::{DowncastTrait, DynData, DynPair},
+    circuit::metadata::MetaItem,
+    dynamic::{DowncastTrait, DynData, DynPair, Erase},
     operator::dynamic::group::LagFactories,
-    typed_batch::{DynOrdIndexedZSet, IndexedZSet, TypedBatch},
+    trace::Filter,
+    typed_batch::{DynOrdIndexedZSet, IndexedZSet, TypedBatch, TypedBox},
     utils::Tup2,
     CmpFunc, DBData, OrdIndexedZSet, RootCircuit, Stream, ZWeight,
 };
+use dyn_clone::clone_box;
 
 impl<B> Stream<RootCircuit, B>
 where
@@ -142,4 +145,120 @@ where
             )
             .typed()
     }
+
+    /// Like [`Stream::lag_custom_order`], but bounds the state of the
+    /// operator using a waterline.
+    ///
+    /// The operator keeps all outputs it has produced, in order to retract
+    /// them when the inputs change.  An output whose value satisfies
+    /// `retain_value_func(value, waterline)` is kept; other outputs are
+    /// discarded.  The operator also keeps all inputs that satisfy
+    /// `retain_value_func`; of the other inputs of a partition, it only
+    /// keeps the `|offset|` inputs that precede the first one that does,
+    /// since later inputs cannot look back any further.
+    ///
+    /// This is only correct if no future input can affect the discarded
+    /// outputs or read the discarded inputs, e.g., when all future inputs
+    /// have a leading sort column above the waterline, `retain_value_func`
+    /// holds exactly for the values whose leading sort column is above the
+    /// waterline, and the operator looks back along the sort order
+    /// (`offset > 0` for ascending order).
+    #[allow(clippy::type_complexity)]
+    pub fn lag_custom_order_with_waterline<TS, VL, OV, PF, CF, OF, RF>(
+        &self,
+        offset: isize,
+        project: PF,
+        output: OF,
+        waterline: &Stream<RootCircuit, TypedBox<TS, DynData>>,
+        retain_value_func: RF,
+    ) -> Stream<RootCircuit, OrdIndexedZSet<K, OV>>
+    where
+        TS: DBData + Erase<DynData>,
+        VL: DBData,
+        OV: DBData,
+        CF: CmpFunc<V>,
+        PF: Fn(Option<&V>) -> VL + 'static,
+        OF: Fn(&V, &VL) -> OV + 'static,
+        RF: Fn(&V, &TS) -> bool + Clone + Send + Sync + 'static,
+    {
+        self.lag_custom_order_with_waterline_persistent::<TS, VL, OV, PF, CF, OF, RF>(
+            None,
+            offset,
+            project,
+            output,
+            waterline,
+            retain_value_func,
+        )
+    }
+
+    #[allow(clippy::type_complexity)]
+    pub fn lag_custom_order_with_waterline_persistent<TS, VL, OV, PF, CF, OF, RF>(
+        &self,
+        persistent_id: Option<&str>,
+        offset: isize,
+        project: PF,
+        output: OF,
+        waterline: &Stream<RootCircuit, TypedBox<TS, DynData>>,
+        retain_value_func: RF,
+    ) -> Stream<RootCircuit, OrdIndexedZSet<K, OV>>
+    where
+        TS: DBData + Erase<DynData>,
+        VL: DBData,
+        OV: DBData,
+        CF: CmpFunc<V>,
+        PF: Fn(Option<&V>) -> VL + 'static,
+        OF: Fn(&V, &VL) -> OV + 'static,
+        RF: Fn(&V, &TS) -> bool + Clone + Send + Sync + 'static,
+    {
+        let factories = LagCustomOrdFactories::<
+            DynOrdIndexedZSet<DynData, DynData>,
+            DynData,
+            DynData,
+            DynData,
+        >::new::<K, V, WithCustomOrd<V, CF>, VL, OV>();
+
+        let retain_input_func = retain_value_func.clone();
+        self.inner()
+            .dyn_lag_custom_order_with_waterline_mono(
+                persistent_id,
+                &factories,
+                offset,
+                Box::new(move |v1, v2: &mut DynData| unsafe {
+                    *v2.downcast_mut::<WithCustomOrd<V, CF>>() =
+                        WithCustomOrd::new(v1.downcast::<V>().clone())
+                }),
+                Box::new(move |v, ov: &mut DynData| unsafe {
+                    *ov.downcast_mut::<VL>() =
+                        project(v.map(|v| &v.downcast::<WithCustomOrd<V, CF>>().val))
+                }),
+                Box::new(move |v2, vl, ov| {
+                    *unsafe { ov.downcast_mut::<OV>() } = output(
+                        &unsafe { v2.downcast::<WithCustomOrd<V, CF>>() }.val,
+                        unsafe { vl.downcast::<VL>() },
+                    )
+                }),
+                &waterline.inner_data(),
+                Box::new(move |ts: &DynData| {
+                    let metadata = MetaItem::String(format!("{ts:?}"));
+                    let ts = clone_box(ts);
+                    let retain_value_func = retain_input_func.clone();
+                    Filter::new(Box::new(move |v: &DynData| {
+                        let ordered = unsafe { v.downcast::<WithCustomOrd<V, CF>>() };
+                        retain_value_func(&ordered.val, unsafe { ts.as_ref().downcast::<TS>() })
+                    }))
+                    .with_metadata(metadata)
+                }),
+                Box::new(move |ts: &DynData| {
+                    let metadata = MetaItem::String(format!("{ts:?}"));
+                    let ts = clone_box(ts);
+                    let retain_value_func = retain_value_func.clone();
+                    Filter::new(Box::new(move |v: &DynPair<DynData, DynData>| {
+                        let ordered = unsafe { v.fst().downcast::<WithCustomOrd<V, CF>>() };
+                        retain_value_func(&ordered.val, unsafe { ts.as_ref().downcast::<TS>() })
+                    }))
+                    .with_metadata(metadata)
+                }),
+            )
+            .typed()
+    }
 }
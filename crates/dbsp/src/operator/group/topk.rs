@@ -304,4 +304,72 @@ where
             )
             .typed()
     }
+
+    /// Like [`topk_row_number_custom_order`](`Self::topk_row_number_custom_order`),
+    /// but for append-only input streams.
+    ///
+    /// Since values are never removed from the input, a value that is not
+    /// among the first `k` values of its group can never be part of the
+    /// output again.  The operator discards such values from its trace of
+    /// previous inputs, so that it stores at most `k` values for each group,
+    /// plus the values added by the last change to the group.
+    ///
+    /// ## Correctness
+    ///
+    /// * `CF` must establish a _total_ order over `V`, consistent with `impl Eq
+    ///   for V`, i.e., `CF::cmp(v1, v2) == Equal <=> v1.eq(v2)`.
+    /// * The input stream must only contain insertions: the output is
+    ///   incorrect if a value is deleted.
+    pub fn topk_row_number_custom_order_append_only<CF, OF, OV>(
+        &self,
+        k: usize,
+        output_func: OF,
+    ) -> Stream<RootCircuit, OrdIndexedZSet<K, OV>>
+    where
+        CF: CmpFunc<V>,
+        OV: DBData,
+        OF: Fn(i64, &V) -> OV + 'static,
+    {
+        self.topk_row_number_custom_order_append_only_persistent::<CF, OF, OV>(
+            None,
+            k,
+            output_func,
+        )
+    }
+
+    pub fn topk_row_number_custom_order_append_only_persistent<CF, OF, OV>(
+        &self,
+        persistent_id: Option<&str>,
+        k: usize,
+        output_func: OF,
+    ) -> Stream<RootCircuit, OrdIndexedZSet<K, OV>>
+    where
+        CF: CmpFunc<V>,
+        OV: DBData,
+        OF: Fn(i64, &V) -> OV + 'static,
+    {
+        let factories = TopKRankCustomOrdFactories::<DynData, DynData, DynData>::new::<
+            K,
+            WithCustomOrd<V, CF>,
+            OV,
+        >();
+
+        self.inner()
+            .dyn_topk_row_number_custom_order_append_only_mono(
+                persistent_id,
+                &factories,
+                k,
+                Box::new(
+                    move |v1, v2: &mut DynData /* <WithCustomOrd<V, CF>> */| unsafe {
+                        *v2.downcast_mut::<WithCustomOrd<V, CF>>() =
+                            WithCustomOrd::new(v1.downcast::<V>().clone())
+                    },
+                ),
+                Box::new(move |rank, v2, ov| unsafe {
+                    *ov.downcast_mut() =
+                        output_func(rank, &v2.downcast::<WithCustomOrd<V, CF>>().val)
+                }),
+            )
+            .typed()
+    }
 }
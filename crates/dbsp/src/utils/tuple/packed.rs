@@ -0,0 +1,245 @@
+//! This file contains a macro which defines tuples that store nullable fields
+//! using a null bitmap.
+//!
+//! A packed tuple `PTupN<T0, ..., TN>` wraps a `TupN<T0, ..., TN>` whose
+//! fields are *not* optional, together with a bitmap with one bit per field.
+//! A field whose bit is set is `NULL`, and its storage holds `Default::default()`.
+//! Compared to a `TupN` where nullable fields are stored as `Option<T>`, this
+//! saves the discriminant and the padding of each nullable field, which matters
+//! for wide rows with many nullable columns.
+//!
+//! Non-nullable fields are read directly (`t.0`) through `Deref`; nullable
+//! fields are read using `t.get_0()`, which returns an `Option<&T0>`.  All
+//! fields are modified using `t.set_0(Option<T0>)`, which keeps the bitmap
+//! consistent with the values; there is no `DerefMut`, since writing a value
+//! through it would not clear the null bit of the field.  The ordering of
+//! packed tuples is the same as the ordering of the corresponding tuples of
+//! `Option`s: `NULL` values compare smaller than all other values.
+//!
+//! Packed tuples do not implement the algebraic traits implemented by `TupN`,
+//! since the algebra of `Option<T>` differs from the algebra of `T`; the
+//! compiler does not use packed tuples for aggregation results.
+
+#[macro_export]
+macro_rules! declare_packed_tuples {
+    (
+        $(
+            $tuple_name:ident($inner:ident; $bytes:literal)<$($index:tt: $element:ident),* $(,)?>
+        ),*
+        $(,)?
+    ) => {
+        $(
+            paste::paste! {
+                #[derive(
+                    Default,
+                    Eq,
+                    Clone,
+                    Hash,
+                    PartialEq,
+                    serde::Serialize,
+                    serde::Deserialize,
+                    size_of::SizeOf,
+                    rkyv::Archive,
+                    rkyv::Serialize,
+                    rkyv::Deserialize
+                )]
+                #[archive_attr(derive(Eq, PartialEq))]
+                #[archive(bound(
+                    archive = $( "" $element "" ": rkyv::Archive, ")* "" $( "<" $element "" " as rkyv::Archive>::Archived: Ord, ")*
+                ))]
+                /// A tuple type which stores nullable fields using a null bitmap.
+                pub struct $tuple_name<$($element,)*> {
+                    nulls: [u8; $bytes],
+                    values: $inner<$($element,)*>,
+                }
+
+                impl<$($element),*> $tuple_name<$($element,)*>
+                {
+                    /// Create a packed tuple; `None` arguments are `NULL` fields.
+                    #[allow(clippy::too_many_arguments)]
+                    pub fn new($($element: Option<$element>),*) -> Self
+                    where
+                        $($element: Default,)*
+                    {
+                        let mut nulls = [0u8; $bytes];
+                        $(
+                            let $element = match $element {
+                                Some(value) => value,
+                                None => {
+                                    nulls[$index / 8] |= 1u8 << ($index % 8);
+                                    $element::default()
+                                }
+                            };
+                        )*
+                        Self { nulls, values: $inner::new($($element),*) }
+                    }
+
+                    /// True if the field with the specified index is `NULL`.
+                    #[inline]
+                    pub fn is_null(&self, index: usize) -> bool {
+                        self.nulls[index / 8] & (1u8 << (index % 8)) != 0
+                    }
+
+                    $(
+                        #[inline]
+                        pub fn [<get_ $index>](&self) -> Option<&$element> {
+                            if self.is_null($index) {
+                                None
+                            } else {
+                                Some(&self.values.$index)
+                            }
+                        }
+
+                        #[inline]
+                        pub fn [<set_ $index>](&mut self, value: Option<$element>)
+                        where
+                            $element: Default,
+                        {
+                            match value {
+                                Some(value) => {
+                                    self.nulls[$index / 8] &= !(1u8 << ($index % 8));
+                                    self.values.$index = value;
+                                }
+                                None => {
+                                    self.nulls[$index / 8] |= 1u8 << ($index % 8);
+                                    self.values.$index = $element::default();
+                                }
+                            }
+                        }
+                    )*
+                }
+
+                impl<$($element),*> core::ops::Deref for $tuple_name<$($element,)*> {
+                    type Target = $inner<$($element,)*>;
+
+                    #[inline]
+                    fn deref(&self) -> &Self::Target {
+                        &self.values
+                    }
+                }
+
+                impl<$($element: Ord),*> Ord for $tuple_name<$($element,)*> {
+                    fn cmp(&self, other: &Self) -> core::cmp::Ordering {
+                        $(
+                            let ordering = match (self.is_null($index), other.is_null($index)) {
+                                (true, true) => core::cmp::Ordering::Equal,
+                                (true, false) => core::cmp::Ordering::Less,
+                                (false, true) => core::cmp::Ordering::Greater,
+                                (false, false) => self.values.$index.cmp(&other.values.$index),
+                            };
+                            if ordering != core::cmp::Ordering::Equal {
+                                return ordering;
+                            }
+                        )*
+                        core::cmp::Ordering::Equal
+                    }
+                }
+
+                impl<$($element: Ord),*> PartialOrd for $tuple_name<$($element,)*> {
+                    fn partial_cmp(&self, other: &Self) -> Option<core::cmp::Ordering> {
+                        Some(self.cmp(other))
+                    }
+                }
+
+                /* The archived tuple must be ordered exactly like the tuple. */
+                impl<$($element),*> Ord for [<Archived $tuple_name>]<$($element,)*>
+                where
+                    $($element: rkyv::Archive, <$element as rkyv::Archive>::Archived: Ord,)*
+                {
+                    fn cmp(&self, other: &Self) -> core::cmp::Ordering {
+                        $(
+                            let mask = 1u8 << ($index % 8);
+                            let ordering = match (self.nulls[$index / 8] & mask != 0, other.nulls[$index / 8] & mask != 0) {
+                                (true, true) => core::cmp::Ordering::Equal,
+                                (true, false) => core::cmp::Ordering::Less,
+                                (false, true) => core::cmp::Ordering::Greater,
+                                (false, false) => self.values.$index.cmp(&other.values.$index),
+                            };
+                            if ordering != core::cmp::Ordering::Equal {
+                                return ordering;
+                            }
+                        )*
+                        core::cmp::Ordering::Equal
+                    }
+                }
+
+                impl<$($element),*> PartialOrd for [<Archived $tuple_name>]<$($element,)*>
+                where
+                    $($element: rkyv::Archive, <$element as rkyv::Archive>::Archived: Ord,)*
+                {
+                    fn partial_cmp(&self, other: &Self) -> Option<core::cmp::Ordering> {
+                        Some(self.cmp(other))
+                    }
+                }
+            }
+
+            impl<$($element),*> $crate::NumEntries for $tuple_name<$($element,)*>
+            where
+                $($element: $crate::NumEntries,)*
+            {
+                const CONST_NUM_ENTRIES: Option<usize> = None;
+
+                fn num_entries_shallow(&self) -> usize {
+                    $crate::count_items!($($element),*)
+                }
+
+                fn num_entries_deep(&self) -> usize {
+                    self.values.num_entries_deep()
+                }
+            }
+
+            /* Fields are printed like the fields of the corresponding tuple of Options. */
+            impl<$($element: core::fmt::Debug),*> core::fmt::Debug for $tuple_name<$($element),*> {
+                fn fmt(&self, f: &mut core::fmt::Formatter) -> core::result::Result<(), core::fmt::Error>  {
+                    f.debug_tuple("")
+                        $(.field(&paste::paste!(self.[<get_ $index>]())))*
+                        .finish()
+                }
+            }
+
+            impl<$($element: Copy),*> Copy for $tuple_name<$($element),*> {}
+
+            impl<$($element),*> $crate::circuit::checkpointer::Checkpoint for $tuple_name<$($element),*>
+            where
+                $tuple_name<$($element),*>: ::rkyv::Serialize<$crate::storage::file::Serializer> + $crate::storage::file::Deserializable,
+            {
+                fn checkpoint(&self) -> Result<Vec<u8>, $crate::Error> {
+                    let mut s = $crate::storage::file::Serializer::default();
+                    let _offset = ::rkyv::ser::Serializer::serialize_value(&mut s, self).unwrap();
+                    let data = s.into_serializer().into_inner().into_vec();
+                    Ok(data)
+                }
+
+                fn restore(&mut self, data: &[u8]) -> Result<(), $crate::Error> {
+                    *self = $crate::trace::unaligned_deserialize(data);
+                    Ok(())
+                }
+            }
+        )*
+    };
+}
+
+#[cfg(test)]
+mod test {
+    use crate::utils::Tup3;
+
+    crate::declare_packed_tuples! {
+        PTup3(Tup3; 1)<0: T0, 1: T1, 2: T2>,
+    }
+
+    #[test]
+    fn packed_tuple() {
+        let t: PTup3<i32, String, i64> = PTup3::new(Some(1), None, Some(3));
+        assert_eq!(t.0, 1);
+        assert_eq!(t.get_1(), None);
+        assert_eq!(t.get_2(), Some(&3));
+
+        let mut u = t.clone();
+        u.set_1(Some("a".to_string()));
+        assert_eq!(u.get_1(), Some(&"a".to_string()));
+        // NULL is smaller than all other values
+        assert!(t < u);
+        u.set_1(None);
+        assert_eq!(t, u);
+    }
+}
@@ -33,6 +33,7 @@ import org.apache.calcite.util.Pair;
 import org.dbsp.sqlCompiler.circuit.DBSPCircuit;
 import org.dbsp.sqlCompiler.compiler.CompilerOptions;
 import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.RuntimeProfile;
 import org.dbsp.sqlCompiler.compiler.backend.rust.StubsWriter;
 import org.dbsp.sqlCompiler.compiler.backend.rust.multi.MultiCratesWriter;
 import org.dbsp.sqlCompiler.compiler.backend.rust.RustFileWriter;
@@ -41,6 +42,7 @@ import org.dbsp.sqlCompiler.compiler.errors.CompilationError;
 import org.dbsp.sqlCompiler.compiler.errors.CompilerMessages;
 import org.dbsp.sqlCompiler.compiler.errors.SourcePositionRange;
 import org.dbsp.sqlCompiler.compiler.visitors.outer.LateMaterializations;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.monotonicity.StateRetention;
 import org.dbsp.util.IIndentStream;
 import org.dbsp.util.IndentStream;
 import org.dbsp.util.Logger;
@@ -133,9 +135,12 @@ public class CompilerMain {
         }
     }
 
-    /** Run compiler, return exit code. */
-    CompilerMessages run() throws SQLException {
+    /** Create a compiler and compile the input program using the specified profile.
+     * Errors are reported in the messages of the returned compiler. */
+    DBSPCompiler compile(@Nullable RuntimeProfile profile) throws SQLException {
         DBSPCompiler compiler = new DBSPCompiler(this.options);
+        if (profile != null)
+            compiler.setProfile(profile);
         this.options.validate(compiler);
         String conn = this.options.ioOptions.metadataSource;
         if (!conn.isEmpty()) {
@@ -156,12 +161,18 @@ public class CompilerMain {
             compiler.reportError(SourcePositionRange.INVALID,
                     "Error reading file",
                     Utilities.singleQuote(this.options.ioOptions.inputFile) + " " + e.getMessage());
-            return compiler.messages;
+            return compiler;
         }
-        if (this.options.ioOptions.verbosity >= 1)
+        if (this.options.ioOptions.verbosity >= 1 && profile == null)
             System.out.println(this.options);
 
         compiler.compileInput();
+        return compiler;
+    }
+
+    /** Run compiler, return exit code. */
+    CompilerMessages run() throws SQLException {
+        DBSPCompiler compiler = this.compile(null);
         if (compiler.hasErrors())
             return compiler.messages;
         // The following runs all compilation stages
@@ -169,6 +180,26 @@ public class CompilerMain {
         if (compiler.hasErrors())
             return compiler.messages;
         Utilities.enforce(circuit != null);
+
+        if (this.options.ioOptions.profile != null) {
+            // Operator hashes are only known for the final circuit, so the profile is
+            // mapped onto the circuit compiled without it, and the program is compiled again.
+            RuntimeProfile profile = RuntimeProfile.load(this.options.ioOptions.profile, compiler);
+            if (profile == null)
+                return compiler.messages;
+            profile.resolve(compiler, circuit);
+            compiler = this.compile(profile);
+            if (compiler.hasErrors())
+                return compiler.messages;
+            if (profile.getMatched() == 0)
+                compiler.reportWarning(SourcePositionRange.INVALID, "Profile not used",
+                        "No operator in profile " + Utilities.singleQuote(this.options.ioOptions.profile) +
+                                " matches the compiled program");
+            circuit = compiler.getFinalCircuit(false);
+            if (compiler.hasErrors())
+                return compiler.messages;
+            Utilities.enforce(circuit != null);
+        }
         if (this.options.ioOptions.emitJsonSchema != null) {
             try {
                 PrintStream outputStream = new PrintStream(
@@ -208,6 +239,19 @@ public class CompilerMain {
             }
         }
 
+        if (this.options.ioOptions.emitStateReport != null) {
+            try {
+                PrintStream outputStream = new PrintStream(
+                        Files.newOutputStream(Paths.get(this.options.ioOptions.emitStateReport)));
+                outputStream.println(StateRetention.asJson(compiler.unboundedState).toPrettyString());
+                outputStream.close();
+            } catch (IOException e) {
+                compiler.reportError(SourcePositionRange.INVALID,
+                        "Error writing to file", e.getMessage());
+                return compiler.messages;
+            }
+        }
+
         String dotFormat = (this.options.ioOptions.emitJpeg ? "jpg"
                             : this.options.ioOptions.emitPng ? "png"
                             : null);
@@ -0,0 +1,40 @@
+package org.dbsp.sqlCompiler.circuit.annotation;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.dbsp.util.JsonStream;
+import org.dbsp.util.Utilities;
+
+/** Annotation placed on a source operator for each column that the compiler
+ * chose to intern, although the column was not declared as INTERNED. */
+public class AutoInterned extends Annotation {
+    /** Name of the interned column */
+    public final String column;
+    /** Why the column was chosen */
+    public final String reason;
+
+    public AutoInterned(String column, String reason) {
+        this.column = column;
+        this.reason = reason;
+    }
+
+    public static AutoInterned fromJson(JsonNode node) {
+        String column = Utilities.getStringProperty(node, "column");
+        String reason = Utilities.getStringProperty(node, "reason");
+        return new AutoInterned(column, reason);
+    }
+
+    @Override
+    public void asJson(JsonStream stream) {
+        stream.beginObject().appendClass(this);
+        stream.label("column");
+        stream.append(this.column);
+        stream.label("reason");
+        stream.append(this.reason);
+        stream.endObject();
+    }
+
+    @Override
+    public String toString() {
+        return "AutoInterned: " + this.column + " (" + this.reason + ")";
+    }
+}
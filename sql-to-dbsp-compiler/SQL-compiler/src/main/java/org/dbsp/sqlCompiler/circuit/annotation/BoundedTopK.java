@@ -0,0 +1,16 @@
+package org.dbsp.sqlCompiler.circuit.annotation;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/** Annotation set on a partitioned ROW_NUMBER TopK operator whose input is append-only.
+ * The operator discards from its integral the rows of each partition that can
+ * no longer be part of the output. */
+public class BoundedTopK extends Annotation {
+    private BoundedTopK() {}
+
+    public static final BoundedTopK INSTANCE = new BoundedTopK();
+
+    public static BoundedTopK fromJson(JsonNode unused) {
+        return INSTANCE;
+    }
+}
@@ -0,0 +1,35 @@
+package org.dbsp.sqlCompiler.circuit.annotation;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.dbsp.util.JsonStream;
+import org.dbsp.util.Utilities;
+
+/** Annotation placed on an operator that replaces a join with a table
+ * whose primary key is referred by a foreign key.  The join was removed
+ * because it could not change the result. */
+public class EliminatedJoin extends Annotation {
+    /** Name of the table whose join was removed */
+    public final String table;
+
+    public EliminatedJoin(String table) {
+        this.table = table;
+    }
+
+    public static EliminatedJoin fromJson(JsonNode node) {
+        String table = Utilities.getStringProperty(node, "table");
+        return new EliminatedJoin(table);
+    }
+
+    @Override
+    public void asJson(JsonStream stream) {
+        stream.beginObject().appendClass(this);
+        stream.label("table");
+        stream.append(this.table);
+        stream.endObject();
+    }
+
+    @Override
+    public String toString() {
+        return "EliminatedJoin: " + this.table;
+    }
+}
@@ -7,8 +7,8 @@ import org.dbsp.util.Utilities;
 /** Annotation used on a join to indicate that it doesn't need
  * an integrator on one or both sides. */
 public class NoIntegrator extends Annotation {
-    final boolean notNeededOnLeft;
-    final boolean notNeededOnRight;
+    public final boolean notNeededOnLeft;
+    public final boolean notNeededOnRight;
 
     public NoIntegrator(boolean notNeededOnLeft, boolean notNeededOnRight) {
         this.notNeededOnLeft = notNeededOnLeft;
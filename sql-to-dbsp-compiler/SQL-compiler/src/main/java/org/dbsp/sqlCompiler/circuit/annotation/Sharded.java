@@ -0,0 +1,16 @@
+package org.dbsp.sqlCompiler.circuit.annotation;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/** Annotation set on an operator whose output is an indexed Z-set
+ * that is already partitioned across workers by the hash of its key.
+ * Consumers of such a stream do not need to reshard it. */
+public class Sharded extends Annotation {
+    private Sharded() {}
+
+    public static final Sharded INSTANCE = new Sharded();
+
+    public static Sharded fromJson(JsonNode unused) {
+        return INSTANCE;
+    }
+}
@@ -0,0 +1,124 @@
+package org.dbsp.sqlCompiler.circuit.operator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.compiler.backend.JsonDecoder;
+import org.dbsp.sqlCompiler.compiler.frontend.calciteObject.CalciteEmptyRel;
+import org.dbsp.sqlCompiler.compiler.frontend.calciteObject.CalciteRelNode;
+import org.dbsp.sqlCompiler.compiler.visitors.VisitDecision;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.InnerVisitor;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitVisitor;
+import org.dbsp.sqlCompiler.ir.expression.DBSPComparatorExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPPathExpression;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
+import org.dbsp.util.Utilities;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/** A {@link DBSPLagOperator} which uses a waterline to discard the outputs it
+ * no longer has to retract, and the inputs that no future row can look back to.
+ * The second input is the waterline.  The 'retain' closure has signature
+ * |value, waterline| -> bool; it returns 'true' for the input values whose
+ * outputs have to be kept.  Of the inputs of a partition for which 'retain'
+ * is false only the last |offset| ones are kept.  This is only correct when
+ * the most significant sort column is monotone and the operator looks
+ * back along increasing values of this column. */
+public final class DBSPLagWithWaterlineOperator extends DBSPBinaryOperator {
+    // Usually a DBSPComparatorExpression, replaced with a PathExpression later.
+    public final DBSPExpression comparator;
+    public final DBSPExpression projection;
+    public final DBSPExpression retain;
+    public final int offset;
+
+    /**
+     * Create a LEAD/LAG window aggregation operator with bounded state.
+     *
+     * @param node       Calcite object that is being compiled.
+     * @param offset     Lead/lag offset.
+     * @param projection Projection that computes the delayed row from Option[input row].
+     * @param function   Expression that produces the output from two arguments:
+     *                   the current row and the delayed row.
+     * @param comparator Comparator used for sorting.
+     * @param retain     Closure that decides which inputs and outputs are kept, based on the waterline.
+     * @param outputType Type of output record produced.
+     * @param source     Input node for the lag operator.
+     * @param waterline  Waterline of the input.
+     */
+    public DBSPLagWithWaterlineOperator(CalciteRelNode node, int offset,
+                                        DBSPExpression projection, DBSPExpression function,
+                                        DBSPExpression comparator, DBSPExpression retain,
+                                        DBSPTypeIndexedZSet outputType,
+                                        OutputPort source, OutputPort waterline) {
+        super(node, "lag_custom_order_with_waterline", function, outputType,
+                source.isMultiset(), source, waterline, true);
+        Utilities.enforce(comparator.is(DBSPComparatorExpression.class) ||
+                comparator.is(DBSPPathExpression.class));
+        this.comparator = comparator;
+        this.projection = projection;
+        this.retain = retain;
+        this.offset = offset;
+    }
+
+    @Override
+    public boolean equivalent(DBSPOperator other) {
+        if (!super.equivalent(other))
+            return false;
+        DBSPLagWithWaterlineOperator otherOperator = other.as(DBSPLagWithWaterlineOperator.class);
+        if (otherOperator == null)
+            return false;
+        return this.comparator.equivalent(otherOperator.comparator) &&
+                this.projection.equivalent(otherOperator.projection) &&
+                this.retain.equivalent(otherOperator.retain) &&
+                this.offset == otherOperator.offset;
+    }
+
+    @Override
+    public DBSPSimpleOperator with(
+            @Nullable DBSPExpression function, DBSPType outputType,
+            List<OutputPort> newInputs, boolean force) {
+        if (this.mustReplace(force, function, newInputs, outputType)) {
+            Utilities.enforce(newInputs.size() == 2, () -> "Expected 2 inputs " + newInputs);
+            return new DBSPLagWithWaterlineOperator(this.getRelNode(), this.offset,
+                    this.projection, toClosure(function), this.comparator, this.retain,
+                    outputType.to(DBSPTypeIndexedZSet.class), newInputs.get(0), newInputs.get(1))
+                    .copyAnnotations(this);
+        }
+        return this;
+    }
+
+    @Override
+    public void accept(CircuitVisitor visitor) {
+        visitor.push(this);
+        VisitDecision decision = visitor.preorder(this);
+        if (!decision.stop())
+            visitor.postorder(this);
+        visitor.pop(this);
+    }
+
+    @Override
+    public void accept(InnerVisitor visitor) {
+        super.accept(visitor);
+        visitor.property("comparator");
+        this.comparator.accept(visitor);
+        visitor.property("projection");
+        this.projection.accept(visitor);
+        visitor.property("retain");
+        this.retain.accept(visitor);
+    }
+
+    @SuppressWarnings("unused")
+    public static DBSPLagWithWaterlineOperator fromJson(JsonNode node, JsonDecoder decoder) {
+        CommonInfo info = DBSPSimpleOperator.commonInfoFromJson(node, decoder);
+        int offset = Utilities.getIntProperty(node, "offset");
+        DBSPExpression comparator = fromJsonInner(node, "comparator", decoder, DBSPExpression.class);
+        DBSPExpression projection = fromJsonInner(node, "projection", decoder, DBSPExpression.class);
+        DBSPExpression retain = fromJsonInner(node, "retain", decoder, DBSPExpression.class);
+        return new DBSPLagWithWaterlineOperator(
+                CalciteEmptyRel.INSTANCE, offset, projection, info.getFunction(),
+                comparator, retain, info.getIndexedZsetType(), info.getInput(0), info.getInput(1))
+                .addAnnotations(info.annotations(), DBSPLagWithWaterlineOperator.class);
+    }
+}
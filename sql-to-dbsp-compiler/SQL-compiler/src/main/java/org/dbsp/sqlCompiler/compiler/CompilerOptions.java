@@ -32,11 +32,14 @@ import org.dbsp.sqlCompiler.compiler.errors.SourcePositionRange;
 import org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.ProgramIdentifier;
 import org.dbsp.util.IDiff;
 import org.dbsp.util.IValidate;
+import org.dbsp.util.Linq;
 import org.dbsp.util.Utilities;
 
 import javax.annotation.Nullable;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 /** Command-line options for the SQL compiler */
 @SuppressWarnings("CanBeFinal")
@@ -72,13 +75,59 @@ public class CompilerOptions implements IDiff<CompilerOptions>, IValidate {
         @Parameter(names = "--unaryPlusNoop",
                 description = "Compile unary plus into a no-operation; similar to sqlite")
         public boolean unaryPlusNoop = false;
+        @Parameter(names = "--trustForeignKeys",
+                description = "Assume FOREIGN KEY constraints always hold; used to eliminate joins")
+        public boolean trustForeignKeys = false;
+        @Parameter(names = "--eagerAggregation",
+                description = "Pre-aggregate join inputs below GROUP BY with SUM or COUNT")
+        public boolean eagerAggregation = false;
+        @Parameter(names = "--lateMaterialization",
+                description = "Join wide columns back by primary key at the end of views")
+        public boolean lateMaterialization = false;
+        @Parameter(names = "--viewMatching",
+                description = "Compute views from previously defined views when this needs less state")
+        public boolean viewMatching = false;
+        @Parameter(names = "--noAutoIntern",
+                description = "Only intern the string columns declared as INTERNED")
+        public boolean noAutoIntern = false;
+        @Parameter(names = "--autoInternBudget",
+                description = "Maximum number of string columns the compiler chooses to intern")
+        public int autoInternBudget = 4;
+        @Parameter(names = "--nullBitmapWidth",
+                description = "Store tuples with at least this many fields, some nullable, using a null bitmap (0 = never)")
+        public int nullBitmapWidth = 0;
+
+        /** An option which controls an optimization */
+        record Optimization(String name, Function<Language, Object> getter) {}
+
+        /** Options compared by {@link #same}, printed by {@link #toString}, and reported by {@link #diff}.
+         * New options which control optimizations only need to be added here. */
+        static final List<Optimization> OPTIMIZATIONS = List.of(
+                new Optimization("trustForeignKeys", l -> l.trustForeignKeys),
+                new Optimization("eagerAggregation", l -> l.eagerAggregation),
+                new Optimization("lateMaterialization", l -> l.lateMaterialization),
+                new Optimization("viewMatching", l -> l.viewMatching),
+                new Optimization("noAutoIntern", l -> l.noAutoIntern),
+                new Optimization("autoInternBudget", l -> l.autoInternBudget),
+                new Optimization("nullBitmapWidth", l -> l.nullBitmapWidth));
+
+        static String optimizationsToString(Language language) {
+            StringBuilder result = new StringBuilder();
+            for (Optimization o: OPTIMIZATIONS)
+                result.append(",\n\t")
+                        .append(o.name)
+                        .append("=")
+                        .append(o.getter.apply(language));
+            return result.toString();
+        }
 
         public boolean same(Language language) {
             // Only compare fields that matter.
             return this.incrementalize == language.incrementalize &&
                     this.ignoreOrderBy == language.ignoreOrderBy &&
                     this.outputsAreSets == language.outputsAreSets &&
-                    this.unaryPlusNoop == language.unaryPlusNoop;
+                    this.unaryPlusNoop == language.unaryPlusNoop &&
+                    Linq.all(OPTIMIZATIONS, o -> o.getter.apply(this).equals(o.getter.apply(language)));
         }
 
         @Override
@@ -93,11 +142,22 @@ public class CompilerOptions implements IDiff<CompilerOptions>, IValidate {
                     ",\n\tunrestrictedIOTypes=" + this.unrestrictedIOTypes +
                     ",\n\tunaryPlusNoop=" + this.unaryPlusNoop +
                     ",\n\tlenient=" + this.lenient +
+                    optimizationsToString(this) +
                     '}';
         }
 
         @Override
         public boolean validate(IErrorReporter reporter) {
+            if (this.autoInternBudget < 0) {
+                reporter.reportError(SourcePositionRange.INVALID, "Invalid options",
+                        "Option --autoInternBudget must not be negative");
+                return false;
+            }
+            if (this.nullBitmapWidth < 0) {
+                reporter.reportError(SourcePositionRange.INVALID, "Invalid options",
+                        "Option --nullBitmapWidth must not be negative");
+                return false;
+            }
             return true;
         }
 
@@ -131,6 +191,18 @@ public class CompilerOptions implements IDiff<CompilerOptions>, IValidate {
                         .append("!=")
                         .append(other.unaryPlusNoop)
                         .append(System.lineSeparator());
+            for (Optimization o: OPTIMIZATIONS) {
+                Object value = o.getter.apply(this);
+                Object otherValue = o.getter.apply(other);
+                if (!value.equals(otherValue))
+                    result.append(", ")
+                            .append(o.name)
+                            .append("=")
+                            .append(value)
+                            .append("!=")
+                            .append(otherValue)
+                            .append(System.lineSeparator());
+            }
             result.append("}")
                     .append(System.lineSeparator());
             return result.toString();
@@ -176,6 +248,15 @@ public class CompilerOptions implements IDiff<CompilerOptions>, IValidate {
         public String emitPlan = null;
         @Nullable @Parameter(names = "--dataflow", description = "Emit the Dataflow graph of the program in the specified JSON file")
         public String emitDataflow = null;
+        @Nullable @Parameter(names = "--stateReport",
+                description = "Emit a JSON report of the integrated traces that are never garbage-collected in the specified file")
+        public String emitStateReport = null;
+        @Parameter(names = "--warnUnboundedState",
+                description = "Report a warning for each integrated trace that is never garbage-collected")
+        public boolean warnUnboundedState = false;
+        @Nullable @Parameter(names = "--profile",
+                description = "Recompile the program using the runtime profile in the specified JSON file")
+        public String profile = null;
         @Parameter(names = {"--je", "-je"}, description = "Emit error messages as a JSON array to the error output")
         public boolean emitJsonErrors = false;
         @Parameter(names = {"--js", "-js"},
@@ -241,6 +322,11 @@ public class CompilerOptions implements IDiff<CompilerOptions>, IValidate {
                 reporter.reportWarning(SourcePositionRange.INVALID, "Invalid options",
                         "Options --nooutput and -o used at the same time");
             }
+            if (this.profile != null && this.inputFile == null) {
+                reporter.reportError(SourcePositionRange.INVALID, "Invalid options",
+                        "Option --profile requires an input file");
+                return false;
+            }
             return true;
         }
 
@@ -254,6 +340,9 @@ public class CompilerOptions implements IDiff<CompilerOptions>, IValidate {
                     ",\n\temitJpeg=" + this.emitJpeg +
                     ",\n\temitPng=" + this.emitPng +
                     ",\n\temitPlan=" + this.emitPlan +
+                    ",\n\temitStateReport=" + this.emitStateReport +
+                    ",\n\twarnUnboundedState=" + this.warnUnboundedState +
+                    ",\n\tprofile=" + Utilities.singleQuote(this.profile) +
                     ",\n\temitJsonErrors=" + this.emitJsonErrors +
                     ",\n\temitJsonSchema=" + Utilities.singleQuote(this.emitJsonSchema) +
                     ",\n\tinputFile=" + Utilities.singleQuote(this.inputFile) +
@@ -314,6 +403,10 @@ public class CompilerOptions implements IDiff<CompilerOptions>, IValidate {
 
     @Override
     public boolean validate(IErrorReporter reporter) {
+        if (this.languageOptions.nullBitmapWidth > 0 && this.ioOptions.multiCrates()) {
+            reporter.reportWarning(SourcePositionRange.INVALID, "Invalid options",
+                    "Option --nullBitmapWidth is ignored when generating multiple crates");
+        }
         return this.ioOptions.validate(reporter) &&
                 this.languageOptions.validate(reporter);
     }
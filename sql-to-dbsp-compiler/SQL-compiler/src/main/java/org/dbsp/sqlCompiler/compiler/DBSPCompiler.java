@@ -71,7 +71,9 @@ import org.dbsp.sqlCompiler.compiler.frontend.parser.SqlLateness;
 import org.dbsp.sqlCompiler.compiler.visitors.inner.InnerVisitor;
 import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitOptimizer;
 import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitVisitor;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.StateEstimator;
 import org.dbsp.sqlCompiler.compiler.visitors.outer.ToJsonVisitor;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.monotonicity.StateRetention;
 import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
 import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeStruct;
 import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeWeight;
@@ -161,6 +163,11 @@ public class DBSPCompiler implements IWritesLogs, ICompilerComponent, IErrorRepo
     public final ProgramMetadata metadata;
 
     public final TypeCompiler typeCompiler;
+    /** Integrated traces which are never garbage-collected; computed by the optimizer */
+    public final List<StateRetention.UnboundedTrace> unboundedState;
+    /** Metrics of a previous run of the same program, if the program is recompiled using a profile */
+    @Nullable
+    RuntimeProfile profile = null;
     public boolean hasWarnings;
     // For each view the list of columns declared with lateness
     final Map<ProgramIdentifier, Map<ProgramIdentifier, SqlLateness>> viewLateness = new HashMap<>();
@@ -177,10 +184,23 @@ public class DBSPCompiler implements IWritesLogs, ICompilerComponent, IErrorRepo
         this.relToDBSPCompiler = new CalciteToDBSPCompiler(options, this, this.metadata);
         this.sources = new SourceFileContents();
         this.typeCompiler = new TypeCompiler(this);
+        this.unboundedState = new ArrayList<>();
         this.weightVar = DBSPTypeWeight.INSTANCE.var();
         this.start();
     }
 
+    /** Use the metrics in a profile when compiling the program.
+     * Must be called before the program is compiled. */
+    public void setProfile(RuntimeProfile profile) {
+        this.profile = profile;
+        this.sqlToRelCompiler.setProfile(profile);
+    }
+
+    @Nullable
+    public RuntimeProfile getProfile() {
+        return this.profile;
+    }
+
     public void getDataflow(Appendable appendable, DBSPCircuit circuit) {
         IIndentStream result = new IndentStream(appendable).setIndentAmount(2);
         result.append("{").increase();
@@ -188,10 +208,18 @@ public class DBSPCompiler implements IWritesLogs, ICompilerComponent, IErrorRepo
         Map<RelNode, Integer> remap = this.getPlans(result);
         result.append(",").newline();
         result.appendJsonLabelAndColon("mir");
+        StateEstimator estimates = new StateEstimator(this);
+        estimates.apply(circuit);
         ToJsonVisitor toJson = new ToJsonVisitor(
-                this, result, this.options.ioOptions.verbosity, remap);
+                this, result, this.options.ioOptions.verbosity, remap, estimates);
         toJson.apply(circuit);
         result.append(",").newline();
+        result.appendJsonLabelAndColon("removed_exchanges")
+                .append(toJson.getShardedCount())
+                .append(",").newline();
+        result.appendJsonLabelAndColon("estimates");
+        result.appendIndentedStrings(estimates.asJson().toPrettyString());
+        result.append(",").newline();
         result.appendJsonLabelAndColon("sources");
         this.writeSourcesAsJson(result);
         result.newline().decrease().append("}");
@@ -12,17 +12,23 @@ import org.dbsp.sqlCompiler.compiler.frontend.statements.IHasSchema;
 import org.dbsp.util.IJson;
 import org.dbsp.util.Utilities;
 
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.Map;
 
 /** Represents metadata about the compiled program.
  * Contains a description of all input tables and all views. */
 public class ProgramMetadata implements IJson {
     final LinkedHashMap<ProgramIdentifier, IHasSchema> inputTables;
     final LinkedHashMap<ProgramIdentifier, IHasSchema> outputViews;
+    /** Predicates satisfied by all rows of a table that can influence the outputs.
+     * Input adapters can drop the rows that do not satisfy the predicate. */
+    final Map<ProgramIdentifier, JsonNode> inputFilters;
 
     public ProgramMetadata() {
         this.inputTables = new LinkedHashMap<>();
         this.outputViews = new LinkedHashMap<>();
+        this.inputFilters = new HashMap<>();
     }
 
     public ObjectNode asJson() {
@@ -31,7 +37,11 @@ public class ProgramMetadata implements IJson {
         for (IHasSchema input: this.inputTables.values()) {
             if (input.is(DeclareViewStatement.class))
                 continue;
-            inputs.add(input.asJson(false));
+            JsonNode node = input.asJson(false);
+            JsonNode filter = this.inputFilters.get(input.getName());
+            if (filter != null)
+                ((ObjectNode) node).set("filter", filter);
+            inputs.add(node);
         }
         ArrayNode outputs = mapper.createArrayNode();
         for (IHasSchema output: this.outputViews.values())
@@ -66,6 +76,14 @@ public class ProgramMetadata implements IJson {
         this.inputTables.remove(name);
     }
 
+    public void setInputFilter(ProgramIdentifier table, JsonNode filter) {
+        this.inputFilters.put(table, filter);
+    }
+
+    public void removeInputFilter(ProgramIdentifier table) {
+        this.inputFilters.remove(table);
+    }
+
     public void addView(IHasSchema description) {
         this.outputViews.put(description.getName(), description);
     }
@@ -77,6 +95,8 @@ public class ProgramMetadata implements IJson {
             JsonNode tbl = it.next();
             IHasSchema sch = IHasSchema.AbstractIHasSchema.fromJson(tbl, typeFactory);
             result.addTable(sch);
+            if (tbl.has("filter"))
+                result.setInputFilter(sch.getName(), tbl.get("filter"));
         }
         it = Utilities.getProperty(node, "outputs").elements();
         while (it.hasNext()) {
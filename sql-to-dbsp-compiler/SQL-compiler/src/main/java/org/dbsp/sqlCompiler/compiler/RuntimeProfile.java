@@ -0,0 +1,286 @@
+package org.dbsp.sqlCompiler.compiler;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.dbsp.sqlCompiler.circuit.DBSPCircuit;
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.annotation.OperatorHash;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPNestedOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
+import org.dbsp.sqlCompiler.circuit.operator.IInputOperator;
+import org.dbsp.sqlCompiler.compiler.errors.SourcePositionRange;
+import org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.ProgramIdentifier;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.ToJsonVisitor;
+import org.dbsp.util.HashString;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Logger;
+import org.dbsp.util.Utilities;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Metrics measured by a running pipeline, used to recompile the same program.
+ *
+ * <p>The metrics are keyed by the persistent id of each operator, which is the global
+ * Merkle hash computed by {@link org.dbsp.sqlCompiler.compiler.backend.MerkleOuter}
+ * (emitted as "persistent_id" in the dataflow JSON).  Hashes only exist on the final
+ * circuit, so the profile is first resolved against a circuit compiled without the profile.
+ * This translates the metrics into facts which are stable across compilations of the same
+ * program: the number of rows of each table, the state stored downstream of each table,
+ * and the source positions of the operators which consume most of the time.
+ *
+ * <p>Two JSON formats are accepted: the profile produced by the pipeline
+ * (an object with a "worker_profiles" array), and an object mapping each persistent id
+ * to an object with optional "rows", "state_bytes", and "time" (in seconds) fields.
+ * "rows" is the number of rows of the collection produced by the operator.  In the
+ * pipeline profile it is the size of the integral of the operator's output, which is
+ * reported by the node whose persistent id is the operator's id followed by one of the
+ * {@link #INTEGRAL_SUFFIXES}; the number of records in the output batches is not used,
+ * since it counts every insertion and deletion of the collection. */
+public class RuntimeProfile implements IWritesLogs {
+    /** Operators that take at least this fraction of the total time are hot */
+    static final double HOT_FRACTION = 0.05;
+    /** Suffixes appended by the runtime to the persistent id of an operator
+     * to obtain the persistent ids of the integrals of its output */
+    static final List<String> INTEGRAL_SUFFIXES = List.of(".integral", ".accintegral");
+
+    /** Metrics for one operator, summed over all workers */
+    public record Metrics(long rows, long stateBytes, double time) {
+        Metrics plus(Metrics other) {
+            return new Metrics(this.rows + other.rows,
+                    this.stateBytes + other.stateBytes, this.time + other.time);
+        }
+
+        /** Add the metrics of an integral of the operator's output.  Several integrals
+         * of the same stream all store the same rows. */
+        Metrics withIntegral(Metrics integral) {
+            return new Metrics(Math.max(this.rows, integral.rows),
+                    this.stateBytes + integral.stateBytes, this.time + integral.time);
+        }
+    }
+
+    /** Metrics indexed by persistent id */
+    final Map<String, Metrics> metrics;
+    /** Rows stored in each input table when the profile was taken */
+    final Map<ProgramIdentifier, Long> tableRows;
+    /** Bytes of state stored by operators which depend on each input table */
+    final Map<ProgramIdentifier, Long> tableState;
+    /** Source positions of the operators that are hot */
+    final Set<SourcePositionRange> hotPositions;
+    /** Number of operators of the resolved circuit which have metrics */
+    int matched;
+
+    RuntimeProfile(Map<String, Metrics> metrics) {
+        this.metrics = metrics;
+        this.tableRows = new HashMap<>();
+        this.tableState = new HashMap<>();
+        this.hotPositions = new HashSet<>();
+        this.matched = 0;
+    }
+
+    /** Load a profile from a JSON file.  Returns null and reports an error on failure. */
+    @Nullable
+    public static RuntimeProfile load(String file, DBSPCompiler compiler) {
+        try {
+            JsonNode node = Utilities.deterministicObjectMapper().readTree(new File(file));
+            return fromJson(node);
+        } catch (IOException | IllegalArgumentException e) {
+            compiler.reportError(SourcePositionRange.INVALID, "Invalid profile",
+                    Utilities.singleQuote(file) + " " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static RuntimeProfile fromJson(JsonNode node) {
+        Map<String, Metrics> metrics = new HashMap<>();
+        if (node.has("worker_profiles")) {
+            for (JsonNode worker: node.get("worker_profiles")) {
+                JsonNode metadata = worker.get("metadata");
+                if (metadata == null)
+                    continue;
+                for (Iterator<JsonNode> it = metadata.elements(); it.hasNext(); ) {
+                    JsonNode entries = it.next().get("entries");
+                    if (entries != null)
+                        parseEntries(entries, metrics);
+                }
+            }
+            metrics = attachIntegrals(metrics);
+        } else if (node.isObject()) {
+            for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext(); ) {
+                Map.Entry<String, JsonNode> entry = it.next();
+                JsonNode value = entry.getValue();
+                Metrics m = new Metrics(
+                        value.path("rows").asLong(0),
+                        value.path("state_bytes").asLong(0),
+                        value.path("time").asDouble(0));
+                metrics.merge(entry.getKey(), m, Metrics::plus);
+            }
+        } else {
+            throw new IllegalArgumentException("expected a JSON object");
+        }
+        return new RuntimeProfile(metrics);
+    }
+
+    /** Parse the measurements of one operator in one worker, as produced by the pipeline.
+     * Each entry is an array whose first element is the name of the measurement.
+     * The rows are only kept for integrals, which report the size of the collection. */
+    static void parseEntries(JsonNode entries, Map<String, Metrics> metrics) {
+        String id = null;
+        long size = 0;
+        long bytes = 0;
+        double time = 0;
+        for (JsonNode entry: entries) {
+            if (!entry.isArray() || entry.size() < 2)
+                continue;
+            JsonNode value = entry.get(1);
+            switch (entry.get(0).asText()) {
+                case "persistent_id" -> id = value.asText();
+                case "total size" -> size += value.asLong(0);
+                case "used bytes" -> bytes += value.asLong(0);
+                case "time" -> time += value.path("secs").asDouble(0) + value.path("nanos").asDouble(0) / 1e9;
+                default -> {}
+            }
+        }
+        if (id == null)
+            return;
+        long rows = integralOf(id) != null ? size : 0;
+        metrics.merge(id, new Metrics(rows, bytes, time), Metrics::plus);
+    }
+
+    /** If the persistent id is the id of an integral, the id of the operator whose output is integrated */
+    @Nullable
+    static String integralOf(String id) {
+        for (String suffix: INTEGRAL_SUFFIXES)
+            if (id.endsWith(suffix))
+                return id.substring(0, id.length() - suffix.length());
+        return null;
+    }
+
+    /** Attribute the metrics of each integral to the operator whose output it integrates */
+    static Map<String, Metrics> attachIntegrals(Map<String, Metrics> metrics) {
+        Map<String, Metrics> result = new HashMap<>();
+        for (Map.Entry<String, Metrics> entry: metrics.entrySet())
+            if (integralOf(entry.getKey()) == null)
+                result.put(entry.getKey(), entry.getValue());
+        for (Map.Entry<String, Metrics> entry: metrics.entrySet()) {
+            String operator = integralOf(entry.getKey());
+            if (operator != null)
+                result.merge(operator, entry.getValue(), Metrics::withIntegral);
+        }
+        return result;
+    }
+
+    @Nullable
+    Metrics getMetrics(DBSPOperator operator) {
+        HashString hash = OperatorHash.getHash(operator, true);
+        if (hash == null)
+            return null;
+        return this.metrics.get(hash.toString());
+    }
+
+    /** Source positions of the expressions computed by an operator.
+     * The position of the operator itself is not used, since it usually covers
+     * an entire view, and thus many unrelated operators. */
+    static Set<SourcePositionRange> getPositions(DBSPCompiler compiler, DBSPOperator operator) {
+        ToJsonVisitor.FindSourcePositions finder = new ToJsonVisitor.FindSourcePositions(compiler, true);
+        operator.accept(finder);
+        Set<SourcePositionRange> result = new HashSet<>();
+        for (SourcePositionRange range: finder.getPositions())
+            result.add(range);
+        return result;
+    }
+
+    static void collectOperators(Iterable<DBSPOperator> operators, List<DBSPOperator> result) {
+        for (DBSPOperator operator: operators) {
+            if (operator.is(DBSPNestedOperator.class))
+                collectOperators(operator.to(DBSPNestedOperator.class).getAllOperators(), result);
+            else
+                result.add(operator);
+        }
+    }
+
+    /** Map the metrics to the operators of a circuit produced by compiling the
+     * program without a profile.  Must be called before the profile is used. */
+    public void resolve(DBSPCompiler compiler, DBSPCircuit circuit) {
+        List<DBSPOperator> operators = new ArrayList<>();
+        collectOperators(circuit.getAllOperators(), operators);
+
+        // Tables that each operator depends on; operators are in topological order,
+        // except for back-edges of recursive components, which are ignored.
+        Map<DBSPOperator, Set<ProgramIdentifier>> tables = new HashMap<>();
+        double totalTime = 0;
+        for (DBSPOperator operator: operators) {
+            Set<ProgramIdentifier> depends = new HashSet<>();
+            if (operator.is(IInputOperator.class))
+                depends.add(operator.to(IInputOperator.class).getTableName());
+            for (OutputPort input: operator.inputs)
+                depends.addAll(tables.getOrDefault(input.node(), Set.of()));
+            tables.put(operator, depends);
+
+            Metrics m = this.getMetrics(operator);
+            if (m == null)
+                continue;
+            this.matched++;
+            totalTime += m.time();
+            if (operator.is(IInputOperator.class) && m.rows() > 0)
+                this.tableRows.merge(operator.to(IInputOperator.class).getTableName(), m.rows(), Math::max);
+            for (ProgramIdentifier table: depends)
+                this.tableState.merge(table, m.stateBytes(), Long::sum);
+        }
+
+        if (totalTime > 0) {
+            for (DBSPOperator operator : operators) {
+                Metrics m = this.getMetrics(operator);
+                if (m == null || m.time() < HOT_FRACTION * totalTime)
+                    continue;
+                this.hotPositions.addAll(getPositions(compiler, operator));
+                Logger.INSTANCE.belowLevel(this, 1)
+                        .append("Hot operator ")
+                        .append(operator.getCompactName())
+                        .append(" ")
+                        .append(m.toString())
+                        .newline();
+            }
+        }
+        Logger.INSTANCE.belowLevel(this, 1)
+                .append("Profile matched ")
+                .append(this.matched)
+                .append(" operators out of ")
+                .append(operators.size())
+                .newline();
+    }
+
+    /** Number of operators which have metrics in the profile */
+    public int getMatched() {
+        return this.matched;
+    }
+
+    /** Number of rows produced by a table at runtime, or null if unknown */
+    @Nullable
+    public Long getRows(ProgramIdentifier table) {
+        return this.tableRows.get(table);
+    }
+
+    /** Bytes of state stored at runtime by operators that depend on a table */
+    public long getStateBytes(ProgramIdentifier table) {
+        return this.tableState.getOrDefault(table, 0L);
+    }
+
+    /** True if the operator was derived from the same part of the program
+     * as an operator which took a large fraction of the runtime */
+    public boolean isHot(DBSPCompiler compiler, DBSPOperator operator) {
+        if (this.hotPositions.isEmpty())
+            return false;
+        for (SourcePositionRange range: getPositions(compiler, operator))
+            if (this.hotPositions.contains(range))
+                return true;
+        return false;
+    }
+}
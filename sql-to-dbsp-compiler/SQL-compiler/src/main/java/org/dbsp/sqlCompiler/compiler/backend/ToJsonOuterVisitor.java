@@ -10,6 +10,7 @@ import org.dbsp.sqlCompiler.circuit.operator.DBSPConstantOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPIndexedTopKOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinBaseOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPLagOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLagWithWaterlineOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPNestedOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPOperatorWithError;
@@ -254,6 +255,15 @@ public class ToJsonOuterVisitor extends CircuitVisitor {
         return VisitDecision.CONTINUE;
     }
 
+    @Override
+    public VisitDecision preorder(DBSPLagWithWaterlineOperator operator) {
+        if (this.preorder(operator.to(DBSPBinaryOperator.class)).stop())
+            return VisitDecision.STOP;
+        this.property("offset");
+        this.stream.append(operator.offset);
+        return VisitDecision.CONTINUE;
+    }
+
     @Override
     public VisitDecision preorder(DBSPOperatorWithError operator) {
         if (this.preorder(operator.to(DBSPOperator.class)).stop())
@@ -0,0 +1,132 @@
+package org.dbsp.sqlCompiler.compiler.backend.rust;
+
+import org.dbsp.sqlCompiler.circuit.IInputMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessRetainKeysOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateOperatorBase;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateZeroOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPChainAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPPartitionedRollingAggregateWithWaterlineOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPPrimitiveAggregateOperator;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.InnerVisitor;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitVisitor;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeTuple;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeZSet;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Logger;
+import org.dbsp.util.ProgramIdentifier;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/** Decides which tuple types are represented as packed tuples in Rust.
+ * Stores the result in the {@link PackedTuples} supplied by the caller.
+ * The visitor can be applied to several circuits which are emitted in the same
+ * Rust file; the result then covers all of them.
+ *
+ * <p>A tuple type is packed if it has at least
+ * {@code nullBitmapWidth} fields, some of which are nullable,
+ * and if it is used as the key or value of a collection.
+ * Tuples which appear in aggregation operators are never packed: accumulators
+ * need the algebraic operations implemented by regular tuples.
+ * The upsert tuples of input maps are not packed either. */
+public class FindPackedTuples extends CircuitVisitor implements IWritesLogs {
+    final int width;
+    final Set<DBSPTypeTuple> candidates;
+    final Set<DBSPTypeTuple> excluded;
+    final PackedTuples result;
+
+    /** Collects all tuple types that appear in a node */
+    static class CollectTuples extends InnerVisitor {
+        final Set<DBSPTypeTuple> found;
+
+        CollectTuples(DBSPCompiler compiler, Set<DBSPTypeTuple> found) {
+            super(compiler);
+            this.found = found;
+        }
+
+        @Override
+        public void postorder(DBSPTypeTuple type) {
+            this.found.add(type.withMayBeNull(false).to(DBSPTypeTuple.class));
+        }
+    }
+
+    public FindPackedTuples(DBSPCompiler compiler, PackedTuples result) {
+        super(compiler);
+        this.result = result;
+        this.width = compiler.options.languageOptions.nullBitmapWidth;
+        this.candidates = new HashSet<>();
+        this.excluded = new HashSet<>();
+    }
+
+    static boolean isAggregate(DBSPOperator operator) {
+        return operator.is(DBSPAggregateOperatorBase.class) ||
+                operator.is(DBSPAggregateLinearPostprocessOperator.class) ||
+                operator.is(DBSPAggregateLinearPostprocessRetainKeysOperator.class) ||
+                operator.is(DBSPAggregateZeroOperator.class) ||
+                operator.is(DBSPChainAggregateOperator.class) ||
+                operator.is(DBSPPrimitiveAggregateOperator.class) ||
+                operator.is(DBSPPartitionedRollingAggregateWithWaterlineOperator.class);
+    }
+
+    void addCandidate(DBSPType type) {
+        if (!type.is(DBSPTypeTuple.class))
+            return;
+        DBSPTypeTuple tuple = type.withMayBeNull(false).to(DBSPTypeTuple.class);
+        if (tuple.size() < this.width)
+            return;
+        for (DBSPType field: tuple.tupFields) {
+            if (field.mayBeNull) {
+                this.candidates.add(tuple);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void postorder(DBSPOperator operator) {
+        if (this.width <= 0)
+            return;
+        for (int i = 0; i < operator.outputCount(); i++) {
+            DBSPType type = operator.outputType(i);
+            if (type.is(DBSPTypeZSet.class)) {
+                this.addCandidate(type.to(DBSPTypeZSet.class).elementType);
+            } else if (type.is(DBSPTypeIndexedZSet.class)) {
+                DBSPTypeIndexedZSet ix = type.to(DBSPTypeIndexedZSet.class);
+                this.addCandidate(ix.keyType);
+                this.addCandidate(ix.elementType);
+            }
+        }
+        if (isAggregate(operator)) {
+            CollectTuples collect = new CollectTuples(this.compiler(), this.excluded);
+            operator.accept(collect);
+        }
+        if (operator instanceof IInputMapOperator map) {
+            DBSPType upsert = map.getStructUpsertType(
+                    new ProgramIdentifier(map.getOriginalRowType().sanitizedName + "_upsert", false))
+                    .toTupleDeep();
+            CollectTuples collect = new CollectTuples(this.compiler(), this.excluded);
+            upsert.accept(collect);
+        }
+    }
+
+    @Override
+    public void endVisit() {
+        // A tuple excluded by a later circuit cannot be packed in an earlier one
+        this.result.clear();
+        for (DBSPTypeTuple tuple: this.candidates) {
+            if (this.excluded.contains(tuple))
+                continue;
+            this.result.add(tuple);
+            Logger.INSTANCE.belowLevel(this, 1)
+                    .append("Packed tuple ")
+                    .append(tuple.toString())
+                    .newline();
+        }
+        super.endVisit();
+    }
+}
@@ -0,0 +1,67 @@
+package org.dbsp.sqlCompiler.compiler.backend.rust;
+
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeTuple;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/** Tuple types which are represented in Rust as packed tuples: a null bitmap
+ * followed by the non-optional values of all fields, instead of a tuple where
+ * each nullable field is an {@code Option}.  The Rust types are declared
+ * using the {@code declare_packed_tuples!} macro.  A nullable field {@code i}
+ * of a packed tuple is read using {@code get_i()}, which returns an
+ * {@code Option<&T>}.  Non-nullable fields are read as the fields of regular tuples.
+ * All fields are written using {@code set_i(Option<T>)}, which maintains the bitmap.
+ *
+ * <p>The set is computed by {@link FindPackedTuples} when a {@link RustWriter}
+ * analyzes the circuits it emits; when it is empty all tuples use the standard layout. */
+public class PackedTuples {
+    final Set<DBSPTypeTuple> packed = new HashSet<>();
+
+    /** Prefix of the name of packed tuple types */
+    public static final String PREFIX = "P";
+
+    public void clear() {
+        this.packed.clear();
+    }
+
+    public boolean isEmpty() {
+        return this.packed.isEmpty();
+    }
+
+    void add(DBSPTypeTuple tuple) {
+        this.packed.add(tuple.withMayBeNull(false).to(DBSPTypeTuple.class));
+    }
+
+    /** True if the specified type is a tuple represented as a packed tuple */
+    public boolean isPacked(DBSPType type) {
+        if (this.packed.isEmpty() || !type.is(DBSPTypeTuple.class))
+            return false;
+        return this.packed.contains(type.withMayBeNull(false).to(DBSPTypeTuple.class));
+    }
+
+    /** True if the field with the specified index of this tuple type
+     * is read using the {@code get_i} accessor */
+    public boolean usesAccessor(DBSPType type, int field) {
+        return this.isPacked(type) && type.to(DBSPTypeTuple.class).getFieldType(field).mayBeNull;
+    }
+
+    /** Name of the Rust type used to represent a packed tuple */
+    public static String getName(DBSPTypeTuple tuple) {
+        return PREFIX + tuple.getName();
+    }
+
+    /** Number of bytes in the null bitmap of a tuple with the specified number of fields */
+    public static int bitmapBytes(int size) {
+        return (size + 7) / 8;
+    }
+
+    /** The sizes of all packed tuples */
+    public Set<Integer> sizes() {
+        Set<Integer> result = new HashSet<>();
+        for (DBSPTypeTuple tuple: this.packed)
+            result.add(tuple.size());
+        return result;
+    }
+}
@@ -116,6 +116,9 @@ public class RustFileWriter extends RustWriter {
         if (!this.used.tupleSizesUsed.isEmpty()) {
             this.builder().append("use dbsp::declare_tuples;").newline();
         }
+        if (!this.used.packedTupleSizesUsed.isEmpty()) {
+            this.builder().append("use dbsp::declare_packed_tuples;").newline();
+        }
         if (this.generateMalloc)
             this.outputBuilder.append(BaseRustCodeGenerator.ALLOC_PREAMBLE);
         if (this.generateUdfInclude)
@@ -139,14 +142,15 @@ public class RustFileWriter extends RustWriter {
                 if (inner.is(DBSPStructItem.class)) {
                     var list = this.generateStructHelpers(compiler, inner.to(DBSPStructItem.class).type, declarationsDone);
                     for (var e: list)
-                        ToRustInnerVisitor.toRustString(compiler, this.builder(), e, null, false);
+                        ToRustInnerVisitor.toRustString(compiler, this.builder(), e, null, false, this.packedTuples);
                 } else {
-                    ToRustInnerVisitor.toRustString(compiler, this.builder(), inner, null, false);
+                    ToRustInnerVisitor.toRustString(compiler, this.builder(), inner, null, false, this.packedTuples);
                 }
             } else {
                 DBSPCircuit outer = node.to(DBSPCircuit.class);
                 ToRustVisitor visitor = new ToRustVisitor(
-                        compiler, this.builder(), outer.metadata, declarationsDone, this.materializations);
+                        compiler, this.builder(), outer.metadata, declarationsDone, this.materializations,
+                        this.packedTuples);
                 visitor.apply(outer);
             }
             this.builder().newline();
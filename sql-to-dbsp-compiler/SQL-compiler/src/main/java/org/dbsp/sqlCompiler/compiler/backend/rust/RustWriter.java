@@ -19,6 +19,9 @@ import java.util.stream.IntStream;
 
 /** Base class for writing code to Rust files */
 public abstract class RustWriter extends BaseRustCodeGenerator {
+    /** Tuple types emitted as packed tuples; computed by {@link #analyze} */
+    protected final PackedTuples packedTuples = new PackedTuples();
+
     protected RustWriter() {}
 
     /** Various visitors gather here information about the program prior to generating code. */
@@ -30,6 +33,8 @@ public abstract class RustWriter extends BaseRustCodeGenerator {
         public final Set<Integer> tupleSizesUsed = new HashSet<>();
         /** The set of all semigroup sizes used. */
         public final Set<Integer> semigroupSizesUsed = new HashSet<>();
+        /** The set of all packed tuple sizes used; see {@link PackedTuples}. */
+        public final Set<Integer> packedTupleSizesUsed = new HashSet<>();
 
         public boolean isPredefined(int tupleSize) {
             return tupleSize <= PREDEFINED;
@@ -204,6 +209,46 @@ public abstract class RustWriter extends BaseRustCodeGenerator {
                 this.builder().append(");").newline();
             }
         }
+
+        if (!used.packedTupleSizesUsed.isEmpty() && this.generateTuples) {
+            // PTup12(Tup12; 2)<0: T0, 1: T1, ...>
+            this.builder().append("declare_packed_tuples! {").increase();
+            for (int i : used.packedTupleSizesUsed) {
+                this.builder().append(PackedTuples.PREFIX)
+                        .append(DBSPTypeCode.TUPLE.rustName)
+                        .append(i)
+                        .append("(")
+                        .append(DBSPTypeCode.TUPLE.rustName)
+                        .append(i)
+                        .append("; ")
+                        .append(PackedTuples.bitmapBytes(i))
+                        .append(")<");
+                for (int j = 0; j < i; j++) {
+                    if (j > 0)
+                        this.builder().append(", ");
+                    this.builder().append(j)
+                            .append(": T")
+                            .append(j);
+                }
+                this.builder().append(">,").newline();
+            }
+            this.builder().decrease().append("}").newline().newline();
+
+            for (int i : used.packedTupleSizesUsed) {
+                this.builder()
+                        .append("feldera_types::deserialize_without_context!(")
+                        .append(PackedTuples.PREFIX)
+                        .append(DBSPTypeCode.TUPLE.rustName)
+                        .append(i);
+                for (int j = 0; j < i; j++) {
+                    this.builder()
+                            .append(", ")
+                            .append("T")
+                            .append(j);
+                }
+                this.builder().append(");").newline();
+            }
+        }
         this.builder().newline();
     }
 
@@ -235,6 +280,11 @@ public abstract class RustWriter extends BaseRustCodeGenerator {
         StructuresUsed used = new StructuresUsed();
         FindResources findResources = new FindResources(compiler, used);
         CircuitVisitor findCircuitResources = findResources.getCircuitVisitor(true);
+        FindPackedTuples findPacked = new FindPackedTuples(compiler, this.packedTuples);
+        // The crates generated separately do not agree on the tuple representation
+        boolean pack = compiler.options.languageOptions.nullBitmapWidth > 0 &&
+                !compiler.options.ioOptions.multiCrates();
+        this.packedTuples.clear();
 
         for (IDBSPNode node : this.toWrite) {
             IDBSPInnerNode inner = node.as(IDBSPInnerNode.class);
@@ -244,8 +294,15 @@ public abstract class RustWriter extends BaseRustCodeGenerator {
                 DBSPCircuit outer = node.to(DBSPCircuit.class);
                 // Find the resources used to generate the correct Rust preamble
                 findCircuitResources.apply(outer);
+                if (pack)
+                    findPacked.apply(outer);
             }
         }
+        for (int size: this.packedTuples.sizes()) {
+            // The packed tuples store their values in regular tuples
+            used.tupleSizesUsed.add(size);
+            used.packedTupleSizesUsed.add(size);
+        }
         return used;
     }
 }
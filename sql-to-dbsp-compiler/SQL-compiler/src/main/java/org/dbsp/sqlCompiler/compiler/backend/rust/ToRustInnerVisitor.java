@@ -138,11 +138,15 @@ public class ToRustInnerVisitor extends InnerVisitor {
     @Nullable
     final SourcePositionResource sourcePositionResource;
     final CreateRuntimeErrorWrappers createErrorWrappers;
+    /** Tuple types emitted as packed tuples */
+    final PackedTuples packedTuples;
 
     public ToRustInnerVisitor(DBSPCompiler compiler, IIndentStream builder,
-                              @Nullable SourcePositionResource sourcePositionResource, boolean compact) {
+                              @Nullable SourcePositionResource sourcePositionResource, boolean compact,
+                              PackedTuples packedTuples) {
         super(compiler);
         this.builder = builder;
+        this.packedTuples = packedTuples;
         this.compact = compact;
         this.options = compiler.options;
         this.sourcePositionResource = sourcePositionResource;
@@ -150,6 +154,11 @@ public class ToRustInnerVisitor extends InnerVisitor {
         this.createErrorWrappers = new CreateRuntimeErrorWrappers(compiler);
     }
 
+    public ToRustInnerVisitor(DBSPCompiler compiler, IIndentStream builder,
+                              @Nullable SourcePositionResource sourcePositionResource, boolean compact) {
+        this(compiler, builder, sourcePositionResource, compact, new PackedTuples());
+    }
+
     @SuppressWarnings("SameReturnValue")
     VisitDecision doNullExpression(DBSPExpression expression) {
         this.push(expression);
@@ -175,20 +184,25 @@ public class ToRustInnerVisitor extends InnerVisitor {
     /**
      * Helper function for {@link ToRustInnerVisitor#generateComparator} and
      * {@link ToRustInnerVisitor#generateCmpFunc}.
+     * @param type     Type of the values compared.
      * @param nullable True if the field is nullable (or the tuple itself).
      * @param fieldNo  Field index that is compared.
      * @param ascending Comparison direction.
      * @param nullsFirst How nulls are compared
      */
-    void emitCompareField(boolean nullable, int fieldNo, boolean ascending, boolean nullsFirst) {
+    void emitCompareField(DBSPType type, boolean nullable, int fieldNo, boolean ascending, boolean nullsFirst) {
         String name = "compare" + (nullable ? "N" : "_");
+        // Nullable fields of packed tuples are compared as Option<&T> instead of Option<T>;
+        // the references are compared by value, so the order is the same.
+        String field = this.packedTuples.usesAccessor(type, fieldNo) ?
+                "get_" + fieldNo + "()" : Integer.toString(fieldNo);
         this.builder.append("let ord = ")
                 .append(name)
                 .append("(&left.")
-                .append(fieldNo)
+                .append(field)
                 .append(", ")
                 .append("&right.")
-                .append(fieldNo)
+                .append(field)
                 .append(", ")
                 .append(ascending)
                 .append(", ")
@@ -236,7 +250,8 @@ public class ToRustInnerVisitor extends InnerVisitor {
             if (fieldsCompared.contains(fieldComparator.fieldNo))
                 throw new InternalCompilerError("Field " + fieldComparator.fieldNo + " used twice in sorting");
             fieldsCompared.add(fieldComparator.fieldNo);
-            this.emitCompareField(nullable, fieldComparator.fieldNo, fieldComparator.ascending, fieldComparator.nullsFirst);
+            this.emitCompareField(comparator.comparedValueType(), nullable,
+                    fieldComparator.fieldNo, fieldComparator.ascending, fieldComparator.nullsFirst);
         } else {
             DBSPDirectComparatorExpression direct = comparator.to(DBSPDirectComparatorExpression.class);
             this.generateComparator(direct.source, fieldsCompared);
@@ -286,7 +301,7 @@ public class ToRustInnerVisitor extends InnerVisitor {
         if (type.is(DBSPTypeTuple.class)) {
             for (int i = 0; i < type.to(DBSPTypeTuple.class).size(); i++) {
                 if (fieldsCompared.contains(i)) continue;
-                this.emitCompareField(false, i, true, true);
+                this.emitCompareField(type, false, i, true, true);
             }
         }
         this.builder.append("return Ordering::Equal;")
@@ -987,13 +1002,19 @@ public class ToRustInnerVisitor extends InnerVisitor {
                 .append("fn from(t: ")
                 .append(type.sanitizedName)
                 .append(") -> Self");
+        boolean packed = this.isPacked(tuple);
         this.builder.append(" {")
                 .increase()
-                .append(tuple.getName())
+                .append(packed ? PackedTuples.getName(tuple) : tuple.getName())
                 .append("::new(");
         int index = 0;
         for (DBSPTypeStruct.Field field: type.fields.values()) {
+            boolean wrap = packed && !tuple.tupFields[index].mayBeNull;
+            if (wrap)
+                this.builder.append("Some(");
             this.generateInto("t." + field.getSanitizedName(), field.type, tuple.tupFields[index]);
+            if (wrap)
+                this.builder.append(")");
             this.builder.append(", ");
             index++;
         }
@@ -1023,7 +1044,9 @@ public class ToRustInnerVisitor extends InnerVisitor {
             this.builder
                     .append(field.getSanitizedName())
                     .append(": ");
-            this.generateInto("t." + index, field.type, field.type);
+            String source = packed && tuple.tupFields[index].mayBeNull ?
+                    "t.get_" + index + "().cloned()" : "t." + index;
+            this.generateInto(source, field.type, field.type);
             this.builder.append(", ")
                     .newline();
             index++;
@@ -1552,8 +1575,7 @@ public class ToRustInnerVisitor extends InnerVisitor {
                         if (arrayMayBeNull) {
                             this.builder
                                     .append("Some(x) => x.")
-                                    .append(field.fieldNo)
-                                    .append(".clone()");
+                                    .append(this.clonedField(tupleType, field.fieldNo));
                         } else {
                             this.builder
                                     .append("Some(x) => Some(x.")
@@ -1602,8 +1624,7 @@ public class ToRustInnerVisitor extends InnerVisitor {
                         if (arrayMayBeNull) {
                             this.builder
                                     .append("Some(x) => x.")
-                                    .append(field.fieldNo)
-                                    .append(".clone()");
+                                    .append(this.clonedField(tupleType, field.fieldNo));
                         } else {
                             this.builder
                                     .append("Some(x) => Some(x.")
@@ -1990,10 +2011,41 @@ public class ToRustInnerVisitor extends InnerVisitor {
 
     boolean compilingAssignmentLHS = false;
 
+    /** True if the type is represented as a packed tuple */
+    boolean isPacked(DBSPType type) {
+        return this.packedTuples.isPacked(type);
+    }
+
+    /** Rust code which produces an owned copy of a field of a tuple, e.g., "0.clone()" */
+    String clonedField(DBSPType tuple, int fieldNo) {
+        if (this.packedTuples.usesAccessor(tuple, fieldNo))
+            return "get_" + fieldNo + "().cloned()";
+        return fieldNo + ".clone()";
+    }
+
     @Override
     public VisitDecision preorder(DBSPAssignmentExpression expression) {
         this.push(expression);
         Utilities.enforce(!this.compilingAssignmentLHS);
+        DBSPFieldExpression field = expression.left.as(DBSPFieldExpression.class);
+        if (field != null && this.isPacked(field.expression.getType())) {
+            // All fields of packed tuples are written using a setter, which maintains the bitmap
+            boolean wrap = !field.getType().mayBeNull;
+            this.compilingAssignmentLHS = true;
+            field.expression.accept(this);
+            this.compilingAssignmentLHS = false;
+            this.builder.append(".set_")
+                    .append(field.fieldNo)
+                    .append("(");
+            if (wrap)
+                this.builder.append("Some(");
+            expression.right.accept(this);
+            if (wrap)
+                this.builder.append(")");
+            this.builder.append(")");
+            this.pop(expression);
+            return VisitDecision.STOP;
+        }
         this.compilingAssignmentLHS = true;
         expression.left.accept(this);
         this.compilingAssignmentLHS = false;
@@ -2209,7 +2261,23 @@ public class ToRustInnerVisitor extends InnerVisitor {
             DBSPType fieldType = sourceType.to(DBSPTypeTupleBase.class).getFieldType(expression.fieldNo);
             fieldTypeIsNullable = fieldType.mayBeNull;
         }
-        if (!sourceType.mayBeNull) {
+        // Nullable fields of packed tuples are read using get_i(), which returns an Option<&T>,
+        // like x.i.as_ref() for a regular tuple.  Where the code for a regular tuple uses
+        // the field itself, an Option<T>, the packed tuple produces an owned copy.
+        boolean accessor = this.packedTuples.usesAccessor(
+                sourceType.withMayBeNull(false), expression.fieldNo);
+        if (accessor && (this.compilingAssignmentLHS ||
+                (parent != null && parent.is(DBSPBorrowExpression.class) &&
+                        parent.to(DBSPBorrowExpression.class).mut)))
+            throw new InternalCompilerError("Nullable field of packed tuple cannot be modified in place", expression);
+        if (!sourceType.mayBeNull && accessor) {
+            expression.expression.accept(this);
+            this.builder.append(".get_")
+                    .append(expression.fieldNo)
+                    .append("()");
+            if (avoidRef || expression.getType().hasCopy())
+                this.builder.append(".cloned()");
+        } else if (!sourceType.mayBeNull) {
             // x is not nullable
             expression.expression.accept(this);
             this.builder.append(".")
@@ -2237,17 +2305,25 @@ public class ToRustInnerVisitor extends InnerVisitor {
                 if (!expression.expression.is(DBSPFieldExpression.class))
                     this.builder.append(".as_ref()");
                 this.builder.increase();
-                if (fieldTypeIsNullable) {
-                    this.builder.append(".and_then(|x| x.");
+                if (accessor) {
+                    this.builder.append(".and_then(|x| x.get_")
+                            .append(expression.fieldNo)
+                            .append("()");
+                    if (avoidRef || expression.getType().hasCopy())
+                        this.builder.append(".cloned()");
                 } else {
-                    this.builder.append(".map(|x| ");
-                    if (!expression.getType().hasCopy())
-                        this.builder.append("&");
-                    this.builder.append("x.");
-                }
-                this.builder.append(expression.fieldNo);
-                if (fieldTypeIsNullable && !expression.getType().hasCopy() && !avoidRef) {
-                    this.builder.append(".as_ref()");
+                    if (fieldTypeIsNullable) {
+                        this.builder.append(".and_then(|x| x.");
+                    } else {
+                        this.builder.append(".map(|x| ");
+                        if (!expression.getType().hasCopy())
+                            this.builder.append("&");
+                        this.builder.append("x.");
+                    }
+                    this.builder.append(expression.fieldNo);
+                    if (fieldTypeIsNullable && !expression.getType().hasCopy() && !avoidRef) {
+                        this.builder.append(".as_ref()");
+                    }
                 }
                 this.builder.append(")").decrease();
             }
@@ -2360,6 +2436,10 @@ public class ToRustInnerVisitor extends InnerVisitor {
         if (expression.getType().mayBeNull)
             this.builder.append("Some(");
         boolean newlines = expression.fields.length > 2;
+        // The constructor of a packed tuple takes an Option for each field
+        boolean packed = this.isPacked(expression.getType());
+        if (packed)
+            this.builder.append(PackedTuples.PREFIX);
         this.builder.append(DBSPTypeCode.TUPLE.rustName)
                 .append(expression.size())
                 .append("::new(");
@@ -2373,7 +2453,12 @@ public class ToRustInnerVisitor extends InnerVisitor {
                     this.builder.newline();
             }
             first = false;
+            boolean wrap = packed && !field.getType().mayBeNull;
+            if (wrap)
+                this.builder.append("Some(");
             field.accept(this);
+            if (wrap)
+                this.builder.append(")");
         }
         if (newlines)
             this.builder.decrease();
@@ -2546,7 +2631,8 @@ public class ToRustInnerVisitor extends InnerVisitor {
     public VisitDecision preorder(DBSPTypeTuple type) {
         this.push(type);
         this.optionPrefix(type);
-        this.builder.append(type.getName());
+        boolean packed = this.isPacked(type);
+        this.builder.append(packed ? PackedTuples.getName(type) : type.getName());
         if (type.size() > 0) {
             this.builder.append("<");
             if (!this.compact || type.size() <= 10) {
@@ -2555,6 +2641,9 @@ public class ToRustInnerVisitor extends InnerVisitor {
                     if (!first)
                         this.builder.append(", ");
                     first = false;
+                    if (packed)
+                        // Nullability is represented in the null bitmap
+                        fType = fType.withMayBeNull(false);
                     fType.accept(this);
                 }
             }
@@ -2607,7 +2696,15 @@ public class ToRustInnerVisitor extends InnerVisitor {
     public static void toRustString(
             DBSPCompiler compiler, IIndentStream stream, IDBSPInnerNode node,
             @Nullable SourcePositionResource sourcePositionResource, boolean compact) {
-        ToRustInnerVisitor visitor = new ToRustInnerVisitor(compiler, stream, sourcePositionResource, compact);
+        toRustString(compiler, stream, node, sourcePositionResource, compact, new PackedTuples());
+    }
+
+    public static void toRustString(
+            DBSPCompiler compiler, IIndentStream stream, IDBSPInnerNode node,
+            @Nullable SourcePositionResource sourcePositionResource, boolean compact,
+            PackedTuples packedTuples) {
+        ToRustInnerVisitor visitor = new ToRustInnerVisitor(
+                compiler, stream, sourcePositionResource, compact, packedTuples);
         node.accept(visitor);
     }
 }
@@ -28,8 +28,10 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.dbsp.sqlCompiler.circuit.DBSPCircuit;
 import org.dbsp.sqlCompiler.circuit.IInputMapOperator;
 import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.annotation.BoundedTopK;
 import org.dbsp.sqlCompiler.circuit.annotation.OperatorHash;
 import org.dbsp.sqlCompiler.circuit.annotation.Recursive;
+import org.dbsp.sqlCompiler.circuit.annotation.Sharded;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPAsofJoinOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessRetainKeysOperator;
@@ -58,6 +60,7 @@ import org.dbsp.sqlCompiler.circuit.operator.DBSPIntegrateTraceRetainValuesOpera
 import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinIndexOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPLagOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLagWithWaterlineOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPNowOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPSimpleOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPPartitionedRollingAggregateOperator;
@@ -111,6 +114,7 @@ import org.dbsp.sqlCompiler.ir.statement.DBSPStaticItem;
 import org.dbsp.sqlCompiler.ir.statement.DBSPStructItem;
 import org.dbsp.sqlCompiler.ir.type.DBSPType;
 import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeRawTuple;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeTuple;
 import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
 import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeStream;
 import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeStruct;
@@ -145,6 +149,8 @@ public class ToRustVisitor extends CircuitVisitor {
     final Set<String> perCircuitDeclarations;
     final SourcePositionResource sourcePositionResource;
     final LateMaterializations materializations;
+    /** Tuple types emitted as packed tuples */
+    final PackedTuples packedTuples;
 
     /* Example output generated when 'useHandles' is false:
      * pub fn circuit0(workers: usize) -> (DBSPHandle, Catalog) {
@@ -168,10 +174,13 @@ public class ToRustVisitor extends CircuitVisitor {
      * @param builder   Emit the output here.
      * @param metadata  Program metadata for the program compiled.
      * @param projectDeclarations Information about global per-circuit structures.
+     * @param packedTuples Tuple types emitted as packed tuples.
      */
     public ToRustVisitor(DBSPCompiler compiler, IIndentStream builder, ProgramMetadata metadata,
-                         ProjectDeclarations projectDeclarations, LateMaterializations materializations) {
+                         ProjectDeclarations projectDeclarations, LateMaterializations materializations,
+                         PackedTuples packedTuples) {
         super(compiler);
+        this.packedTuples = packedTuples;
         this.options = compiler.options;
         this.builder = builder;
         this.useHandles = compiler.options.ioOptions.emitHandles;
@@ -183,9 +192,14 @@ public class ToRustVisitor extends CircuitVisitor {
         this.materializations = materializations;
     }
 
+    public ToRustVisitor(DBSPCompiler compiler, IIndentStream builder, ProgramMetadata metadata,
+                         ProjectDeclarations projectDeclarations, LateMaterializations materializations) {
+        this(compiler, builder, metadata, projectDeclarations, materializations, new PackedTuples());
+    }
+
     ToRustInnerVisitor createInnerVisitor(IIndentStream builder) {
         return new ToRustInnerVisitor(this.compiler(), builder,
-                this.sourcePositionResource, false);
+                this.sourcePositionResource, false, this.packedTuples);
     }
 
     public ToRustVisitor withPreferHash(boolean preferHash) {
@@ -359,6 +373,13 @@ public class ToRustVisitor extends CircuitVisitor {
             return operator.inputs.get(input).getName(false);
     }
 
+    /** Name of an input which carries a bound, wrapped in a {@code TypedBox} */
+    String getBoxedInputName(DBSPOperator operator, int input) {
+        // FIXME: temporary workaround until the compiler learns about TypedBox
+        return this.getInputName(operator, input) +
+                ".apply(|bound| TypedBox::<_, DynData>::new(bound.clone()))";
+    }
+
     @Override
     public VisitDecision preorder(DBSPNestedOperator operator) {
         boolean recursive = operator.hasAnnotation(a -> a.is(Recursive.class));
@@ -611,7 +632,8 @@ public class ToRustVisitor extends CircuitVisitor {
         {
             // Upsert update function
             this.builder.append("Box::new(|updated: &mut ");
-            type.toTupleDeep().accept(this.innerVisitor);
+            DBSPType rowTuple = type.toTupleDeep();
+            rowTuple.accept(this.innerVisitor);
             this.builder.append(", changes: &");
             upsertStruct.toTupleDeep().accept(this.innerVisitor);
             this.builder.append("| {");
@@ -624,12 +646,25 @@ public class ToRustVisitor extends CircuitVisitor {
                             .append(") = &changes.")
                             .append(index)
                             .append(" { ")
-                            .append("updated.")
-                            .append(index)
-                            .append(" = ")
-                            .append(name)
-                            .append(".clone(); }")
-                            .newline();
+                            .append("updated.");
+                    if (this.packedTuples.isPacked(rowTuple)) {
+                        // All fields of packed tuples are written using a setter
+                        boolean wrap = !rowTuple.to(DBSPTypeTuple.class).getFieldType(index).mayBeNull;
+                        this.builder.append("set_")
+                                .append(index)
+                                .append("(")
+                                .append(wrap ? "Some(" : "")
+                                .append(name)
+                                .append(".clone()")
+                                .append(wrap ? ")" : "")
+                                .append("); }");
+                    } else {
+                        this.builder.append(index)
+                                .append(" = ")
+                                .append(name)
+                                .append(".clone(); }");
+                    }
+                    this.builder.newline();
                 }
                 index++;
             }
@@ -665,7 +700,8 @@ public class ToRustVisitor extends CircuitVisitor {
         {
             // Upsert update function
             this.builder.append("Box::new(|updated: &mut ");
-            type.toTupleDeep().accept(this.innerVisitor);
+            DBSPType rowTuple = type.toTupleDeep();
+            rowTuple.accept(this.innerVisitor);
             this.builder.append(", changes: &");
             upsertStruct.toTupleDeep().accept(this.innerVisitor);
             this.builder.append("| {");
@@ -678,12 +714,25 @@ public class ToRustVisitor extends CircuitVisitor {
                             .append(") = &changes.")
                             .append(index)
                             .append(" { ")
-                            .append("updated.")
-                            .append(index)
-                            .append(" = ")
-                            .append(name)
-                            .append(".clone(); }")
-                            .newline();
+                            .append("updated.");
+                    if (this.packedTuples.isPacked(rowTuple)) {
+                        // All fields of packed tuples are written using a setter
+                        boolean wrap = !rowTuple.to(DBSPTypeTuple.class).getFieldType(index).mayBeNull;
+                        this.builder.append("set_")
+                                .append(index)
+                                .append("(")
+                                .append(wrap ? "Some(" : "")
+                                .append(name)
+                                .append(".clone()")
+                                .append(wrap ? ")" : "")
+                                .append("); }");
+                    } else {
+                        this.builder.append(index)
+                                .append(" = ")
+                                .append(name)
+                                .append(".clone(); }");
+                    }
+                    this.builder.newline();
                 }
                 index++;
             }
@@ -861,9 +910,7 @@ public class ToRustVisitor extends CircuitVisitor {
         this.builder.append(".");
         this.operationCall(operator);
         this.builder.append("&")
-                .append(this.getInputName(operator, 1))
-                // FIXME: temporary workaround until the compiler learns about TypedBox
-                .append(".apply(|bound| TypedBox::<_, DynData>::new(bound.clone()))")
+                .append(this.getBoxedInputName(operator, 1))
                 .append(", ");
         this.innerVisitor.setOperatorContext(operator);
         operator.getFunction().accept(this.innerVisitor);
@@ -1071,6 +1118,7 @@ public class ToRustVisitor extends CircuitVisitor {
         this.innerVisitor.setOperatorContext(null);
         this.builder.append(")")
                 .append(this.markDistinct(operator))
+                .append(this.markSharded(operator))
                 .append(";");
         this.tagStream(operator);
         return VisitDecision.STOP;
@@ -1144,6 +1192,8 @@ public class ToRustVisitor extends CircuitVisitor {
                 .append(this.getInputName(operator, 0))
                 .append(".")
                 .append(streamOperation);
+        if (operator.hasAnnotation(BoundedTopK.class))
+            this.builder.append("_append_only");
         this.builder.append("_persistent");
         this.builder.append("::<");
         this.builder.append(comparator.to(DBSPComparatorExpression.class).getComparatorStructName());
@@ -1178,6 +1228,12 @@ public class ToRustVisitor extends CircuitVisitor {
         return this.markDistinct(operator, 0);
     }
 
+    String markSharded(DBSPOperator operator) {
+        if (operator.hasAnnotation(Sharded.class))
+            return ".mark_sharded()";
+        return "";
+    }
+
     @Override
     public VisitDecision preorder(DBSPAsofJoinOperator operator) {
         throw new UnimplementedException("Should have been lowered");
@@ -1244,6 +1300,7 @@ public class ToRustVisitor extends CircuitVisitor {
         closure.accept(this.innerVisitor);
         this.builder.append(")")
                 .append(this.markDistinct(operator))
+                .append(this.markSharded(operator))
                 .append(";");
         this.tagStream(operator);
         this.innerVisitor.setOperatorContext(null);
@@ -1297,6 +1354,47 @@ public class ToRustVisitor extends CircuitVisitor {
         return VisitDecision.STOP;
     }
 
+    @Override
+    public VisitDecision preorder(DBSPLagWithWaterlineOperator operator) {
+        this.computeHash(operator);
+        this.innerVisitor.setOperatorContext(operator);
+        DBSPType streamType = this.streamType(operator);
+        this.writeComments(operator)
+                .append("let ")
+                .append(operator.getNodeName(this.preferHash))
+                .append(": ");
+        streamType.accept(this.innerVisitor);
+        this.builder.append(" = ")
+                .append(this.getInputName(operator, 0))
+                .append(".")
+                .append(operator.operation);
+        this.builder.append("_persistent");
+        this.builder.append("::<_, _, _, _, ");
+        operator.comparator.accept(this.innerVisitor);
+        this.builder.append(", _, _>")
+                .append("(hash, ")
+                .increase();
+        DBSPISizeLiteral offset = new DBSPISizeLiteral(operator.offset);
+        offset.accept(this.innerVisitor);
+        this.builder.append(", ").newline();
+        operator.projection.accept(this.innerVisitor);
+        this.builder.append(", ").newline();
+        operator.getFunction().accept(this.innerVisitor);
+        this.builder.append(", ").newline()
+                .append("&")
+                .append(this.getBoxedInputName(operator, 1))
+                .append(", ").newline();
+        operator.retain.accept(this.innerVisitor);
+        this.builder.newline()
+                .decrease()
+                .append(")")
+                .append(this.markDistinct(operator))
+                .append(";");
+        this.innerVisitor.setOperatorContext(null);
+        this.tagStream(operator);
+        return VisitDecision.STOP;
+    }
+
     void emitWindowBound(DBSPWindowBoundExpression bound) {
         String beforeAfter = bound.isPreceding ? "Before" : "After";
         this.builder.append("RelOffset::")
@@ -1450,9 +1548,7 @@ public class ToRustVisitor extends CircuitVisitor {
                 .append(".");
         this.operationCall(operator);
         this.builder.increase().append("&")
-                .append(this.getInputName(operator, 1))
-                // FIXME: temporary workaround until the compiler learns about TypedBox
-                .append(".apply(|bound| TypedBox::<_, DynData>::new(bound.clone()))")
+                .append(this.getBoxedInputName(operator, 1))
                 .append(", ").newline();
         operator.retainKeysFunction.accept(this.innerVisitor);
         this.builder.append(", ").newline();
@@ -0,0 +1,270 @@
+package org.dbsp.sqlCompiler.compiler.frontend;
+
+import org.dbsp.sqlCompiler.compiler.frontend.calciteObject.CalciteObject;
+import org.dbsp.sqlCompiler.ir.DBSPParameter;
+import org.dbsp.sqlCompiler.ir.expression.DBSPApplyExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPBinaryExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPCastExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPDerefExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPFieldExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPOpcode;
+import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
+import org.dbsp.sqlCompiler.ir.expression.literal.DBSPI64Literal;
+import org.dbsp.sqlCompiler.ir.expression.literal.DBSPIntLiteral;
+import org.dbsp.sqlCompiler.ir.expression.literal.DBSPIntervalMillisLiteral;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.DBSPTypeCode;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeTupleBase;
+import org.dbsp.sqlCompiler.ir.type.primitive.DBSPTypeInteger;
+import org.dbsp.sqlCompiler.ir.type.primitive.DBSPTypeTimestamp;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Describes a join condition which bounds the distance between a column
+ * of the left input and a column of the right input (a band join), e.g.:
+ * left.ts BETWEEN right.ts - INTERVAL 1 HOUR AND right.ts + INTERVAL 2 HOURS.
+ * The condition implies right + lower <= left <= right + upper.
+ *
+ * <p>A band join without equality keys is a cross join followed by a filter.
+ * It can be implemented instead as an equi-join on a bucket number:
+ * each left row is placed in the bucket of its column value, and each
+ * right row is placed in all the buckets that may contain matching left rows.
+ * The buckets are wide enough that a right row is in at most two buckets.
+ * The filter is still applied after the join.
+ *
+ * @param leftColumn   Column of the left input.
+ * @param rightColumn  Column of the right input.
+ * @param lower        Lower bound of left - right.
+ * @param upper        Upper bound of left - right.
+ *                     For timestamps the bounds are in seconds, otherwise in the
+ *                     units of the compared columns. */
+public record BandJoin(CalciteObject node, int leftColumn, int rightColumn, long lower, long upper) {
+    /** A column of the joined row plus a constant offset */
+    record Offset(int column, long offset) {}
+
+    /** Width of a bucket */
+    long width() {
+        return 2 * (this.upper - this.lower) + 1;
+    }
+
+    static DBSPType bucketType() {
+        return DBSPTypeInteger.getType(CalciteObject.EMPTY, DBSPTypeCode.INT64, false);
+    }
+
+    /** Convert a column value to an integer; monotone */
+    static DBSPExpression toInteger(CalciteObject node, DBSPExpression column) {
+        DBSPType i64 = bucketType();
+        if (column.getType().is(DBSPTypeTimestamp.class))
+            return new DBSPApplyExpression(node, "extract_epoch_Timestamp", i64, column);
+        return column.cast(node, i64, false);
+    }
+
+    DBSPExpression bucket(DBSPExpression value, long offset) {
+        DBSPType i64 = bucketType();
+        if (offset != 0)
+            value = ExpressionCompiler.makeBinaryExpression(
+                    this.node, i64, DBSPOpcode.ADD, value, new DBSPI64Literal(offset));
+        return ExpressionCompiler.makeBinaryExpression(
+                this.node, i64, DBSPOpcode.DIV, value, new DBSPI64Literal(this.width()));
+    }
+
+    /** Bucket of a left row */
+    public DBSPExpression leftBucket(DBSPExpression leftRow) {
+        return this.bucket(toInteger(this.node, leftRow.field(this.leftColumn)), 0);
+    }
+
+    /** First bucket that may contain left rows matching a right row */
+    public DBSPExpression rightLowBucket(DBSPExpression rightRow) {
+        return this.bucket(toInteger(this.node, rightRow.field(this.rightColumn)), this.lower);
+    }
+
+    /** Last bucket that may contain left rows matching a right row;
+     * either the same as the first bucket, or the next one */
+    public DBSPExpression rightHighBucket(DBSPExpression rightRow) {
+        return this.bucket(toInteger(this.node, rightRow.field(this.rightColumn)), this.upper);
+    }
+
+    /** If expression is a reference to a field of the parameter return the field number, else -1 */
+    static int isColumn(DBSPExpression expression, DBSPParameter param) {
+        DBSPFieldExpression field = expression.as(DBSPFieldExpression.class);
+        if (field == null)
+            return -1;
+        DBSPDerefExpression deref = field.expression.as(DBSPDerefExpression.class);
+        if (deref == null)
+            return -1;
+        DBSPVariablePath var = deref.expression.as(DBSPVariablePath.class);
+        if (var == null || !var.variable.equals(param.name))
+            return -1;
+        return field.fieldNo;
+    }
+
+    /** Value of a literal that can be used as an offset, in the units of the compared columns */
+    @Nullable
+    static Long offsetValue(DBSPExpression expression) {
+        if (expression.is(DBSPIntLiteral.class)) {
+            BigInteger value = expression.to(DBSPIntLiteral.class).getValue();
+            if (value == null || value.bitLength() >= 63)
+                return null;
+            return value.longValue();
+        } else if (expression.is(DBSPIntervalMillisLiteral.class)) {
+            return expression.to(DBSPIntervalMillisLiteral.class).value;
+        }
+        return null;
+    }
+
+    /** Decompose an expression of the form column, column + constant, or column - constant */
+    @Nullable
+    static Offset asOffset(DBSPExpression expression, DBSPParameter param) {
+        int column = isColumn(expression, param);
+        if (column >= 0)
+            return new Offset(column, 0);
+        DBSPCastExpression cast = expression.as(DBSPCastExpression.class);
+        if (cast != null) {
+            // Casts between integer types preserve the order
+            if (!cast.getType().is(DBSPTypeInteger.class) || !cast.source.getType().is(DBSPTypeInteger.class))
+                return null;
+            return asOffset(cast.source, param);
+        }
+        DBSPBinaryExpression binary = expression.as(DBSPBinaryExpression.class);
+        if (binary == null)
+            return null;
+        boolean add = binary.opcode == DBSPOpcode.ADD || binary.opcode == DBSPOpcode.TS_ADD;
+        boolean sub = binary.opcode == DBSPOpcode.SUB || binary.opcode == DBSPOpcode.TS_SUB;
+        if (!add && !sub)
+            return null;
+        Offset inner = asOffset(binary.left, param);
+        Long value = offsetValue(binary.right);
+        if ((inner == null || value == null) && add) {
+            inner = asOffset(binary.right, param);
+            value = offsetValue(binary.left);
+        }
+        if (inner == null || value == null)
+            return null;
+        try {
+            long offset = sub ? Math.subtractExact(inner.offset, value) : Math.addExact(inner.offset, value);
+            return new Offset(inner.column, offset);
+        } catch (ArithmeticException ex) {
+            return null;
+        }
+    }
+
+    static void conjuncts(DBSPExpression expression, List<DBSPBinaryExpression> result) {
+        DBSPBinaryExpression binary = expression.as(DBSPBinaryExpression.class);
+        if (binary == null)
+            return;
+        if (binary.opcode == DBSPOpcode.AND) {
+            conjuncts(binary.left, result);
+            conjuncts(binary.right, result);
+        } else {
+            result.add(binary);
+        }
+    }
+
+    static boolean isBandType(DBSPType type) {
+        return !type.mayBeNull &&
+                (type.is(DBSPTypeTimestamp.class) || type.is(DBSPTypeInteger.class));
+    }
+
+    /** True if the bucket of a column of this type can be computed without overflow.
+     * Bucket numbers are computed in 64 bits, by adding an offset of at most
+     * {@link #MAX_OFFSET} to the column value.  The seconds of a timestamp and
+     * integers narrower than 64 bits leave enough room for the offset. */
+    static boolean canBucket(DBSPType type) {
+        if (type.is(DBSPTypeTimestamp.class))
+            return true;
+        DBSPTypeInteger integer = type.as(DBSPTypeInteger.class);
+        return integer != null && integer.getWidth() < 64;
+    }
+
+    /** Offsets larger than this are not used, to avoid overflows when computing buckets */
+    static final long MAX_OFFSET = 1L << 40;
+
+    /** Find a band condition in a join filter.
+     *
+     * @param condition    Filter applied to the joined rows, with a single parameter.
+     * @param leftColumns  Number of columns of the joined row that come from the left input.
+     * @return A description of the band, or null if the condition does not bound
+     * any left column from both sides. */
+    @Nullable
+    public static BandJoin find(DBSPClosureExpression condition, int leftColumns) {
+        if (condition.parameters.length != 1)
+            return null;
+        DBSPParameter param = condition.parameters[0];
+        DBSPTypeTupleBase row = param.getType().deref().as(DBSPTypeTupleBase.class);
+        if (row == null)
+            return null;
+        List<DBSPBinaryExpression> comparisons = new ArrayList<>();
+        conjuncts(condition.body, comparisons);
+
+        // Candidate bounds, in comparison order
+        List<BandJoin> lowerBounds = new ArrayList<>();
+        List<BandJoin> upperBounds = new ArrayList<>();
+        for (DBSPBinaryExpression comparison: comparisons) {
+            boolean isLower;
+            switch (comparison.opcode) {
+                case GT, GTE -> isLower = true;
+                case LT, LTE -> isLower = false;
+                default -> { continue; }
+            }
+            Offset left = asOffset(comparison.left, param);
+            Offset right = asOffset(comparison.right, param);
+            if (left == null || right == null)
+                continue;
+            if (left.column >= leftColumns) {
+                // Swap so the left column comes first
+                Offset tmp = left;
+                left = right;
+                right = tmp;
+                isLower = !isLower;
+            }
+            if (left.column >= leftColumns || right.column < leftColumns)
+                continue;
+            if (!canBucket(row.getFieldType(left.column)) || !canBucket(row.getFieldType(right.column)))
+                continue;
+            DBSPType leftType = comparison.left.getType();
+            DBSPType rightType = comparison.right.getType();
+            if (!isBandType(leftType) || !isBandType(rightType) ||
+                    leftType.is(DBSPTypeTimestamp.class) != rightType.is(DBSPTypeTimestamp.class))
+                continue;
+            long offset;
+            try {
+                // left.column + left.offset >= right.column + right.offset
+                offset = Math.subtractExact(right.offset, left.offset);
+            } catch (ArithmeticException ex) {
+                continue;
+            }
+            BandJoin bound = new BandJoin(comparison.getNode(), left.column, right.column - leftColumns,
+                    isLower ? offset : Long.MIN_VALUE, isLower ? Long.MAX_VALUE : offset);
+            if (leftType.is(DBSPTypeTimestamp.class)) {
+                // The offsets are in milliseconds, but buckets are computed from seconds.
+                // Converting to seconds truncates, which can move values by 1 in each direction.
+                bound = new BandJoin(bound.node, bound.leftColumn, bound.rightColumn,
+                        isLower ? Math.floorDiv(offset, 1000) - 1 : Long.MIN_VALUE,
+                        isLower ? Long.MAX_VALUE : -Math.floorDiv(-offset, 1000) + 1);
+            }
+            if (isLower)
+                lowerBounds.add(bound);
+            else
+                upperBounds.add(bound);
+        }
+
+        for (BandJoin lower: lowerBounds) {
+            for (BandJoin upper: upperBounds) {
+                if (lower.leftColumn != upper.leftColumn || lower.rightColumn != upper.rightColumn)
+                    continue;
+                if (lower.lower > upper.upper)
+                    // Empty band
+                    continue;
+                if (Math.abs(lower.lower) > MAX_OFFSET || Math.abs(upper.upper) > MAX_OFFSET)
+                    continue;
+                return new BandJoin(lower.node, lower.leftColumn, lower.rightColumn, lower.lower, upper.upper);
+            }
+        }
+        return null;
+    }
+}
@@ -250,6 +250,8 @@ public class CalciteToDBSPCompiler extends RelVisitor
     final ProgramMetadata metadata;
     /** Recursive views, indexed by actual view name (not rewritten name) */
     final Map<ProgramIdentifier, DeclareViewStatement> recursiveViews = new HashMap<>();
+    /** Subplans already compiled, shared between views */
+    final SharedSubplans sharedSubplans = new SharedSubplans();
 
     /**
      * Create a compiler that translated from calcite to DBSP circuits.
@@ -1515,6 +1517,202 @@ public class CalciteToDBSPCompiler extends RelVisitor
                 TypeCompiler.makeZSet(resultType), operator.outputPort());
     }
 
+    /** Compile a join without equality keys whose condition is a band condition
+     * as an equi-join on bucket numbers.  The left rows are indexed by their bucket;
+     * the right rows are indexed by the first bucket that may contain matches, and,
+     * if the band spans two buckets, by the second one too.
+     * The caller still has to apply the join condition to the result.
+     *
+     * @param band       Description of the band condition.
+     * @param lr         Expression that produces the joined row from l0 and r0.
+     * @param isMultiset True if the output may contain duplicates.
+     * @return           The join operator, not yet added to the circuit. */
+    private DBSPSimpleOperator bandJoin(CalciteRelNode node, BandJoin band, DBSPTupleExpression lr,
+                                        DBSPVariablePath l0, DBSPVariablePath r0, boolean isMultiset,
+                                        DBSPSimpleOperator left, DBSPSimpleOperator right) {
+        final DBSPVariablePath l = left.getOutputZSetElementType().ref().var();
+        final DBSPMapIndexOperator leftIndex = new DBSPMapIndexOperator(node,
+                new DBSPRawTupleExpression(
+                        new DBSPTupleExpression(band.leftBucket(l.deref())),
+                        new KeyFields().nonKeyFields(l.deref())).closure(l),
+                left.outputPort());
+        this.addOperator(leftIndex);
+
+        final DBSPVariablePath r = right.getOutputZSetElementType().ref().var();
+        final DBSPMapIndexOperator rightLow = new DBSPMapIndexOperator(node,
+                new DBSPRawTupleExpression(
+                        new DBSPTupleExpression(band.rightLowBucket(r.deref())),
+                        new KeyFields().nonKeyFields(r.deref())).closure(r),
+                right.outputPort());
+        this.addOperator(rightLow);
+
+        final DBSPVariablePath r1 = right.getOutputZSetElementType().ref().var();
+        final DBSPExpression twoBuckets = ExpressionCompiler.makeBinaryExpression(node,
+                DBSPTypeBool.create(false), DBSPOpcode.NEQ,
+                band.rightLowBucket(r1.deref()), band.rightHighBucket(r1.deref()));
+        final DBSPFilterOperator spans = new DBSPFilterOperator(node, twoBuckets.closure(r1), right.outputPort());
+        this.addOperator(spans);
+
+        final DBSPVariablePath r2 = right.getOutputZSetElementType().ref().var();
+        final DBSPMapIndexOperator rightHigh = new DBSPMapIndexOperator(node,
+                new DBSPRawTupleExpression(
+                        new DBSPTupleExpression(band.rightHighBucket(r2.deref())),
+                        new KeyFields().nonKeyFields(r2.deref())).closure(r2),
+                spans.outputPort());
+        this.addOperator(rightHigh);
+        final DBSPSumOperator rightIndex = new DBSPSumOperator(node, rightLow.outputPort(), rightHigh.outputPort());
+        this.addOperator(rightIndex);
+
+        final DBSPVariablePath k = leftIndex.getOutputIndexedZSetType().keyType.ref().var();
+        Logger.INSTANCE.belowLevel(this, 1)
+                .append("Band join on columns ")
+                .append(band.leftColumn())
+                .append(" and ")
+                .append(band.rightColumn())
+                .newline();
+        return new DBSPStreamJoinOperator(node, TypeCompiler.makeZSet(lr.getType()),
+                lr.closure(k, l0, r0), isMultiset, leftIndex.outputPort(), rightIndex.outputPort());
+    }
+
+    /** Compile a SEMI or ANTI join.  The output contains only the left rows.
+     * The right input is reduced to the set of its distinct keys, so the state
+     * kept for the right side does not contain any of the non-key columns.
+     * - a SEMI join is a join of the left input with the distinct right keys.
+     * - an ANTI join is an antijoin of the left input with the right keys,
+     *   plus the left rows that can never match: rows with NULL keys and rows
+     *   that do not satisfy the predicates that only refer to left columns. */
+    private void visitSemiOrAntiJoin(LogicalJoin join) {
+        final CalciteObject conditionNode = CalciteObject.create(join, join.getCondition());
+        final IntermediateRel node = CalciteObject.create(join, conditionNode.getPositionRange());
+        final JoinRelType joinType = join.getJoinType();
+        final List<OutputPort> sumInputs = new ArrayList<>();
+
+        final DBSPTypeTuple resultType = this.convertType(node.getPositionRange(), join.getRowType(), false)
+                .to(DBSPTypeTuple.class);
+        final DBSPSimpleOperator left = this.getInputAs(join.getInput(0), true);
+        final DBSPSimpleOperator right = this.getInputAs(join.getInput(1), true);
+        final DBSPTypeTuple leftElementType = left.getOutputZSetElementType().to(DBSPTypeTuple.class);
+        final DBSPTypeTuple rightElementType = right.getOutputZSetElementType().to(DBSPTypeTuple.class);
+        final int leftColumns = leftElementType.size();
+
+        final JoinConditionAnalyzer analyzer = new JoinConditionAnalyzer(
+                leftColumns, this.compiler.getTypeCompiler());
+        final JoinConditionAnalyzer.ConditionDecomposition decomposition = analyzer.analyze(join, join.getCondition());
+        final @Nullable RexNode leftOver = decomposition.getLeftOver();
+        if (leftOver != null && !leftOver.isAlwaysTrue())
+            throw new UnimplementedException("JOIN of type " + joinType + " with a condition that is not an equality",
+                    node);
+
+        DBSPSimpleOperator leftPulled = left;
+        if (!decomposition.leftPredicates.isEmpty()) {
+            DBSPVariablePath t = leftElementType.ref().var();
+            ExpressionCompiler expressionCompiler = new ExpressionCompiler(join, t, this.compiler);
+            DBSPExpression predicate = makeAnd(Linq.map(decomposition.leftPredicates, expressionCompiler::compile));
+            leftPulled = new DBSPFilterOperator(node, predicate.closure(t), left.outputPort());
+            this.addOperator(leftPulled);
+            if (joinType == JoinRelType.ANTI) {
+                // Rows that do not satisfy the predicate have no match
+                t = leftElementType.ref().var();
+                expressionCompiler = new ExpressionCompiler(join, t, this.compiler);
+                predicate = makeAnd(Linq.map(decomposition.leftPredicates, expressionCompiler::compile));
+                final DBSPSimpleOperator noMatch = new DBSPFilterOperator(
+                        node, predicate.not().closure(t), left.outputPort());
+                final DBSPSimpleOperator cast = this.insertCastMap(conditionNode, noMatch, resultType, false);
+                this.addOperator(cast);
+                sumInputs.add(cast.outputPort());
+            }
+        }
+        DBSPSimpleOperator rightPulled = right;
+        if (!decomposition.rightPredicates.isEmpty()) {
+            DBSPVariablePath t = rightElementType.ref().var();
+            ExpressionCompiler expressionCompiler = new ShiftingExpressionCompiler(join, t, this.compiler, leftColumns);
+            DBSPExpression predicate = makeAnd(Linq.map(decomposition.rightPredicates, expressionCompiler::compile));
+            rightPulled = new DBSPFilterOperator(node, predicate.closure(t), right.outputPort());
+            this.addOperator(rightPulled);
+        }
+
+        final List<Integer> leftNonNull = Linq.map(
+                Linq.where(decomposition.comparisons, JoinConditionAnalyzer.EqualityTest::nonNull),
+                JoinConditionAnalyzer.EqualityTest::leftColumn);
+        final DBSPSimpleOperator filteredLeft = this.filterNonNullFields(
+                conditionNode, join, leftNonNull, leftPulled, false);
+        final DBSPSimpleOperator filteredRight = this.filterNonNullFields(conditionNode, join,
+                Linq.map(Linq.where(decomposition.comparisons, JoinConditionAnalyzer.EqualityTest::nonNull),
+                        JoinConditionAnalyzer.EqualityTest::rightColumn), rightPulled, false);
+        if (joinType == JoinRelType.ANTI && filteredLeft != leftPulled) {
+            // Rows with NULL keys have no match
+            final DBSPSimpleOperator nullKeys = this.filterNonNullFields(
+                    conditionNode, join, leftNonNull, leftPulled, true);
+            final DBSPSimpleOperator cast = this.insertCastMap(conditionNode, nullKeys, resultType, false);
+            if (cast != nullKeys)
+                this.addOperator(cast);
+            sumInputs.add(cast.outputPort());
+        }
+
+        final KeyFields lkf = new KeyFields();
+        for (var x : decomposition.comparisons)
+            lkf.add(x.leftColumn());
+
+        // Index the left input by the key; the value contains only the non-key fields
+        final DBSPVariablePath l = leftElementType.ref().var(conditionNode);
+        final DBSPTupleExpression leftKey = new DBSPTupleExpression(node, Linq.map(
+                decomposition.comparisons,
+                c -> l.deref().field(c.node(), c.leftColumn())
+                        .applyCloneIfNeeded()
+                        .cast(c.node(), c.commonType(), false)));
+        final DBSPTupleExpression leftTuple = lkf.nonKeyFields(l.deref());
+        final DBSPMapIndexOperator leftIndex = new DBSPMapIndexOperator(
+                node, new DBSPRawTupleExpression(leftKey, leftTuple).closure(l),
+                makeIndexedZSet(leftKey.getType(), leftTuple.getType()), false, filteredLeft.outputPort());
+        this.addOperator(leftIndex);
+
+        // Index the right input by the key, dropping all other fields
+        final DBSPVariablePath r = rightElementType.ref().var(conditionNode);
+        final DBSPTupleExpression rightKey = new DBSPTupleExpression(node, Linq.map(
+                decomposition.comparisons,
+                c -> r.deref().field(c.node(), c.rightColumn())
+                        .applyCloneIfNeeded()
+                        .cast(c.node(), c.commonType(), false)));
+        final DBSPMapIndexOperator rightKeys = new DBSPMapIndexOperator(
+                node, new DBSPRawTupleExpression(rightKey, new DBSPTupleExpression()).closure(r),
+                makeIndexedZSet(rightKey.getType(), DBSPTypeTuple.EMPTY), false, filteredRight.outputPort());
+        this.addOperator(rightKeys);
+
+        final DBSPSimpleOperator matched;
+        if (joinType == JoinRelType.SEMI) {
+            final DBSPStreamDistinctOperator distinct = new DBSPStreamDistinctOperator(node, rightKeys.outputPort());
+            this.addOperator(distinct);
+
+            final DBSPVariablePath k = leftKey.getType().ref().var(conditionNode);
+            final DBSPVariablePath l0 = leftTuple.getType().ref().var(conditionNode);
+            final DBSPVariablePath r0 = DBSPTypeTuple.EMPTY.ref().var(conditionNode);
+            final List<DBSPExpression> fields = new ArrayList<>();
+            lkf.unshuffleKeyAndDataFields(k, l0, fields);
+            final DBSPTupleExpression row = new DBSPTupleExpression(fields, false);
+            matched = new DBSPStreamJoinOperator(node, TypeCompiler.makeZSet(row.getType()),
+                    row.closure(k, l0, r0), left.isMultiset,
+                    leftIndex.outputPort(), distinct.outputPort());
+        } else {
+            final DBSPSimpleOperator anti = new DBSPStreamAntiJoinOperator(
+                    node, leftIndex.outputPort(), rightKeys.outputPort());
+            this.addOperator(anti);
+
+            final DBSPVariablePath var = anti.getOutputIndexedZSetType().getKVRefType().var(conditionNode);
+            final List<DBSPExpression> fields = new ArrayList<>();
+            lkf.unshuffleKeyAndDataFields(var.field(0), var.field(1), fields);
+            matched = new DBSPMapOperator(
+                    node, new DBSPTupleExpression(fields, false).closure(var), anti.outputPort());
+        }
+        // The key fields may have lost their nullability
+        final DBSPSimpleOperator result = this.insertCastMap(conditionNode, matched, resultType, false);
+        this.addOperator(result);
+        sumInputs.add(result.outputPort());
+
+        final DBSPSumOperator sum = new DBSPSumOperator(node.getFinal(), sumInputs);
+        Utilities.enforce(resultType.sameType(sum.getOutputZSetElementType()));
+        this.assignOperator(join, sum);
+    }
+
     private void visitJoin(LogicalJoin join) {
         final CalciteObject conditionNode = CalciteObject.create(join, join.getCondition());
         final IntermediateRel node = CalciteObject.create(join, conditionNode.getPositionRange());
@@ -1522,8 +1720,10 @@ public class CalciteToDBSPCompiler extends RelVisitor
         final List<OutputPort> sumInputs = new ArrayList<>();
 
         JoinRelType joinType = join.getJoinType();
-        if (joinType == JoinRelType.ANTI || joinType == JoinRelType.SEMI)
-            throw new UnimplementedException("JOIN of type " + joinType + " not yet implemented", node);
+        if (joinType == JoinRelType.ANTI || joinType == JoinRelType.SEMI) {
+            this.visitSemiOrAntiJoin(join);
+            return;
+        }
 
         final DBSPTypeTuple resultType = this.convertType(node.getPositionRange(), join.getRowType(), false)
                 .to(DBSPTypeTuple.class);
@@ -1671,10 +1871,17 @@ public class CalciteToDBSPCompiler extends RelVisitor
                 // if bLit is true, we don't need to filter.
             }
 
-            final DBSPClosureExpression makeTuple = lr.closure(k, l0, r0);
-            joinResult = new DBSPStreamJoinOperator(node, TypeCompiler.makeZSet(lr.getType()),
-                    makeTuple, left.isMultiset || right.isMultiset,
-                    leftNonNullIndex.outputPort(), rightNonNullIndex.outputPort());
+            final BandJoin band = (joinType == JoinRelType.INNER && hasFilter && decomposition.comparisons.isEmpty())
+                    ? BandJoin.find(Objects.requireNonNull(postJoinCondition), leftColumns) : null;
+            if (band != null) {
+                joinResult = this.bandJoin(node, band, lr, l0, r0,
+                        left.isMultiset || right.isMultiset, filteredLeft, filteredRight);
+            } else {
+                final DBSPClosureExpression makeTuple = lr.closure(k, l0, r0);
+                joinResult = new DBSPStreamJoinOperator(node, TypeCompiler.makeZSet(lr.getType()),
+                        makeTuple, left.isMultiset || right.isMultiset,
+                        leftNonNullIndex.outputPort(), rightNonNullIndex.outputPort());
+            }
             inner = joinResult;
 
             if (joinType == JoinRelType.LEFT && leftPulled == left && !hasFilter) {
@@ -2861,6 +3068,12 @@ public class CalciteToDBSPCompiler extends RelVisitor
             // We have already done this one.  This can happen because the
             // plan can be a DAG, not just a tree.
             return;
+        // Another view may have compiled the same subplan
+        SharedSubplans.Match match = this.sharedSubplans.find(node);
+        if (match != null) {
+            this.reuseOperator(node, match);
+            return;
+        }
 
         // logical correlates are not done in postorder.
         if (this.visitIfMatches(node, LogicalCorrelate.class, this::visitCorrelate))
@@ -2892,6 +3105,26 @@ public class CalciteToDBSPCompiler extends RelVisitor
                 this.visitIfMatches(node, Collect.class, this::visitCollect);
         if (!success)
             throw new UnimplementedException("Calcite operator not yet implemented", CalciteObject.create(node));
+        DBSPSimpleOperator operator = this.nodeOperator.get(node);
+        if (operator != null)
+            this.sharedSubplans.add(node, operator);
+    }
+
+    /** Implement a node using an operator compiled for an equivalent node */
+    void reuseOperator(RelNode node, SharedSubplans.Match match) {
+        DBSPSimpleOperator operator = match.operator();
+        if (match.permutation() == null) {
+            Utilities.putNew(this.nodeOperator, node, operator);
+            return;
+        }
+        IntermediateRel rel = CalciteObject.create(node);
+        DBSPVariablePath t = operator.getOutputZSetElementType().ref().var();
+        List<DBSPExpression> fields = new ArrayList<>();
+        for (int index: match.permutation())
+            fields.add(t.deref().field(index).applyCloneIfNeeded());
+        DBSPClosureExpression closure = new DBSPTupleExpression(fields, false).closure(t);
+        DBSPMapOperator map = new DBSPMapOperator(rel.getFinal(), closure, operator.outputPort());
+        this.assignOperator(node, map);
     }
 
     InputColumnMetadata convertMetadata(RelColumnMetadata metadata) {
@@ -0,0 +1,190 @@
+package org.dbsp.sqlCompiler.compiler.frontend;
+
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Join;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.core.Sort;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.core.Window;
+import org.apache.calcite.rel.externalize.RelWriterImpl;
+import org.apache.calcite.rel.type.RelDataTypeField;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexShuttle;
+import org.apache.calcite.sql.SqlExplainLevel;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.util.Pair;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSimpleOperator;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Logger;
+
+import javax.annotation.Nullable;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Finds subplans of different views that compute the same result, so that
+ * they are compiled to a single operator.
+ *
+ * <p>Subplans are compared using a key which is computed like a Calcite digest,
+ * but recursively, and ignoring the names of the computed columns.
+ * An inner join matches a join with the inputs swapped; then the
+ * result of the existing operator has to be permuted.
+ *
+ * <p>Some subplans are never shared: subplans that use correlation variables
+ * or non-deterministic functions, and windows and sorts, whose compilation
+ * depends on the parent node. */
+public class SharedSubplans implements IWritesLogs {
+    /** An operator that computes the result of a subplan.
+     *
+     * @param operator     Operator that computes the subplan.
+     * @param permutation  If not null, field i of the subplan is field permutation[i] of the operator output. */
+    public record Match(DBSPSimpleOperator operator, @Nullable int[] permutation) {}
+
+    /** Operators computing subplans, indexed by key */
+    final Map<String, Match> compiled;
+    /** Cached keys of subplans */
+    final Map<RelNode, String> keys;
+    /** Cached results of {@link #isShareable} */
+    final Map<RelNode, Boolean> shareable;
+
+    public SharedSubplans() {
+        this.compiled = new HashMap<>();
+        this.keys = new IdentityHashMap<>();
+        this.shareable = new IdentityHashMap<>();
+    }
+
+    /** Writes the values of the attributes of a node, using the keys of the inputs */
+    class KeyWriter extends RelWriterImpl {
+        final StringBuilder builder;
+
+        KeyWriter() {
+            super(new PrintWriter(new StringWriter()), SqlExplainLevel.DIGEST_ATTRIBUTES, false);
+            this.builder = new StringBuilder();
+        }
+
+        @Override
+        protected void explain_(RelNode rel, List<Pair<String, Object>> values) {
+            this.builder.append(rel.getRelTypeName()).append("(");
+            for (Pair<String, Object> value: values) {
+                if (value.right instanceof RelNode input)
+                    this.builder.append(SharedSubplans.this.key(input));
+                else if (value.right instanceof RexNode expression)
+                    this.builder.append(canonical(expression));
+                else
+                    this.builder.append(value.right);
+                this.builder.append(",");
+            }
+            this.builder.append(")[");
+            for (RelDataTypeField field: rel.getRowType().getFieldList())
+                this.builder.append(field.getType().getFullTypeString()).append(",");
+            this.builder.append("]");
+        }
+    }
+
+    /** A string representation of an expression where the operands of commutative
+     * operations are sorted, e.g., $0 = $2 and $2 = $0 are represented in the same way */
+    static String canonical(RexNode expression) {
+        String type = ":" + expression.getType().getFullTypeString();
+        if (expression instanceof RexCall call) {
+            List<String> operands = new ArrayList<>();
+            for (RexNode operand: call.getOperands())
+                operands.add(canonical(operand));
+            if (call.getOperator().isSymmetrical() || call.isA(SqlKind.AND) || call.isA(SqlKind.OR))
+                Collections.sort(operands);
+            return call.getOperator() + operands.toString() + type;
+        }
+        return expression + type;
+    }
+
+    String key(RelNode node) {
+        String result = this.keys.get(node);
+        if (result != null)
+            return result;
+        KeyWriter writer = new KeyWriter();
+        node.explain(writer);
+        result = writer.builder.toString();
+        this.keys.put(node, result);
+        return result;
+    }
+
+    static boolean isDeterministic(RelNode node) {
+        boolean[] result = new boolean[] { true };
+        node.accept(new RexShuttle() {
+            @Override
+            public RexNode visitCall(RexCall call) {
+                if (!call.getOperator().isDeterministic())
+                    result[0] = false;
+                return super.visitCall(call);
+            }
+        });
+        return result[0];
+    }
+
+    boolean isShareable(RelNode node) {
+        Boolean result = this.shareable.get(node);
+        if (result != null)
+            return result;
+        result = !(node instanceof TableScan) &&
+                !(node instanceof Window) &&
+                !(node instanceof Sort) &&
+                RelOptUtil.getVariablesUsed(node).isEmpty() &&
+                isDeterministic(node);
+        for (RelNode input: node.getInputs()) {
+            // Inputs are checked even if this node fails, to populate the cache
+            if (!(input instanceof TableScan) && !this.isShareable(input))
+                result = false;
+        }
+        this.shareable.put(node, result);
+        return result;
+    }
+
+    /** Find an operator that already computes the same result as the subplan */
+    @Nullable
+    public Match find(RelNode node) {
+        if (!this.isShareable(node))
+            return null;
+        Match result = this.compiled.get(this.key(node));
+        if (result != null)
+            Logger.INSTANCE.belowLevel(this, 1)
+                    .append("Sharing ")
+                    .appendSupplier(result.operator::toString)
+                    .append(" for ")
+                    .appendSupplier(node::toString)
+                    .newline();
+        return result;
+    }
+
+    /** Record the operator which computes a subplan */
+    public void add(RelNode node, DBSPSimpleOperator operator) {
+        if (!this.isShareable(node))
+            return;
+        this.compiled.putIfAbsent(this.key(node), new Match(operator, null));
+        if (node instanceof Join join && join.getJoinType() == JoinRelType.INNER) {
+            // The same join with the inputs swapped produces the same fields in a different order
+            int leftFields = join.getLeft().getRowType().getFieldCount();
+            int rightFields = join.getRight().getRowType().getFieldCount();
+            RexNode condition = join.getCondition().accept(new RexShuttle() {
+                @Override
+                public RexNode visitInputRef(RexInputRef ref) {
+                    int index = ref.getIndex();
+                    index = index < leftFields ? index + rightFields : index - leftFields;
+                    return new RexInputRef(index, ref.getType());
+                }
+            });
+            Join swapped = join.copy(join.getTraitSet(), condition, join.getRight(), join.getLeft(),
+                    join.getJoinType(), join.isSemiJoinDone());
+            int[] permutation = new int[leftFields + rightFields];
+            for (int i = 0; i < permutation.length; i++)
+                permutation[i] = i < rightFields ? leftFields + i : i - rightFields;
+            this.compiled.putIfAbsent(this.key(swapped), new Match(operator, permutation));
+        }
+    }
+}
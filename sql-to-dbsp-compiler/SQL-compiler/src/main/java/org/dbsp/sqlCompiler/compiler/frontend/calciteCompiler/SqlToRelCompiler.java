@@ -35,6 +35,7 @@ import org.apache.calcite.config.NullCollation;
 import org.apache.calcite.jdbc.CalciteSchema;
 import org.apache.calcite.plan.RelOptCluster;
 import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelOptTable;
 import org.apache.calcite.plan.RelOptUtil;
 import org.apache.calcite.plan.hep.HepPlanner;
 import org.apache.calcite.plan.hep.HepProgramBuilder;
@@ -126,9 +127,11 @@ import org.apache.calcite.sql.validate.SqlValidatorUtil;
 import org.apache.calcite.sql2rel.ConvertToChecked;
 import org.apache.calcite.sql2rel.SqlToRelConverter;
 import org.apache.calcite.tools.RelBuilder;
+import org.apache.calcite.util.Util;
 import org.dbsp.generated.parser.DbspParserImpl;
 import org.dbsp.sqlCompiler.compiler.CompilerOptions;
 import org.dbsp.sqlCompiler.compiler.IErrorReporter;
+import org.dbsp.sqlCompiler.compiler.RuntimeProfile;
 import org.dbsp.sqlCompiler.compiler.errors.CompilationError;
 import org.dbsp.sqlCompiler.compiler.errors.InternalCompilerError;
 import org.dbsp.sqlCompiler.compiler.errors.SourceFileContents;
@@ -136,6 +139,7 @@ import org.dbsp.sqlCompiler.compiler.errors.SourcePositionRange;
 import org.dbsp.sqlCompiler.compiler.errors.UnimplementedException;
 import org.dbsp.sqlCompiler.compiler.errors.UnsupportedException;
 import org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.optimizer.CalciteOptimizer;
+import org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.optimizer.ViewMatching;
 import org.dbsp.sqlCompiler.compiler.frontend.calciteObject.CalciteObject;
 import org.dbsp.sqlCompiler.compiler.frontend.calciteObject.CalciteRelNode;
 import org.dbsp.sqlCompiler.compiler.frontend.parser.PropertyList;
@@ -221,6 +225,9 @@ public class SqlToRelCompiler implements IWritesLogs {
     private final ExtraValidation extraValidator;
     private final CalciteConnectionConfig connectionConfig;
     private final IErrorReporter errorReporter;
+    /** If set, runtime metrics override the declared table sizes */
+    @Nullable
+    private RuntimeProfile profile = null;
     private final SchemaPlus rootSchema;
     private final CustomFunctions customFunctions;
     /** User-defined types */
@@ -230,6 +237,8 @@ public class SqlToRelCompiler implements IWritesLogs {
     private final Set<ProgramIdentifier> usedViewDeclarations;
     /** Views which have been defined */
     private final Set<ProgramIdentifier> definedViews;
+    /** Views which can be used to compute other views */
+    private final ViewMatching viewMatching;
     // Changing this may break all sorts of things.  Calcite is very brittle to this kind of stuff.
     public static final Casing UNQUOTED_CASING = Casing.TO_LOWER;
     // Other databases that have this null collation:
@@ -298,6 +307,7 @@ public class SqlToRelCompiler implements IWritesLogs {
         this.converter = null;
         this.usedViewDeclarations = new HashSet<>();
         this.declaredViews = new HashMap<>();
+        this.viewMatching = new ViewMatching();
 
         SqlOperatorTable operatorTable = this.createOperatorTable();
         this.addOperatorTable(operatorTable);
@@ -312,6 +322,7 @@ public class SqlToRelCompiler implements IWritesLogs {
         this.converterConfig = source.converterConfig;
         this.connectionConfig = source.connectionConfig;
         this.errorReporter = source.errorReporter;
+        this.profile = source.profile;
         this.customFunctions = new CustomFunctions(source.customFunctions);
         this.calciteCatalog = new Catalog(source.calciteCatalog);
         this.udt = new HashMap<>(source.udt);
@@ -321,6 +332,8 @@ public class SqlToRelCompiler implements IWritesLogs {
         this.rootSchema.add(this.calciteCatalog.schemaName, this.calciteCatalog);
         this.usedViewDeclarations = new HashSet<>(source.usedViewDeclarations);
         this.definedViews = new HashSet<>(source.definedViews);
+        // Generated code is not rewritten using the program views
+        this.viewMatching = new ViewMatching();
         this.extraValidator = source.extraValidator;
         this.addOperatorTable(Objects.requireNonNull(source.validator).getOperatorTable());
     }
@@ -339,6 +352,10 @@ public class SqlToRelCompiler implements IWritesLogs {
             this.rootSchema.add(name, Objects.requireNonNull(subSchemas.get(name)));
     }
 
+    public void setProfile(@Nullable RuntimeProfile profile) {
+        this.profile = profile;
+    }
+
     public CustomFunctions getCustomFunctions() {
         return this.customFunctions;
     }
@@ -1809,7 +1826,8 @@ public class SqlToRelCompiler implements IWritesLogs {
             props = new Properties(properties);
         }
         List<ForeignKey> fk = this.createForeignKeys(ct);
-        CreateTableStatement table = new CreateTableStatement(node, tableName, cols, fk, props);
+        Long observedRows = this.profile != null ? this.profile.getRows(tableName) : null;
+        CreateTableStatement table = new CreateTableStatement(node, tableName, cols, fk, props, observedRows);
         boolean success = this.calciteCatalog.addTable(table, this.errorReporter);
         if (!success)
             return null;
@@ -1896,6 +1914,26 @@ public class SqlToRelCompiler implements IWritesLogs {
         }
     }
 
+    void validateDistinctValuesProperty(CalciteObject node, SqlFragment key, SqlFragment value) {
+        try {
+            JsonNode jsonNode = Utilities.deterministicObjectMapper().readTree(value.getString());
+            if (jsonNode.isObject()) {
+                boolean valid = true;
+                for (Iterator<JsonNode> it = jsonNode.elements(); it.hasNext(); ) {
+                    JsonNode count = it.next();
+                    if (!count.canConvertToLong() || count.asLong() < 0)
+                        valid = false;
+                }
+                if (valid)
+                    return;
+            }
+        } catch (JsonProcessingException e) {
+            // fall through
+        }
+        throw new CompilationError("Expected a JSON object mapping column names to numbers for property " +
+                Utilities.singleQuote(key.getString()), node);
+    }
+
     void validateConnectorsProperty(CalciteObject node, boolean isTable, ProgramIdentifier tableView, SqlFragment key, SqlFragment value) {
         try {
             JsonNode jsonNode = Utilities.deterministicObjectMapper().readTree(value.getString());
@@ -1935,6 +1973,7 @@ public class SqlToRelCompiler implements IWritesLogs {
         switch (key.getString()) {
             case "materialized":
             case "append_only":
+            case "input_filter":
                 this.validateBooleanProperty(node, key, value);
                 break;
             case "connectors":
@@ -1943,6 +1982,9 @@ public class SqlToRelCompiler implements IWritesLogs {
             case "expected_size":
                 this.validateNumericProperty(node, key, value);
                 break;
+            case "distinct_values":
+                this.validateDistinctValuesProperty(node, key, value);
+                break;
             default:
                 throw new CompilationError("Unknown property " + Utilities.singleQuote(keyString), node);
         }
@@ -2025,6 +2067,15 @@ public class SqlToRelCompiler implements IWritesLogs {
         relRoot = relRoot.withRel(checked);
 
         RelNode optimized = this.optimize(relRoot.rel, node.visible());
+        boolean matchViews = this.options.languageOptions.viewMatching &&
+                !this.declaredViews.containsKey(viewName) &&
+                !this.readsRecursiveViews(optimized);
+        ViewMatching.Rewrite rewrite = null;
+        if (matchViews) {
+            rewrite = this.viewMatching.rewrite(optimized);
+            if (rewrite != null)
+                optimized = rewrite.rel();
+        }
         relRoot = relRoot.withRel(optimized);
         CreateViewStatement view = new CreateViewStatement(node,
                 viewName, columns, cv, relRoot, emitFinal, props);
@@ -2032,6 +2083,21 @@ public class SqlToRelCompiler implements IWritesLogs {
         boolean success = this.calciteCatalog.addTable(view, this.errorReporter);
         if (!success)
             return null;
+        if (rewrite != null) {
+            this.errorReporter.reportWarning(view.getPosition(), "View rewritten",
+                    "View " + viewName.singleQuote() + " is computed from " +
+                            (rewrite.used().size() == 1 ? "view " : "views ") +
+                            String.join(", ", Linq.map(rewrite.used(), ProgramIdentifier::singleQuote)));
+        }
+        // Views with lateness or emit_final do not produce all the rows of their query
+        boolean complete = emitFinal < 0 && Linq.all(columns, c -> c.lateness == null && c.watermark == null);
+        if (matchViews && complete && relRoot.isRefTrivial()) {
+            Prepare.CatalogReader reader = Objects.requireNonNull(
+                    this.getValidator().getCatalogReader().unwrap(Prepare.CatalogReader.class));
+            RelOptTable table = reader.getTable(List.of(viewName.name()));
+            if (table != null && RelOptUtil.areRowTypesEqual(table.getRowType(), optimized.getRowType(), false))
+                this.viewMatching.addView(viewName, optimized, table);
+        }
 
         // If there is a corresponding DeclareViewStatement, validate the types
         if (this.declaredViews.containsKey(view.relationName)) {
@@ -2053,6 +2119,24 @@ public class SqlToRelCompiler implements IWritesLogs {
         return view;
     }
 
+    /** True if the plan reads from a recursive view which is not yet defined */
+    boolean readsRecursiveViews(RelNode rel) {
+        Set<String> inputs = new HashSet<>();
+        for (ProgramIdentifier declared: this.declaredViews.keySet())
+            inputs.add(DeclareViewStatement.inputViewName(declared).name());
+        boolean[] result = new boolean[] { false };
+        new RelVisitor() {
+            @Override
+            public void visit(RelNode node, int ordinal, @Nullable RelNode parent) {
+                if (node instanceof TableScan scan &&
+                        inputs.contains(Util.last(scan.getTable().getQualifiedName())))
+                    result[0] = true;
+                super.visit(node, ordinal, parent);
+            }
+        }.go(rel);
+        return result[0];
+    }
+
     /** Convert a type to a SQL signature that resembles a TABLE declaration */
     public static String typeToColumns(ProgramIdentifier view, RelDataType type) {
         StringBuilder builder = new StringBuilder();
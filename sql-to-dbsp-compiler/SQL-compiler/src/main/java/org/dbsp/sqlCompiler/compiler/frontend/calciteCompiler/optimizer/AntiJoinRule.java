@@ -0,0 +1,119 @@
+package org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.optimizer;
+
+import org.apache.calcite.plan.RelOptRuleCall;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.plan.RelRule;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Filter;
+import org.apache.calcite.rel.core.Join;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.core.Project;
+import org.apache.calcite.rel.rules.TransformationRule;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.tools.RelBuilder;
+import org.apache.calcite.util.ImmutableBitSet;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Converts a LEFT JOIN that only keeps the rows without a match into an ANTI join.
+ * This is the shape produced by the decorrelation of NOT EXISTS.
+ *
+ * <p>Plan before:
+ * LogicalProject(only fields from Left)
+ *   LogicalFilter(condition=[IS NULL($n)])   -- $n is a non-nullable field of Right
+ *     LogicalJoin(condition=[=($0, $k)], joinType=[left])
+ *       Left
+ *       Right
+ *
+ * <p>Plan after:
+ * LogicalProject(only fields from Left)
+ *   LogicalJoin(condition=[=($0, $k)], joinType=[anti])
+ *     Left
+ *     Right
+ *
+ * <p>A row of Right that matches has a non-null value in $n, so the filter keeps exactly
+ * the rows of Left that have no match.  Other conjuncts of the filter are preserved if they
+ * only refer to fields from Left. */
+public class AntiJoinRule
+        extends RelRule<DefaultOptRuleConfig<AntiJoinRule>>
+        implements TransformationRule {
+
+    protected AntiJoinRule() {
+        super(CONFIG);
+    }
+
+    /** If the expression is IS NULL($n) or NOT(IS NOT NULL($n)) return $n, otherwise null */
+    @Nullable
+    static RexInputRef isNullTest(RexNode expression) {
+        RexNode operand;
+        if (expression.isA(SqlKind.IS_NULL)) {
+            operand = ((RexCall) expression).getOperands().get(0);
+        } else if (expression.isA(SqlKind.NOT)) {
+            RexNode op0 = ((RexCall) expression).getOperands().get(0);
+            if (!op0.isA(SqlKind.IS_NOT_NULL))
+                return null;
+            operand = ((RexCall) op0).getOperands().get(0);
+        } else {
+            return null;
+        }
+        if (operand instanceof RexInputRef ref)
+            return ref;
+        return null;
+    }
+
+    @Override public void onMatch(RelOptRuleCall call) {
+        Project project = call.rel(0);
+        Filter filter = call.rel(1);
+        Join join = call.rel(2);
+        RelNode left = join.getLeft();
+        RelNode right = join.getRight();
+        int leftCount = left.getRowType().getFieldCount();
+
+        if (!join.analyzeCondition().isEqui() || join.analyzeCondition().leftKeys.isEmpty())
+            return;
+        ImmutableBitSet leftFields = ImmutableBitSet.range(leftCount);
+        if (!leftFields.contains(RelOptUtil.InputFinder.bits(project.getProjects(), null)))
+            return;
+
+        boolean found = false;
+        List<RexNode> remaining = new ArrayList<>();
+        for (RexNode conjunct: RelOptUtil.conjunctions(filter.getCondition())) {
+            RexInputRef ref = isNullTest(conjunct);
+            if (!found && ref != null && ref.getIndex() >= leftCount) {
+                int rightIndex = ref.getIndex() - leftCount;
+                if (!right.getRowType().getFieldList().get(rightIndex).getType().isNullable()) {
+                    found = true;
+                    continue;
+                }
+            }
+            if (!leftFields.contains(RelOptUtil.InputFinder.bits(conjunct)))
+                return;
+            remaining.add(conjunct);
+        }
+        if (!found)
+            return;
+
+        final RelBuilder builder = call.builder();
+        builder.push(left);
+        builder.push(right);
+        builder.join(JoinRelType.ANTI, join.getCondition());
+        if (!remaining.isEmpty())
+            builder.filter(remaining);
+        builder.project(project.getProjects(), project.getRowType().getFieldNames());
+        call.transformTo(builder.build());
+    }
+
+    public static final DefaultOptRuleConfig<AntiJoinRule> CONFIG =
+            DefaultOptRuleConfig.<AntiJoinRule>create()
+                    .withOperandSupplier(
+                            b0 -> b0.operand(Project.class).oneInput(
+                                    b1 -> b1.operand(Filter.class).oneInput(
+                                            b2 -> b2.operand(Join.class)
+                                                    .predicate(j -> j.getJoinType() == JoinRelType.LEFT)
+                                                    .anyInputs())));
+}
@@ -7,8 +7,14 @@ import org.apache.calcite.plan.hep.HepProgram;
 import org.apache.calcite.plan.hep.HepProgramBuilder;
 import org.apache.calcite.rel.RelNode;
 import org.apache.calcite.rel.RelVisitor;
+import org.apache.calcite.rel.core.Aggregate;
+import org.apache.calcite.rel.core.AggregateCall;
 import org.apache.calcite.rel.core.Correlate;
 import org.apache.calcite.rel.core.Join;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.logical.LogicalAggregate;
+import org.apache.calcite.rel.logical.LogicalJoin;
+import org.apache.calcite.rel.rules.AggregateJoinTransposeRule;
 import org.apache.calcite.rel.rules.CoreRules;
 import org.apache.calcite.rel.rules.PruneEmptyRules;
 import org.apache.calcite.sql2rel.RelDecorrelator;
@@ -30,6 +36,9 @@ public class CalciteOptimizer implements IWritesLogs {
     final RelBuilder builder;
     final IErrorReporter reporter;
 
+    /** Name of the step that pre-aggregates join inputs */
+    public static final String EAGER_AGGREGATION = "Eager aggregation";
+
     public static RelNode stripRecursively(RelNode node) {
         RelNode stripped = node.stripped();
         List<RelNode> strippedInputs = new ArrayList<>();
@@ -137,7 +146,7 @@ public class CalciteOptimizer implements IWritesLogs {
                 .decrease()
                 .newline();
         for (CalciteOptimizerStep step: this.steps) {
-            if (step.getName().matches(options.ioOptions.skipCalciteOptimizations))
+            if (this.skip(step, options))
                 continue;
             RelNode optimized;
             try {
@@ -162,6 +171,36 @@ public class CalciteOptimizer implements IWritesLogs {
         return rel;
     }
 
+    /** True if the options disable the specified step */
+    boolean skip(CalciteOptimizerStep step, CompilerOptions options) {
+        String name = step.getName();
+        if (name.matches(options.ioOptions.skipCalciteOptimizations))
+            return true;
+        return switch (name) {
+            case EAGER_AGGREGATION -> !options.languageOptions.eagerAggregation;
+            case LateMaterialization.NAME -> !options.languageOptions.lateMaterialization;
+            default -> false;
+        };
+    }
+
+    /** True if all the aggregates computed are linear (SUM and COUNT, without DISTINCT
+     * or FILTER).  Pushing such aggregates below a join produces linear aggregates
+     * on both sides of the join.  MIN and MAX could be split too, but the partial
+     * results would need to keep all their inputs, like the join they replace. */
+    static boolean isLinear(Aggregate aggregate) {
+        if (aggregate.getGroupType() != Aggregate.Group.SIMPLE)
+            return false;
+        for (AggregateCall call: aggregate.getAggCallList()) {
+            if (call.isDistinct() || call.filterArg >= 0)
+                return false;
+            switch (call.getAggregation().getKind()) {
+                case SUM, SUM0, COUNT -> {}
+                default -> { return false; }
+            }
+        }
+        return true;
+    }
+
     /** Helper class to discover whether a query contains outer joins */
     static class OuterJoinFinder extends RelVisitor {
         public int outerJoinCount = 0;
@@ -375,6 +414,29 @@ public class CalciteOptimizer implements IWritesLogs {
                 return this.builder.build();
             }
         });
+        this.addStep(new SimpleOptimizerStep("Semi and anti joins", 2,
+                // EXISTS and IN are decorrelated into a join with an aggregate
+                CoreRules.PROJECT_TO_SEMI_JOIN,
+                CoreRules.JOIN_TO_SEMI_JOIN,
+                // NOT EXISTS is decorrelated into a LEFT JOIN followed by IS NULL
+                new AntiJoinRule()
+        ));
+        // An aggregate over a join is computed on the join inputs first, grouped by
+        // the join keys, and the partial results are combined after the join.
+        // The join then receives one row per key instead of every input row.
+        // An input that is unique on the join keys (e.g., joined on its primary key)
+        // is not pre-aggregated.
+        this.addStep(new SimpleOptimizerStep(EAGER_AGGREGATION, 2,
+                CoreRules.AGGREGATE_PROJECT_MERGE,
+                AggregateJoinTransposeRule.Config.EXTENDED
+                        .withOperandSupplier(b0 -> b0.operand(LogicalAggregate.class)
+                                .predicate(CalciteOptimizer::isLinear)
+                                .oneInput(b1 -> b1.operand(LogicalJoin.class)
+                                        .predicate(j -> j.getJoinType() == JoinRelType.INNER)
+                                        .anyInputs()))
+                        .as(AggregateJoinTransposeRule.Config.class)
+                        .toRule()
+        ));
         this.addStep(merge);
         this.addStep(new SimpleOptimizerStep("Remove dead code", 0,
                 CoreRules.AGGREGATE_REMOVE,
@@ -383,6 +445,12 @@ public class CalciteOptimizer implements IWritesLogs {
                 CoreRules.PROJECT_JOIN_JOIN_REMOVE,
                 CoreRules.PROJECT_JOIN_REMOVE
         ));
+        // After the merge steps, which would fold the finest grouping back
+        this.addStep(new SimpleOptimizerStep("Shared grouping sets", 2,
+                new GroupingSetsRule()));
+        // Must be last: the rewrite is cost-based, and other rules could
+        // push the deferred columns back below the joins.
+        this.addStep(new LateMaterialization(this.builder));
         /*
         return Linq.list(
             CoreRules.AGGREGATE_PROJECT_PULL_UP_CONSTANTS,
@@ -0,0 +1,194 @@
+package org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.optimizer;
+
+import org.apache.calcite.plan.RelOptRuleCall;
+import org.apache.calcite.plan.RelRule;
+import org.apache.calcite.rel.RelCollations;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Aggregate;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.logical.LogicalAggregate;
+import org.apache.calcite.rel.rules.TransformationRule;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.SqlAggFunction;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.fun.SqlStdOperatorTable;
+import org.apache.calcite.tools.RelBuilder;
+import org.apache.calcite.util.ImmutableBitSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Computes the groupings of GROUPING SETS, ROLLUP and CUBE from the finest grouping.
+ *
+ * <p>Plan before:
+ * LogicalAggregate(group=[{0, 1}], groups=[[{0, 1}, {0}, {}]], S=[SUM($2)], C=[COUNT()])
+ *   Input
+ *
+ * <p>Plan after:
+ * LogicalAggregate(group=[{0, 1}], groups=[[{0, 1}, {0}, {}]], S=[SUM($2)], C=[$SUM0($3)])
+ *   LogicalAggregate(group=[{0, 1}], S=[SUM($2)], C=[COUNT()])
+ *     Input
+ *
+ * <p>Without this rule every grouping is computed from the input, and keeps
+ * its own copy of the input in its state.  After the rewrite only the finest grouping
+ * reads the input; the other groupings read the (much smaller) incremental
+ * output of the finest one.  MIN and MAX are also rolled up: the finest aggregate
+ * maintains the exact minimum of each group under retractions, so the coarser
+ * groups see a retraction of the old value and an insertion of the new one.
+ *
+ * <p>Only aggregates that can be rolled up (they have a {@link SqlAggFunction#getRollup()}
+ * function and are not DISTINCT) are computed from the finest grouping.  Other aggregates,
+ * such as ARRAY_AGG or COUNT(DISTINCT), are computed per grouping from the input, as before,
+ * and joined with the rolled up results on the keys and the GROUPING_ID. */
+public class GroupingSetsRule
+        extends RelRule<DefaultOptRuleConfig<GroupingSetsRule>>
+        implements TransformationRule {
+
+    protected GroupingSetsRule() {
+        super(CONFIG);
+    }
+
+    static boolean isGrouping(AggregateCall call) {
+        SqlKind kind = call.getAggregation().getKind();
+        return kind == SqlKind.GROUPING || kind == SqlKind.GROUPING_ID;
+    }
+
+    /** True if the result of the aggregate call can be computed from the results
+     * of the same call on a finer grouping */
+    static boolean canRollup(AggregateCall call) {
+        return !call.isDistinct() &&
+                !call.isApproximate() &&
+                call.getCollation().getFieldCollations().isEmpty() &&
+                call.rexList.isEmpty() &&
+                call.getAggregation().getRollup() != null;
+    }
+
+    /** A GROUPING_ID call over all the keys of an aggregate; it tells apart
+     * the groupings which produce the same keys, e.g., all NULL */
+    static AggregateCall groupingId(List<Integer> keys, RelNode input, int groupCount) {
+        return AggregateCall.create(SqlStdOperatorTable.GROUPING_ID, false, false, false,
+                List.of(), keys, -1, null, RelCollations.EMPTY, groupCount, input, null, "$g");
+    }
+
+    @Override public void onMatch(RelOptRuleCall call) {
+        Aggregate aggregate = call.rel(0);
+        RelNode input = aggregate.getInput();
+        ImmutableBitSet groupSet = aggregate.getGroupSet();
+        int groupCount = aggregate.getGroupCount();
+        List<Integer> keys = groupSet.asList();
+
+        // Calls computed from the finest grouping, and calls computed from the input
+        List<AggregateCall> partial = new ArrayList<>();
+        List<AggregateCall> separate = new ArrayList<>();
+        for (AggregateCall aggCall: aggregate.getAggCallList()) {
+            if (isGrouping(aggCall))
+                continue;
+            if (canRollup(aggCall))
+                partial.add(aggCall);
+            else
+                separate.add(aggCall);
+        }
+        if (partial.isEmpty())
+            return;
+        RelNode finest = LogicalAggregate.create(input, aggregate.getHints(), groupSet, null, partial);
+
+        // The fields of the finest aggregate are the keys followed by the partial results
+        List<AggregateCall> rollup = new ArrayList<>();
+        // For each call of the original aggregate the index of the result in the
+        // rollup aggregate, or, if negative, -1 - index in the separate aggregate.
+        List<Integer> position = new ArrayList<>();
+        int partialIndex = groupCount;
+        int separateIndex = 0;
+        for (AggregateCall aggCall: aggregate.getAggCallList()) {
+            if (isGrouping(aggCall)) {
+                List<Integer> args = new ArrayList<>();
+                for (int arg: aggCall.getArgList())
+                    args.add(keys.indexOf(arg));
+                position.add(rollup.size());
+                rollup.add(AggregateCall.create(aggCall.getAggregation(), false, false, false,
+                        aggCall.rexList, args, -1, null, aggCall.getCollation(),
+                        aggCall.getType(), aggCall.getName()));
+            } else if (canRollup(aggCall)) {
+                SqlAggFunction function = aggCall.getAggregation().getRollup();
+                AggregateCall rolled = AggregateCall.create(function, false, false, false,
+                        List.of(), List.of(partialIndex), -1, null, aggCall.getCollation(),
+                        groupCount, finest, null, aggCall.getName());
+                if (!rolled.getType().equals(aggCall.getType()))
+                    return;
+                position.add(rollup.size());
+                rollup.add(rolled);
+                partialIndex++;
+            } else {
+                position.add(-1 - separateIndex);
+                separateIndex++;
+            }
+        }
+
+        List<ImmutableBitSet> groupSets = new ArrayList<>();
+        for (ImmutableBitSet set: aggregate.getGroupSets()) {
+            List<Integer> positions = new ArrayList<>();
+            for (int key: set)
+                positions.add(keys.indexOf(key));
+            groupSets.add(ImmutableBitSet.of(positions));
+        }
+        if (separate.isEmpty()) {
+            RelNode result = LogicalAggregate.create(finest, aggregate.getHints(),
+                    ImmutableBitSet.range(groupCount), groupSets, rollup);
+            call.transformTo(result);
+            return;
+        }
+
+        // The other calls are computed from the input, as before, and joined
+        // with the rolled up results on the keys and the grouping id.
+        List<Integer> finestKeys = ImmutableBitSet.range(groupCount).asList();
+        rollup.add(groupingId(finestKeys, finest, groupCount));
+        RelNode rolledUp = LogicalAggregate.create(finest, aggregate.getHints(),
+                ImmutableBitSet.range(groupCount), groupSets, rollup);
+        separate.add(groupingId(keys, input, groupCount));
+        RelNode other = LogicalAggregate.create(input, aggregate.getHints(),
+                groupSet, aggregate.getGroupSets(), separate);
+
+        RelBuilder builder = call.builder();
+        builder.push(rolledUp);
+        builder.push(other);
+        List<RexNode> conditions = new ArrayList<>();
+        for (int i = 0; i < groupCount; i++)
+            conditions.add(builder.isNotDistinctFrom(builder.field(2, 0, i), builder.field(2, 1, i)));
+        conditions.add(builder.equals(
+                builder.field(2, 0, groupCount + rollup.size() - 1),
+                builder.field(2, 1, groupCount + separate.size() - 1)));
+        builder.join(JoinRelType.INNER, conditions);
+
+        int rightStart = groupCount + rollup.size();
+        List<RexNode> fields = new ArrayList<>();
+        for (int i = 0; i < groupCount; i++)
+            fields.add(builder.field(i));
+        for (int index: position) {
+            if (index >= 0)
+                fields.add(builder.field(groupCount + index));
+            else
+                fields.add(builder.field(rightStart + groupCount - 1 - index));
+        }
+        builder.project(fields, aggregate.getRowType().getFieldNames());
+        call.transformTo(builder.build());
+    }
+
+    /** True if the input of the aggregate is already grouped by all its keys;
+     * this prevents the rule from applying to its own result */
+    static boolean readsFinest(Aggregate aggregate) {
+        return aggregate.getInput() instanceof Aggregate input &&
+                input.getGroupType() == Aggregate.Group.SIMPLE &&
+                input.getGroupCount() == aggregate.getGroupCount() &&
+                aggregate.getGroupSet().equals(ImmutableBitSet.range(aggregate.getGroupCount()));
+    }
+
+    public static final DefaultOptRuleConfig<GroupingSetsRule> CONFIG =
+            DefaultOptRuleConfig.<GroupingSetsRule>create()
+                    .withOperandSupplier(
+                            b0 -> b0.operand(LogicalAggregate.class)
+                                    .predicate(a -> a.getGroupSets().size() > 1 &&
+                                            a.getGroupCount() > 0 &&
+                                            !readsFinest(a))
+                                    .anyInputs());
+}
@@ -0,0 +1,450 @@
+package org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.optimizer;
+
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.rel.RelFieldCollation;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Aggregate;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.core.Filter;
+import org.apache.calcite.rel.core.Join;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.core.Project;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.logical.LogicalTableScan;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeField;
+import org.apache.calcite.rex.RexBuilder;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexShuttle;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.calcite.tools.RelBuilder;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Logger;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Defers wide columns of tables with a primary key to the end of a view.
+ *
+ * <p>A column that is only copied through joins, filters, projections and
+ * aggregates (as a grouping key, together with the primary key) is stored
+ * in every join and aggregate trace it crosses.  This step replaces such a column
+ * with a constant right after the table scan, and joins the value back
+ * from the table using the primary key at the end of the view.
+ *
+ * <p>Plan before:
+ * LogicalProject(payload, ...)
+ *   LogicalJoin
+ *     LogicalJoin
+ *       TableScan(T)
+ *       ...
+ *     ...
+ *
+ * <p>Plan after:
+ * LogicalProject(payload from the last join, ...)
+ *   LogicalJoin(condition=[=(T.pk, T'.pk)])
+ *     LogicalJoin
+ *       LogicalJoin
+ *         LogicalProject(pk, NULL, ...)
+ *           TableScan(T)
+ *         ...
+ *       ...
+ *     LogicalProject(pk, payload)
+ *       TableScan(T)
+ *
+ * <p>The rewrite is applied only when the estimated state saved is larger than
+ * the state of the final join.  The estimate uses the declared column widths
+ * and the row counts, which are based on the 'expected_size' table property. */
+public class LateMaterialization implements CalciteOptimizer.CalciteOptimizerStep, IWritesLogs {
+    public static final String NAME = "Late materialization";
+    /** Columns at least this wide (in bytes) are candidates for deferral */
+    static final int WIDE_COLUMN = 64;
+    /** Width assumed for values whose size is not bounded */
+    static final int UNBOUNDED_WIDTH = 256;
+    /** Width assumed for values of other types */
+    static final int SCALAR_WIDTH = 8;
+
+    final RelBuilder builder;
+
+    public LateMaterialization(RelBuilder builder) {
+        this.builder = builder;
+    }
+
+    /** A column of a table scan */
+    record Origin(TableScan scan, int column) {}
+
+    /** Columns deferred for a scan */
+    static class Deferred {
+        final TableScan scan;
+        final ImmutableBitSet key;
+        /** For each key column the field of the plan top that holds it */
+        final List<Integer> keyFields;
+        /** Deferred columns of the scan, in order */
+        final List<Integer> columns;
+
+        Deferred(TableScan scan, ImmutableBitSet key, List<Integer> keyFields) {
+            this.scan = scan;
+            this.key = key;
+            this.keyFields = keyFields;
+            this.columns = new ArrayList<>();
+        }
+    }
+
+    /** Estimated width of a value of the specified type */
+    static int width(RelDataType type) {
+        if (type.isStruct()) {
+            int result = 0;
+            for (RelDataTypeField field: type.getFieldList())
+                result += width(field.getType());
+            return result;
+        }
+        return switch (type.getSqlTypeName()) {
+            case CHAR, VARCHAR, BINARY, VARBINARY -> {
+                int precision = type.getPrecision();
+                if (precision < 0 || precision > UNBOUNDED_WIDTH)
+                    yield UNBOUNDED_WIDTH;
+                yield precision;
+            }
+            case VARIANT, ARRAY, MAP, MULTISET -> UNBOUNDED_WIDTH;
+            default -> SCALAR_WIDTH;
+        };
+    }
+
+    @Nullable
+    static ImmutableBitSet primaryKey(TableScan scan) {
+        List<ImmutableBitSet> keys = scan.getTable().getKeys();
+        if (keys == null || keys.isEmpty() || keys.get(0).isEmpty())
+            return null;
+        return keys.get(0);
+    }
+
+    /** Finds the columns of table scans which are only copied by the operators of a plan */
+    static class Analysis {
+        /** Scan columns whose values are used by some operator */
+        final Set<Origin> used = new HashSet<>();
+        /** For each scan column the inputs of joins and aggregates that store it */
+        final Map<Origin, List<RelNode>> stored = new HashMap<>();
+        /** Number of times each scan appears in the plan */
+        final Map<TableScan, Integer> scanCount = new HashMap<>();
+
+        void markUsed(List<Origin> origins, ImmutableBitSet fields) {
+            for (int field: fields) {
+                Origin origin = origins.get(field);
+                if (origin != null)
+                    this.used.add(origin);
+            }
+        }
+
+        void markAllUsed(List<Origin> origins) {
+            for (Origin origin: origins)
+                if (origin != null)
+                    this.used.add(origin);
+        }
+
+        void stored(List<Origin> origins, RelNode input) {
+            for (Origin origin: origins)
+                if (origin != null)
+                    this.stored.computeIfAbsent(origin, k -> new ArrayList<>()).add(input);
+        }
+
+        static List<Origin> computed(RelNode node) {
+            List<Origin> result = new ArrayList<>();
+            for (int i = 0; i < node.getRowType().getFieldCount(); i++)
+                result.add(null);
+            return result;
+        }
+
+        /** Analyze a plan; returns the origin of each output field, or null if the field is computed */
+        List<Origin> analyze(RelNode node) {
+            if (node instanceof TableScan scan) {
+                this.scanCount.merge(scan, 1, Integer::sum);
+                List<Origin> result = new ArrayList<>();
+                for (int i = 0; i < scan.getRowType().getFieldCount(); i++)
+                    result.add(new Origin(scan, i));
+                return result;
+            } else if (node instanceof Project project) {
+                List<Origin> input = this.analyze(project.getInput());
+                List<Origin> result = new ArrayList<>();
+                for (RexNode expression: project.getProjects()) {
+                    if (expression instanceof RexInputRef ref) {
+                        result.add(input.get(ref.getIndex()));
+                    } else {
+                        this.markUsed(input, RelOptUtil.InputFinder.bits(expression));
+                        result.add(null);
+                    }
+                }
+                return result;
+            } else if (node instanceof Filter filter) {
+                List<Origin> input = this.analyze(filter.getInput());
+                this.markUsed(input, RelOptUtil.InputFinder.bits(filter.getCondition()));
+                return input;
+            } else if (node instanceof Join join) {
+                List<Origin> left = this.analyze(join.getLeft());
+                List<Origin> right = this.analyze(join.getRight());
+                this.stored(left, join.getLeft());
+                this.stored(right, join.getRight());
+                List<Origin> result = new ArrayList<>(left);
+                result.addAll(right);
+                this.markUsed(result, RelOptUtil.InputFinder.bits(join.getCondition()));
+                if (!join.getJoinType().projectsRight())
+                    return left;
+                return result;
+            } else if (node instanceof Aggregate aggregate) {
+                List<Origin> input = this.analyze(aggregate.getInput());
+                if (aggregate.getGroupType() != Aggregate.Group.SIMPLE) {
+                    this.markAllUsed(input);
+                    return computed(node);
+                }
+                for (AggregateCall call: aggregate.getAggCallList()) {
+                    this.markUsed(input, ImmutableBitSet.of(call.getArgList()));
+                    if (call.filterArg >= 0)
+                        this.markUsed(input, ImmutableBitSet.of(call.filterArg));
+                    for (RelFieldCollation collation: call.getCollation().getFieldCollations())
+                        this.markUsed(input, ImmutableBitSet.of(collation.getFieldIndex()));
+                }
+                Set<Origin> groupOrigins = new HashSet<>();
+                for (int field: aggregate.getGroupSet())
+                    groupOrigins.add(input.get(field));
+                List<Origin> result = new ArrayList<>();
+                for (int field: aggregate.getGroupSet()) {
+                    Origin origin = input.get(field);
+                    result.add(origin);
+                    if (origin == null)
+                        continue;
+                    // A grouping column can be deferred only if the primary key is also a grouping column
+                    ImmutableBitSet key = primaryKey(origin.scan);
+                    boolean keyIsGrouped = key != null;
+                    if (key != null) {
+                        for (int k: key)
+                            keyIsGrouped = keyIsGrouped && groupOrigins.contains(new Origin(origin.scan, k));
+                    }
+                    if (!keyIsGrouped)
+                        this.used.add(origin);
+                }
+                this.stored(result, aggregate.getInput());
+                for (int i = 0; i < aggregate.getAggCallList().size(); i++)
+                    result.add(null);
+                return result;
+            } else {
+                for (RelNode input: node.getInputs())
+                    this.markAllUsed(this.analyze(input));
+                return computed(node);
+            }
+        }
+    }
+
+    /** Replace some nodes in a plan */
+    static RelNode replace(RelNode node, Map<RelNode, RelNode> replacements) {
+        RelNode replacement = replacements.get(node);
+        if (replacement != null)
+            return replacement;
+        List<RelNode> inputs = new ArrayList<>();
+        boolean changed = false;
+        for (RelNode input: node.getInputs()) {
+            RelNode newInput = replace(input, replacements);
+            changed = changed || newInput != input;
+            inputs.add(newInput);
+        }
+        if (!changed)
+            return node;
+        return node.copy(node.getTraitSet(), inputs);
+    }
+
+    /** A constant that replaces a deferred column, or null if the type has no cheap constant */
+    @Nullable
+    RexNode placeholder(RelDataType type) {
+        RexBuilder rexBuilder = this.builder.getRexBuilder();
+        if (type.isNullable())
+            return rexBuilder.makeNullLiteral(type);
+        return switch (type.getSqlTypeName()) {
+            case CHAR, VARCHAR, BINARY, VARBINARY -> rexBuilder.makeCast(type, rexBuilder.makeZeroLiteral(type));
+            default -> null;
+        };
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public RelNode optimize(RelNode rel, int level) {
+        if (level < 2)
+            return rel;
+        // The values are joined back below the final projection, if there is one
+        Project project = rel instanceof Project p ? p : null;
+        RelNode top = project != null ? project.getInput() : rel;
+
+        Analysis analysis = new Analysis();
+        List<Origin> origins = analysis.analyze(top);
+        if (project != null) {
+            for (RexNode expression: project.getProjects())
+                if (!(expression instanceof RexInputRef))
+                    analysis.markUsed(origins, RelOptUtil.InputFinder.bits(expression));
+        }
+
+        // Field of the top holding each scan column
+        Map<Origin, Integer> fieldOf = new HashMap<>();
+        for (int i = 0; i < origins.size(); i++) {
+            Origin origin = origins.get(i);
+            if (origin != null)
+                fieldOf.putIfAbsent(origin, i);
+        }
+
+        RelMetadataQuery mq = rel.getCluster().getMetadataQuery();
+        Map<TableScan, Deferred> deferred = new LinkedHashMap<>();
+        for (Origin origin: origins) {
+            if (origin == null || analysis.used.contains(origin))
+                continue;
+            TableScan scan = origin.scan;
+            if (analysis.scanCount.get(scan) != 1)
+                // The origin of the fields is ambiguous
+                continue;
+            ImmutableBitSet key = primaryKey(scan);
+            if (key == null || key.get(origin.column))
+                continue;
+            RelDataType type = scan.getRowType().getFieldList().get(origin.column).getType();
+            if (width(type) < WIDE_COLUMN || this.placeholder(type) == null)
+                continue;
+            List<Integer> keyFields = new ArrayList<>();
+            for (int k: key) {
+                Integer field = fieldOf.get(new Origin(scan, k));
+                if (field == null)
+                    break;
+                keyFields.add(field);
+            }
+            if (keyFields.size() != key.cardinality())
+                // The key is not available at the top
+                continue;
+            Deferred d = deferred.computeIfAbsent(scan, s -> new Deferred(s, key, keyFields));
+            if (!d.columns.contains(origin.column))
+                d.columns.add(origin.column);
+        }
+
+        // Keep only the scans where the rewrite is expected to save state
+        double topRows = mq.getRowCount(top);
+        // Width of the top rows without the deferred columns
+        int topWidth = 0;
+        for (int i = 0; i < origins.size(); i++) {
+            Origin origin = origins.get(i);
+            Deferred d = origin != null ? deferred.get(origin.scan) : null;
+            if (d == null || !d.columns.contains(origin.column))
+                topWidth += width(top.getRowType().getFieldList().get(i).getType());
+        }
+        List<Deferred> profitable = new ArrayList<>();
+        for (Deferred d: deferred.values()) {
+            double saved = 0;
+            int deferredWidth = 0;
+            for (int column: d.columns) {
+                int columnWidth = width(d.scan.getRowType().getFieldList().get(column).getType());
+                deferredWidth += columnWidth;
+                for (RelNode input: analysis.stored.getOrDefault(new Origin(d.scan, column), List.of()))
+                    saved += mq.getRowCount(input) * columnWidth;
+            }
+            double keyWidth = 0;
+            for (int k: d.key)
+                keyWidth += width(d.scan.getRowType().getFieldList().get(k).getType());
+            double added = mq.getRowCount(d.scan) * (deferredWidth + keyWidth) + topRows * topWidth;
+            Logger.INSTANCE.belowLevel(this, 2)
+                    .append("Late materialization of ")
+                    .appendSupplier(() -> d.scan.getTable().getQualifiedName().toString())
+                    .append(d.columns.toString())
+                    .append(" saves ")
+                    .append(Double.toString(saved))
+                    .append(" adds ")
+                    .append(Double.toString(added))
+                    .newline();
+            if (saved > added)
+                profitable.add(d);
+        }
+        if (profitable.isEmpty())
+            return rel;
+
+        // Replace the deferred columns with constants
+        Map<RelNode, RelNode> replacements = new HashMap<>();
+        for (Deferred d: profitable) {
+            List<RexNode> fields = new ArrayList<>();
+            this.builder.push(d.scan);
+            for (int i = 0; i < d.scan.getRowType().getFieldCount(); i++) {
+                if (d.columns.contains(i))
+                    fields.add(this.placeholder(d.scan.getRowType().getFieldList().get(i).getType()));
+                else
+                    fields.add(this.builder.field(i));
+            }
+            this.builder.project(fields, d.scan.getRowType().getFieldNames(), true);
+            replacements.put(d.scan, this.builder.build());
+        }
+        RelNode newTop = replace(top, replacements);
+        if (!RelOptUtil.areRowTypesEqual(newTop.getRowType(), top.getRowType(), true))
+            return rel;
+
+        // Join back the deferred columns
+        this.builder.push(newTop);
+        // Field of the join result holding each deferred field of the top
+        Map<Integer, Integer> remap = new HashMap<>();
+        int offset = top.getRowType().getFieldCount();
+        for (Deferred d: profitable) {
+            RelNode scan = LogicalTableScan.create(d.scan.getCluster(), d.scan.getTable(), d.scan.getHints());
+            this.builder.push(scan);
+            List<RexNode> fields = new ArrayList<>();
+            for (int k: d.key)
+                fields.add(this.builder.field(k));
+            for (int column: d.columns)
+                fields.add(this.builder.field(column));
+            this.builder.project(fields);
+
+            List<RexNode> conditions = new ArrayList<>();
+            boolean nullable = false;
+            for (int i = 0; i < d.keyFields.size(); i++) {
+                int field = d.keyFields.get(i);
+                nullable = nullable || top.getRowType().getFieldList().get(field).getType().isNullable();
+                conditions.add(this.builder.equals(this.builder.field(2, 0, field), this.builder.field(2, 1, i)));
+            }
+            // Keys can only be null if the table is on the null-generating side of an outer join;
+            // then the deferred columns are null as well.
+            this.builder.join(nullable ? JoinRelType.LEFT : JoinRelType.INNER, conditions);
+            for (int i = 0; i < d.columns.size(); i++) {
+                Origin origin = new Origin(d.scan, d.columns.get(i));
+                for (int f = 0; f < origins.size(); f++)
+                    if (origin.equals(origins.get(f)))
+                        remap.put(f, offset + d.key.cardinality() + i);
+            }
+            offset += d.key.cardinality() + d.columns.size();
+        }
+
+        List<RexNode> joined = this.builder.fields();
+        RexShuttle shuttle = new RexShuttle() {
+            @Override
+            public RexNode visitInputRef(RexInputRef ref) {
+                return joined.get(remap.getOrDefault(ref.getIndex(), ref.getIndex()));
+            }
+        };
+        List<RexNode> projections = new ArrayList<>();
+        if (project != null) {
+            for (RexNode expression: project.getProjects())
+                projections.add(expression.accept(shuttle));
+        } else {
+            for (int i = 0; i < top.getRowType().getFieldCount(); i++)
+                projections.add(joined.get(remap.getOrDefault(i, i)));
+        }
+        this.builder.project(projections, rel.getRowType().getFieldNames(), true);
+        RelNode result = this.builder.build();
+        if (!RelOptUtil.areRowTypesEqual(result.getRowType(), rel.getRowType(), true))
+            return rel;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return this.getName();
+    }
+}
@@ -0,0 +1,243 @@
+package org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.optimizer;
+
+import org.apache.calcite.plan.RelOptTable;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.plan.SubstitutionVisitor;
+import org.apache.calcite.plan.hep.HepPlanner;
+import org.apache.calcite.plan.hep.HepProgram;
+import org.apache.calcite.plan.hep.HepProgramBuilder;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Aggregate;
+import org.apache.calcite.rel.core.Correlate;
+import org.apache.calcite.rel.core.Intersect;
+import org.apache.calcite.rel.core.Join;
+import org.apache.calcite.rel.core.Minus;
+import org.apache.calcite.rel.core.Sort;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.core.Union;
+import org.apache.calcite.rel.core.Window;
+import org.apache.calcite.rel.logical.LogicalTableScan;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.rules.CoreRules;
+import org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.ProgramIdentifier;
+import org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.SqlToRelCompiler;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Logger;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Rewrites views in terms of previously defined views.
+ *
+ * <p>When a view is a filter, a projection, or a coarser aggregation of
+ * another view (e.g., SUM grouped by (a) over a view grouped by (a, b)),
+ * it can be computed from the output of that view, instead of repeating the joins
+ * and aggregations on the base tables.  The matching is done by Calcite's
+ * {@link SubstitutionVisitor}, which is used for materialized views.
+ *
+ * <p>A rewrite is kept only when the estimated state of the resulting
+ * plan is smaller.  The state of a plan is estimated as the size of the
+ * inputs of its stateful operators: joins, aggregates, windows, sorts, and
+ * distinct set operations. */
+public class ViewMatching implements IWritesLogs {
+    /** A view which can be used to compute other views.
+     *
+     * @param name  Name of the view.
+     * @param plan  Optimized plan of the view.
+     * @param scan  A scan of the view output.
+     * @param rows  Estimated number of rows of the view. */
+    record View(ProgramIdentifier name, RelNode plan, TableScan scan, double rows) {}
+
+    /** Result of a rewrite.
+     *
+     * @param rel   Rewritten plan.
+     * @param used  Views used by the rewritten plan. */
+    public record Rewrite(RelNode rel, List<ProgramIdentifier> used) {}
+
+    /** Views that can be used, in definition order */
+    final List<View> views;
+
+    /** Brings plans to a form where filters and projections are merged into
+     * Calc nodes, as required by the {@link SubstitutionVisitor}.
+     * This is the same normalization that Calcite uses for materialized views. */
+    static final HepProgram NORMALIZE = new HepProgramBuilder()
+            .addRuleInstance(CoreRules.FILTER_PROJECT_TRANSPOSE)
+            .addRuleInstance(CoreRules.FILTER_MERGE)
+            .addRuleInstance(CoreRules.FILTER_INTO_JOIN)
+            .addRuleInstance(CoreRules.JOIN_CONDITION_PUSH)
+            .addRuleInstance(CoreRules.FILTER_AGGREGATE_TRANSPOSE)
+            .addRuleInstance(CoreRules.PROJECT_MERGE)
+            .addRuleInstance(CoreRules.PROJECT_REMOVE)
+            // PROJECT_JOIN_TRANSPOSE is omitted, it is unsound
+            .addRuleInstance(CoreRules.PROJECT_SET_OP_TRANSPOSE)
+            .addRuleInstance(CoreRules.FILTER_TO_CALC)
+            .addRuleInstance(CoreRules.PROJECT_TO_CALC)
+            .addRuleInstance(CoreRules.FILTER_CALC_MERGE)
+            .addRuleInstance(CoreRules.PROJECT_CALC_MERGE)
+            .addRuleInstance(CoreRules.CALC_MERGE)
+            .build();
+
+    /** Converts the Calc nodes produced by {@link #NORMALIZE} back to
+     * filters and projections */
+    static final HepProgram DENORMALIZE = new HepProgramBuilder()
+            .addRuleInstance(CoreRules.CALC_SPLIT)
+            .addRuleInstance(CoreRules.FILTER_MERGE)
+            .addRuleInstance(CoreRules.PROJECT_MERGE)
+            .addRuleInstance(CoreRules.PROJECT_REMOVE)
+            .build();
+
+    public ViewMatching() {
+        this.views = new ArrayList<>();
+    }
+
+    /** Register a view which can be used to compute the views defined later.
+     *
+     * @param name   Name of the view.
+     * @param plan   Optimized plan of the view.
+     * @param table  Table which represents the view output. */
+    public void addView(ProgramIdentifier name, RelNode plan, RelOptTable table) {
+        TableScan scan = LogicalTableScan.create(plan.getCluster(), table, List.of());
+        double rows = new Estimator(plan.getCluster().getMetadataQuery()).rows(plan);
+        this.views.add(new View(name, plan, scan, rows));
+    }
+
+    /** Estimates row counts and state; scans of the registered views
+     * use the estimates of the view plans */
+    class Estimator {
+        final RelMetadataQuery mq;
+        final Map<RelNode, Double> rows;
+
+        Estimator(RelMetadataQuery mq) {
+            this.mq = mq;
+            this.rows = new IdentityHashMap<>();
+        }
+
+        double rows(RelNode node) {
+            Double result = this.rows.get(node);
+            if (result != null)
+                return result;
+            double estimate = this.mq.getRowCount(node);
+            if (node instanceof TableScan scan) {
+                View view = ViewMatching.this.getView(scan);
+                if (view != null)
+                    estimate = view.rows;
+            } else if (node instanceof Union) {
+                estimate = 0;
+                for (RelNode input: node.getInputs())
+                    estimate += this.rows(input);
+            } else {
+                // Scale the Calcite estimate by the corrections of the inputs
+                for (RelNode input: node.getInputs()) {
+                    double original = this.mq.getRowCount(input);
+                    if (original > 0)
+                        estimate *= this.rows(input) / original;
+                }
+            }
+            this.rows.put(node, estimate);
+            return estimate;
+        }
+
+        double state(RelNode node) {
+            double result = 0;
+            boolean stateful = node instanceof Join ||
+                    node instanceof Aggregate ||
+                    node instanceof Window ||
+                    node instanceof Sort ||
+                    node instanceof Correlate ||
+                    node instanceof Minus ||
+                    node instanceof Intersect ||
+                    (node instanceof Union union && !union.all);
+            for (RelNode input: node.getInputs()) {
+                if (stateful)
+                    result += this.rows(input) * LateMaterialization.width(input.getRowType());
+                result += this.state(input);
+            }
+            return result;
+        }
+    }
+
+    @Nullable
+    View getView(TableScan scan) {
+        for (View view: this.views) {
+            if (view.scan.getTable().getQualifiedName().equals(scan.getTable().getQualifiedName()))
+                return view;
+        }
+        return null;
+    }
+
+    /** Rewrite the query using the specified view.  Returns the possible results */
+    List<RelNode> substitute(RelNode query, View view) {
+        // The same planner must be used for both plans, so that
+        // identical subplans are represented by the same nodes.
+        HepPlanner planner = new HepPlanner(NORMALIZE);
+        planner.setRoot(view.plan);
+        RelNode target = planner.findBestExp();
+        planner.setRoot(query);
+        RelNode normalized = planner.findBestExp();
+
+        List<RelNode> result = new ArrayList<>();
+        for (RelNode rewritten: new SubstitutionVisitor(target, normalized).go(view.scan)) {
+            HepPlanner denormalize = new HepPlanner(DENORMALIZE);
+            denormalize.setRoot(rewritten);
+            rewritten = denormalize.findBestExp();
+            if (!RelOptUtil.areRowTypesEqual(rewritten.getRowType(), query.getRowType(), false))
+                continue;
+            result.add(rewritten);
+        }
+        return result;
+    }
+
+    /** Try to rewrite a view plan using the views registered so far.
+     * Returns null if no rewrite reduces the estimated state. */
+    @Nullable
+    public Rewrite rewrite(RelNode rel) {
+        RelNode current = rel;
+        double state = new Estimator(rel.getCluster().getMetadataQuery()).state(rel);
+        List<ProgramIdentifier> used = new ArrayList<>();
+        for (View view: this.views) {
+            List<RelNode> candidates;
+            try {
+                candidates = this.substitute(current, view);
+            } catch (Throwable ex) {
+                // The substitution does not support all relational operators
+                Logger.INSTANCE.belowLevel(this, 2)
+                        .append("View matching with ")
+                        .appendSupplier(view.name::toString)
+                        .append(" failed: ")
+                        .appendSupplier(ex::toString)
+                        .newline();
+                continue;
+            }
+            for (RelNode candidate: candidates) {
+                double candidateState = new Estimator(candidate.getCluster().getMetadataQuery()).state(candidate);
+                Logger.INSTANCE.belowLevel(this, 2)
+                        .append("Rewrite using ")
+                        .appendSupplier(view.name::toString)
+                        .append(" has state ")
+                        .append(Double.toString(candidateState))
+                        .append(" instead of ")
+                        .append(Double.toString(state))
+                        .newline();
+                if (candidateState < state) {
+                    current = candidate;
+                    state = candidateState;
+                    if (!used.contains(view.name))
+                        used.add(view.name);
+                }
+            }
+        }
+        if (used.isEmpty())
+            return null;
+        final RelNode finalRel = current;
+        Logger.INSTANCE.belowLevel(this, 1)
+                .append("After view matching")
+                .increase()
+                .appendSupplier(() -> SqlToRelCompiler.getPlan(finalRel))
+                .decrease()
+                .newline();
+        return new Rewrite(current, used);
+    }
+}
@@ -36,6 +36,11 @@ public class CalciteTableDescription extends AbstractTable implements ScannableT
         return new Statistic() {
             @Override
             public @Nullable Double getRowCount() {
+                CreateTableStatement table = CalciteTableDescription.this.schema.as(CreateTableStatement.class);
+                if (table != null) {
+                    Long size = table.getExpectedSize();
+                    return size == null ? null : (double) size;
+                }
                 Properties properties = CalciteTableDescription.this.schema.getProperties();
                 if (properties == null)
                     return null;
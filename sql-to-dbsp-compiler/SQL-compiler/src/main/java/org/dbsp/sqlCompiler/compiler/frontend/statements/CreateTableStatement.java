@@ -23,6 +23,7 @@
 
 package org.dbsp.sqlCompiler.compiler.frontend.statements;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -31,21 +32,29 @@ import org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.ForeignKey;
 import org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.ProgramIdentifier;
 import org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.RelColumnMetadata;
 import org.dbsp.util.Properties;
+import org.dbsp.util.Utilities;
 
 import javax.annotation.Nullable;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /** Describes a table as produced by a CREATE TABLE DDL statement. */
 public class CreateTableStatement extends CreateRelationStatement {
     public final List<ForeignKey> foreignKeys;
+    /** Number of rows of the table reported by a runtime profile, if known */
+    @Nullable
+    public final Long observedRows;
 
     public CreateTableStatement(ParsedStatement node,
                                 ProgramIdentifier tableName,
                                 List<RelColumnMetadata> columns,
                                 List<ForeignKey> foreignKeys,
-                                @Nullable Properties properties) {
+                                @Nullable Properties properties,
+                                @Nullable Long observedRows) {
         super(node, tableName, columns, properties);
         this.foreignKeys = foreignKeys;
+        this.observedRows = observedRows;
     }
 
     public boolean isMaterialized() {
@@ -62,6 +71,52 @@ public class CreateTableStatement extends CreateRelationStatement {
         return mat.equalsIgnoreCase("true");
     }
 
+    /** True if the table opts into filtering its input even if it is materialized */
+    public boolean filtersInput() {
+        String filter = this.getPropertyValue("input_filter");
+        if (filter == null)
+            return false;
+        return filter.equalsIgnoreCase("true");
+    }
+
+    /** Expected number of rows of the table: the size observed in a runtime profile,
+     * if any, otherwise the value of the 'expected_size' property, or null if unknown. */
+    @Nullable
+    public Long getExpectedSize() {
+        if (this.observedRows != null)
+            return this.observedRows;
+        String expectedSize = this.getPropertyValue("expected_size");
+        if (expectedSize == null)
+            return null;
+        try {
+            return Long.parseLong(expectedSize);
+        } catch (NumberFormatException ex) {
+            // Reported when the table is declared
+            return null;
+        }
+    }
+
+    /** Number of distinct values declared for a column using the 'distinct_values' property,
+     * or null if the table declares no statistics for the column. */
+    @Nullable
+    public Long getDistinctValues(ProgramIdentifier column) {
+        String property = this.getPropertyValue("distinct_values");
+        if (property == null)
+            return null;
+        try {
+            JsonNode node = Utilities.deterministicObjectMapper().readTree(property);
+            for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext(); ) {
+                Map.Entry<String, JsonNode> entry = it.next();
+                String name = entry.getKey();
+                if (column.isQuoted() ? name.equals(column.name()) : name.equalsIgnoreCase(column.name()))
+                    return entry.getValue().asLong();
+            }
+        } catch (JsonProcessingException e) {
+            // The property is validated when the table is declared
+        }
+        return null;
+    }
+
     @Override
     public JsonNode asJson(boolean addColumnCaseSensitivity) {
         JsonNode node = super.asJson(addColumnCaseSensitivity);
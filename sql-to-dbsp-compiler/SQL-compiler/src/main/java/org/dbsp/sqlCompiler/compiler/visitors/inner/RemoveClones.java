@@ -0,0 +1,244 @@
+package org.dbsp.sqlCompiler.compiler.visitors.inner;
+
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.visitors.VisitDecision;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitRewriter;
+import org.dbsp.sqlCompiler.ir.IDBSPDeclaration;
+import org.dbsp.sqlCompiler.ir.IDBSPInnerNode;
+import org.dbsp.sqlCompiler.ir.expression.DBSPApplyExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPBinaryExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPBorrowExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPCloneExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPFieldExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPForExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPLetExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
+import org.dbsp.sqlCompiler.ir.statement.DBSPLetStatement;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeRef;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeLazy;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Logger;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/** Removes {@link DBSPCloneExpression}s that are not needed to produce an owned value.
+ *
+ * <p>A clone is removed when:
+ * - the cloned expression is a local variable which owns its value and is used exactly once;
+ *   the value is moved instead.  The use must not be in a closure or loop nested
+ *   within the declaration, since these may be executed multiple times.
+ * - the cloned expression already produces a fresh value, e.g., a tuple or a function result.
+ * - the clone is immediately borrowed: the original value can be borrowed instead.
+ *
+ * <p>Clones of parameters or of fields of parameters are kept: closure parameters are
+ * references, and the values they point to cannot be moved. */
+public class RemoveClones extends InnerRewriteVisitor implements IWritesLogs {
+    final ResolveReferences resolver;
+    final CountUses uses;
+    /** Number of clone expressions found in all the expressions visited */
+    public int cloneCount;
+    /** Number of clone expressions removed from all the expressions visited */
+    public int removedCount;
+
+    /** Counts the uses of each local variable, and finds the variables
+     * which are used in a closure or loop nested within their declaration */
+    static class CountUses extends InnerVisitor {
+        final ResolveReferences resolver;
+        final Map<IDBSPDeclaration, Integer> count;
+        /** Nesting depth of each declaration */
+        final Map<IDBSPDeclaration, Integer> depth;
+        final Set<IDBSPDeclaration> nestedUse;
+        int currentDepth;
+
+        CountUses(DBSPCompiler compiler, ResolveReferences resolver) {
+            super(compiler);
+            this.resolver = resolver;
+            this.count = new HashMap<>();
+            this.depth = new HashMap<>();
+            this.nestedUse = new HashSet<>();
+        }
+
+        @Override
+        public void startVisit(IDBSPInnerNode node) {
+            super.startVisit(node);
+            this.count.clear();
+            this.depth.clear();
+            this.nestedUse.clear();
+            this.currentDepth = 0;
+        }
+
+        @Override
+        public VisitDecision preorder(DBSPType type) {
+            return VisitDecision.STOP;
+        }
+
+        @Override
+        public VisitDecision preorder(DBSPClosureExpression expression) {
+            this.currentDepth++;
+            return VisitDecision.CONTINUE;
+        }
+
+        @Override
+        public void postorder(DBSPClosureExpression expression) {
+            this.currentDepth--;
+        }
+
+        @Override
+        public VisitDecision preorder(DBSPForExpression expression) {
+            this.currentDepth++;
+            return VisitDecision.CONTINUE;
+        }
+
+        @Override
+        public void postorder(DBSPForExpression expression) {
+            this.currentDepth--;
+        }
+
+        @Override
+        public VisitDecision preorder(DBSPLetStatement statement) {
+            this.depth.put(statement, this.currentDepth);
+            return VisitDecision.CONTINUE;
+        }
+
+        @Override
+        public VisitDecision preorder(DBSPLetExpression expression) {
+            this.depth.put(expression, this.currentDepth);
+            return VisitDecision.CONTINUE;
+        }
+
+        @Override
+        public VisitDecision preorder(DBSPVariablePath variable) {
+            IDBSPDeclaration declaration = this.resolver.reference.get(variable);
+            if (declaration == null)
+                return VisitDecision.STOP;
+            this.count.merge(declaration, 1, Integer::sum);
+            Integer declared = this.depth.get(declaration);
+            if (declared == null || declared != this.currentDepth)
+                this.nestedUse.add(declaration);
+            return VisitDecision.STOP;
+        }
+
+        /** True if the declaration introduces an owned value that is used only once,
+         * and not in a nested closure or loop */
+        boolean usedOnce(IDBSPDeclaration declaration) {
+            return this.count.getOrDefault(declaration, 0) == 1 &&
+                    !this.nestedUse.contains(declaration);
+        }
+    }
+
+    public RemoveClones(DBSPCompiler compiler) {
+        super(compiler, false);
+        this.resolver = new ResolveReferences(compiler, true);
+        this.uses = new CountUses(compiler, this.resolver);
+        this.cloneCount = 0;
+        this.removedCount = 0;
+    }
+
+    static boolean isOwned(DBSPType type) {
+        return !type.is(DBSPTypeRef.class) && !type.is(DBSPTypeLazy.class);
+    }
+
+    /** True if the expression is a local variable whose value can be moved */
+    boolean canMove(DBSPExpression expression) {
+        DBSPVariablePath variable = expression.as(DBSPVariablePath.class);
+        if (variable == null)
+            return false;
+        IDBSPDeclaration declaration = this.resolver.reference.get(variable);
+        if (declaration == null || !this.uses.usedOnce(declaration))
+            return false;
+        if (declaration.is(DBSPLetStatement.class)) {
+            DBSPLetStatement stat = declaration.to(DBSPLetStatement.class);
+            return !stat.mutable && stat.initializer != null && isOwned(stat.type);
+        } else if (declaration.is(DBSPLetExpression.class)) {
+            DBSPLetExpression let = declaration.to(DBSPLetExpression.class);
+            return isOwned(let.variable.getType()) && isOwned(let.initializer.getType());
+        }
+        return false;
+    }
+
+    /** True if the expression produces a new value that nobody else refers to */
+    static boolean isFresh(DBSPExpression expression) {
+        if (!isOwned(expression.getType()))
+            return false;
+        return expression.is(DBSPTupleExpression.class) ||
+                expression.is(DBSPCloneExpression.class) ||
+                expression.is(DBSPApplyExpression.class) ||
+                expression.is(DBSPBinaryExpression.class);
+    }
+
+    /** Nullable fields are cloned using '.cloned()', which also changes the type
+     * of the generated Rust expression */
+    static boolean clonesNullableField(DBSPCloneExpression expression) {
+        return expression.expression.is(DBSPFieldExpression.class) &&
+                expression.expression.getType().mayBeNull;
+    }
+
+    @Override
+    public VisitDecision preorder(DBSPCloneExpression expression) {
+        this.push(expression);
+        DBSPExpression source = this.transform(expression.expression);
+        this.pop(expression);
+        this.cloneCount++;
+        DBSPExpression result;
+        if (!clonesNullableField(expression) &&
+                (this.canMove(expression.expression) || isFresh(source))) {
+            this.removedCount++;
+            result = source;
+        } else {
+            result = new DBSPCloneExpression(expression.getNode(), source);
+        }
+        this.map(expression, result);
+        return VisitDecision.STOP;
+    }
+
+    @Override
+    public VisitDecision preorder(DBSPBorrowExpression expression) {
+        DBSPCloneExpression clone = expression.expression.as(DBSPCloneExpression.class);
+        // &x.clone() can be replaced with &x only if x is owned; if x is a reference
+        // the clone dereferences it, and &x would have a different type.
+        if (expression.mut || clone == null || clonesNullableField(clone) ||
+                clone.expression.getType().is(DBSPTypeRef.class))
+            return super.preorder(expression);
+        this.push(expression);
+        this.push(clone);
+        DBSPExpression source = this.transform(clone.expression);
+        this.pop(clone);
+        this.pop(expression);
+        this.cloneCount++;
+        this.removedCount++;
+        this.map(expression, source.borrow());
+        return VisitDecision.STOP;
+    }
+
+    @Override
+    public void startVisit(IDBSPInnerNode node) {
+        this.resolver.apply(node);
+        this.uses.apply(node);
+        super.startVisit(node);
+    }
+
+    @Override
+    public CircuitRewriter circuitRewriter(boolean processDeclarations) {
+        RemoveClones self = this;
+        return new CircuitRewriter(this.compiler, this, processDeclarations) {
+            @Override
+            public void endVisit() {
+                Logger.INSTANCE.belowLevel(self, 1)
+                        .append("Removed ")
+                        .append(self.removedCount)
+                        .append(" out of ")
+                        .append(self.cloneCount)
+                        .append(" clones")
+                        .newline();
+                super.endVisit();
+            }
+        };
+    }
+}
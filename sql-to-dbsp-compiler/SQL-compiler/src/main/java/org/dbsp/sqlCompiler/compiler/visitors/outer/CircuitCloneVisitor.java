@@ -231,6 +231,9 @@ public class CircuitCloneVisitor extends CircuitVisitor implements IWritesLogs,
     @Override
     public void postorder(DBSPPartitionedRollingAggregateWithWaterlineOperator operator) { this.replace(operator); }
 
+    @Override
+    public void postorder(DBSPLagWithWaterlineOperator operator) { this.replace(operator); }
+
     @Override
     public void postorder(DBSPNoopOperator operator) { this.replace(operator); }
 
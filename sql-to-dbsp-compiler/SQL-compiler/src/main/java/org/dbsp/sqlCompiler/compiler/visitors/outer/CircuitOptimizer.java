@@ -37,6 +37,7 @@ import org.dbsp.sqlCompiler.compiler.visitors.inner.ExpandCasts;
 import org.dbsp.sqlCompiler.compiler.visitors.inner.ExpandWriteLog;
 import org.dbsp.sqlCompiler.compiler.visitors.inner.ImplementStatics;
 import org.dbsp.sqlCompiler.compiler.visitors.inner.CreateRuntimeErrorWrappers;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.RemoveClones;
 import org.dbsp.sqlCompiler.compiler.visitors.inner.Simplify;
 import org.dbsp.sqlCompiler.compiler.visitors.inner.SimplifyWaterline;
 import org.dbsp.sqlCompiler.compiler.visitors.outer.intern.Intern;
@@ -81,15 +82,23 @@ public class CircuitOptimizer extends Passes {
         if (options.languageOptions.outputsAreSets)
             this.add(new EnsureDistinctOutputs(compiler));
         this.add(new PropagateEmptySources(compiler));
+        this.add(new EvaluateConstants(compiler));
         this.add(new MergeSums(compiler));
         this.add(new OptimizeWithGraph(compiler, g -> new RemoveNoops(compiler, g)));
         AnalyzedSet<DBSPOperator> operatorsAnalyzed = new AnalyzedSet<>();
         this.add(new OptimizeWithGraph(compiler,
                 g -> new OptimizeMaps(compiler, true, g, operatorsAnalyzed), 1));
         this.add(new RemoveViewOperators(compiler, false));
+        if (options.languageOptions.trustForeignKeys)
+            this.add(new JoinElimination(compiler));
+        this.add(new StarJoins(compiler));
+        this.add(new InputFilters(compiler));
         this.add(new UnusedFields(compiler));
         this.add(new Intern(compiler));
         this.add(new CSE(compiler));
+        this.add(new FuseAggregates(compiler));
+        this.add(new UseFunctionalDependencies(compiler));
+        this.add(new FuseRollingAggregates(compiler));
         this.add(new ExpandAggregates(compiler, compiler.weightVar));
         this.add(new ExpandAggregateZero(compiler));
         this.add(new DeadCode(compiler, true));
@@ -150,6 +159,7 @@ public class CircuitOptimizer extends Passes {
         this.add(new RemoveViewOperators(compiler, true));
         this.add(new CircuitRewriter(compiler, new InnerCSE(compiler), true, InnerCSE::process));
         this.add(new CreateRuntimeErrorWrappers(compiler).getCircuitRewriter(true));
+        this.add(new RemoveClones(compiler).circuitRewriter(true));
         this.add(new OptimizeWithGraph(compiler, g -> new StrayGC(compiler, g)));
         // The canonical form is needed if we want the Merkle hashes to be "stable".
         this.add(new CanonicalForm(compiler).getCircuitRewriter(false));
@@ -158,6 +168,7 @@ public class CircuitOptimizer extends Passes {
 
         // this.add(new TestSerialize(compiler));
         this.add(new ComparatorDeclarations(compiler, new DeclareComparators(compiler)));
+        this.add(new Partitioning(compiler));
         this.add(new CompactNames(compiler));
         this.add(new MerkleOuter(compiler, true));
         this.add(new MerkleOuter(compiler, false));
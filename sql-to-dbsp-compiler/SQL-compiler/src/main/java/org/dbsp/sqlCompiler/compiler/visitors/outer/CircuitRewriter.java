@@ -44,6 +44,7 @@ import org.dbsp.sqlCompiler.circuit.operator.DBSPInternOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinFilterMapOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPLagOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLagWithWaterlineOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPLeftJoinFilterMapOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPLeftJoinIndexOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPLeftJoinOperator;
@@ -714,6 +715,31 @@ public class CircuitRewriter extends CircuitCloneVisitor {
         this.map(operator, result);
     }
 
+    @Override
+    public void postorder(DBSPLagWithWaterlineOperator operator) {
+        DBSPType type = this.transform(operator.getType());
+        OutputPort left = this.mapped(operator.left());
+        OutputPort right = this.mapped(operator.right());
+        DBSPExpression function = this.transform(operator.getFunction());
+        DBSPExpression comparator = this.transform(operator.comparator);
+        DBSPExpression projection = this.transform(operator.projection);
+        DBSPExpression retain = this.transform(operator.retain);
+        DBSPSimpleOperator result = operator;
+        if (!type.sameType(operator.getType())
+                || !left.equals(operator.left())
+                || !right.equals(operator.right())
+                || projection != operator.projection
+                || function != operator.getFunction()
+                || comparator != operator.comparator
+                || retain != operator.retain) {
+            result = new DBSPLagWithWaterlineOperator(operator.getRelNode(), operator.offset,
+                    projection, function, comparator, retain,
+                    type.to(DBSPTypeIndexedZSet.class), left, right)
+                    .copyAnnotations(operator);
+        }
+        this.map(operator, result);
+    }
+
     @Override
     public void postorder(DBSPMapOperator operator) {
         DBSPType type = this.transform(operator.getType());
@@ -178,6 +178,10 @@ public abstract class CircuitVisitor
         return this.preorder((DBSPUnaryOperator) node);
     }
 
+    public VisitDecision preorder(DBSPLagWithWaterlineOperator node) {
+        return this.preorder((DBSPBinaryOperator) node);
+    }
+
     public VisitDecision preorder(DBSPNoopOperator node) {
         return this.preorder((DBSPUnaryOperator) node);
     }
@@ -469,6 +473,10 @@ public abstract class CircuitVisitor
         this.postorder((DBSPUnaryOperator) node);
     }
 
+    public void postorder(DBSPLagWithWaterlineOperator node) {
+        this.postorder((DBSPBinaryOperator) node);
+    }
+
     public void postorder(DBSPSubtractOperator node) {
         this.postorder((DBSPBinaryOperator) node);
     }
@@ -8,6 +8,7 @@ import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPSimpleOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPUnaryOperator;
 import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.RuntimeProfile;
 import org.dbsp.sqlCompiler.compiler.visitors.inner.Expensive;
 import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
 import org.dbsp.util.Linq;
@@ -16,6 +17,7 @@ import org.dbsp.util.Linq;
  * - if an operator has a fanout greater than 1,
  * - if any of its successors can be merged with it,
  * - and if the operator's function is not very expensive
+ * - and if a runtime profile does not show the operator to be hot
  * then we just make a clone of the operator. */
 public class CloneOperatorsWithFanout extends CircuitCloneWithGraphsVisitor {
     public CloneOperatorsWithFanout(DBSPCompiler compiler, CircuitGraphs graphs) {
@@ -31,6 +33,10 @@ public class CloneOperatorsWithFanout extends CircuitCloneWithGraphsVisitor {
                 input.is(DBSPMapIndexOperator.class) ||
                 input.is(DBSPFilterOperator.class)))
             return false;
+        RuntimeProfile profile = this.compiler.getProfile();
+        if (profile != null && profile.isHot(this.compiler, input))
+            // Cloning would duplicate work that is known to be significant
+            return false;
         DBSPClosureExpression function = input.to(DBSPSimpleOperator.class).getClosureFunction();
         Expensive expensive = new Expensive(this.compiler);
         expensive.apply(function);
@@ -0,0 +1,321 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer;
+
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPConstantOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPFilterOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPNegateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPNestedOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSimpleOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamDistinctOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamJoinIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSubtractOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSumOperator;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.visitors.VisitDecision;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.InnerRewriteVisitor;
+import org.dbsp.sqlCompiler.ir.IDBSPOuterNode;
+import org.dbsp.sqlCompiler.ir.expression.DBSPBaseTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPCloneExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPRawTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPZSetExpression;
+import org.dbsp.sqlCompiler.ir.expression.ISameValue;
+import org.dbsp.sqlCompiler.ir.expression.literal.DBSPBoolLiteral;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeRawTuple;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Logger;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/** Evaluates at compile time the operators whose inputs are all constant,
+ * replacing them with {@link DBSPConstantOperator}s.
+ *
+ * <p>This is common for lookup tables defined with VALUES: without this pass
+ * all the operators applied to the constant are evaluated at runtime, and
+ * stateful operators, such as joins, keep the constant data in their state.
+ *
+ * <p>Functions are evaluated by reducing the application of the closure to the
+ * constant data with {@link DBSPExpression#reduce}; if the result is not a constant
+ * the operator is left unchanged.  Indexed collections (which cannot be represented
+ * by {@link DBSPConstantOperator}s) are evaluated as Z-sets of (key, value) pairs,
+ * and are only used as inputs for other operators.  Operators in recursive
+ * components are not evaluated. */
+public class EvaluateConstants extends CircuitCloneVisitor implements IWritesLogs {
+    /** Results larger than this are not evaluated, to keep the generated code small */
+    static final int MAX_SIZE = 10_000;
+
+    /** Compile-time value of each output port of the original circuit.
+     * Indexed collections are represented as Z-sets of raw tuples (key, value). */
+    final Map<OutputPort, DBSPZSetExpression> values;
+    /** Depth of nested circuits */
+    int nested;
+
+    public EvaluateConstants(DBSPCompiler compiler) {
+        super(compiler, false);
+        this.values = new HashMap<>();
+        this.nested = 0;
+    }
+
+    @Override
+    public Token startVisit(IDBSPOuterNode circuit) {
+        this.values.clear();
+        this.nested = 0;
+        return super.startVisit(circuit);
+    }
+
+    /** Removes clone calls; clones of constants are constants */
+    static class RemoveClones extends InnerRewriteVisitor {
+        RemoveClones(DBSPCompiler compiler) {
+            super(compiler, false);
+        }
+
+        @Override
+        public VisitDecision preorder(DBSPCloneExpression expression) {
+            this.push(expression);
+            DBSPExpression source = this.transform(expression.expression);
+            this.pop(expression);
+            this.map(expression, source);
+            return VisitDecision.STOP;
+        }
+    }
+
+    /** Apply a closure to constant arguments; returns null if the result is not a constant */
+    @Nullable
+    DBSPExpression evaluate(DBSPClosureExpression closure, DBSPExpression... arguments) {
+        try {
+            DBSPExpression result = closure.call(arguments).reduce(this.compiler());
+            result = new RemoveClones(this.compiler()).apply(result).to(DBSPExpression.class);
+            if (!result.isCompileTimeConstant())
+                return null;
+            return result;
+        } catch (RuntimeException ex) {
+            // e.g., an arithmetic error; leave it for runtime
+            Logger.INSTANCE.belowLevel(this, 2)
+                    .append("Could not evaluate ")
+                    .appendSupplier(closure::toString)
+                    .append(": ")
+                    .appendSupplier(ex::toString)
+                    .newline();
+            return null;
+        }
+    }
+
+    /** Argument of a function applied to an element of a collection:
+     * a reference to the element for a Z-set, and a tuple of references
+     * to the key and value for an indexed Z-set */
+    static DBSPExpression argument(DBSPExpression element) {
+        if (element.getType().is(DBSPTypeRawTuple.class)) {
+            DBSPRawTupleExpression kv = element.to(DBSPRawTupleExpression.class);
+            return new DBSPRawTupleExpression(kv.get(0).borrow(), kv.get(1).borrow());
+        }
+        return element.borrow();
+    }
+
+    @Nullable
+    DBSPZSetExpression value(OutputPort port) {
+        if (this.nested > 0)
+            return null;
+        return this.values.get(port);
+    }
+
+    /** Record the value of an operator; returns 'true' if the operator was replaced by a constant */
+    boolean setValue(DBSPSimpleOperator operator, @Nullable DBSPZSetExpression value) {
+        if (value == null || value.size() > MAX_SIZE)
+            return false;
+        this.values.put(operator.outputPort(), value);
+        if (operator.getType().is(DBSPTypeIndexedZSet.class))
+            return false;
+        Logger.INSTANCE.belowLevel(this, 1)
+                .append("Evaluated ")
+                .appendSupplier(operator::toString)
+                .append(" at compile time")
+                .newline();
+        DBSPConstantOperator result = new DBSPConstantOperator(operator.getRelNode(), value, operator.isMultiset);
+        this.map(operator, result);
+        return true;
+    }
+
+    @Override
+    public VisitDecision preorder(DBSPNestedOperator operator) {
+        VisitDecision decision = super.preorder(operator);
+        if (!decision.stop())
+            this.nested++;
+        return decision;
+    }
+
+    @Override
+    public void postorder(DBSPNestedOperator operator) {
+        super.postorder(operator);
+        this.nested--;
+    }
+
+    @Override
+    public void postorder(DBSPConstantOperator operator) {
+        DBSPExpression function = operator.getFunction();
+        if (this.nested == 0 && function.is(DBSPZSetExpression.class)) {
+            DBSPZSetExpression value = function.to(DBSPZSetExpression.class);
+            if (value.isConstant())
+                this.values.put(operator.outputPort(), value);
+        }
+        super.postorder(operator);
+    }
+
+    /** Add a row to a result; returns 'false' if the row does not have the expected type */
+    static boolean append(DBSPZSetExpression result, DBSPExpression row, long weight) {
+        if (!row.getType().sameType(result.elementType))
+            return false;
+        result.append(row, weight);
+        return true;
+    }
+
+    /** Evaluate an operator that applies a function to each element of its input */
+    @Nullable
+    DBSPZSetExpression map(DBSPZSetExpression input, DBSPClosureExpression function, DBSPType elementType) {
+        DBSPZSetExpression result = DBSPZSetExpression.emptyWithElementType(elementType);
+        for (Map.Entry<DBSPExpression, Long> entry: input.data.entrySet()) {
+            DBSPExpression row = this.evaluate(function, argument(entry.getKey()));
+            if (row == null || !append(result, row, entry.getValue()))
+                return null;
+        }
+        return result;
+    }
+
+    @Override
+    public void postorder(DBSPMapOperator operator) {
+        DBSPZSetExpression input = this.value(operator.input());
+        if (input == null ||
+                !this.setValue(operator, this.map(input, operator.getClosureFunction(),
+                        operator.getOutputZSetElementType())))
+            super.postorder(operator);
+    }
+
+    @Override
+    public void postorder(DBSPMapIndexOperator operator) {
+        DBSPZSetExpression input = this.value(operator.input());
+        if (input != null) {
+            DBSPType elementType = operator.getOutputIndexedZSetType().getKVType();
+            this.setValue(operator, this.map(input, operator.getClosureFunction(), elementType));
+        }
+        super.postorder(operator);
+    }
+
+    @Override
+    public void postorder(DBSPFilterOperator operator) {
+        DBSPZSetExpression input = this.value(operator.input());
+        if (input != null) {
+            @Nullable DBSPZSetExpression result = DBSPZSetExpression.emptyWithElementType(input.elementType);
+            for (Map.Entry<DBSPExpression, Long> entry: input.data.entrySet()) {
+                DBSPExpression keep = this.evaluate(operator.getClosureFunction(), argument(entry.getKey()));
+                DBSPBoolLiteral bool = keep == null ? null : keep.as(DBSPBoolLiteral.class);
+                if (bool == null) {
+                    // Not a constant; leave the operator unchanged
+                    result = null;
+                    break;
+                }
+                if (!bool.isNull() && Objects.requireNonNull(bool.value))
+                    result.append(entry.getKey(), entry.getValue());
+            }
+            if (this.setValue(operator, result))
+                return;
+        }
+        super.postorder(operator);
+    }
+
+    @Override
+    public void postorder(DBSPNegateOperator operator) {
+        DBSPZSetExpression input = this.value(operator.input());
+        if (input == null || !this.setValue(operator, input.negate()))
+            super.postorder(operator);
+    }
+
+    @Override
+    public void postorder(DBSPStreamDistinctOperator operator) {
+        DBSPZSetExpression input = this.value(operator.input());
+        if (input != null) {
+            DBSPZSetExpression result = DBSPZSetExpression.emptyWithElementType(input.elementType);
+            for (Map.Entry<DBSPExpression, Long> entry: input.data.entrySet()) {
+                if (entry.getValue() > 0)
+                    result.append(entry.getKey(), 1);
+            }
+            if (this.setValue(operator, result))
+                return;
+        }
+        super.postorder(operator);
+    }
+
+    @Override
+    public void postorder(DBSPSumOperator operator) {
+        @Nullable DBSPZSetExpression result = null;
+        for (OutputPort input: operator.inputs) {
+            DBSPZSetExpression value = this.value(input);
+            if (value == null) {
+                result = null;
+                break;
+            }
+            if (result == null)
+                result = value.clone();
+            else
+                result.append(value);
+        }
+        if (!this.setValue(operator, result))
+            super.postorder(operator);
+    }
+
+    @Override
+    public void postorder(DBSPSubtractOperator operator) {
+        DBSPZSetExpression left = this.value(operator.left());
+        DBSPZSetExpression right = this.value(operator.right());
+        if (left == null || right == null || !this.setValue(operator, left.minus(right)))
+            super.postorder(operator);
+    }
+
+    /** Evaluate a join of two indexed collections */
+    @Nullable
+    DBSPZSetExpression join(DBSPClosureExpression function, OutputPort left, OutputPort right, DBSPType elementType) {
+        DBSPZSetExpression leftValue = this.value(left);
+        DBSPZSetExpression rightValue = this.value(right);
+        if (leftValue == null || rightValue == null ||
+                (long) leftValue.size() * rightValue.size() > MAX_SIZE)
+            return null;
+        DBSPZSetExpression result = DBSPZSetExpression.emptyWithElementType(elementType);
+        for (Map.Entry<DBSPExpression, Long> l: leftValue.data.entrySet()) {
+            DBSPBaseTupleExpression lkv = l.getKey().to(DBSPBaseTupleExpression.class);
+            for (Map.Entry<DBSPExpression, Long> r: rightValue.data.entrySet()) {
+                DBSPBaseTupleExpression rkv = r.getKey().to(DBSPBaseTupleExpression.class);
+                // Keys are compared in the same way as at runtime
+                if (!lkv.get(0).to(ISameValue.class).sameValue(rkv.get(0).to(ISameValue.class)))
+                    continue;
+                DBSPExpression row = this.evaluate(function,
+                        lkv.get(0).borrow(), lkv.get(1).borrow(), rkv.get(1).borrow());
+                if (row == null || !append(result, row, l.getValue() * r.getValue()))
+                    return null;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void postorder(DBSPStreamJoinOperator operator) {
+        DBSPZSetExpression result = this.join(operator.getClosureFunction(),
+                operator.left(), operator.right(), operator.getOutputZSetElementType());
+        if (!this.setValue(operator, result))
+            super.postorder(operator);
+    }
+
+    @Override
+    public void postorder(DBSPStreamJoinIndexOperator operator) {
+        DBSPZSetExpression result = this.join(operator.getClosureFunction(),
+                operator.left(), operator.right(), operator.getOutputIndexedZSetType().getKVType());
+        this.setValue(operator, result);
+        super.postorder(operator);
+    }
+}
@@ -0,0 +1,612 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer;
+
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDistinctOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPFilterOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPNestedOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPNoopOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSimpleOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSinkOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSourceMultisetOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamDistinctOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamJoinIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPUnaryOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPViewOperator;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.InputColumnMetadata;
+import org.dbsp.sqlCompiler.compiler.visitors.VisitDecision;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.InnerVisitor;
+import org.dbsp.sqlCompiler.ir.IDBSPOuterNode;
+import org.dbsp.sqlCompiler.ir.expression.DBSPBaseTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPCastExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPCloneExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPDerefExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPFieldExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPRawTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Linq;
+import org.dbsp.util.Logger;
+import org.dbsp.util.Utilities;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/** Dataflow analysis which computes the keys and functional dependencies
+ * of the collections produced by each operator.
+ *
+ * <p>Fields are numbered as in the flattened row: for an indexed Z-set the fields
+ * of the index come first, followed by the fields of the value.
+ * A <em>key</em> is a set of fields such that the collection contains at most one row
+ * for each combination of values of these fields, and this row has weight 1.
+ * A functional dependency X -> Y holds if all rows that agree on the fields X
+ * also agree on the fields Y.
+ *
+ * <p>Keys are introduced by the primary keys of tables, by the grouping keys of aggregates,
+ * and by distinct.  Keys and dependencies are propagated through filters, through
+ * projections that preserve the fields involved (a computed field depends on the fields
+ * used to compute it), and through joins.  The rows produced by a join are unique when the
+ * rows of both inputs are unique; when one input is unique on the join key, the keys of
+ * the other input are keys of the result.
+ *
+ * <p>Unlike {@link org.dbsp.sqlCompiler.compiler.visitors.outer.monotonicity.KeyPropagation},
+ * which tracks where key fields come from, this analysis does not know about foreign keys.
+ * For incremental operators the properties describe the integral of the stream.
+ * Operators in recursive components are not analyzed. */
+public class FunctionalDependencies extends CircuitVisitor implements IWritesLogs {
+    /** The fields 'from' determine the fields 'to' */
+    public record Dependency(Set<Integer> from, Set<Integer> to) {
+        @Override
+        public String toString() {
+            return this.from + "->" + this.to;
+        }
+    }
+
+    /** Keys and functional dependencies of a collection whose rows have 'size' fields */
+    public record Dependencies(int size, List<Set<Integer>> keys, List<Dependency> dependencies) {
+        static Dependencies empty(int size) {
+            return new Dependencies(size, new ArrayList<>(), new ArrayList<>());
+        }
+
+        static Set<Integer> range(int start, int end) {
+            Set<Integer> result = new TreeSet<>();
+            for (int i = start; i < end; i++)
+                result.add(i);
+            return result;
+        }
+
+        boolean isEmpty() {
+            return this.keys.isEmpty() && this.dependencies.isEmpty();
+        }
+
+        void addKey(Set<Integer> key) {
+            for (Set<Integer> existing: this.keys)
+                if (key.containsAll(existing))
+                    return;
+            this.keys.removeIf(existing -> existing.containsAll(key));
+            this.keys.add(key);
+        }
+
+        void addDependency(Set<Integer> from, Set<Integer> to) {
+            Set<Integer> determined = new TreeSet<>(to);
+            determined.removeAll(from);
+            if (!determined.isEmpty())
+                this.dependencies.add(new Dependency(from, determined));
+        }
+
+        /** All the fields determined by the specified fields */
+        public Set<Integer> closure(Set<Integer> fields) {
+            Set<Integer> result = new TreeSet<>(fields);
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Set<Integer> key: this.keys) {
+                    if (result.containsAll(key))
+                        return range(0, this.size);
+                }
+                for (Dependency dependency: this.dependencies) {
+                    if (result.containsAll(dependency.from()) && !result.containsAll(dependency.to())) {
+                        result.addAll(dependency.to());
+                        changed = true;
+                    }
+                }
+            }
+            return result;
+        }
+
+        /** True if the collection contains at most one row, with weight 1,
+         * for each combination of values of these fields */
+        public boolean isKey(Set<Integer> fields) {
+            Set<Integer> closure = this.closure(fields);
+            return Linq.any(this.keys, closure::containsAll);
+        }
+
+        /** True if the collection is a set */
+        public boolean hasKey() {
+            return !this.keys.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "keys=" + this.keys + " dependencies=" + this.dependencies;
+        }
+    }
+
+    /** The input fields used to compute an output field of a closure; 'copy' is the
+     * input field if the output is a copy of it, or -1.  'inputs' is null if
+     * the computation uses the closure parameters in other ways. */
+    record FieldSource(@Nullable Set<Integer> inputs, int copy) {}
+
+    /** Collects the input fields used by an expression in a closure */
+    static class UsedFields extends InnerVisitor {
+        final DBSPClosureExpression closure;
+        final RowFields.InputField resolve;
+        @Nullable Set<Integer> fields;
+
+        UsedFields(DBSPCompiler compiler, DBSPClosureExpression closure, RowFields.InputField resolve) {
+            super(compiler);
+            this.closure = closure;
+            this.resolve = resolve;
+            this.fields = new HashSet<>();
+        }
+
+        @Override
+        public VisitDecision preorder(DBSPFieldExpression field) {
+            int index = FunctionalDependencies.inputField(this.closure, field, this.resolve);
+            if (index < 0)
+                return VisitDecision.CONTINUE;
+            if (this.fields != null)
+                this.fields.add(index);
+            return VisitDecision.STOP;
+        }
+
+        @Override
+        public void postorder(DBSPVariablePath var) {
+            if (parameterIndex(this.closure, var) >= 0)
+                // Parameter used in a way that we do not understand
+                this.fields = null;
+        }
+    }
+
+    /** Dependencies of the output of each operator */
+    final Map<OutputPort, Dependencies> dependencies;
+
+    public FunctionalDependencies(DBSPCompiler compiler) {
+        super(compiler);
+        this.dependencies = new HashMap<>();
+    }
+
+    @Override
+    public Token startVisit(IDBSPOuterNode node) {
+        this.dependencies.clear();
+        return super.startVisit(node);
+    }
+
+    /** Dependencies of the specified stream, or null if nothing is known */
+    @Nullable
+    public Dependencies get(OutputPort port) {
+        return this.dependencies.get(port);
+    }
+
+    /** True if the stream is an indexed Z-set with at most one value for each index */
+    public boolean isUniqueOnIndex(OutputPort port) {
+        Dependencies dependencies = this.get(port);
+        if (dependencies == null)
+            return false;
+        int indexSize = RowFields.size(port.getOutputIndexedZSetType().keyType);
+        return dependencies.isKey(Dependencies.range(0, indexSize));
+    }
+
+    static DBSPExpression strip(DBSPExpression expression) {
+        while (true) {
+            if (expression.is(DBSPCloneExpression.class))
+                expression = expression.to(DBSPCloneExpression.class).expression;
+            else if (expression.is(DBSPDerefExpression.class))
+                expression = expression.to(DBSPDerefExpression.class).expression;
+            else if (expression.is(DBSPCastExpression.class) &&
+                    expression.to(DBSPCastExpression.class).source.getType()
+                            .sameTypeIgnoringNullability(expression.getType()))
+                expression = expression.to(DBSPCastExpression.class).source;
+            else
+                return expression;
+        }
+    }
+
+    static int parameterIndex(DBSPClosureExpression closure, DBSPExpression expression) {
+        if (!expression.is(DBSPVariablePath.class))
+            return -1;
+        String name = expression.to(DBSPVariablePath.class).variable;
+        for (int i = 0; i < closure.parameters.length; i++)
+            if (closure.parameters[i].name.equals(name))
+                return i;
+        return -1;
+    }
+
+    /** If the expression is param.field or param.component.field the corresponding
+     * input field, otherwise -1 */
+    static int inputField(DBSPClosureExpression closure, DBSPExpression expression, RowFields.InputField resolve) {
+        expression = strip(expression);
+        if (!expression.is(DBSPFieldExpression.class))
+            return -1;
+        DBSPFieldExpression field = expression.to(DBSPFieldExpression.class);
+        DBSPExpression source = strip(field.expression);
+        int param = parameterIndex(closure, source);
+        if (param >= 0)
+            return resolve.index(param, -1, field.fieldNo);
+        if (!source.is(DBSPFieldExpression.class))
+            return -1;
+        DBSPFieldExpression component = source.to(DBSPFieldExpression.class);
+        param = parameterIndex(closure, strip(component.expression));
+        if (param >= 0)
+            return resolve.index(param, component.fieldNo, field.fieldNo);
+        return -1;
+    }
+
+    /** Sources of the output fields of a closure producing a tuple or a raw tuple of two tuples,
+     * or null if the closure has a different shape */
+    @Nullable
+    List<FieldSource> sources(DBSPExpression function, RowFields.InputField resolve) {
+        if (!function.is(DBSPClosureExpression.class))
+            return null;
+        DBSPClosureExpression closure = function.to(DBSPClosureExpression.class);
+        List<DBSPExpression> fields = new ArrayList<>();
+        DBSPExpression body = closure.body;
+        if (body.is(DBSPRawTupleExpression.class)) {
+            DBSPRawTupleExpression raw = body.to(DBSPRawTupleExpression.class);
+            if (raw.fields == null)
+                return null;
+            for (DBSPExpression component: raw.fields) {
+                if (!component.is(DBSPBaseTupleExpression.class))
+                    return null;
+                DBSPBaseTupleExpression tuple = component.to(DBSPBaseTupleExpression.class);
+                if (tuple.fields == null)
+                    return null;
+                fields.addAll(List.of(tuple.fields));
+            }
+        } else if (body.is(DBSPBaseTupleExpression.class)) {
+            DBSPBaseTupleExpression tuple = body.to(DBSPBaseTupleExpression.class);
+            if (tuple.fields == null)
+                return null;
+            fields.addAll(List.of(tuple.fields));
+        } else {
+            return null;
+        }
+
+        List<FieldSource> result = new ArrayList<>();
+        for (DBSPExpression field: fields) {
+            int copy = inputField(closure, field, resolve);
+            if (copy >= 0) {
+                result.add(new FieldSource(Set.of(copy), copy));
+            } else {
+                UsedFields used = new UsedFields(this.compiler(), closure, resolve);
+                used.apply(field);
+                result.add(new FieldSource(used.fields, -1));
+            }
+        }
+        return result;
+    }
+
+    /** Dependencies of the output of a closure applied to a collection with the specified dependencies */
+    static Dependencies project(Dependencies input, List<FieldSource> outputs) {
+        Dependencies result = Dependencies.empty(outputs.size());
+        // First output field that is a copy of each input field
+        Map<Integer, Integer> copies = new HashMap<>();
+        for (int i = 0; i < outputs.size(); i++) {
+            int copy = outputs.get(i).copy();
+            if (copy >= 0)
+                copies.putIfAbsent(copy, i);
+        }
+
+        // Copies of the same input field determine each other
+        for (int i = 0; i < outputs.size(); i++) {
+            int copy = outputs.get(i).copy();
+            if (copy >= 0 && copies.get(copy) != i) {
+                result.addDependency(Set.of(i), Set.of(copies.get(copy)));
+                result.addDependency(Set.of(copies.get(copy)), Set.of(i));
+            }
+        }
+
+        for (Set<Integer> key: input.keys()) {
+            Set<Integer> outputKey = map(key, copies);
+            if (outputKey != null)
+                result.addKey(outputKey);
+        }
+
+        // The input fields which determine other fields
+        List<Set<Integer>> determinants = new ArrayList<>(input.keys());
+        for (Dependency dependency: input.dependencies())
+            determinants.add(dependency.from());
+        for (FieldSource source: outputs)
+            if (source.inputs() != null)
+                determinants.add(source.inputs());
+        for (Set<Integer> from: determinants) {
+            Set<Integer> outputFrom = map(from, copies);
+            if (outputFrom == null)
+                continue;
+            Set<Integer> closure = input.closure(from);
+            Set<Integer> determined = new TreeSet<>();
+            for (int i = 0; i < outputs.size(); i++) {
+                Set<Integer> inputs = outputs.get(i).inputs();
+                if (inputs != null && closure.containsAll(inputs))
+                    determined.add(i);
+            }
+            result.addDependency(outputFrom, determined);
+        }
+        return result;
+    }
+
+    /** The output fields that are copies of the specified input fields,
+     * or null if some input field is not copied */
+    @Nullable
+    static Set<Integer> map(Set<Integer> fields, Map<Integer, Integer> copies) {
+        Set<Integer> result = new TreeSet<>();
+        for (int field: fields) {
+            Integer copy = copies.get(field);
+            if (copy == null)
+                return null;
+            result.add(copy);
+        }
+        return result;
+    }
+
+    static Set<Integer> renumber(Set<Integer> fields, Function<Integer, Integer> renumber) {
+        Set<Integer> result = new TreeSet<>();
+        for (int field: fields)
+            result.add(renumber.apply(field));
+        return result;
+    }
+
+    /** Dependencies of a collection obtained by renumbering fields */
+    static Dependencies shift(Dependencies dependencies, int size, RowFields.InputField renumber) {
+        Dependencies result = Dependencies.empty(size);
+        for (Set<Integer> key: dependencies.keys())
+            result.addKey(renumber(key, f -> renumber.index(0, -1, f)));
+        for (Dependency dependency: dependencies.dependencies())
+            result.addDependency(
+                    renumber(dependency.from(), f -> renumber.index(0, -1, f)),
+                    renumber(dependency.to(), f -> renumber.index(0, -1, f)));
+        return result;
+    }
+
+    void set(DBSPSimpleOperator operator, @Nullable Dependencies dependencies) {
+        if (dependencies == null || dependencies.isEmpty() || this.inRecursiveComponent())
+            return;
+        Utilities.putNew(this.dependencies, operator.outputPort(), dependencies);
+        Logger.INSTANCE.belowLevel(this, 1)
+                .appendSupplier(operator::getIdString)
+                .append(" ")
+                .appendSupplier(() -> operator.operation)
+                .append(" ")
+                .appendSupplier(dependencies::toString)
+                .newline();
+    }
+
+    void copy(DBSPUnaryOperator operator) {
+        this.set(operator, this.get(operator.input()));
+    }
+
+    void processMap(DBSPUnaryOperator operator) {
+        Dependencies input = this.get(operator.input());
+        if (input == null)
+            return;
+        DBSPType inputType = operator.input().outputType();
+        int indexSize = RowFields.keySize(inputType);
+        boolean indexed = inputType.is(DBSPTypeIndexedZSet.class);
+        List<FieldSource> sources = this.sources(operator.getFunction(), (param, component, field) -> {
+            if (param != 0)
+                return -1;
+            if (!indexed)
+                return component == -1 ? field : -1;
+            return switch (component) {
+                case 0 -> field;
+                case 1 -> indexSize + field;
+                default -> -1;
+            };
+        });
+        if (sources == null)
+            return;
+        this.set(operator, project(input, sources));
+    }
+
+    void processJoin(DBSPSimpleOperator join) {
+        Dependencies left = this.get(join.inputs.get(0));
+        Dependencies right = this.get(join.inputs.get(1));
+        if (left == null && right == null)
+            return;
+        DBSPTypeIndexedZSet leftType = join.inputs.get(0).getOutputIndexedZSetType();
+        DBSPTypeIndexedZSet rightType = join.inputs.get(1).getOutputIndexedZSetType();
+        int indexSize = RowFields.size(leftType.keyType);
+        int leftSize = RowFields.size(leftType.elementType);
+        int size = indexSize + leftSize + RowFields.size(rightType.elementType);
+
+        // Fields of both inputs are numbered: index, left value, right value
+        Dependencies combined = Dependencies.empty(size);
+        if (left != null) {
+            Dependencies shifted = shift(left, size, (p, c, f) -> f);
+            combined.dependencies().addAll(shifted.dependencies());
+            for (Set<Integer> key: shifted.keys())
+                combined.addDependency(key, Dependencies.range(0, indexSize + leftSize));
+        }
+        if (right != null) {
+            Dependencies shifted = shift(right, size, (p, c, f) -> f < indexSize ? f : f + leftSize);
+            combined.dependencies().addAll(shifted.dependencies());
+            Set<Integer> rightFields = Dependencies.range(0, indexSize);
+            rightFields.addAll(Dependencies.range(indexSize + leftSize, size));
+            for (Set<Integer> key: shifted.keys())
+                combined.addDependency(key, rightFields);
+        }
+        Set<Integer> index = Dependencies.range(0, indexSize);
+        boolean leftUnique = left != null && left.isKey(index);
+        boolean rightUnique = right != null && right.isKey(index);
+        if (left != null && right != null) {
+            for (Set<Integer> leftKey: left.keys()) {
+                for (Set<Integer> rightKey: right.keys()) {
+                    Set<Integer> key = new TreeSet<>(leftKey);
+                    key.addAll(renumber(rightKey, f -> f < indexSize ? f : f + leftSize));
+                    combined.addKey(key);
+                }
+            }
+            // Each row of one input matches at most one row of the other input
+            if (rightUnique)
+                for (Set<Integer> key: left.keys())
+                    combined.addKey(key);
+            if (leftUnique)
+                for (Set<Integer> key: right.keys())
+                    combined.addKey(renumber(key, f -> f < indexSize ? f : f + leftSize));
+        }
+
+        List<FieldSource> sources = this.sources(join.getFunction(), (param, component, field) -> {
+            if (component != -1)
+                return -1;
+            return switch (param) {
+                case 0 -> field;
+                case 1 -> indexSize + field;
+                case 2 -> indexSize + leftSize + field;
+                default -> -1;
+            };
+        });
+        if (sources == null)
+            return;
+        this.set(join, project(combined, sources));
+    }
+
+    boolean inRecursiveComponent() {
+        return this.getParent().is(DBSPNestedOperator.class);
+    }
+
+    @Override
+    public void postorder(DBSPSourceMultisetOperator operator) {
+        Set<Integer> key = new TreeSet<>();
+        int index = 0;
+        for (InputColumnMetadata column: operator.metadata.getColumns()) {
+            if (column.isPrimaryKey)
+                key.add(index);
+            index++;
+        }
+        if (key.isEmpty())
+            return;
+        Dependencies result = Dependencies.empty(RowFields.rowSize(operator.outputType));
+        result.addKey(key);
+        this.set(operator, result);
+    }
+
+    @Override
+    public void postorder(DBSPMapOperator operator) {
+        this.processMap(operator);
+    }
+
+    @Override
+    public void postorder(DBSPMapIndexOperator operator) {
+        this.processMap(operator);
+    }
+
+    @Override
+    public void postorder(DBSPFilterOperator operator) {
+        this.copy(operator);
+    }
+
+    @Override
+    public void postorder(DBSPNoopOperator operator) {
+        this.copy(operator);
+    }
+
+    @Override
+    public void postorder(DBSPViewOperator operator) {
+        this.copy(operator);
+    }
+
+    @Override
+    public void postorder(DBSPSinkOperator operator) {
+        this.copy(operator);
+    }
+
+    void processDistinct(DBSPUnaryOperator operator) {
+        int size = RowFields.rowSize(operator.outputType);
+        Dependencies input = this.get(operator.input());
+        Dependencies result = Dependencies.empty(size);
+        if (input != null)
+            result.dependencies().addAll(input.dependencies());
+        result.addKey(Dependencies.range(0, size));
+        if (input != null)
+            for (Set<Integer> key: input.keys())
+                result.addKey(key);
+        this.set(operator, result);
+    }
+
+    @Override
+    public void postorder(DBSPStreamDistinctOperator operator) {
+        this.processDistinct(operator);
+    }
+
+    @Override
+    public void postorder(DBSPDistinctOperator operator) {
+        this.processDistinct(operator);
+    }
+
+    void processAggregate(DBSPUnaryOperator operator) {
+        // One row for each value of the index; dependencies between index fields are preserved
+        int indexSize = RowFields.size(operator.getOutputIndexedZSetType().keyType);
+        Set<Integer> index = Dependencies.range(0, indexSize);
+        Dependencies result = Dependencies.empty(RowFields.rowSize(operator.outputType));
+        result.addKey(index);
+        Dependencies input = this.get(operator.input());
+        if (input != null) {
+            for (Dependency dependency: input.dependencies()) {
+                if (!index.containsAll(dependency.from()))
+                    continue;
+                Set<Integer> to = new TreeSet<>(dependency.to());
+                to.retainAll(index);
+                result.addDependency(dependency.from(), to);
+            }
+        }
+        this.set(operator, result);
+    }
+
+    @Override
+    public void postorder(DBSPStreamAggregateOperator operator) {
+        this.processAggregate(operator);
+    }
+
+    @Override
+    public void postorder(DBSPAggregateOperator operator) {
+        this.processAggregate(operator);
+    }
+
+    @Override
+    public void postorder(DBSPStreamJoinOperator operator) {
+        this.processJoin(operator);
+    }
+
+    @Override
+    public void postorder(DBSPStreamJoinIndexOperator operator) {
+        this.processJoin(operator);
+    }
+
+    @Override
+    public void postorder(DBSPJoinOperator operator) {
+        this.processJoin(operator);
+    }
+
+    @Override
+    public void postorder(DBSPJoinIndexOperator operator) {
+        this.processJoin(operator);
+    }
+}
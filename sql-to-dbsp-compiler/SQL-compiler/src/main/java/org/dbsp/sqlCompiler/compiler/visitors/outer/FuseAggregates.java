@@ -0,0 +1,311 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer;
+
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamAggregateOperator;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.frontend.TypeCompiler;
+import org.dbsp.sqlCompiler.compiler.visitors.VisitDecision;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.InnerRewriteVisitor;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.Simplify;
+import org.dbsp.sqlCompiler.ir.DBSPParameter;
+import org.dbsp.sqlCompiler.ir.IDBSPInnerNode;
+import org.dbsp.sqlCompiler.ir.IDBSPOuterNode;
+import org.dbsp.sqlCompiler.ir.aggregate.DBSPAggregateList;
+import org.dbsp.sqlCompiler.ir.aggregate.IAggregate;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPRawTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeTupleBase;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Linq;
+import org.dbsp.util.Logger;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Fuses {@link DBSPStreamAggregateOperator}s that aggregate the same collection by the same key.
+ *
+ * <p>Different views that aggregate the same collection by the same key
+ * produce separate aggregate operators, each of which keeps its own trace.
+ * Each such aggregate reads a {@link DBSPMapIndexOperator} which computes the key
+ * and the fields needed by the aggregate.  When the index operators have the same
+ * input and equivalent key functions the aggregates are replaced by:
+ * - a single index operator, whose value is the concatenation of all values,
+ * - a single aggregate, which computes the concatenation of all aggregate lists,
+ * - a {@link DBSPMapIndexOperator} for each original aggregate, which projects
+ *   the values it produces.
+ * Only aggregates implemented by the same {@link IAggregate} class are fused.
+ * {@link ExpandAggregates} then implements compatible aggregates of the fused
+ * list with a single operator. */
+public class FuseAggregates extends Passes {
+    /** A set of aggregates that can be fused */
+    static final class Group {
+        /** Key function, shared by all index operators */
+        final DBSPClosureExpression key;
+        /** Class of all the aggregates in the group */
+        final Class<? extends IAggregate> implementation;
+        /** Distinct index operators read by the aggregates, in circuit order */
+        final List<DBSPMapIndexOperator> indexes;
+        final List<DBSPStreamAggregateOperator> aggregates;
+
+        Group(DBSPClosureExpression key, Class<? extends IAggregate> implementation) {
+            this.key = key;
+            this.implementation = implementation;
+            this.indexes = new ArrayList<>();
+            this.aggregates = new ArrayList<>();
+        }
+
+        OutputPort source() {
+            return this.indexes.get(0).input();
+        }
+
+        void add(DBSPStreamAggregateOperator aggregate, DBSPMapIndexOperator index) {
+            this.aggregates.add(aggregate);
+            if (!this.indexes.contains(index))
+                this.indexes.add(index);
+        }
+    }
+
+    /** Group of each aggregate operator */
+    final Map<DBSPStreamAggregateOperator, Group> groups;
+
+    public FuseAggregates(DBSPCompiler compiler) {
+        super("FuseAggregates", compiler);
+        this.groups = new HashMap<>();
+        this.add(new FindAggregates(compiler, this.groups));
+        this.add(new Fuse(compiler, this.groups));
+    }
+
+    /** The index operator read by an aggregate, if the aggregate can be fused */
+    @Nullable
+    static DBSPMapIndexOperator getIndex(DBSPStreamAggregateOperator operator) {
+        if (operator.aggregateList == null)
+            return null;
+        DBSPMapIndexOperator index = operator.input().node().as(DBSPMapIndexOperator.class);
+        if (index == null || !index.getClosureFunction().body.is(DBSPRawTupleExpression.class))
+            return null;
+        return index;
+    }
+
+    /** The class of all the aggregates computed by an operator, or null if they
+     * have different classes.  Only aggregates with the same implementation are fused:
+     * a linear aggregate fused with a non-linear one would be computed by the
+     * non-linear operator, which keeps the whole input in its trace. */
+    @Nullable
+    static Class<? extends IAggregate> getImplementation(DBSPStreamAggregateOperator operator) {
+        Class<? extends IAggregate> result = null;
+        for (IAggregate aggregate: operator.getAggregateList().aggregates) {
+            if (result == null)
+                result = aggregate.getClass();
+            else if (result != aggregate.getClass())
+                return null;
+        }
+        return result;
+    }
+
+    /** One part of the function of an index operator:
+     * 0 for the key, 1 for the value */
+    static DBSPClosureExpression component(DBSPMapIndexOperator index, int part) {
+        DBSPClosureExpression function = index.getClosureFunction();
+        DBSPRawTupleExpression body = function.body.to(DBSPRawTupleExpression.class);
+        return body.get(part).closure(function.parameters);
+    }
+
+    /** Collects the aggregate operators that can be fused */
+    static class FindAggregates extends CircuitVisitor {
+        final Map<DBSPStreamAggregateOperator, Group> groups;
+        final List<Group> allGroups;
+
+        FindAggregates(DBSPCompiler compiler, Map<DBSPStreamAggregateOperator, Group> groups) {
+            super(compiler);
+            this.groups = groups;
+            this.allGroups = new ArrayList<>();
+        }
+
+        @Override
+        public Token startVisit(IDBSPOuterNode node) {
+            this.groups.clear();
+            this.allGroups.clear();
+            return super.startVisit(node);
+        }
+
+        @Override
+        public void postorder(DBSPStreamAggregateOperator operator) {
+            DBSPMapIndexOperator index = getIndex(operator);
+            if (index == null)
+                return;
+            Class<? extends IAggregate> implementation = getImplementation(operator);
+            if (implementation == null)
+                return;
+            DBSPClosureExpression key = component(index, 0);
+            Group group = null;
+            for (Group g: this.allGroups) {
+                if (g.implementation == implementation &&
+                        g.source().equals(index.input()) && g.key.equivalent(key)) {
+                    group = g;
+                    break;
+                }
+            }
+            if (group == null) {
+                group = new Group(key, implementation);
+                this.allGroups.add(group);
+            }
+            group.add(operator, index);
+            this.groups.put(operator, group);
+        }
+    }
+
+    /** Replaces the parameter of a closure that refers to the row variable, and
+     * all references to the row variable */
+    static class ReplaceRowVariable extends InnerRewriteVisitor {
+        final String name;
+        final DBSPParameter parameter;
+        final DBSPExpression replacement;
+
+        ReplaceRowVariable(DBSPCompiler compiler, String name,
+                           DBSPParameter parameter, DBSPExpression replacement) {
+            super(compiler, false);
+            this.name = name;
+            this.parameter = parameter;
+            this.replacement = replacement;
+        }
+
+        @Override
+        public VisitDecision preorder(DBSPParameter parameter) {
+            if (!parameter.name.equals(this.name))
+                return super.preorder(parameter);
+            this.map(parameter, this.parameter);
+            return VisitDecision.STOP;
+        }
+
+        @Override
+        public VisitDecision preorder(DBSPVariablePath var) {
+            if (!var.variable.equals(this.name))
+                return super.preorder(var);
+            this.map(var, this.replacement.deepCopy());
+            return VisitDecision.STOP;
+        }
+    }
+
+    static class Fuse extends CircuitCloneVisitor implements IWritesLogs {
+        final Map<DBSPStreamAggregateOperator, Group> groups;
+        /** Fused operator for each group */
+        final Map<Group, DBSPStreamAggregateOperator> fused;
+
+        Fuse(DBSPCompiler compiler, Map<DBSPStreamAggregateOperator, Group> groups) {
+            super(compiler, false);
+            this.groups = groups;
+            this.fused = new HashMap<>();
+        }
+
+        @Override
+        public Token startVisit(IDBSPOuterNode node) {
+            this.fused.clear();
+            return super.startVisit(node);
+        }
+
+        /** Offset of the values of an index operator in the fused index */
+        static int offset(Group group, DBSPMapIndexOperator index) {
+            int offset = 0;
+            for (DBSPMapIndexOperator previous: group.indexes) {
+                if (previous == index)
+                    break;
+                offset += previous.getOutputIndexedZSetType().getElementTypeTuple().size();
+            }
+            return offset;
+        }
+
+        /** Create the operators that compute all aggregates in the group */
+        DBSPStreamAggregateOperator fuse(Group group) {
+            // Index operator computing the values of all indexes
+            DBSPClosureExpression first = group.indexes.get(0).getClosureFunction();
+            DBSPExpression[] arguments = Linq.map(first.parameters, DBSPParameter::asVariable, DBSPExpression.class);
+            List<DBSPExpression> values = Linq.map(group.indexes,
+                    ix -> component(ix, 1).call(arguments).reduce(this.compiler()));
+            DBSPClosureExpression function = new DBSPRawTupleExpression(
+                    first.body.to(DBSPRawTupleExpression.class).get(0),
+                    DBSPTupleExpression.flatten(values)).closure(first.parameters);
+            DBSPMapIndexOperator index = new DBSPMapIndexOperator(
+                    group.indexes.get(0).getRelNode(), function, this.mapped(group.source()));
+            this.addOperator(index);
+
+            // Aggregate computing all aggregate lists
+            DBSPTypeIndexedZSet indexType = index.getOutputIndexedZSetType();
+            DBSPVariablePath rowVar = indexType.elementType.ref().var();
+            List<IAggregate> aggregates = new ArrayList<>();
+            for (DBSPStreamAggregateOperator operator: group.aggregates) {
+                DBSPMapIndexOperator original = operator.input().node().to(DBSPMapIndexOperator.class);
+                int offset = offset(group, original);
+                int width = original.getOutputIndexedZSetType().getElementTypeTuple().size();
+                DBSPExpression[] fields = new DBSPExpression[width];
+                for (int i = 0; i < width; i++)
+                    fields[i] = rowVar.deref().field(offset + i).applyCloneIfNeeded();
+                DBSPExpression replacement = new DBSPTupleExpression(fields).borrow();
+
+                DBSPAggregateList list = operator.getAggregateList();
+                ReplaceRowVariable replace = new ReplaceRowVariable(
+                        this.compiler(), list.rowVar.variable, rowVar.asParameter(), replacement);
+                Simplify simplify = new Simplify(this.compiler());
+                for (IAggregate aggregate: list.aggregates) {
+                    IDBSPInnerNode replaced = simplify.apply(replace.apply(aggregate));
+                    aggregates.add(replaced.to(IAggregate.class));
+                }
+            }
+            DBSPStreamAggregateOperator firstAggregate = group.aggregates.get(0);
+            DBSPAggregateList list = new DBSPAggregateList(firstAggregate.getAggregateList().getNode(), rowVar, aggregates);
+            DBSPTypeIndexedZSet outputType = TypeCompiler.makeIndexedZSet(
+                    indexType.keyType, list.getEmptySetResultType());
+            DBSPStreamAggregateOperator result = new DBSPStreamAggregateOperator(
+                    firstAggregate.getRelNode(), outputType, null, list, index.outputPort());
+            this.addOperator(result);
+            Logger.INSTANCE.belowLevel(this, 1)
+                    .append("Fused ")
+                    .append(group.aggregates.size())
+                    .append(" aggregates into ")
+                    .appendSupplier(result::toString)
+                    .newline();
+            return result;
+        }
+
+        @Override
+        public void postorder(DBSPStreamAggregateOperator operator) {
+            Group group = this.groups.get(operator);
+            if (group == null || group.aggregates.size() < 2) {
+                super.postorder(operator);
+                return;
+            }
+
+            DBSPStreamAggregateOperator fused = this.fused.get(group);
+            if (fused == null) {
+                fused = this.fuse(group);
+                this.fused.put(group, fused);
+            }
+
+            // The values of this operator start after the values of the previous operators in the group
+            int offset = 0;
+            for (DBSPStreamAggregateOperator previous: group.aggregates) {
+                if (previous == operator)
+                    break;
+                offset += previous.getAggregateList().size();
+            }
+            DBSPVariablePath var = fused.getOutputIndexedZSetType().getKVRefType().var();
+            DBSPTypeTupleBase valueType = operator.getOutputIndexedZSetType().getElementTypeTuple();
+            DBSPExpression[] values = new DBSPExpression[valueType.size()];
+            for (int i = 0; i < values.length; i++)
+                values[i] = var.field(1).deref().field(offset + i).applyCloneIfNeeded();
+            DBSPClosureExpression projection = new DBSPRawTupleExpression(
+                    DBSPTupleExpression.flatten(var.field(0).deref()),
+                    new DBSPTupleExpression(values)).closure(var);
+            DBSPMapIndexOperator result = new DBSPMapIndexOperator(
+                    operator.getRelNode(), projection, fused.outputPort());
+            this.map(operator, result);
+        }
+    }
+}
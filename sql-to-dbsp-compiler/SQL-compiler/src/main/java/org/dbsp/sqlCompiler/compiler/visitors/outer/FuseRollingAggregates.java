@@ -0,0 +1,224 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer;
+
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPPartitionedRollingAggregateOperator;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.frontend.TypeCompiler;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.Simplify;
+import org.dbsp.sqlCompiler.ir.IDBSPInnerNode;
+import org.dbsp.sqlCompiler.ir.IDBSPOuterNode;
+import org.dbsp.sqlCompiler.ir.aggregate.DBSPAggregateList;
+import org.dbsp.sqlCompiler.ir.aggregate.IAggregate;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPIfExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPRawTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
+import org.dbsp.sqlCompiler.ir.expression.literal.DBSPLiteral;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeTuple;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Fuses {@link DBSPPartitionedRollingAggregateOperator}s that compute aggregates over
+ * the same window of the same collection.
+ *
+ * <p>Each group of window aggregates produced for an OVER clause is implemented by
+ * a separate rolling aggregate, which maintains its own partitioned tree.
+ * Window aggregates that read the same input, use the same partitioning function, and
+ * have the same frame bounds are replaced by:
+ * - a single rolling aggregate, which computes the concatenation of all aggregate lists,
+ * - a {@link DBSPMapIndexOperator} for each original aggregate, which projects
+ *   the values it produces.
+ * Aggregates with different frames are not fused: a rolling aggregate has a single range. */
+public class FuseRollingAggregates extends Passes {
+    /** A set of rolling aggregates that can be fused */
+    static final class Group {
+        final List<DBSPPartitionedRollingAggregateOperator> aggregates;
+
+        Group(DBSPPartitionedRollingAggregateOperator first) {
+            this.aggregates = new ArrayList<>();
+            this.aggregates.add(first);
+        }
+
+        DBSPPartitionedRollingAggregateOperator first() {
+            return this.aggregates.get(0);
+        }
+
+        OutputPort source() {
+            return this.first().input();
+        }
+
+        boolean accepts(DBSPPartitionedRollingAggregateOperator operator) {
+            DBSPPartitionedRollingAggregateOperator first = this.first();
+            return this.source().equals(operator.input()) &&
+                    first.partitioningFunction.equivalent(operator.partitioningFunction) &&
+                    first.lower.equivalent(operator.lower) &&
+                    first.upper.equivalent(operator.upper) &&
+                    first.getOutputIndexedZSetType().keyType.sameType(
+                            operator.getOutputIndexedZSetType().keyType);
+        }
+    }
+
+    /** Group of each rolling aggregate operator */
+    final Map<DBSPPartitionedRollingAggregateOperator, Group> groups;
+
+    public FuseRollingAggregates(DBSPCompiler compiler) {
+        super("FuseRollingAggregates", compiler);
+        this.groups = new HashMap<>();
+        this.add(new FindRollingAggregates(compiler, this.groups));
+        this.add(new Fuse(compiler, this.groups));
+    }
+
+    /** Collects the rolling aggregate operators that can be fused */
+    static class FindRollingAggregates extends CircuitVisitor {
+        final Map<DBSPPartitionedRollingAggregateOperator, Group> groups;
+        final List<Group> allGroups;
+
+        FindRollingAggregates(DBSPCompiler compiler, Map<DBSPPartitionedRollingAggregateOperator, Group> groups) {
+            super(compiler);
+            this.groups = groups;
+            this.allGroups = new ArrayList<>();
+        }
+
+        @Override
+        public Token startVisit(IDBSPOuterNode node) {
+            this.groups.clear();
+            this.allGroups.clear();
+            return super.startVisit(node);
+        }
+
+        @Override
+        public void postorder(DBSPPartitionedRollingAggregateOperator operator) {
+            if (operator.aggregateList == null)
+                return;
+            Group group = null;
+            for (Group g: this.allGroups) {
+                if (g.accepts(operator)) {
+                    group = g;
+                    group.aggregates.add(operator);
+                    break;
+                }
+            }
+            if (group == null) {
+                group = new Group(operator);
+                this.allGroups.add(group);
+            }
+            this.groups.put(operator, group);
+        }
+    }
+
+    static class Fuse extends CircuitCloneVisitor implements IWritesLogs {
+        final Map<DBSPPartitionedRollingAggregateOperator, Group> groups;
+        /** Fused operator for each group */
+        final Map<Group, DBSPPartitionedRollingAggregateOperator> fused;
+
+        Fuse(DBSPCompiler compiler, Map<DBSPPartitionedRollingAggregateOperator, Group> groups) {
+            super(compiler, false);
+            this.groups = groups;
+            this.fused = new HashMap<>();
+        }
+
+        @Override
+        public Token startVisit(IDBSPOuterNode node) {
+            this.fused.clear();
+            return super.startVisit(node);
+        }
+
+        /** Type of the aggregates produced by a rolling aggregate */
+        static DBSPTypeTuple aggregateType(DBSPPartitionedRollingAggregateOperator operator) {
+            return operator.getAggregateList().getEmptySetResultType();
+        }
+
+        /** Create the operator that computes all aggregates in the group */
+        DBSPPartitionedRollingAggregateOperator fuse(Group group) {
+            DBSPPartitionedRollingAggregateOperator first = group.first();
+            // All aggregates read the same input, so their row variables have the same type
+            DBSPVariablePath rowVar = first.getAggregateList().rowVar;
+            List<IAggregate> aggregates = new ArrayList<>();
+            for (DBSPPartitionedRollingAggregateOperator operator: group.aggregates) {
+                DBSPAggregateList list = operator.getAggregateList();
+                FuseAggregates.ReplaceRowVariable replace = new FuseAggregates.ReplaceRowVariable(
+                        this.compiler(), list.rowVar.variable, rowVar.asParameter(), rowVar);
+                Simplify simplify = new Simplify(this.compiler());
+                for (IAggregate aggregate: list.aggregates) {
+                    IDBSPInnerNode replaced = simplify.apply(replace.apply(aggregate));
+                    aggregates.add(replaced.to(IAggregate.class));
+                }
+            }
+            DBSPAggregateList list = new DBSPAggregateList(first.getAggregateList().getNode(), rowVar, aggregates);
+
+            // The output type uses the same representation as the one built for each window aggregate
+            DBSPTypeIndexedZSet firstType = first.getOutputIndexedZSetType();
+            DBSPType sortType = firstType.getElementTypeTuple().getFieldType(0);
+            DBSPTypeIndexedZSet outputType = TypeCompiler.makeIndexedZSet(firstType.keyType,
+                    new DBSPTypeTuple(sortType, list.getEmptySetResultType().withMayBeNull(true)));
+            DBSPPartitionedRollingAggregateOperator result = new DBSPPartitionedRollingAggregateOperator(
+                    first.getRelNode(), first.partitioningFunction, null, list,
+                    first.lower, first.upper, outputType, this.mapped(group.source()));
+            this.addOperator(result);
+            Logger.INSTANCE.belowLevel(this, 1)
+                    .append("Fused ")
+                    .append(group.aggregates.size())
+                    .append(" rolling aggregates into ")
+                    .appendSupplier(result::toString)
+                    .newline();
+            return result;
+        }
+
+        @Override
+        public void postorder(DBSPPartitionedRollingAggregateOperator operator) {
+            Group group = this.groups.get(operator);
+            if (group == null || group.aggregates.size() < 2) {
+                super.postorder(operator);
+                return;
+            }
+
+            DBSPPartitionedRollingAggregateOperator fused = this.fused.get(group);
+            if (fused == null) {
+                fused = this.fuse(group);
+                this.fused.put(group, fused);
+            }
+
+            // The values of this operator start after the values of the previous operators in the group
+            int offset = 0;
+            for (DBSPPartitionedRollingAggregateOperator previous: group.aggregates) {
+                if (previous == operator)
+                    break;
+                offset += previous.getAggregateList().size();
+            }
+
+            // |kv| (kv.0.clone(), Tup2(kv.1.0, if kv.1.1.is_none() { None } else { Some(TupN(kv.1.1.offset, ...)) }))
+            DBSPVariablePath var = fused.getOutputIndexedZSetType().getKVRefType().var();
+            DBSPExpression aggregates = var.field(1).deref().field(1);
+            DBSPTypeTuple aggregateType = aggregateType(operator);
+            DBSPExpression[] values = new DBSPExpression[aggregateType.size()];
+            for (int i = 0; i < values.length; i++) {
+                // Within the 'else' branch the fused aggregates are never NULL
+                DBSPExpression value = aggregates.deepCopy().field(offset + i).applyCloneIfNeeded();
+                if (!aggregateType.getFieldType(i).mayBeNull)
+                    value = value.unwrap();
+                values[i] = value;
+            }
+            DBSPExpression projected = new DBSPIfExpression(operator.getRelNode(),
+                    aggregates.is_null(),
+                    DBSPLiteral.none(aggregateType.withMayBeNull(true)),
+                    new DBSPTupleExpression(values).some());
+            DBSPClosureExpression projection = new DBSPRawTupleExpression(
+                    var.field(0).deref().applyCloneIfNeeded(),
+                    new DBSPTupleExpression(var.field(1).deref().field(0).applyCloneIfNeeded(), projected))
+                    .closure(var);
+            DBSPMapIndexOperator result = new DBSPMapIndexOperator(
+                    operator.getRelNode(), projection, operator.getOutputIndexedZSetType(), fused.outputPort());
+            this.map(operator, result);
+        }
+    }
+}
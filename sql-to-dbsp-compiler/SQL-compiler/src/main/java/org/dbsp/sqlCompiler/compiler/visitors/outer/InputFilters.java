@@ -0,0 +1,306 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPFilterOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSourceMultisetOperator;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.InputColumnMetadata;
+import org.dbsp.sqlCompiler.compiler.frontend.statements.CreateTableStatement;
+import org.dbsp.sqlCompiler.compiler.frontend.statements.IHasSchema;
+import org.dbsp.sqlCompiler.ir.expression.DBSPBinaryExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPCastExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPCloneExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPDerefExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPFieldExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPIsNullExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPUnaryExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
+import org.dbsp.sqlCompiler.ir.expression.literal.DBSPBoolLiteral;
+import org.dbsp.sqlCompiler.ir.expression.literal.DBSPDecimalLiteral;
+import org.dbsp.sqlCompiler.ir.expression.literal.DBSPIntLiteral;
+import org.dbsp.sqlCompiler.ir.expression.literal.DBSPLiteral;
+import org.dbsp.sqlCompiler.ir.expression.literal.DBSPStringLiteral;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.primitive.DBSPTypeBool;
+import org.dbsp.sqlCompiler.ir.type.primitive.DBSPTypeDecimal;
+import org.dbsp.sqlCompiler.ir.type.primitive.DBSPTypeInteger;
+import org.dbsp.sqlCompiler.ir.type.primitive.DBSPTypeString;
+import org.dbsp.sqlCompiler.ir.type.primitive.IHasPrecision;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Logger;
+import org.dbsp.util.graph.Port;
+import org.dbsp.util.Utilities;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/** Finds predicates that can be evaluated by the input adapters of a table.
+ *
+ * <p>When all consumers of a table are filters, a row which fails all the filters
+ * cannot influence any output, and the input adapter can drop it before
+ * it is deserialized into the circuit.  The disjunction of the filters is exported
+ * as the "filter" property of the table in the program metadata
+ * (see {@link org.dbsp.sqlCompiler.compiler.ProgramMetadata}).
+ *
+ * <p>Only tables without primary keys are considered, since rows of tables with keys
+ * can delete or replace other rows.  Materialized tables are considered only
+ * if they specify the 'input_filter' = 'true' property, since dropping rows
+ * changes the contents of the table visible to ad-hoc queries.
+ *
+ * <p>The exported predicate may be weaker than the filters: conjuncts which
+ * cannot be represented are dropped.  A predicate is a JSON object, with SQL
+ * three-valued semantics; a row should be kept only if the predicate is TRUE:
+ * - {"op": "and" | "or", "args": [predicate, ...]}
+ * - {"op": "is_not_true" | "is_null", "arg": predicate}
+ * - {"op": "eq" | "neq" | "lt" | "lte" | "gt" | "gte", "left": operand, "right": operand}
+ * - operands are either {"column": name, "case_sensitive": bool}, or {"literal": value}.
+ * Only columns of type BOOLEAN, integer, DECIMAL, and VARCHAR without a size limit
+ * can appear in predicates. */
+public class InputFilters extends Passes {
+    public InputFilters(DBSPCompiler compiler) {
+        super("InputFilters", compiler);
+        Graph graph = new Graph(compiler);
+        this.add(graph);
+        this.add(new FindInputFilters(compiler, graph.getGraphs()));
+    }
+
+    static class FindInputFilters extends CircuitWithGraphsVisitor implements IWritesLogs {
+        final ObjectMapper mapper;
+
+        FindInputFilters(DBSPCompiler compiler, CircuitGraphs graphs) {
+            super(compiler, graphs);
+            this.mapper = Utilities.deterministicObjectMapper();
+        }
+
+        @Override
+        public void postorder(DBSPSourceMultisetOperator operator) {
+            this.compiler().metadata.removeInputFilter(operator.tableName);
+            // Tables with primary keys are still multisets when this pass runs;
+            // an upsert or delete of a dropped row would be lost.
+            if (!operator.metadata.getPrimaryKeys().isEmpty())
+                return;
+            if (operator.metadata.materialized) {
+                IHasSchema schema = this.compiler().metadata.getTableDescription(operator.tableName);
+                if (!schema.is(CreateTableStatement.class) ||
+                        !schema.to(CreateTableStatement.class).filtersInput())
+                    return;
+            }
+
+            List<Port<DBSPOperator>> successors = this.getGraph().getSuccessors(operator);
+            if (successors.isEmpty())
+                return;
+            List<JsonNode> disjuncts = new ArrayList<>();
+            for (Port<DBSPOperator> successor: successors) {
+                DBSPFilterOperator filter = successor.node().as(DBSPFilterOperator.class);
+                if (filter == null)
+                    return;
+                Translator translator = new Translator(operator, filter.getClosureFunction());
+                JsonNode predicate = translator.translate(translator.function.body, true);
+                if (predicate == null)
+                    return;
+                if (!disjuncts.contains(predicate))
+                    disjuncts.add(predicate);
+            }
+
+            JsonNode result = disjuncts.size() == 1 ? disjuncts.get(0) : this.combine("or", disjuncts);
+            Logger.INSTANCE.belowLevel(this, 1)
+                    .append("Input filter for ")
+                    .appendSupplier(operator.tableName::toString)
+                    .append(": ")
+                    .appendSupplier(result::toString)
+                    .newline();
+            this.compiler().metadata.setInputFilter(operator.tableName, result);
+        }
+
+        ObjectNode combine(String op, List<JsonNode> args) {
+            ObjectNode result = this.mapper.createObjectNode();
+            result.put("op", op);
+            ArrayNode array = result.putArray("args");
+            array.addAll(args);
+            return result;
+        }
+
+        /** Translates the body of a filter function to a predicate */
+        class Translator {
+            final DBSPSourceMultisetOperator source;
+            final DBSPClosureExpression function;
+
+            Translator(DBSPSourceMultisetOperator source, DBSPClosureExpression function) {
+                this.source = source;
+                this.function = function;
+            }
+
+            /** Remove operations that do not change the value */
+            DBSPExpression strip(DBSPExpression expression) {
+                while (true) {
+                    if (expression.is(DBSPCloneExpression.class)) {
+                        expression = expression.to(DBSPCloneExpression.class).expression;
+                    } else if (expression.is(DBSPCastExpression.class)) {
+                        DBSPCastExpression cast = expression.to(DBSPCastExpression.class);
+                        if (!cast.getType().sameTypeIgnoringNullability(cast.source.getType()))
+                            return expression;
+                        expression = cast.source;
+                    } else {
+                        return expression;
+                    }
+                }
+            }
+
+            static boolean supportedType(DBSPType type) {
+                if (type.is(DBSPTypeString.class)) {
+                    DBSPTypeString str = type.to(DBSPTypeString.class);
+                    return !str.fixed && str.precision == IHasPrecision.UNLIMITED_PRECISION;
+                }
+                return type.is(DBSPTypeBool.class) ||
+                        type.is(DBSPTypeInteger.class) ||
+                        type.is(DBSPTypeDecimal.class);
+            }
+
+            @Nullable
+            JsonNode operand(DBSPExpression expression) {
+                expression = this.strip(expression);
+                if (!supportedType(expression.getType()))
+                    return null;
+                if (expression.is(DBSPFieldExpression.class)) {
+                    DBSPFieldExpression field = expression.to(DBSPFieldExpression.class);
+                    DBSPExpression row = field.expression;
+                    if (row.is(DBSPDerefExpression.class))
+                        row = row.to(DBSPDerefExpression.class).expression;
+                    if (!row.is(DBSPVariablePath.class) ||
+                            !row.to(DBSPVariablePath.class).variable.equals(this.function.parameters[0].name))
+                        return null;
+                    InputColumnMetadata column = this.source.metadata.getColumnMetadata(field.fieldNo);
+                    ObjectNode result = mapper.createObjectNode();
+                    result.put("column", column.name.name());
+                    result.put("case_sensitive", column.name.isQuoted());
+                    return result;
+                }
+                if (expression.is(DBSPLiteral.class)) {
+                    DBSPLiteral literal = expression.to(DBSPLiteral.class);
+                    ObjectNode result = mapper.createObjectNode();
+                    if (literal.isNull()) {
+                        result.putNull("literal");
+                    } else if (literal.is(DBSPBoolLiteral.class)) {
+                        result.put("literal", Objects.requireNonNull(literal.to(DBSPBoolLiteral.class).value));
+                    } else if (literal.is(DBSPIntLiteral.class)) {
+                        result.put("literal", literal.to(DBSPIntLiteral.class).getValue());
+                    } else if (literal.is(DBSPDecimalLiteral.class)) {
+                        result.put("literal", literal.to(DBSPDecimalLiteral.class).value);
+                    } else if (literal.is(DBSPStringLiteral.class)) {
+                        result.put("literal", literal.to(DBSPStringLiteral.class).value);
+                    } else {
+                        return null;
+                    }
+                    return result;
+                }
+                return null;
+            }
+
+            @Nullable
+            static String comparison(DBSPBinaryExpression binary) {
+                return switch (binary.opcode) {
+                    case EQ -> "eq";
+                    case NEQ -> "neq";
+                    case LT -> "lt";
+                    case LTE -> "lte";
+                    case GT -> "gt";
+                    case GTE -> "gte";
+                    default -> null;
+                };
+            }
+
+            /** Translate a Boolean expression to a predicate.
+             *
+             * @param expression  Expression to translate.
+             * @param weaken      If true the result may be implied by the expression,
+             *                    instead of being equivalent to it.
+             * @return            null if the expression cannot be translated. */
+            @Nullable
+            JsonNode translate(DBSPExpression expression, boolean weaken) {
+                expression = this.strip(expression);
+                if (expression.is(DBSPUnaryExpression.class)) {
+                    DBSPUnaryExpression unary = expression.to(DBSPUnaryExpression.class);
+                    switch (unary.opcode) {
+                        case WRAP_BOOL:
+                            // NULL is false in a filter
+                            return this.translate(unary.source, weaken);
+                        case NOT: {
+                            // The translation of the argument is TRUE exactly when the argument
+                            // is TRUE, but WRAP_BOOL may have turned some NULLs into FALSE,
+                            // so only the negation of a non-nullable argument can be exported.
+                            if (unary.source.getType().mayBeNull)
+                                return null;
+                            JsonNode arg = this.translate(unary.source, false);
+                            if (arg == null)
+                                return null;
+                            ObjectNode result = mapper.createObjectNode();
+                            result.put("op", "is_not_true");
+                            result.set("arg", arg);
+                            return result;
+                        }
+                        case IS_NOT_TRUE: {
+                            // Never NULL, and exact even if the argument is nullable
+                            JsonNode arg = this.translate(unary.source, false);
+                            if (arg == null)
+                                return null;
+                            ObjectNode result = mapper.createObjectNode();
+                            result.put("op", "is_not_true");
+                            result.set("arg", arg);
+                            return result;
+                        }
+                        default:
+                            return null;
+                    }
+                } else if (expression.is(DBSPIsNullExpression.class)) {
+                    JsonNode arg = this.operand(expression.to(DBSPIsNullExpression.class).expression);
+                    if (arg == null)
+                        return null;
+                    ObjectNode result = mapper.createObjectNode();
+                    result.put("op", "is_null");
+                    result.set("arg", arg);
+                    return result;
+                } else if (expression.is(DBSPBinaryExpression.class)) {
+                    DBSPBinaryExpression binary = expression.to(DBSPBinaryExpression.class);
+                    String comparison = comparison(binary);
+                    if (comparison != null) {
+                        JsonNode left = this.operand(binary.left);
+                        JsonNode right = this.operand(binary.right);
+                        if (left == null || right == null)
+                            return null;
+                        ObjectNode result = mapper.createObjectNode();
+                        result.put("op", comparison);
+                        result.set("left", left);
+                        result.set("right", right);
+                        return result;
+                    }
+                    JsonNode left = this.translate(binary.left, weaken);
+                    JsonNode right = this.translate(binary.right, weaken);
+                    switch (binary.opcode) {
+                        case AND:
+                            // Each side is implied by the conjunction
+                            if (left == null)
+                                return weaken ? right : null;
+                            if (right == null)
+                                return weaken ? left : null;
+                            return combine("and", List.of(left, right));
+                        case OR:
+                            if (left == null || right == null)
+                                return null;
+                            return combine("or", List.of(left, right));
+                        default:
+                            return null;
+                    }
+                }
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer;
+
+import org.dbsp.sqlCompiler.circuit.DBSPCircuit;
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.annotation.EliminatedJoin;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamJoinOperator;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.InnerVisitor;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.monotonicity.KeyPropagation;
+import org.dbsp.sqlCompiler.ir.DBSPParameter;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeTupleBase;
+import org.dbsp.util.Linq;
+import org.dbsp.util.Logger;
+
+/** Removes joins between a primary key and a foreign key referring to it
+ * when the join cannot change the result.  This is the case when:
+ * - the key side is the entire table, indexed by its primary key,
+ * - the other side is indexed by a foreign key that refers to this primary key,
+ * - the key fields cannot be NULL,
+ * - the join function does not use any value from the key side.
+ * Each row from the foreign key side then matches exactly one row of the table,
+ * so the join is just a projection of the foreign key side.
+ * The compiler does not check FOREIGN KEY constraints, so this is only applied
+ * when the user asserts that they hold. */
+public class JoinElimination implements CircuitTransform {
+    final DBSPCompiler compiler;
+
+    public JoinElimination(DBSPCompiler compiler) {
+        this.compiler = compiler;
+    }
+
+    @Override
+    public DBSPCircuit apply(DBSPCircuit circuit) {
+        KeyPropagation keys = new KeyPropagation(this.compiler);
+        keys.apply(circuit);
+        if (keys.joins.isEmpty())
+            return circuit;
+        EliminateJoins eliminate = new EliminateJoins(this.compiler, keys);
+        return eliminate.apply(circuit);
+    }
+
+    @Override
+    public String getName() {
+        return "JoinElimination";
+    }
+
+    /** True if the parameter is referred to in the body of the closure */
+    static boolean uses(DBSPCompiler compiler, DBSPClosureExpression closure, DBSPParameter parameter) {
+        boolean[] found = new boolean[] { false };
+        InnerVisitor finder = new InnerVisitor(compiler) {
+            @Override
+            public void postorder(DBSPVariablePath var) {
+                if (var.variable.equals(parameter.name))
+                    found[0] = true;
+            }
+        };
+        finder.apply(closure.body);
+        return found[0];
+    }
+
+    static class EliminateJoins extends CircuitCloneVisitor {
+        final KeyPropagation keys;
+
+        EliminateJoins(DBSPCompiler compiler, KeyPropagation keys) {
+            super(compiler, false);
+            this.keys = keys;
+        }
+
+        @Override
+        public void postorder(DBSPStreamJoinOperator join) {
+            KeyPropagation.JoinDescription description = this.keys.joins.get(join);
+            if (description == null || !this.keys.isExactForeignKeyJoin(description)) {
+                this.replace(join);
+                return;
+            }
+
+            boolean leftIsKey = description.leftIsKey();
+            OutputPort keySide = leftIsKey ? join.left() : join.right();
+            OutputPort foreignSide = leftIsKey ? join.right() : join.left();
+            // The key side must contain every row of the table
+            DBSPMapIndexOperator index = keySide.node().as(DBSPMapIndexOperator.class);
+            if (index == null || index.input().node() != description.table()) {
+                this.replace(join);
+                return;
+            }
+            // Rows with a NULL foreign key have no match
+            DBSPTypeTupleBase keyType = join.getKeyType().to(DBSPTypeTupleBase.class);
+            if (Linq.any(keyType.tupFields, t -> t.mayBeNull)) {
+                this.replace(join);
+                return;
+            }
+            DBSPClosureExpression function = join.getClosureFunction();
+            DBSPParameter keyValue = function.parameters[leftIsKey ? 1 : 2];
+            DBSPParameter foreignValue = function.parameters[leftIsKey ? 2 : 1];
+            if (uses(this.compiler(), function, keyValue)) {
+                this.replace(join);
+                return;
+            }
+
+            OutputPort input = this.mapped(foreignSide);
+            DBSPVariablePath kv = input.getOutputIndexedZSetType().getKVRefType().var();
+            DBSPClosureExpression projection = new DBSPClosureExpression(
+                    function.getNode(), function.body, function.parameters[0], foreignValue)
+                    .call(kv.field(0), kv.field(1))
+                    .closure(kv)
+                    .reduce(this.compiler())
+                    .to(DBSPClosureExpression.class);
+            String table = description.table().tableName.toString();
+            DBSPMapOperator map = new DBSPMapOperator(join.getRelNode(), projection,
+                    join.getOutputZSetType(), join.isMultiset, input)
+                    .copyAnnotations(join)
+                    .addAnnotation(new EliminatedJoin(table), DBSPMapOperator.class);
+            Logger.INSTANCE.belowLevel(this, 1)
+                    .append("Eliminated join with ")
+                    .append(table)
+                    .append(" ")
+                    .appendSupplier(join::toString)
+                    .newline();
+            this.map(join, map);
+        }
+    }
+}
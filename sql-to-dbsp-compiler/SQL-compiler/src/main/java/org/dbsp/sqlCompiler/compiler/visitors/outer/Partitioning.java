@@ -0,0 +1,327 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer;
+
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.annotation.Sharded;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessRetainKeysOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateOperatorBase;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAntiJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPChainAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDifferentiateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDistinctOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPFilterOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPIndexedTopKOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPIntegrateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinBaseOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLagOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLagWithWaterlineOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLeftJoinIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPNegateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPNoopOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPPartitionedRollingAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSimpleOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSourceMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamDistinctOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamJoinIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSubtractOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSumOperator;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.ir.IDBSPOuterNode;
+import org.dbsp.sqlCompiler.ir.expression.DBSPCloneExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPDerefExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPFieldExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPRawTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeTupleBase;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Logger;
+import org.dbsp.util.graph.Port;
+
+import javax.annotation.Nullable;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Finds streams that are already partitioned across workers by their key.
+ *
+ * <p>Operators such as joins and aggregates shard their inputs by key
+ * (an exchange between workers) unless the runtime knows that the input is already sharded.
+ * The runtime knows this for the outputs of aggregates and distinct, and propagates it through
+ * filters, negations, sums, and differentiators.  It does not know it for the output of
+ * a join whose output key is the join key, or for an index operator that keeps the key
+ * of a sharded input, e.g., a join followed by an aggregate on the join key.
+ * Such operators are annotated with {@link Sharded} if their output reaches an operator
+ * that shards its input; the Rust backend marks their output as sharded, which
+ * removes the exchange. */
+public class Partitioning extends Passes {
+    public Partitioning(DBSPCompiler compiler) {
+        super("Partitioning", compiler);
+        Graph graph = new Graph(compiler);
+        this.add(graph);
+        this.add(new FindPartitioned(compiler, graph.getGraphs()));
+    }
+
+    /** True if the operator shards its inputs by key */
+    static boolean shardsInputs(DBSPOperator operator) {
+        return operator.is(DBSPJoinBaseOperator.class) ||
+                operator.is(DBSPAntiJoinOperator.class) ||
+                operator.is(DBSPAggregateOperatorBase.class) ||
+                operator.is(DBSPAggregateLinearPostprocessOperator.class) ||
+                operator.is(DBSPAggregateLinearPostprocessRetainKeysOperator.class) ||
+                operator.is(DBSPChainAggregateOperator.class) ||
+                operator.is(DBSPIndexedTopKOperator.class) ||
+                operator.is(DBSPLagOperator.class) ||
+                operator.is(DBSPLagWithWaterlineOperator.class) ||
+                operator.is(DBSPPartitionedRollingAggregateOperator.class) ||
+                operator.is(DBSPDistinctOperator.class) ||
+                operator.is(DBSPStreamDistinctOperator.class);
+    }
+
+    /** True if the runtime produces a sharded output for a sharded input */
+    static boolean preservesSharding(DBSPOperator operator) {
+        return operator.is(DBSPFilterOperator.class) ||
+                operator.is(DBSPNegateOperator.class) ||
+                operator.is(DBSPDifferentiateOperator.class) ||
+                operator.is(DBSPIntegrateOperator.class) ||
+                operator.is(DBSPNoopOperator.class);
+    }
+
+    /** True if the runtime marks the output of the operator as sharded by key */
+    static boolean producesSharded(DBSPOperator operator) {
+        return operator.is(DBSPAggregateOperatorBase.class) ||
+                operator.is(DBSPAggregateLinearPostprocessOperator.class) ||
+                operator.is(DBSPAggregateLinearPostprocessRetainKeysOperator.class) ||
+                operator.is(DBSPChainAggregateOperator.class) ||
+                operator.is(DBSPIndexedTopKOperator.class) ||
+                operator.is(DBSPLagOperator.class) ||
+                operator.is(DBSPLagWithWaterlineOperator.class) ||
+                operator.is(DBSPPartitionedRollingAggregateOperator.class) ||
+                operator.is(DBSPDistinctOperator.class) ||
+                operator.is(DBSPStreamDistinctOperator.class) ||
+                operator.is(DBSPSourceMapOperator.class);
+    }
+
+    /** Remove clones from an expression */
+    static DBSPExpression strip(DBSPExpression expression) {
+        while (expression.is(DBSPCloneExpression.class))
+            expression = expression.to(DBSPCloneExpression.class).expression;
+        return expression;
+    }
+
+    /** True if the two expressions are the same path from a variable */
+    static boolean samePath(DBSPExpression left, DBSPExpression right) {
+        left = strip(left);
+        if (left.is(DBSPVariablePath.class) && right.is(DBSPVariablePath.class))
+            return left.to(DBSPVariablePath.class).variable.equals(right.to(DBSPVariablePath.class).variable);
+        if (left.is(DBSPDerefExpression.class) && right.is(DBSPDerefExpression.class))
+            return samePath(left.to(DBSPDerefExpression.class).expression, right.to(DBSPDerefExpression.class).expression);
+        if (left.is(DBSPFieldExpression.class) && right.is(DBSPFieldExpression.class)) {
+            DBSPFieldExpression lf = left.to(DBSPFieldExpression.class);
+            DBSPFieldExpression rf = right.to(DBSPFieldExpression.class);
+            return lf.fieldNo == rf.fieldNo && samePath(lf.expression, rf.expression);
+        }
+        return false;
+    }
+
+    /** The expression computing a field of the value produced by an index operator,
+     * or null if it cannot be determined.  The expression refers to the parameter
+     * of the index operator. */
+    @Nullable
+    static DBSPExpression valueField(DBSPMapIndexOperator index, int field) {
+        DBSPClosureExpression function = index.getClosureFunction();
+        if (!function.body.is(DBSPRawTupleExpression.class))
+            return null;
+        DBSPExpression value = strip(function.body.to(DBSPRawTupleExpression.class).get(1));
+        if (value.is(DBSPTupleExpression.class)) {
+            DBSPTupleExpression tuple = value.to(DBSPTupleExpression.class);
+            if (tuple.fields == null || field >= tuple.size())
+                return null;
+            return tuple.get(field);
+        }
+        if (!value.getType().is(DBSPTypeTupleBase.class) ||
+                field >= value.getType().to(DBSPTypeTupleBase.class).size())
+            return null;
+        return value.field(field);
+    }
+
+    /** The expression computing a field of the key produced by an index operator,
+     * or null if it cannot be determined. */
+    @Nullable
+    static DBSPExpression keyField(DBSPMapIndexOperator index, int field) {
+        DBSPClosureExpression function = index.getClosureFunction();
+        if (!function.body.is(DBSPRawTupleExpression.class))
+            return null;
+        DBSPExpression key = strip(function.body.to(DBSPRawTupleExpression.class).get(0));
+        if (!key.is(DBSPTupleExpression.class))
+            return null;
+        DBSPTupleExpression tuple = key.to(DBSPTupleExpression.class);
+        if (tuple.fields == null || field >= tuple.size())
+            return null;
+        return tuple.get(field);
+    }
+
+    /** True if 'expression' has the same value as field 'field' of the key
+     * of a join.
+     *
+     * @param expression  Expression in the join function.
+     * @param field       Field of the join key.
+     * @param join        Join operator.
+     * @param function    Join function, with parameters (key, left, right). */
+    static boolean isKeyField(DBSPExpression expression, int field,
+                              DBSPJoinBaseOperator join, DBSPClosureExpression function) {
+        expression = strip(expression);
+        if (samePath(expression, function.parameters[0].asVariable().deref().field(field)))
+            return true;
+        // A field of the left or right value that is indexed as the key field
+        if (!expression.is(DBSPFieldExpression.class))
+            return false;
+        DBSPFieldExpression fieldExpression = expression.to(DBSPFieldExpression.class);
+        for (int side = 0; side < 2; side++) {
+            if (!samePath(fieldExpression.expression, function.parameters[side + 1].asVariable().deref()))
+                continue;
+            DBSPMapIndexOperator index = join.inputs.get(side).node().as(DBSPMapIndexOperator.class);
+            if (index == null)
+                return false;
+            DBSPExpression value = valueField(index, fieldExpression.fieldNo);
+            DBSPExpression key = keyField(index, field);
+            return value != null && key != null && samePath(value, strip(key));
+        }
+        return false;
+    }
+
+    /** True if the output key of a join is the join key */
+    static boolean keepsJoinKey(DBSPJoinBaseOperator join) {
+        DBSPClosureExpression function = join.getClosureFunction();
+        if (!function.body.is(DBSPRawTupleExpression.class))
+            return false;
+        DBSPType keyType = join.left().getOutputIndexedZSetType().keyType;
+        DBSPExpression outputKey = strip(function.body.to(DBSPRawTupleExpression.class).get(0));
+        if (!outputKey.getType().sameType(keyType))
+            return false;
+        if (samePath(outputKey, function.parameters[0].asVariable().deref()))
+            return true;
+        if (!outputKey.is(DBSPTupleExpression.class))
+            return false;
+        DBSPTupleExpression tuple = outputKey.to(DBSPTupleExpression.class);
+        if (tuple.fields == null)
+            return false;
+        for (int i = 0; i < tuple.size(); i++) {
+            if (!isKeyField(tuple.get(i), i, join, function))
+                return false;
+        }
+        return true;
+    }
+
+    /** True if the output key of an index operator is the key of its input */
+    static boolean keepsIndexKey(DBSPMapIndexOperator index) {
+        DBSPClosureExpression function = index.getClosureFunction();
+        if (!function.body.is(DBSPRawTupleExpression.class))
+            return false;
+        DBSPType keyType = index.input().getOutputIndexedZSetType().keyType;
+        DBSPExpression outputKey = strip(function.body.to(DBSPRawTupleExpression.class).get(0));
+        if (!outputKey.getType().sameType(keyType))
+            return false;
+        DBSPExpression inputKey = function.parameters[0].asVariable().field(0).deref();
+        if (samePath(outputKey, inputKey))
+            return true;
+        if (!outputKey.is(DBSPTupleExpression.class))
+            return false;
+        // A tuple built from all fields of the key, in order
+        DBSPTupleExpression tuple = outputKey.to(DBSPTupleExpression.class);
+        if (tuple.fields == null)
+            return false;
+        for (int i = 0; i < tuple.size(); i++) {
+            if (!samePath(tuple.get(i), inputKey.field(i)))
+                return false;
+        }
+        return true;
+    }
+
+    static class FindPartitioned extends CircuitWithGraphsVisitor implements IWritesLogs {
+        /** Operators whose output is partitioned by key */
+        final Set<DBSPOperator> partitioned;
+
+        FindPartitioned(DBSPCompiler compiler, CircuitGraphs graphs) {
+            super(compiler, graphs);
+            this.partitioned = new HashSet<>();
+        }
+
+        @Override
+        public Token startVisit(IDBSPOuterNode node) {
+            this.partitioned.clear();
+            return super.startVisit(node);
+        }
+
+        boolean isPartitioned(OutputPort port) {
+            return this.partitioned.contains(port.node()) &&
+                    port.outputType().is(DBSPTypeIndexedZSet.class);
+        }
+
+        /** True if the output of the operator reaches an operator that shards it */
+        boolean reachesShard(DBSPOperator operator) {
+            List<Port<DBSPOperator>> successors = this.getGraph().getSuccessors(operator);
+            for (Port<DBSPOperator> successor: successors) {
+                DBSPOperator next = successor.node();
+                if (shardsInputs(next))
+                    return true;
+                if (preservesSharding(next) && this.reachesShard(next))
+                    return true;
+            }
+            return false;
+        }
+
+        /** True if the operator computes a partitioned output that the runtime
+         * does not know about */
+        boolean needsHint(DBSPSimpleOperator operator) {
+            if (operator.is(DBSPJoinIndexOperator.class) ||
+                    operator.is(DBSPLeftJoinIndexOperator.class) ||
+                    operator.is(DBSPStreamJoinIndexOperator.class)) {
+                // The join inputs are always sharded
+                return keepsJoinKey(operator.to(DBSPJoinBaseOperator.class));
+            }
+            if (operator.is(DBSPMapIndexOperator.class)) {
+                DBSPMapIndexOperator index = operator.to(DBSPMapIndexOperator.class);
+                return this.isPartitioned(index.input()) && keepsIndexKey(index);
+            }
+            return false;
+        }
+
+        @Override
+        public void postorder(DBSPSimpleOperator operator) {
+            if (!operator.outputType.is(DBSPTypeIndexedZSet.class))
+                return;
+            boolean result;
+            if (producesSharded(operator)) {
+                result = true;
+            } else if (preservesSharding(operator) ||
+                    operator.is(DBSPSumOperator.class) ||
+                    operator.is(DBSPSubtractOperator.class)) {
+                result = !operator.inputs.isEmpty();
+                for (OutputPort input: operator.inputs)
+                    result = result && this.isPartitioned(input);
+            } else if (this.needsHint(operator)) {
+                result = true;
+                if (this.reachesShard(operator) && !operator.hasAnnotation(Sharded.class)) {
+                    operator.addAnnotation(Sharded.INSTANCE, DBSPSimpleOperator.class);
+                    Logger.INSTANCE.belowLevel(this, 1)
+                            .append("Output of ")
+                            .appendSupplier(operator::toString)
+                            .append(" is sharded")
+                            .newline();
+                }
+            } else {
+                result = false;
+            }
+            if (result)
+                this.partitioned.add(operator);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer;
+
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeTupleBase;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeZSet;
+
+/** Numbering of the fields of the rows of a collection, used by the analyses
+ * which track properties of individual fields.  The flattened row of an indexed
+ * collection has the key fields followed by the value fields. */
+public final class RowFields {
+    private RowFields() {}
+
+    /** Maps a reference param.field or param.component.field in a closure
+     * to the index of an input field, or -1 if there is no such field. */
+    public interface InputField {
+        int index(int parameter, int component, int field);
+    }
+
+    /** Number of fields of a value of the specified type */
+    public static int size(DBSPType type) {
+        if (type.is(DBSPTypeTupleBase.class))
+            return type.to(DBSPTypeTupleBase.class).size();
+        return 1;
+    }
+
+    /** Number of key fields of a collection of the specified type, 0 if the collection is not indexed */
+    public static int keySize(DBSPType collectionType) {
+        if (collectionType.is(DBSPTypeIndexedZSet.class))
+            return size(collectionType.to(DBSPTypeIndexedZSet.class).keyType);
+        return 0;
+    }
+
+    public static int keySize(OutputPort port) {
+        return keySize(port.outputType());
+    }
+
+    /** Number of fields of the flattened rows of a collection of the specified type */
+    public static int rowSize(DBSPType collectionType) {
+        if (collectionType.is(DBSPTypeIndexedZSet.class)) {
+            DBSPTypeIndexedZSet ix = collectionType.to(DBSPTypeIndexedZSet.class);
+            return size(ix.keyType) + size(ix.elementType);
+        }
+        if (collectionType.is(DBSPTypeZSet.class))
+            return size(collectionType.to(DBSPTypeZSet.class).elementType);
+        return 1;
+    }
+
+    /** Number of fields of the flattened rows of a stream */
+    public static int rowSize(OutputPort port) {
+        return rowSize(port.outputType());
+    }
+}
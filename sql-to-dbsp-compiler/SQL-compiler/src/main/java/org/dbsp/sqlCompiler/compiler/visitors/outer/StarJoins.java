@@ -0,0 +1,277 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer;
+
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinBaseOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSimpleOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamJoinIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamJoinOperator;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.frontend.TypeCompiler;
+import org.dbsp.sqlCompiler.compiler.frontend.calciteObject.CalciteRelNode;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.monotonicity.KeyPropagation;
+import org.dbsp.sqlCompiler.ir.DBSPParameter;
+import org.dbsp.sqlCompiler.ir.expression.DBSPBaseTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPCloneExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPDerefExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPFieldExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPRawTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeZSet;
+import org.dbsp.util.Linq;
+import org.dbsp.util.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Detects cascades of non-incremental joins that all use the same key and
+ * reorders their inputs such that inputs which are unique on the join key
+ * (e.g., dimension tables indexed by their primary key) come first.
+ * The cascade is rebuilt as a left-deep cascade of binary joins in this order.
+ * After incrementalization each binary join keeps a trace of both inputs;
+ * joining the unique inputs first bounds the size of the intermediate traces
+ * by the size of the smaller collections instead of the size of the largest one. */
+public class StarJoins extends Passes {
+    public StarJoins(DBSPCompiler compiler) {
+        super("StarJoins", compiler);
+        Graph graph = new Graph(compiler);
+        KeyPropagation keys = new KeyPropagation(compiler);
+        this.add(graph);
+        this.add(keys);
+        this.add(new ReorderStarJoins(compiler, graph.graphs, keys));
+        this.add(new DeadCode(compiler, true));
+    }
+
+    /** A join tree flattened into a list of leaves.
+     *
+     * @param leaves     Input streams of the tree, from left to right.
+     * @param parameters One parameter for each leaf, a reference to the leaf value.
+     * @param value      An expression that computes a reference to the value
+     *                   produced by the join tree, using the parameters. */
+    record Flattened(List<OutputPort> leaves, List<DBSPVariablePath> parameters, DBSPExpression value) {}
+
+    static class ReorderStarJoins extends CircuitCloneWithGraphsVisitor {
+        final KeyPropagation keys;
+
+        ReorderStarJoins(DBSPCompiler compiler, CircuitGraphs graphs, KeyPropagation keys) {
+            super(compiler, graphs, false);
+            this.keys = keys;
+        }
+
+        /** True if the expression is a (possibly cloned) copy of the key parameter,
+         * either as a whole, or as a tuple with all its fields in order. */
+        static boolean isKeyIdentity(DBSPExpression expression, DBSPParameter key) {
+            if (expression.is(DBSPCloneExpression.class))
+                expression = expression.to(DBSPCloneExpression.class).expression;
+            if (isDerefOf(expression, key))
+                return true;
+            if (!expression.is(DBSPTupleExpression.class))
+                return false;
+            DBSPBaseTupleExpression tuple = expression.to(DBSPBaseTupleExpression.class);
+            if (tuple.fields == null)
+                return false;
+            for (int i = 0; i < tuple.fields.length; i++) {
+                DBSPExpression field = tuple.fields[i];
+                if (field.is(DBSPCloneExpression.class))
+                    field = field.to(DBSPCloneExpression.class).expression;
+                DBSPFieldExpression fe = field.as(DBSPFieldExpression.class);
+                if (fe == null || fe.fieldNo != i || !isDerefOf(fe.expression, key))
+                    return false;
+            }
+            return true;
+        }
+
+        static boolean isDerefOf(DBSPExpression expression, DBSPParameter parameter) {
+            DBSPDerefExpression deref = expression.as(DBSPDerefExpression.class);
+            if (deref == null)
+                return false;
+            DBSPVariablePath var = deref.expression.as(DBSPVariablePath.class);
+            return var != null && var.variable.equals(parameter.name);
+        }
+
+        /** True if the join can be absorbed in a consumer join that uses the key type 'keyType' */
+        boolean canFuse(OutputPort port, DBSPType keyType) {
+            if (!port.node().is(DBSPStreamJoinIndexOperator.class))
+                return false;
+            DBSPStreamJoinIndexOperator join = port.node().to(DBSPStreamJoinIndexOperator.class);
+            if (this.getGraph().getSuccessors(join).size() != 1)
+                return false;
+            if (!join.getKeyType().sameType(keyType) ||
+                    !join.getOutputIndexedZSetType().keyType.sameType(keyType))
+                return false;
+            DBSPClosureExpression function = join.getClosureFunction();
+            DBSPRawTupleExpression body = function.body.as(DBSPRawTupleExpression.class);
+            if (body == null || body.fields == null)
+                return false;
+            return isKeyIdentity(body.fields[0], function.parameters[0]);
+        }
+
+        Flattened flatten(OutputPort port, DBSPVariablePath key) {
+            if (!this.canFuse(port, key.getType().deref())) {
+                DBSPVariablePath var = port.getOutputIndexedZSetType().elementType.ref().var();
+                return new Flattened(Linq.list(port), Linq.list(var), var);
+            }
+
+            DBSPStreamJoinIndexOperator join = port.node().to(DBSPStreamJoinIndexOperator.class);
+            Flattened left = this.flatten(join.left(), key);
+            Flattened right = this.flatten(join.right(), key);
+            DBSPClosureExpression function = join.getClosureFunction();
+            DBSPRawTupleExpression body = function.body.to(DBSPRawTupleExpression.class);
+            DBSPClosureExpression valueFunction = body.fields[1].closure(function.parameters);
+            DBSPExpression value = valueFunction.call(key, left.value, right.value).borrow();
+            List<OutputPort> leaves = new ArrayList<>(left.leaves);
+            leaves.addAll(right.leaves);
+            List<DBSPVariablePath> parameters = new ArrayList<>(left.parameters);
+            parameters.addAll(right.parameters);
+            return new Flattened(leaves, parameters, value);
+        }
+
+        boolean isUnique(OutputPort port) {
+            if (!port.isSimpleNode())
+                return false;
+            return this.keys.isUniqueOnKey(port.simpleNode());
+        }
+
+        void process(DBSPJoinBaseOperator join) {
+            DBSPType keyType = join.getKeyType();
+            if (!this.canFuse(join.left(), keyType) && !this.canFuse(join.right(), keyType)) {
+                this.replace(join);
+                return;
+            }
+
+            DBSPClosureExpression function = join.getClosureFunction();
+            DBSPVariablePath key = function.parameters[0].asVariable();
+            Flattened left = this.flatten(join.left(), key);
+            Flattened right = this.flatten(join.right(), key);
+            List<OutputPort> leaves = new ArrayList<>(left.leaves);
+            leaves.addAll(right.leaves);
+            List<DBSPVariablePath> parameters = new ArrayList<>(left.parameters);
+            parameters.addAll(right.parameters);
+
+            // Stable reordering: inputs unique on the key first
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < leaves.size(); i++)
+                if (this.isUnique(leaves.get(i)))
+                    order.add(i);
+            for (int i = 0; i < leaves.size(); i++)
+                if (!this.isUnique(leaves.get(i)))
+                    order.add(i);
+            boolean reordered = false;
+            for (int i = 0; i < order.size(); i++)
+                if (order.get(i) != i) {
+                    reordered = true;
+                    break;
+                }
+            if (!reordered) {
+                // The existing cascade already has the desired shape
+                this.replace(join);
+                return;
+            }
+
+            List<OutputPort> inputs = new ArrayList<>();
+            List<DBSPVariablePath> newParameters = new ArrayList<>();
+            newParameters.add(key);
+            for (int i: order) {
+                inputs.add(this.mapped(leaves.get(i)));
+                newParameters.add(parameters.get(i));
+            }
+            DBSPExpression body = function.call(key, left.value, right.value);
+            DBSPClosureExpression newFunction = body
+                    .closure(newParameters.toArray(new DBSPVariablePath[0]))
+                    .reduce(this.compiler())
+                    .to(DBSPClosureExpression.class);
+            boolean isMultiset = Linq.any(inputs, OutputPort::isMultiset);
+            DBSPSimpleOperator result = this.cascade(join, newFunction, isMultiset, inputs);
+            Logger.INSTANCE.belowLevel(this, 1)
+                    .append("Join cascade with ")
+                    .append(inputs.size())
+                    .append(" inputs reordered, replaces ")
+                    .appendSupplier(join::toString)
+                    .newline();
+            this.map(join, result);
+        }
+
+        /** Build a left-deep cascade of {@link DBSPStreamJoinIndexOperator}s joining
+         * the inputs in order, followed by a final binary join which applies 'function'.
+         *
+         * @param join       Join that is replaced by the cascade.
+         * @param function   Function with a key parameter followed by one parameter for each input.
+         * @param isMultiset True if the result may contain duplicates.
+         * @param inputs     Inputs in the order in which they are joined. */
+        DBSPSimpleOperator cascade(DBSPJoinBaseOperator join, DBSPClosureExpression function,
+                                   boolean isMultiset, List<OutputPort> inputs) {
+            CalciteRelNode node = join.getRelNode();
+            DBSPType keyType = join.getKeyType();
+            int count = inputs.size();
+
+            // Accumulated stream: a tuple with the values of the first 'joined' inputs
+            OutputPort accumulated = inputs.get(0);
+            int joined = 1;
+            for (int i = 1; i < count - 1; i++) {
+                OutputPort right = inputs.get(i);
+                DBSPVariablePath k = keyType.ref().var();
+                DBSPVariablePath l = accumulated.getOutputIndexedZSetType().elementType.ref().var();
+                DBSPVariablePath r = right.getOutputIndexedZSetType().elementType.ref().var();
+                List<DBSPExpression> fields = new ArrayList<>();
+                if (joined == 1) {
+                    fields.add(l.deref().applyCloneIfNeeded());
+                } else {
+                    for (int j = 0; j < joined; j++)
+                        fields.add(l.deref().field(j).applyCloneIfNeeded());
+                }
+                fields.add(r.deref().applyCloneIfNeeded());
+                DBSPTupleExpression value = new DBSPTupleExpression(fields, false);
+                DBSPClosureExpression step = new DBSPRawTupleExpression(
+                        k.deref().applyCloneIfNeeded(), value).closure(k, l, r);
+                DBSPStreamJoinIndexOperator intermediate = new DBSPStreamJoinIndexOperator(
+                        node, TypeCompiler.makeIndexedZSet(keyType, value.getType()),
+                        step, accumulated.isMultiset() || right.isMultiset(), accumulated, right);
+                this.addOperator(intermediate);
+                accumulated = intermediate.outputPort();
+                joined++;
+            }
+
+            OutputPort last = inputs.get(count - 1);
+            DBSPVariablePath k = keyType.ref().var();
+            DBSPVariablePath l = accumulated.getOutputIndexedZSetType().elementType.ref().var();
+            DBSPVariablePath r = last.getOutputIndexedZSetType().elementType.ref().var();
+            DBSPExpression[] arguments = new DBSPExpression[count + 1];
+            arguments[0] = k;
+            if (joined == 1) {
+                arguments[1] = l;
+            } else {
+                for (int j = 0; j < joined; j++)
+                    arguments[j + 1] = l.deref().field(j).borrow();
+            }
+            arguments[count] = r;
+            DBSPClosureExpression finalFunction = function.call(arguments)
+                    .closure(k, l, r)
+                    .reduce(this.compiler())
+                    .to(DBSPClosureExpression.class);
+            DBSPSimpleOperator result;
+            if (join.outputType.is(DBSPTypeIndexedZSet.class)) {
+                result = new DBSPStreamJoinIndexOperator(node, join.getOutputIndexedZSetType(),
+                        finalFunction, isMultiset, accumulated, last);
+            } else {
+                result = new DBSPStreamJoinOperator(node, join.outputType.to(DBSPTypeZSet.class),
+                        finalFunction, isMultiset, accumulated, last);
+            }
+            result.copyAnnotations(join);
+            return result;
+        }
+
+        @Override
+        public void postorder(DBSPStreamJoinOperator join) {
+            this.process(join);
+        }
+
+        @Override
+        public void postorder(DBSPStreamJoinIndexOperator join) {
+            this.process(join);
+        }
+    }
+}
@@ -0,0 +1,657 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessRetainKeysOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateOperatorBase;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateZeroOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAntiJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAsofJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPChainAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPConcreteAsofJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPConstantOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDeindexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDistinctOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPFilterOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPFlatMapIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPFlatMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPHopOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinBaseOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinFilterMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLeftJoinFilterMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLeftJoinIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLeftJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPNestedOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPPartitionedRollingAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPPrimitiveAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSimpleOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSourceMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSourceTableOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamDistinctOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSubtractOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSumOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPViewBaseOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPViewDeclarationOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPWindowOperator;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.InputColumnMetadata;
+import org.dbsp.sqlCompiler.compiler.frontend.statements.CreateTableStatement;
+import org.dbsp.sqlCompiler.compiler.frontend.statements.IHasSchema;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.intern.ChooseInternedInputs;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.monotonicity.IntegratedTraces;
+import org.dbsp.sqlCompiler.ir.IDBSPOuterNode;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPZSetExpression;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeTupleBase;
+import org.dbsp.sqlCompiler.ir.type.primitive.DBSPTypeDecimal;
+import org.dbsp.sqlCompiler.ir.type.primitive.DBSPTypeVariant;
+import org.dbsp.sqlCompiler.ir.type.primitive.IHasPrecision;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeArray;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeMap;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeZSet;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Logger;
+import org.dbsp.util.Utilities;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/** Computes static estimates of the resources used by each operator of a circuit:
+ * the number of rows of each stream, the state retained in integrated traces,
+ * and the work performed in a step.
+ *
+ * <p>The size of an input table is given by its 'expected_size' property.
+ * The number of distinct values of a column is known if the column is the primary key,
+ * or if it is declared using the 'distinct_values' table property; these are used to
+ * estimate the number of groups of aggregates and the size of joins.
+ * Traces that are garbage-collected are assumed to retain {@link #RETAINED_FRACTION} of their rows.
+ *
+ * <p>The work of an operator is the number of rows it reads, writes, or looks up
+ * in its traces in a step.  In an incremental circuit a step is assumed to change
+ * {@link #STEP_FRACTION} of the rows of each table; otherwise each step processes all rows.
+ * The estimates are only meant to compare operators and views with each other. */
+public class StateEstimator extends CircuitVisitor implements IWritesLogs, IntegratedTraces.Consumer {
+    /** Rows assumed for a table without an 'expected_size' property */
+    static final double DEFAULT_ROWS = 1_000_000;
+    /** Fraction of the input rows assumed to pass a filter */
+    static final double FILTER_SELECTIVITY = 0.5;
+    /** Rows assumed to be produced by a flatmap for each input row */
+    static final double FLATMAP_FANOUT = 4;
+    /** Fraction of the rows of a garbage-collected trace which are assumed to be retained */
+    static final double RETAINED_FRACTION = 0.1;
+    /** Fraction of the rows of each collection assumed to change in a step of an incremental circuit */
+    static final double STEP_FRACTION = 0.01;
+    /** Bytes assumed for values whose size is not bounded */
+    static final int UNBOUNDED_WIDTH = 256;
+    /** Bytes assumed for values of other types */
+    static final int SCALAR_WIDTH = 8;
+
+    /** Estimated size of a stream.
+     *
+     * @param rows     Number of rows of the collection.
+     * @param distinct For each field of the flattened rows the estimated number of distinct values,
+     *                 or null if unknown.  The fields of an indexed collection are the key fields
+     *                 followed by the value fields.
+     * @param declared True if the sizes of all the tables that contribute to the stream are declared. */
+    record StreamSize(double rows, List<Double> distinct, boolean declared) {
+        StreamSize {
+            rows = Math.max(rows, 0);
+        }
+
+        @Nullable
+        Double distinct(int field) {
+            if (field < 0 || field >= this.distinct.size())
+                return null;
+            return this.distinct.get(field);
+        }
+
+        /** Number of distinct values of the fields in [0, fields), bounded by the number of rows */
+        double groups(int fields) {
+            if (fields == 0)
+                return Math.min(1, this.rows);
+            double result = 1;
+            for (int i = 0; i < fields; i++) {
+                Double d = this.distinct(i);
+                if (d == null)
+                    return this.rows;
+                result *= d;
+            }
+            return Math.min(result, this.rows);
+        }
+    }
+
+    /** Estimated resources used by an operator.
+     *
+     * @param rows             Rows of the output collection.
+     * @param rowBytes         Bytes of an output row.
+     * @param stateRows        Rows retained in the traces of the operator.
+     * @param stateBytes       Bytes retained in the traces of the operator.
+     * @param work             Rows processed in a step.
+     * @param traces           Number of integrated traces maintained by the operator.
+     * @param unboundedTraces  Number of traces which are never garbage-collected.
+     * @param declared         True if the estimate only depends on declared table sizes. */
+    public record Estimate(double rows, int rowBytes, double stateRows, double stateBytes,
+                           double work, int traces, int unboundedTraces, boolean declared) {
+        public ObjectNode asJson(ObjectMapper mapper) {
+            ObjectNode result = mapper.createObjectNode();
+            result.put("rows", Math.round(this.rows));
+            result.put("row_bytes", this.rowBytes);
+            result.put("state_rows", Math.round(this.stateRows));
+            result.put("state_bytes", Math.round(this.stateBytes));
+            result.put("work", Math.round(this.work));
+            if (this.traces > 0) {
+                result.put("traces", this.traces);
+                result.put("unbounded_traces", this.unboundedTraces);
+            }
+            result.put("declared_sizes", this.declared);
+            return result;
+        }
+    }
+
+    /** An integrated trace of an operator */
+    record Trace(DBSPSimpleOperator operator, OutputPort stream, boolean bounded) {}
+
+    final Map<OutputPort, StreamSize> sizes;
+    /** Simple operators in visit order */
+    final List<DBSPSimpleOperator> operators;
+    /** Integrated traces of each operator */
+    final Map<DBSPSimpleOperator, List<Trace>> traces;
+    /** Streams whose integrals are garbage-collected */
+    final Set<OutputPort> collected;
+    /** Results */
+    final Map<DBSPOperator, Estimate> estimates;
+    /** Views, and the operators they are computed from */
+    final Map<String, Set<DBSPOperator>> views;
+
+    public StateEstimator(DBSPCompiler compiler) {
+        super(compiler);
+        this.sizes = new HashMap<>();
+        this.operators = new ArrayList<>();
+        this.traces = new HashMap<>();
+        this.collected = new HashSet<>();
+        this.estimates = new LinkedHashMap<>();
+        this.views = new TreeMap<>();
+    }
+
+    @Override
+    public Token startVisit(IDBSPOuterNode node) {
+        this.sizes.clear();
+        this.operators.clear();
+        this.traces.clear();
+        this.collected.clear();
+        this.estimates.clear();
+        this.views.clear();
+        return super.startVisit(node);
+    }
+
+    /** The estimate for an operator, or null if the operator is not a simple operator */
+    @Nullable
+    public Estimate get(DBSPOperator operator) {
+        return this.estimates.get(operator);
+    }
+
+    /** Estimated width of a value of the specified type in bytes */
+    static int width(DBSPType type) {
+        if (type.is(DBSPTypeTupleBase.class)) {
+            int result = 0;
+            for (DBSPType field: type.to(DBSPTypeTupleBase.class).tupFields)
+                result += width(field);
+            return result;
+        }
+        if (type.is(DBSPTypeDecimal.class))
+            return 2 * SCALAR_WIDTH;
+        if (type.is(IHasPrecision.class)) {
+            int precision = type.to(IHasPrecision.class).getPrecision();
+            if (precision == IHasPrecision.UNLIMITED_PRECISION || precision > UNBOUNDED_WIDTH)
+                return UNBOUNDED_WIDTH;
+            return precision;
+        }
+        if (type.is(DBSPTypeArray.class) || type.is(DBSPTypeMap.class) || type.is(DBSPTypeVariant.class))
+            return UNBOUNDED_WIDTH;
+        return SCALAR_WIDTH;
+    }
+
+    /** Estimated width of a row of a stream, including its weight */
+    static int rowWidth(OutputPort port) {
+        DBSPType type = port.outputType();
+        if (type.is(DBSPTypeIndexedZSet.class)) {
+            DBSPTypeIndexedZSet ix = type.to(DBSPTypeIndexedZSet.class);
+            return width(ix.keyType) + width(ix.elementType) + SCALAR_WIDTH;
+        }
+        if (type.is(DBSPTypeZSet.class))
+            return width(type.to(DBSPTypeZSet.class).elementType) + SCALAR_WIDTH;
+        return width(type);
+    }
+
+    static List<Double> unknown(int size) {
+        List<Double> result = new ArrayList<>();
+        for (int i = 0; i < size; i++)
+            result.add(null);
+        return result;
+    }
+
+    /** The size of the collection produced on an output port */
+    StreamSize getSize(OutputPort port) {
+        if (port.node().is(DBSPNestedOperator.class)) {
+            DBSPNestedOperator nested = port.node().to(DBSPNestedOperator.class);
+            OutputPort internal = nested.internalOutputs.get(port.outputNumber);
+            if (internal != null)
+                port = internal;
+        }
+        StreamSize result = this.sizes.get(port);
+        if (result == null)
+            // Back-edges of recursive circuits
+            return new StreamSize(DEFAULT_ROWS, unknown(RowFields.rowSize(port)), false);
+        return result;
+    }
+
+    /** Number of distinct values of a field, capped by the number of rows */
+    static List<Double> cap(List<Double> distinct, double rows) {
+        List<Double> result = new ArrayList<>();
+        for (Double d: distinct)
+            result.add(d == null ? null : Math.min(d, rows));
+        return result;
+    }
+
+    StreamSize sourceSize(DBSPSourceTableOperator source) {
+        CreateTableStatement table = null;
+        if (this.compiler().metadata.hasTable(source.tableName)) {
+            IHasSchema schema = this.compiler().metadata.getTableDescription(source.tableName);
+            table = schema.as(CreateTableStatement.class);
+        }
+        double rows = DEFAULT_ROWS;
+        boolean declared = false;
+        Long expectedSize = table != null ? table.getExpectedSize() : null;
+        if (expectedSize != null) {
+            rows = expectedSize;
+            declared = true;
+        }
+
+        List<InputColumnMetadata> columns = new ArrayList<>(source.metadata.getColumns());
+        List<InputColumnMetadata> keys = source.metadata.getPrimaryKeys();
+        List<Double> perColumn = new ArrayList<>();
+        for (InputColumnMetadata column: columns) {
+            Double distinct = null;
+            if (keys.size() == 1 && column.isPrimaryKey)
+                distinct = rows;
+            else if (table != null) {
+                Long declaredValues = table.getDistinctValues(column.name);
+                if (declaredValues != null)
+                    distinct = (double) declaredValues;
+            }
+            perColumn.add(distinct);
+        }
+
+        List<Double> distinct = new ArrayList<>();
+        if (source.is(DBSPSourceMapOperator.class)) {
+            for (int key: source.to(DBSPSourceMapOperator.class).keyFields)
+                distinct.add(perColumn.get(key));
+        }
+        distinct.addAll(perColumn);
+        return new StreamSize(rows, cap(distinct, rows), declared);
+    }
+
+    /** Distinct values of the fields produced by a closure which copies some of its input fields */
+    static List<Double> closureDistinct(
+            @Nullable DBSPExpression function, OutputPort output, RowFields.InputField resolve, List<Double> inputs) {
+        int size = RowFields.rowSize(output);
+        List<Double> result = unknown(size);
+        if (function == null || !function.is(DBSPClosureExpression.class))
+            return result;
+        DBSPClosureExpression closure = function.to(DBSPClosureExpression.class);
+        int keySize = RowFields.keySize(output);
+        boolean indexed = output.outputType().is(DBSPTypeIndexedZSet.class);
+        for (int i = 0; i < size; i++) {
+            DBSPExpression expression;
+            if (indexed)
+                expression = ChooseInternedInputs.outputField(
+                        closure, i < keySize ? 0 : 1, i < keySize ? i : i - keySize);
+            else
+                expression = ChooseInternedInputs.outputField(closure, -1, i);
+            ChooseInternedInputs.ParameterField read = ChooseInternedInputs.readField(closure, expression);
+            if (read == null)
+                continue;
+            int index = resolve.index(read.parameter(), read.component(), read.field());
+            if (index >= 0 && index < inputs.size())
+                result.set(i, inputs.get(index));
+        }
+        return result;
+    }
+
+    static boolean isFilter(DBSPOperator operator) {
+        return operator.is(DBSPFilterOperator.class) ||
+                operator.is(DBSPWindowOperator.class);
+    }
+
+    static boolean isFlatMap(DBSPOperator operator) {
+        return operator.is(DBSPFlatMapOperator.class) ||
+                operator.is(DBSPFlatMapIndexOperator.class) ||
+                operator.is(DBSPHopOperator.class);
+    }
+
+    /** Operators whose output has one row for each group of the input */
+    static boolean isGrouping(DBSPOperator operator) {
+        return (operator.is(DBSPAggregateOperatorBase.class) &&
+                    !operator.is(DBSPPartitionedRollingAggregateOperator.class)) ||
+                operator.is(DBSPChainAggregateOperator.class) ||
+                operator.is(DBSPAggregateLinearPostprocessOperator.class) ||
+                operator.is(DBSPAggregateLinearPostprocessRetainKeysOperator.class) ||
+                operator.is(DBSPPrimitiveAggregateOperator.class);
+    }
+
+    static boolean isDistinct(DBSPOperator operator) {
+        return operator.is(DBSPDistinctOperator.class) ||
+                operator.is(DBSPStreamDistinctOperator.class);
+    }
+
+    static boolean isLeftJoin(DBSPOperator operator) {
+        return operator.is(DBSPLeftJoinOperator.class) ||
+                operator.is(DBSPLeftJoinIndexOperator.class) ||
+                operator.is(DBSPLeftJoinFilterMapOperator.class);
+    }
+
+    StreamSize joinSize(DBSPJoinBaseOperator join, List<StreamSize> inputs, boolean declared) {
+        StreamSize left = inputs.get(0);
+        StreamSize right = inputs.get(1);
+        int keySize = RowFields.keySize(join.left());
+        double rows;
+        if (join.is(DBSPAsofJoinOperator.class) || join.is(DBSPConcreteAsofJoinOperator.class)) {
+            rows = left.rows();
+        } else {
+            double leftKeys = left.groups(keySize);
+            double rightKeys = right.groups(keySize);
+            if (leftKeys < left.rows() || rightKeys < right.rows()) {
+                // Rows with the same key are assumed to be spread uniformly over the keys
+                rows = left.rows() * right.rows() / Math.max(1, Math.max(leftKeys, rightKeys));
+            } else {
+                rows = Math.max(left.rows(), right.rows());
+            }
+            if (join.is(DBSPJoinFilterMapOperator.class) || join.is(DBSPLeftJoinFilterMapOperator.class))
+                rows *= FILTER_SELECTIVITY;
+            if (isLeftJoin(join))
+                rows = Math.max(rows, left.rows());
+        }
+
+        // Fields of the join parameters: key, left value, right value
+        List<Double> combined = new ArrayList<>();
+        for (int i = 0; i < keySize; i++) {
+            Double l = left.distinct(i);
+            Double r = right.distinct(i);
+            combined.add(l == null ? r : r == null ? l : Math.min(l, r));
+        }
+        combined.addAll(left.distinct().subList(Math.min(keySize, left.distinct().size()), left.distinct().size()));
+        int leftSize = left.distinct().size() - keySize;
+        combined.addAll(right.distinct().subList(Math.min(keySize, right.distinct().size()), right.distinct().size()));
+        List<Double> distinct = closureDistinct(join.function, join.outputPort(), (parameter, component, field) -> {
+            if (component != -1)
+                return -1;
+            return switch (parameter) {
+                case 0 -> field;
+                case 1 -> keySize + field;
+                case 2 -> keySize + leftSize + field;
+                default -> -1;
+            };
+        }, combined);
+        return new StreamSize(rows, cap(distinct, rows), declared);
+    }
+
+    StreamSize computeSize(DBSPSimpleOperator operator) {
+        OutputPort output = operator.outputPort();
+        int size = RowFields.rowSize(output);
+        if (operator.is(DBSPSourceTableOperator.class))
+            return this.sourceSize(operator.to(DBSPSourceTableOperator.class));
+        if (operator.is(DBSPConstantOperator.class)) {
+            DBSPZSetExpression data = operator.function != null ?
+                    operator.function.as(DBSPZSetExpression.class) : null;
+            double rows = data != null ? data.size() : 1;
+            return new StreamSize(rows, unknown(size), true);
+        }
+        if (operator.is(DBSPViewDeclarationOperator.class)) {
+            // Recursive view: at least as large as the inputs of the recursive component
+            double rows = 0;
+            boolean declared = true;
+            DBSPNestedOperator nested = this.getParent().as(DBSPNestedOperator.class);
+            if (nested != null) {
+                for (OutputPort input: nested.inputs) {
+                    StreamSize inputSize = this.getSize(input);
+                    rows += inputSize.rows();
+                    declared = declared && inputSize.declared();
+                }
+            }
+            if (rows == 0) {
+                rows = DEFAULT_ROWS;
+                declared = false;
+            }
+            return new StreamSize(rows, unknown(size), declared);
+        }
+
+        List<StreamSize> inputs = new ArrayList<>();
+        boolean declared = true;
+        for (OutputPort input: operator.inputs) {
+            StreamSize inputSize = this.getSize(input);
+            inputs.add(inputSize);
+            declared = declared && inputSize.declared();
+        }
+        if (inputs.isEmpty())
+            return new StreamSize(1, unknown(size), true);
+
+        StreamSize first = inputs.get(0);
+        OutputPort firstPort = operator.inputs.get(0);
+        if (operator.is(DBSPJoinBaseOperator.class))
+            return this.joinSize(operator.to(DBSPJoinBaseOperator.class), inputs, declared);
+        if (operator.is(DBSPAntiJoinOperator.class) || operator.is(DBSPSubtractOperator.class))
+            return new StreamSize(first.rows(), first.distinct(), declared);
+        if (operator.is(DBSPSumOperator.class)) {
+            double rows = 0;
+            for (StreamSize input: inputs)
+                rows += input.rows();
+            return new StreamSize(rows, unknown(size), declared);
+        }
+        if (operator.is(DBSPAggregateZeroOperator.class))
+            return new StreamSize(1, unknown(size), declared);
+        if (isGrouping(operator)) {
+            int keySize = RowFields.keySize(firstPort);
+            double rows = first.groups(keySize);
+            List<Double> distinct = unknown(size);
+            for (int i = 0; i < keySize && i < size; i++)
+                distinct.set(i, first.distinct(i));
+            return new StreamSize(rows, cap(distinct, rows), declared);
+        }
+        if (isDistinct(operator)) {
+            double rows = first.groups(RowFields.rowSize(firstPort));
+            return new StreamSize(rows, cap(first.distinct(), rows), declared);
+        }
+        if (operator.is(DBSPMapOperator.class) || operator.is(DBSPMapIndexOperator.class)) {
+            int keySize = RowFields.keySize(firstPort);
+            boolean indexed = firstPort.outputType().is(DBSPTypeIndexedZSet.class);
+            int parameters = operator.function != null && operator.function.is(DBSPClosureExpression.class) ?
+                    operator.getClosureFunction().parameters.length : 0;
+            List<Double> distinct = closureDistinct(operator.function, output, (parameter, component, field) -> {
+                if (!indexed)
+                    return parameter == 0 && component == -1 ? field : -1;
+                if (parameters == 2 && component == -1)
+                    return parameter == 0 ? field : keySize + field;
+                if (parameter == 0 && component >= 0)
+                    return component == 0 ? field : keySize + field;
+                return -1;
+            }, first.distinct());
+            return new StreamSize(first.rows(), distinct, declared);
+        }
+        if (operator.is(DBSPDeindexOperator.class)) {
+            List<Double> distinct = first.distinct();
+            return new StreamSize(first.rows(),
+                    new ArrayList<>(distinct.subList(Math.max(0, distinct.size() - size), distinct.size())), declared);
+        }
+
+        double rows = first.rows();
+        if (isFilter(operator))
+            rows *= FILTER_SELECTIVITY;
+        else if (isFlatMap(operator))
+            rows *= FLATMAP_FANOUT;
+        List<Double> distinct = unknown(size);
+        if (!isFlatMap(operator)) {
+            if (first.distinct().size() == size) {
+                distinct = cap(first.distinct(), rows);
+            } else {
+                // TopK, rolling aggregates, etc. preserve the key
+                int keySize = RowFields.keySize(output);
+                if (keySize == RowFields.keySize(firstPort))
+                    for (int i = 0; i < keySize; i++)
+                        distinct.set(i, first.distinct(i));
+            }
+        }
+        return new StreamSize(rows, cap(distinct, rows), declared);
+    }
+
+    @Override
+    public void collected(OutputPort stream) {
+        this.collected.add(stream);
+    }
+
+    @Override
+    public void integrated(DBSPSimpleOperator operator, OutputPort stream, String trace, boolean bounded) {
+        this.traces.computeIfAbsent(operator, o -> new ArrayList<>())
+                .add(new Trace(operator, stream, bounded));
+    }
+
+    @Override
+    public void postorder(DBSPSimpleOperator operator) {
+        this.sizes.put(operator.outputPort(), this.computeSize(operator));
+        this.operators.add(operator);
+        IntegratedTraces.find(operator, this);
+        if (operator.is(DBSPViewBaseOperator.class)) {
+            String view = operator.to(DBSPViewBaseOperator.class).viewName.name();
+            this.views.computeIfAbsent(view, v -> new HashSet<>()).addAll(this.cone(operator));
+        }
+    }
+
+    @Override
+    public void postorder(DBSPOperator operator) {
+        // Operators with multiple outputs: each output is assumed to be as large as the input
+        if (operator.inputs.isEmpty() || operator.is(DBSPNestedOperator.class))
+            return;
+        StreamSize input = this.getSize(operator.inputs.get(0));
+        for (int i = 0; i < operator.outputCount(); i++) {
+            OutputPort port = operator.getOutput(i);
+            List<Double> distinct = input.distinct().size() == RowFields.rowSize(port) ?
+                    input.distinct() : unknown(RowFields.rowSize(port));
+            this.sizes.put(port, new StreamSize(input.rows(), distinct, input.declared()));
+        }
+    }
+
+    /** The operators which contribute to the result of an operator */
+    Set<DBSPOperator> cone(DBSPOperator operator) {
+        Set<DBSPOperator> result = new HashSet<>();
+        ArrayDeque<DBSPOperator> queue = new ArrayDeque<>();
+        queue.add(operator);
+        while (!queue.isEmpty()) {
+            DBSPOperator current = queue.removeFirst();
+            if (!result.add(current))
+                continue;
+            if (current.is(DBSPNestedOperator.class))
+                for (DBSPOperator inner: current.to(DBSPNestedOperator.class).getAllOperators())
+                    queue.add(inner);
+            for (OutputPort input: current.inputs)
+                queue.add(input.node());
+        }
+        return result;
+    }
+
+    double delta(OutputPort port) {
+        double fraction = this.compiler().options.languageOptions.incrementalize ? STEP_FRACTION : 1;
+        return this.getSize(port).rows() * fraction;
+    }
+
+    Estimate estimate(DBSPSimpleOperator operator) {
+        OutputPort output = operator.outputPort();
+        StreamSize size = this.getSize(output);
+        double work = this.delta(output);
+        for (OutputPort input: operator.inputs)
+            work += this.delta(input);
+
+        double stateRows = 0;
+        double stateBytes = 0;
+        int unbounded = 0;
+        List<Trace> traces = this.traces.getOrDefault(operator, List.of());
+        for (Trace trace: traces) {
+            double rows = this.getSize(trace.stream()).rows();
+            if (trace.bounded() || this.collected.contains(trace.stream()))
+                rows *= RETAINED_FRACTION;
+            else
+                unbounded++;
+            stateRows += rows;
+            stateBytes += rows * rowWidth(trace.stream());
+            // Each changed row is looked up in the trace
+            work += this.delta(trace.stream()) * (Math.log(rows + 2) / Math.log(2));
+        }
+        return new Estimate(size.rows(), rowWidth(output), stateRows, stateBytes,
+                work, traces.size(), unbounded, size.declared());
+    }
+
+    @Override
+    public void endVisit() {
+        for (DBSPSimpleOperator operator: this.operators) {
+            Estimate estimate = this.estimate(operator);
+            this.estimates.put(operator, estimate);
+            Logger.INSTANCE.belowLevel(this, 2)
+                    .append(operator.getIdString())
+                    .append(" ")
+                    .append(estimate.toString())
+                    .newline();
+        }
+        super.endVisit();
+    }
+
+    ObjectNode sum(ObjectMapper mapper, Iterable<? extends DBSPOperator> operators) {
+        double stateRows = 0;
+        double stateBytes = 0;
+        double work = 0;
+        int unbounded = 0;
+        boolean declared = true;
+        for (DBSPOperator operator: operators) {
+            Estimate estimate = this.estimates.get(operator);
+            if (estimate == null)
+                continue;
+            stateRows += estimate.stateRows();
+            stateBytes += estimate.stateBytes();
+            work += estimate.work();
+            unbounded += estimate.unboundedTraces();
+            declared = declared && estimate.declared();
+        }
+        ObjectNode result = mapper.createObjectNode();
+        result.put("state_rows", Math.round(stateRows));
+        result.put("state_bytes", Math.round(stateBytes));
+        result.put("work", Math.round(work));
+        result.put("unbounded_traces", unbounded);
+        result.put("declared_sizes", declared);
+        return result;
+    }
+
+    /** The estimates for the whole circuit and for each view.
+     * An operator shared by several views is counted in each of them. */
+    public ObjectNode asJson() {
+        ObjectMapper mapper = Utilities.deterministicObjectMapper();
+        ObjectNode result = mapper.createObjectNode();
+        result.set("total", this.sum(mapper, this.estimates.keySet()));
+        ObjectNode views = result.putObject("views");
+        for (Map.Entry<String, Set<DBSPOperator>> view: this.views.entrySet())
+            views.set(view.getKey(), this.sum(mapper, view.getValue()));
+        return result;
+    }
+}
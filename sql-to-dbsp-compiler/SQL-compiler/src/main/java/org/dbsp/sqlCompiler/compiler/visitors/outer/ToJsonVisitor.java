@@ -3,7 +3,10 @@ package org.dbsp.sqlCompiler.compiler.visitors.outer;
 import org.apache.calcite.rel.RelNode;
 import org.dbsp.sqlCompiler.circuit.DBSPCircuit;
 import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.annotation.AutoInterned;
+import org.dbsp.sqlCompiler.circuit.annotation.EliminatedJoin;
 import org.dbsp.sqlCompiler.circuit.annotation.OperatorHash;
+import org.dbsp.sqlCompiler.circuit.annotation.Sharded;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPInputMapWithWaterlineOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPNestedOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
@@ -27,6 +30,7 @@ import org.dbsp.util.IIndentStream;
 import org.dbsp.util.Linq;
 import org.dbsp.util.Utilities;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -40,6 +44,12 @@ public class ToJsonVisitor extends CircuitVisitor {
     final IIndentStream builder;
     final int verbosity;
     final Map<RelNode, Integer> relId;
+    /** If not null, the estimates are emitted for each operator */
+    @Nullable
+    final StateEstimator estimates;
+    /** Number of operators whose output is marked as sharded; each
+     * of them removes an exchange between workers */
+    int shardedCount;
 
     public static class FindSourcePositions extends InnerVisitor {
         private final Set<SourcePositionRange> positions;
@@ -78,11 +88,12 @@ public class ToJsonVisitor extends CircuitVisitor {
     }
 
     public ToJsonVisitor(DBSPCompiler compiler, IIndentStream builder, int verbosity,
-                         Map<RelNode, Integer> id) {
+                         Map<RelNode, Integer> id, @Nullable StateEstimator estimates) {
         super(compiler);
         this.builder = builder;
         this.verbosity = verbosity;
         this.relId = id;
+        this.estimates = estimates;
     }
 
     SourcePositionRanges getPositions(DBSPOperator operator) {
@@ -153,6 +164,44 @@ public class ToJsonVisitor extends CircuitVisitor {
                     .append(Utilities.doubleQuote(operator.to(DBSPSinkOperator.class).viewName.toString(), false))
                     .append(",").newline();
         }
+        EliminatedJoin eliminated = operator.annotations.first(EliminatedJoin.class);
+        if (eliminated != null) {
+            this.builder.appendJsonLabelAndColon("eliminated_join")
+                    .append(Utilities.doubleQuote(eliminated.table, false))
+                    .append(",").newline();
+        }
+        List<AutoInterned> interned = operator.annotations.get(AutoInterned.class);
+        if (!interned.isEmpty()) {
+            this.builder.appendJsonLabelAndColon("interned_columns")
+                    .append("[").increase();
+            boolean firstColumn = true;
+            for (AutoInterned column: interned) {
+                if (!firstColumn)
+                    this.builder.append(",");
+                firstColumn = false;
+                this.builder.newline()
+                        .append("{ ")
+                        .appendJsonLabelAndColon("column")
+                        .append(Utilities.doubleQuote(column.column, false))
+                        .append(", ")
+                        .appendJsonLabelAndColon("reason")
+                        .append(Utilities.doubleQuote(column.reason, false))
+                        .append(" }");
+            }
+            this.builder.decrease().newline().append("],").newline();
+        }
+        if (operator.hasAnnotation(Sharded.class)) {
+            this.shardedCount++;
+            this.builder.appendJsonLabelAndColon("sharded")
+                    .append("true")
+                    .append(",").newline();
+        }
+        StateEstimator.Estimate estimate = this.estimates != null ? this.estimates.get(operator) : null;
+        if (estimate != null) {
+            this.builder.appendJsonLabelAndColon("estimates")
+                    .append(estimate.asJson(Utilities.deterministicObjectMapper()).toString())
+                    .append(",").newline();
+        }
 
         this.builder.appendJsonLabelAndColon("calcite");
         CalciteRelNode node = operator.getNode().to(CalciteRelNode.class);
@@ -341,8 +390,13 @@ public class ToJsonVisitor extends CircuitVisitor {
         return VisitDecision.STOP;
     }
 
+    public int getShardedCount() {
+        return this.shardedCount;
+    }
+
     @Override
     public Token startVisit(IDBSPOuterNode node) {
+        this.shardedCount = 0;
         this.builder.append("{").increase();
         return super.startVisit(node);
     }
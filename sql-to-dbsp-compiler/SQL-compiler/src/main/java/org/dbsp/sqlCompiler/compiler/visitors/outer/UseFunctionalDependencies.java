@@ -0,0 +1,247 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer;
+
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDistinctOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamDistinctOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPUnaryOperator;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.frontend.TypeCompiler;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.Simplify;
+import org.dbsp.sqlCompiler.ir.IDBSPInnerNode;
+import org.dbsp.sqlCompiler.ir.aggregate.DBSPAggregateList;
+import org.dbsp.sqlCompiler.ir.aggregate.IAggregate;
+import org.dbsp.sqlCompiler.ir.aggregate.MinMaxAggregate;
+import org.dbsp.sqlCompiler.ir.aggregate.NonLinearAggregate;
+import org.dbsp.sqlCompiler.ir.expression.DBSPBaseTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPConditionalIncrementExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPOpcode;
+import org.dbsp.sqlCompiler.ir.expression.DBSPRawTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
+import org.dbsp.sqlCompiler.ir.expression.literal.DBSPLiteral;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.primitive.DBSPTypeBaseType;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeUser;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Linq;
+import org.dbsp.util.Logger;
+import org.dbsp.util.graph.Port;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import static org.dbsp.sqlCompiler.ir.type.DBSPTypeCode.SEMIGROUP;
+
+/** Uses the keys and dependencies computed by {@link FunctionalDependencies} to
+ * - remove distinct operators whose input is already a set,
+ * - remove from the key of an aggregate the fields which are determined by the other
+ *   key fields; such fields are recovered after the aggregation by an aggregate which
+ *   returns any of the values in the group. */
+public class UseFunctionalDependencies extends Passes {
+    public UseFunctionalDependencies(DBSPCompiler compiler) {
+        super("UseFunctionalDependencies", compiler);
+        Graph graph = new Graph(compiler);
+        FunctionalDependencies dependencies = new FunctionalDependencies(compiler);
+        this.add(graph);
+        this.add(dependencies);
+        this.add(new Rewrite(compiler, graph.getGraphs(), dependencies));
+    }
+
+    static class Rewrite extends CircuitCloneWithGraphsVisitor implements IWritesLogs {
+        final FunctionalDependencies dependencies;
+
+        Rewrite(DBSPCompiler compiler, CircuitGraphs graphs, FunctionalDependencies dependencies) {
+            super(compiler, graphs, false);
+            this.dependencies = dependencies;
+        }
+
+        boolean removeDistinct(DBSPUnaryOperator operator) {
+            FunctionalDependencies.Dependencies input = this.dependencies.get(operator.input());
+            if (input == null || !input.hasKey())
+                return false;
+            Logger.INSTANCE.belowLevel(this, 1)
+                    .append("Removing distinct ")
+                    .appendSupplier(operator::toString)
+                    .append(" with input keys ")
+                    .appendSupplier(() -> input.keys().toString())
+                    .newline();
+            this.map(operator.outputPort(), this.mapped(operator.input()), false);
+            return true;
+        }
+
+        @Override
+        public void postorder(DBSPStreamDistinctOperator operator) {
+            if (!this.removeDistinct(operator))
+                super.postorder(operator);
+        }
+
+        @Override
+        public void postorder(DBSPDistinctOperator operator) {
+            if (!this.removeDistinct(operator))
+                super.postorder(operator);
+        }
+
+        /** The index operator read by an aggregate, if the aggregate's key can be reduced */
+        @Nullable
+        DBSPMapIndexOperator getIndex(DBSPStreamAggregateOperator operator) {
+            if (operator.aggregateList == null)
+                return null;
+            // Linear aggregates and MIN/MAX are implemented by different operators than
+            // the aggregates that recover the removed fields; this would require a join.
+            for (IAggregate aggregate: operator.getAggregateList().aggregates) {
+                if (!aggregate.is(NonLinearAggregate.class) || aggregate.is(MinMaxAggregate.class))
+                    return null;
+            }
+            DBSPMapIndexOperator index = operator.input().node().as(DBSPMapIndexOperator.class);
+            if (index == null)
+                return null;
+            DBSPClosureExpression function = index.getClosureFunction();
+            if (!function.body.is(DBSPRawTupleExpression.class))
+                return null;
+            DBSPRawTupleExpression body = function.body.to(DBSPRawTupleExpression.class);
+            for (int i = 0; i < 2; i++) {
+                DBSPBaseTupleExpression component = body.get(i).as(DBSPBaseTupleExpression.class);
+                if (component == null || component.fields == null)
+                    return null;
+            }
+            List<Port<DBSPOperator>> successors = this.getGraph().getSuccessors(index);
+            if (successors.size() != 1)
+                return null;
+            return index;
+        }
+
+        /** Aggregate which returns any of the values of an expression in a group.
+         * We use MIN, since all values in the group are the same. */
+        NonLinearAggregate anyValue(DBSPStreamAggregateOperator operator, DBSPVariablePath rowVar,
+                                    DBSPExpression value) {
+            DBSPType accumulatorType = value.getType().withMayBeNull(true);
+            DBSPExpression zero = DBSPLiteral.none(accumulatorType);
+            DBSPVariablePath accumulator = accumulatorType.var();
+            DBSPExpression increment = new DBSPConditionalIncrementExpression(operator.getRelNode(),
+                    DBSPOpcode.AGG_MIN, accumulatorType, accumulator, value.applyCloneIfNeeded(), null);
+            DBSPTypeUser semigroup = new DBSPTypeUser(
+                    operator.getRelNode(), SEMIGROUP, "MinSemigroup", false, accumulatorType);
+            return new NonLinearAggregate(operator.getRelNode(), zero,
+                    increment.closure(operator.getRelNode(), accumulator, rowVar, this.compiler().weightVar),
+                    zero, semigroup);
+        }
+
+        @Override
+        public void postorder(DBSPStreamAggregateOperator operator) {
+            DBSPMapIndexOperator index = this.getIndex(operator);
+            FunctionalDependencies.Dependencies dependencies =
+                    index == null ? null : this.dependencies.get(index.outputPort());
+            if (dependencies == null) {
+                super.postorder(operator);
+                return;
+            }
+
+            DBSPClosureExpression function = index.getClosureFunction();
+            DBSPRawTupleExpression body = function.body.to(DBSPRawTupleExpression.class);
+            DBSPExpression[] keyFields = Objects.requireNonNull(body.get(0).to(DBSPBaseTupleExpression.class).fields);
+            DBSPExpression[] valueFields = Objects.requireNonNull(body.get(1).to(DBSPBaseTupleExpression.class).fields);
+
+            // Greedily remove key fields, starting with the last one
+            Set<Integer> allKeys = FunctionalDependencies.Dependencies.range(0, keyFields.length);
+            Set<Integer> kept = FunctionalDependencies.Dependencies.range(0, keyFields.length);
+            for (int i = keyFields.length - 1; i >= 0; i--) {
+                if (kept.size() == 1)
+                    break;
+                if (!keyFields[i].getType().is(DBSPTypeBaseType.class))
+                    continue;
+                kept.remove(i);
+                if (!dependencies.closure(kept).containsAll(allKeys))
+                    kept.add(i);
+            }
+            if (kept.size() == keyFields.length) {
+                super.postorder(operator);
+                return;
+            }
+
+            // Index with the smaller key; the removed key fields are appended to the value
+            List<DBSPExpression> newKey = new ArrayList<>();
+            List<DBSPExpression> newValue = Linq.map(Linq.list(valueFields), DBSPExpression::deepCopy);
+            List<Integer> removed = new ArrayList<>();
+            for (int i = 0; i < keyFields.length; i++) {
+                if (kept.contains(i)) {
+                    newKey.add(keyFields[i].deepCopy());
+                } else {
+                    newValue.add(keyFields[i].deepCopy());
+                    removed.add(i);
+                }
+            }
+            DBSPClosureExpression newFunction = new DBSPRawTupleExpression(
+                    new DBSPTupleExpression(newKey, false),
+                    new DBSPTupleExpression(newValue, false)).closure(function.parameters);
+            DBSPMapIndexOperator newIndex = new DBSPMapIndexOperator(
+                    index.getRelNode(), newFunction, this.mapped(index.input()));
+            this.addOperator(newIndex);
+
+            // Aggregates read the prefix of the new value
+            DBSPTypeIndexedZSet indexType = newIndex.getOutputIndexedZSetType();
+            DBSPVariablePath rowVar = indexType.elementType.ref().var();
+            DBSPExpression[] prefix = new DBSPExpression[valueFields.length];
+            for (int i = 0; i < prefix.length; i++)
+                prefix[i] = rowVar.deref().field(i).applyCloneIfNeeded();
+            DBSPExpression replacement = new DBSPTupleExpression(prefix).borrow();
+            DBSPAggregateList list = operator.getAggregateList();
+            FuseAggregates.ReplaceRowVariable replace = new FuseAggregates.ReplaceRowVariable(
+                    this.compiler(), list.rowVar.variable, rowVar.asParameter(), replacement);
+            Simplify simplify = new Simplify(this.compiler());
+            List<IAggregate> aggregates = new ArrayList<>();
+            for (IAggregate aggregate: list.aggregates) {
+                IDBSPInnerNode replaced = simplify.apply(replace.apply(aggregate));
+                aggregates.add(replaced.to(IAggregate.class));
+            }
+            for (int i = 0; i < removed.size(); i++) {
+                DBSPExpression value = rowVar.deref().field(valueFields.length + i);
+                aggregates.add(this.anyValue(operator, rowVar, value));
+            }
+            DBSPAggregateList newList = new DBSPAggregateList(list.getNode(), rowVar, aggregates);
+            DBSPTypeIndexedZSet aggregateType = TypeCompiler.makeIndexedZSet(
+                    indexType.keyType, newList.getEmptySetResultType());
+            DBSPStreamAggregateOperator aggregate = new DBSPStreamAggregateOperator(
+                    operator.getRelNode(), aggregateType, null, newList, newIndex.outputPort());
+            this.addOperator(aggregate);
+
+            // Restore the original key
+            DBSPVariablePath var = aggregateType.getKVRefType().var();
+            DBSPExpression[] key = new DBSPExpression[keyFields.length];
+            int keptIndex = 0;
+            for (int i = 0; i < keyFields.length; i++) {
+                if (kept.contains(i)) {
+                    key[i] = var.field(0).deref().field(keptIndex++).applyCloneIfNeeded();
+                } else {
+                    DBSPExpression value = var.field(1).deref()
+                            .field(list.size() + removed.indexOf(i)).applyCloneIfNeeded();
+                    // The group is never empty, so the value is never None if the field is not nullable
+                    if (!keyFields[i].getType().mayBeNull)
+                        value = value.unwrap();
+                    key[i] = value;
+                }
+            }
+            DBSPExpression[] values = new DBSPExpression[list.size()];
+            for (int i = 0; i < values.length; i++)
+                values[i] = var.field(1).deref().field(i).applyCloneIfNeeded();
+            DBSPClosureExpression projection = new DBSPRawTupleExpression(
+                    new DBSPTupleExpression(key), new DBSPTupleExpression(values)).closure(var);
+            DBSPMapIndexOperator result = new DBSPMapIndexOperator(
+                    operator.getRelNode(), projection, operator.getOutputIndexedZSetType(), aggregate.outputPort());
+            Logger.INSTANCE.belowLevel(this, 1)
+                    .append("Reduced key of ")
+                    .appendSupplier(operator::toString)
+                    .append(" to fields ")
+                    .appendSupplier(kept::toString)
+                    .newline();
+            this.map(operator, result);
+        }
+    }
+}
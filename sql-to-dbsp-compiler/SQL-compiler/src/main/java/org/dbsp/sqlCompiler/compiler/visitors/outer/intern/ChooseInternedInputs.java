@@ -0,0 +1,298 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer.intern;
+
+import org.dbsp.sqlCompiler.circuit.DBSPCircuit;
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.annotation.AutoInterned;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDeindexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPFilterOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinBaseOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSourceMultisetOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSourceTableOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamJoinIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPUnaryOperator;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.InputColumnMetadata;
+import org.dbsp.sqlCompiler.compiler.RuntimeProfile;
+import org.dbsp.sqlCompiler.compiler.frontend.statements.CreateTableStatement;
+import org.dbsp.sqlCompiler.compiler.frontend.statements.IHasSchema;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitVisitor;
+import org.dbsp.sqlCompiler.ir.IDBSPOuterNode;
+import org.dbsp.sqlCompiler.ir.expression.DBSPBaseTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPCastExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPCloneExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPDerefExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPFieldExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPRawTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
+import org.dbsp.sqlCompiler.ir.type.DBSPTypeCode;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Logger;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/** Chooses string columns of input tables to intern, in addition to the columns
+ * declared as INTERNED.
+ *
+ * <p>Interning pays off for columns with few distinct values that are stored in many traces.
+ * For each input column we count the index operators (which feed joins and aggregates,
+ * and are thus stored in traces) that use the column.  A column is chosen only if the table
+ * declares fewer than {@link #MAX_DISTINCT_VALUES} distinct values for the column using the
+ * 'distinct_values' property, and the column is stored in some trace.  Columns without
+ * statistics are never chosen: interning a column with many distinct values only adds
+ * the cost of the lookups and of the interned strings.
+ * At most 'autoInternBudget' columns are chosen, preferring the columns of the tables whose
+ * derived traces held the most state in a runtime profile, if the program is recompiled using
+ * a profile, and then the ones stored in more traces.
+ * Each choice is recorded as an {@link AutoInterned} annotation on the source operator. */
+public class ChooseInternedInputs extends CircuitVisitor implements IWritesLogs {
+    /** Only columns declared with fewer distinct values are interned */
+    static final long MAX_DISTINCT_VALUES = 100_000;
+
+    final Map<DBSPSourceTableOperator, Intern.InternedColumnList> internedInputs;
+    final List<DBSPSourceMultisetOperator> sources;
+    final Map<Column, Usage> usage;
+
+    /** A column of an input table */
+    record Column(DBSPSourceMultisetOperator source, int index) {}
+
+    /** How a column is used by index operators */
+    static final class Usage {
+        /** Number of indexes which store the column */
+        int stored = 0;
+    }
+
+    /** A column that can be interned */
+    record Candidate(DBSPSourceMultisetOperator source, int index, String name, String reason,
+                     long observedState, int stored) {}
+
+    /** A field of a closure parameter.
+     *
+     * @param parameter Index of the parameter.
+     * @param component -1 if the parameter is a reference to a tuple,
+     *                  0 or 1 for the key or the value of a parameter with type (&K, &V).
+     * @param field     Index of the field within the tuple. */
+    public record ParameterField(int parameter, int component, int field) {}
+
+    public ChooseInternedInputs(DBSPCompiler compiler,
+                                Map<DBSPSourceTableOperator, Intern.InternedColumnList> internedInputs) {
+        super(compiler);
+        this.internedInputs = internedInputs;
+        this.sources = new ArrayList<>();
+        this.usage = new LinkedHashMap<>();
+    }
+
+    @Override
+    public Token startVisit(IDBSPOuterNode node) {
+        this.sources.clear();
+        this.usage.clear();
+        return super.startVisit(node);
+    }
+
+    /** The parameter field that an expression reads, if the expression only copies it */
+    @Nullable
+    public static ParameterField readField(DBSPClosureExpression closure, @Nullable DBSPExpression expression) {
+        while (expression != null) {
+            if (expression.is(DBSPCloneExpression.class))
+                expression = expression.to(DBSPCloneExpression.class).expression;
+            else if (expression.is(DBSPCastExpression.class))
+                expression = expression.to(DBSPCastExpression.class).source;
+            else
+                break;
+        }
+        if (expression == null)
+            return null;
+        DBSPFieldExpression field = expression.as(DBSPFieldExpression.class);
+        if (field == null)
+            return null;
+        DBSPDerefExpression deref = field.expression.as(DBSPDerefExpression.class);
+        if (deref == null)
+            return null;
+        DBSPExpression base = deref.expression;
+        int component = -1;
+        DBSPFieldExpression part = base.as(DBSPFieldExpression.class);
+        if (part != null) {
+            component = part.fieldNo;
+            base = part.expression;
+        }
+        DBSPVariablePath var = base.as(DBSPVariablePath.class);
+        if (var == null)
+            return null;
+        for (int i = 0; i < closure.parameters.length; i++) {
+            if (closure.parameters[i].name.equals(var.variable))
+                return new ParameterField(i, component, field.fieldNo);
+        }
+        return null;
+    }
+
+    /** The expression computing a field of the result of a closure.
+     *
+     * @param component -1 if the closure produces a tuple, 0 or 1 for the key or value
+     *                  if the closure produces a raw tuple (K, V). */
+    @Nullable
+    public static DBSPExpression outputField(DBSPClosureExpression closure, int component, int field) {
+        DBSPExpression body = closure.body;
+        if (component >= 0) {
+            DBSPRawTupleExpression raw = body.as(DBSPRawTupleExpression.class);
+            if (raw == null || raw.isNull() || component >= raw.size())
+                return null;
+            body = raw.get(component);
+        }
+        DBSPBaseTupleExpression tuple = body.as(DBSPBaseTupleExpression.class);
+        if (tuple == null || tuple.isNull() || field >= tuple.size())
+            return null;
+        return tuple.get(field);
+    }
+
+    static boolean isInnerJoin(DBSPOperator operator) {
+        return operator.is(DBSPJoinOperator.class) ||
+                operator.is(DBSPStreamJoinOperator.class) ||
+                operator.is(DBSPJoinIndexOperator.class) ||
+                operator.is(DBSPStreamJoinIndexOperator.class);
+    }
+
+    /** Find the input column which is copied to a field of a stream, if any.
+     *
+     * @param port      Stream.
+     * @param component -1 for a stream of tuples, 0 or 1 for the key or value
+     *                  of an indexed stream.
+     * @param field     Field index. */
+    @Nullable
+    Column trace(OutputPort port, int component, int field) {
+        DBSPOperator node = port.node();
+        if (node.is(DBSPSourceMultisetOperator.class)) {
+            if (component >= 0)
+                return null;
+            return new Column(node.to(DBSPSourceMultisetOperator.class), field);
+        } else if (node.is(DBSPFilterOperator.class)) {
+            return this.trace(node.to(DBSPFilterOperator.class).input(), component, field);
+        } else if (node.is(DBSPDeindexOperator.class)) {
+            if (component >= 0)
+                return null;
+            return this.trace(node.to(DBSPDeindexOperator.class).input(), 1, field);
+        } else if (node.is(DBSPMapOperator.class) || node.is(DBSPMapIndexOperator.class)) {
+            DBSPUnaryOperator unary = node.to(DBSPUnaryOperator.class);
+            DBSPClosureExpression closure = unary.getClosureFunction();
+            ParameterField read = readField(closure, outputField(closure, component, field));
+            if (read == null)
+                return null;
+            return this.trace(unary.input(), read.component, read.field);
+        } else if (isInnerJoin(node)) {
+            DBSPJoinBaseOperator join = node.to(DBSPJoinBaseOperator.class);
+            DBSPClosureExpression closure = join.getClosureFunction();
+            ParameterField read = readField(closure, outputField(closure, component, field));
+            if (read == null || read.component >= 0)
+                return null;
+            return switch (read.parameter) {
+                case 0 -> this.trace(join.left(), 0, read.field);
+                case 1 -> this.trace(join.left(), 1, read.field);
+                default -> this.trace(join.right(), 1, read.field);
+            };
+        }
+        return null;
+    }
+
+    @Override
+    public void postorder(DBSPSourceMultisetOperator operator) {
+        this.sources.add(operator);
+    }
+
+    @Override
+    public void postorder(DBSPMapIndexOperator operator) {
+        DBSPRawTupleExpression raw = operator.getClosureFunction().body.as(DBSPRawTupleExpression.class);
+        if (raw == null || raw.isNull())
+            return;
+        for (int component = 0; component < 2; component++) {
+            DBSPBaseTupleExpression tuple = raw.get(component).as(DBSPBaseTupleExpression.class);
+            if (tuple == null || tuple.isNull())
+                continue;
+            for (int i = 0; i < tuple.size(); i++) {
+                Column column = this.trace(operator.outputPort(), component, i);
+                if (column == null)
+                    continue;
+                Usage usage = this.usage.computeIfAbsent(column, c -> new Usage());
+                usage.stored++;
+            }
+        }
+    }
+
+    /** Explains why a column should be interned, or returns null if it should not */
+    @Nullable
+    static String reason(@Nullable Long distinctValues, Usage usage) {
+        if (distinctValues == null || distinctValues >= MAX_DISTINCT_VALUES)
+            return null;
+        return "declared with " + distinctValues + " distinct values, stored in " +
+                usage.stored + " indexes";
+    }
+
+    @Override
+    public void postorder(DBSPCircuit circuit) {
+        if (this.compiler().options.languageOptions.noAutoIntern)
+            return;
+        List<Candidate> candidates = new ArrayList<>();
+        RuntimeProfile profile = this.compiler().getProfile();
+        for (DBSPSourceMultisetOperator source: this.sources) {
+            if (source.tableName.name().toLowerCase(Locale.ENGLISH).startsWith("feldera"))
+                continue;
+            long observedState = profile != null ? profile.getStateBytes(source.tableName) : 0;
+            CreateTableStatement table = null;
+            if (this.compiler().metadata.hasTable(source.tableName)) {
+                IHasSchema schema = this.compiler().metadata.getTableDescription(source.tableName);
+                table = schema.as(CreateTableStatement.class);
+            }
+            Intern.InternedColumnList declared = this.internedInputs.get(source);
+            int index = 0;
+            for (InputColumnMetadata column: source.metadata.getColumns()) {
+                Usage usage = this.usage.get(new Column(source, index));
+                if (usage != null &&
+                        column.type.code == DBSPTypeCode.STRING &&
+                        (declared == null || !declared.contains(index))) {
+                    Long distinctValues = table != null ? table.getDistinctValues(column.name) : null;
+                    String reason = reason(distinctValues, usage);
+                    if (reason != null) {
+                        if (observedState > 0)
+                            reason += "; derived state " + observedState + " bytes at runtime";
+                        candidates.add(new Candidate(source, index, column.name.name(), reason,
+                                observedState, usage.stored));
+                    }
+                }
+                index++;
+            }
+        }
+
+        candidates.sort(Comparator.comparingLong((Candidate c) -> -c.observedState)
+                .thenComparingInt(c -> -c.stored));
+        int budget = this.compiler().options.languageOptions.autoInternBudget;
+        for (Candidate candidate: candidates) {
+            if (budget == 0)
+                break;
+            budget--;
+            this.internedInputs
+                    .computeIfAbsent(candidate.source, s -> new Intern.InternedColumnList())
+                    .add(candidate.index);
+            candidate.source.addAnnotation(new AutoInterned(candidate.name, candidate.reason),
+                    DBSPSourceMultisetOperator.class);
+            Logger.INSTANCE.belowLevel(this, 1)
+                    .append("Interning ")
+                    .append(candidate.source.tableName.toString())
+                    .append(".")
+                    .append(candidate.name)
+                    .append(": ")
+                    .append(candidate.reason)
+                    .newline();
+        }
+    }
+}
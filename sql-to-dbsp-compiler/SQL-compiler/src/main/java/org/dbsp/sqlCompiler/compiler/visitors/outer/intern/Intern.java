@@ -10,7 +10,8 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-/** Performs interning for some scalar fields driven by user annotations */
+/** Performs interning for some scalar fields, driven by user annotations
+ * and by the choices of {@link ChooseInternedInputs} */
 public class Intern extends Passes {
     public static class InternedColumnList {
         final Set<Integer> columns;
@@ -47,6 +48,7 @@ public class Intern extends Passes {
         super("Intern", compiler);
         this.internedInputs = new HashMap<>();
         this.add(new FindInternedInputs(compiler, this.internedInputs));
+        this.add(new ChooseInternedInputs(compiler, this.internedInputs));
         this.add(new RewriteInternedFields(compiler, this.internedInputs));
         this.add(new DeadCode(compiler, true));
     }
@@ -1,6 +1,7 @@
 package org.dbsp.sqlCompiler.compiler.visitors.outer.monotonicity;
 
 import org.dbsp.sqlCompiler.circuit.DBSPCircuit;
+import org.dbsp.sqlCompiler.circuit.annotation.BoundedTopK;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPAsofJoinOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateOperator;
@@ -18,6 +19,7 @@ import org.dbsp.sqlCompiler.circuit.operator.DBSPDistinctOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPFilterOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPFlatMapOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPHopOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPIndexedTopKOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPInputMapWithWaterlineOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPIntegrateTraceRetainKeysOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPIntegrateTraceRetainValuesOperator;
@@ -26,6 +28,7 @@ import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinFilterMapOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinIndexOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPLagOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLagWithWaterlineOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPLeftJoinOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPMapIndexOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPMapOperator;
@@ -57,6 +60,7 @@ import org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.ProgramIdentifier;
 import org.dbsp.sqlCompiler.compiler.frontend.calciteObject.CalciteObject;
 import org.dbsp.sqlCompiler.compiler.frontend.calciteObject.CalciteRelNode;
 import org.dbsp.sqlCompiler.compiler.visitors.inner.Projection;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.Simplify;
 import org.dbsp.sqlCompiler.compiler.visitors.monotone.IMaybeMonotoneType;
 import org.dbsp.sqlCompiler.compiler.visitors.monotone.MonotoneClosureType;
 import org.dbsp.sqlCompiler.compiler.visitors.monotone.MonotoneExpression;
@@ -77,20 +81,26 @@ import org.dbsp.sqlCompiler.compiler.visitors.outer.expansion.LeftJoinExpansion;
 import org.dbsp.sqlCompiler.compiler.visitors.outer.expansion.OperatorExpansion;
 import org.dbsp.sqlCompiler.compiler.visitors.outer.expansion.ReplacementExpansion;
 import org.dbsp.sqlCompiler.ir.DBSPParameter;
+import org.dbsp.sqlCompiler.circuit.annotation.BoundedTopK;
 import org.dbsp.sqlCompiler.circuit.annotation.AlwaysMonotone;
 import org.dbsp.sqlCompiler.circuit.annotation.NoIntegrator;
 import org.dbsp.sqlCompiler.circuit.annotation.Waterline;
 import org.dbsp.sqlCompiler.ir.expression.DBSPApplyExpression;
 import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPComparatorExpression;
 import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPFieldComparatorExpression;
 import org.dbsp.sqlCompiler.ir.expression.DBSPIfExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPNoComparatorExpression;
 import org.dbsp.sqlCompiler.ir.expression.DBSPOpcode;
 import org.dbsp.sqlCompiler.ir.expression.DBSPRawTupleExpression;
 import org.dbsp.sqlCompiler.ir.expression.DBSPTupleExpression;
 import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
 import org.dbsp.sqlCompiler.ir.expression.literal.DBSPBoolLiteral;
+import org.dbsp.sqlCompiler.ir.expression.literal.DBSPI64Literal;
 import org.dbsp.sqlCompiler.ir.expression.literal.DBSPStrLiteral;
 import org.dbsp.sqlCompiler.ir.expression.literal.DBSPStringLiteral;
+import org.dbsp.sqlCompiler.ir.expression.literal.DBSPUSizeLiteral;
 import org.dbsp.sqlCompiler.ir.expression.DBSPZSetExpression;
 import org.dbsp.sqlCompiler.ir.type.DBSPType;
 import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeRawTuple;
@@ -107,9 +117,11 @@ import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeWeight;
 import org.dbsp.util.Linq;
 import org.dbsp.util.Logger;
 import org.dbsp.util.NullableFunction;
+import org.dbsp.util.NullablePredicate;
 import org.dbsp.util.Utilities;
 
 import javax.annotation.Nullable;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -123,6 +135,7 @@ import java.util.Set;
  * - {@link DBSPWaterlineOperator} operators near sources with lateness information
  * - {@link DBSPIntegrateTraceRetainKeysOperator} to prune data from integral operators
  * - {@link DBSPPartitionedRollingAggregateWithWaterlineOperator} operators
+ * - {@link DBSPLagWithWaterlineOperator} operators
  * - {@link DBSPIntegrateTraceRetainValuesOperator} to prune data from integral operators
  * This also inserts WINDOWS before views that have "emit_final" annotations.
  * It also converts {@link DBSPSourceMultisetOperator} into {@link DBSPInputMapWithWaterlineOperator}
@@ -158,12 +171,15 @@ public class InsertLimiters extends CircuitCloneVisitor {
     final List<OutputPort> errorStreams;
     /** These operators use the error view as a source */
     final Set<DBSPOperator> reachableFromError;
+    /** True for streams of the original circuit that are append-only */
+    final NullablePredicate<OutputPort> isAppendOnly;
 
     public InsertLimiters(DBSPCompiler compiler,
                           DBSPCircuit expandedCircuit,
                           Monotonicity.MonotonicityInformation expansionMonotoneValues,
                           Map<DBSPSimpleOperator, OperatorExpansion> expandedInto,
                           NullableFunction<DBSPBinaryOperator, KeyPropagation.JoinDescription> joinInformation,
+                          NullablePredicate<OutputPort> isAppendOnly,
                           Set<DBSPOperator> reachableFromError) {
         super(compiler, false);
         this.expandedCircuit = expandedCircuit;
@@ -173,6 +189,7 @@ public class InsertLimiters extends CircuitCloneVisitor {
         this.bound = new HashMap<>();
         this.errorStreams = new ArrayList<>();
         this.reachableFromError = reachableFromError;
+        this.isAppendOnly = isAppendOnly;
     }
 
     void markBound(OutputPort operator, OutputPort bound) {
@@ -576,6 +593,177 @@ public class InsertLimiters extends CircuitCloneVisitor {
         this.map(aggregator, filteredAggregator, false);
     }
 
+    /** Generate an expression that is true if 'left' is sorted strictly before 'right'
+     * by the comparator.  Returns null if the comparator cannot be expressed this way. */
+    @Nullable
+    static DBSPExpression sortsBefore(
+            DBSPComparatorExpression comparator, DBSPExpression left, DBSPExpression right) {
+        List<DBSPFieldComparatorExpression> fields = new ArrayList<>();
+        while (comparator.is(DBSPFieldComparatorExpression.class)) {
+            DBSPFieldComparatorExpression field = comparator.to(DBSPFieldComparatorExpression.class);
+            fields.add(field);
+            comparator = field.source;
+        }
+        if (!comparator.is(DBSPNoComparatorExpression.class) || fields.isEmpty())
+            return null;
+        // The innermost comparator is the most significant one; build the expression
+        // starting from the least significant field:
+        // before_0 || (eq_0 && (before_1 || (eq_1 && ...)))
+        DBSPExpression result = new DBSPBoolLiteral(false);
+        for (DBSPFieldComparatorExpression field: fields) {
+            DBSPExpression l = left.field(field.fieldNo);
+            DBSPExpression r = right.field(field.fieldNo);
+            DBSPType type = l.getType();
+            if (!type.is(DBSPTypeBaseType.class))
+                return null;
+            CalciteObject node = field.getNode();
+            DBSPExpression before = ExpressionCompiler.makeBinaryExpression(node,
+                    DBSPTypeBool.create(type.mayBeNull), field.ascending ? DBSPOpcode.LT : DBSPOpcode.GT,
+                    l, r).wrapBoolIfNeeded();
+            if (type.mayBeNull) {
+                DBSPExpression nullFirst = field.nullsFirst ? l : r;
+                DBSPExpression nullSecond = field.nullsFirst ? r : l;
+                DBSPExpression nulls = ExpressionCompiler.makeBinaryExpression(node,
+                        DBSPTypeBool.create(false), DBSPOpcode.AND,
+                        nullFirst.is_null(), nullSecond.is_null().not());
+                before = ExpressionCompiler.makeBinaryExpression(node,
+                        DBSPTypeBool.create(false), DBSPOpcode.OR, nulls, before);
+            }
+            DBSPExpression equal = ExpressionCompiler.makeBinaryExpression(node,
+                    DBSPTypeBool.create(false), DBSPOpcode.IS_DISTINCT, l, r).not();
+            result = ExpressionCompiler.makeBinaryExpression(node,
+                    DBSPTypeBool.create(false), DBSPOpcode.AND, equal, result);
+            result = ExpressionCompiler.makeBinaryExpression(node,
+                    DBSPTypeBool.create(false), DBSPOpcode.OR, before, result);
+        }
+        return result;
+    }
+
+    /** A TopK operator keeps its entire input in an integral.  If the input is
+     * append-only, a row that sorts after the row in position K of its group can
+     * never be part of the output.
+     *
+     * <p>When the operator sorts the whole collection (there is a single group),
+     * this inserts a second TopK operator which finds the row in position K,
+     * a {@link DBSPWaterlineOperator} that tracks the best such row seen so far,
+     * and a {@link DBSPIntegrateTraceRetainValuesOperator} that discards all input
+     * rows sorted after it.
+     *
+     * <p>A retain operator filters the values using a single bound for all keys,
+     * so a partitioned ROW_NUMBER TopK operator is instead annotated with
+     * {@link BoundedTopK}, and discards the rows after position K of each group
+     * from its own integral.  Partitioned RANK operators are not bounded: the
+     * number of rows in the first K ranks of a group is not known in advance. */
+    @Override
+    public void postorder(DBSPIndexedTopKOperator operator) {
+        super.postorder(operator);
+        if (!INSERT_RETAIN_VALUES || !this.compiler.options.languageOptions.incrementalize)
+            return;
+        if (operator.numbering == DBSPIndexedTopKOperator.TopKNumbering.DENSE_RANK)
+            return;
+        if (!this.isAppendOnly.test(operator.input()))
+            // A deleted row may have to be replaced by a row sorting after the bound,
+            // but the discarded rows cannot be recovered.
+            return;
+        DBSPExpression limit = Simplify.simplify(this.compiler, operator.limit);
+        if (!limit.is(DBSPUSizeLiteral.class))
+            return;
+        BigInteger limitValue = limit.to(DBSPUSizeLiteral.class).value;
+        if (limitValue == null || limitValue.signum() <= 0)
+            return;
+        DBSPTypeIndexedZSet inputType = operator.input().getOutputIndexedZSetType();
+        if (!inputType.keyType.is(DBSPTypeTupleBase.class) ||
+                inputType.keyType.to(DBSPTypeTupleBase.class).size() != 0) {
+            if (operator.numbering != DBSPIndexedTopKOperator.TopKNumbering.ROW_NUMBER)
+                return;
+            this.mapped(operator.outputPort()).node()
+                    .addAnnotation(BoundedTopK.INSTANCE, DBSPIndexedTopKOperator.class);
+            Logger.INSTANCE.belowLevel(this, 1)
+                    .append("Bounded TopK state to ")
+                    .append(limitValue.longValue())
+                    .append(" rows per group ")
+                    .appendSupplier(operator::toString)
+                    .newline();
+            return;
+        }
+        if (!inputType.elementType.is(DBSPTypeTuple.class))
+            return;
+        DBSPComparatorExpression comparator = operator.getFunction().as(DBSPComparatorExpression.class);
+        if (comparator == null)
+            return;
+
+        DBSPTypeTuple rowType = inputType.elementType.to(DBSPTypeTuple.class);
+        DBSPVariablePath left = rowType.ref().var();
+        DBSPVariablePath right = rowType.ref().var();
+        DBSPExpression before = sortsBefore(comparator, left.deref(), right.deref());
+        if (before == null)
+            return;
+        DBSPClosureExpression isBefore = before.closure(left, right);
+
+        CalciteRelNode node = operator.getRelNode();
+        CalciteObject fNode = operator.getFunctionNode();
+        long boundPosition = limitValue.longValue();
+        OutputPort source = this.mapped(operator.input());
+
+        // TopK which finds the row in position K
+        DBSPVariablePath rank = operator.outputProducer.parameters[0].getType().var();
+        DBSPVariablePath row = rowType.ref().var();
+        DBSPClosureExpression producer = new DBSPTupleExpression(rank, row.deref().applyClone())
+                .closure(rank, row);
+        DBSPIndexedTopKOperator boundTopK = new DBSPIndexedTopKOperator(node,
+                DBSPIndexedTopKOperator.TopKNumbering.ROW_NUMBER, comparator,
+                new DBSPUSizeLiteral(boundPosition), operator.equalityComparator, producer, source);
+        this.addOperator(boundTopK);
+        DBSPDeindexOperator deindex = new DBSPDeindexOperator(node, fNode, boundTopK.outputPort());
+        this.addOperator(deindex);
+        DBSPVariablePath ranked = deindex.getOutputZSetElementType().ref().var();
+        DBSPExpression atBound = ExpressionCompiler.makeBinaryExpression(fNode,
+                DBSPTypeBool.create(false), DBSPOpcode.EQ,
+                ranked.deref().field(0), new DBSPI64Literal(boundPosition));
+        DBSPFilterOperator last = new DBSPFilterOperator(node, atBound.closure(ranked), deindex.outputPort());
+        this.addOperator(last);
+
+        // The waterline is (bool, row), where the Boolean is 'true' when the row is valid
+        DBSPTupleExpression init = new DBSPTupleExpression(
+                new DBSPBoolLiteral(false), rowType.defaultValue());
+        DBSPClosureExpression extractTs = new DBSPTupleExpression(
+                new DBSPBoolLiteral(true), ranked.deref().field(1).applyClone())
+                .closure(ranked, DBSPTypeRawTuple.EMPTY.ref().var());
+        // The best bound seen so far
+        DBSPVariablePath a = init.getType().ref().var();
+        DBSPVariablePath b = init.getType().ref().var();
+        DBSPExpression bBefore = isBefore.call(
+                b.deref().field(1).borrow(), a.deref().field(1).borrow()).reduce(this.compiler);
+        DBSPClosureExpression lub = new DBSPIfExpression(fNode, a.deref().field(0).not(),
+                b.deref().applyClone(),
+                new DBSPIfExpression(fNode, b.deref().field(0).not(),
+                        a.deref().applyClone(),
+                        new DBSPIfExpression(fNode, bBefore,
+                                b.deref().applyClone(), a.deref().applyClone()))).closure(a, b);
+        DBSPWaterlineOperator waterline = new DBSPWaterlineOperator(
+                node, init.closure(), extractTs, lub, last.outputPort());
+        this.addOperator(waterline);
+        DBSPDelayOperator delay = new DBSPDelayOperator(node, init, waterline.outputPort());
+        this.addOperator(delay);
+
+        // Keep the rows that do not sort after the bound
+        DBSPVariablePath value = rowType.ref().var();
+        DBSPVariablePath control = init.getType().ref().var();
+        DBSPExpression keep = ExpressionCompiler.makeBinaryExpression(fNode,
+                DBSPTypeBool.create(false), DBSPOpcode.OR,
+                control.deref().field(0).not(),
+                isBefore.call(control.deref().field(1).borrow(), value).reduce(this.compiler).not());
+        DBSPIntegrateTraceRetainValuesOperator retain = new DBSPIntegrateTraceRetainValuesOperator(
+                node, keep.closure(value, control), source, delay.outputPort(), true);
+        this.addOperator(retain);
+        Logger.INSTANCE.belowLevel(this, 1)
+                .append("Bounded TopK state to ")
+                .append(boundPosition)
+                .append(" rows ")
+                .appendSupplier(operator::toString)
+                .newline();
+    }
+
     @Override
     public void postorder(DBSPLagOperator aggregator) {
         OutputPort source = this.mapped(aggregator.input());
@@ -611,22 +799,94 @@ public class InsertLimiters extends CircuitCloneVisitor {
         }
 
         this.createRetainKeys(aggregator.getRelNode(), source, projection, limiter);
+        DBSPSimpleOperator filteredAggregator = this.boundLagOutputs(aggregator, source, projection, limiter);
+        this.addOperator(filteredAggregator);
         IMaybeMonotoneType projection2 = Monotonicity.getBodyType(Objects.requireNonNull(monotoneValue2));
         OutputPort aggLimiter = this.addBounds(aggregator, ae.replacement, 0);
         if (aggLimiter == null) {
-            super.postorder(aggregator);
             this.nonMonotone(aggregator);
+            this.map(aggregator, filteredAggregator, false);
             return;
         }
 
-        DBSPSimpleOperator filteredAggregator = aggregator
-                .withInputs(Linq.list(source), false)
-                .to(DBSPSimpleOperator.class);
-        this.addOperator(filteredAggregator);
         this.createRetainKeys(aggregator.getRelNode(), filteredAggregator.outputPort(), projection2, aggLimiter);
         this.map(aggregator, filteredAggregator, false);
     }
 
+    /** Create a version of a LAG operator which reads from 'source'.
+     * The LAG operator stores all the outputs it has produced, to be able to retract them.
+     * If the most significant sort column is monotone and the operator looks back along
+     * increasing values of this column (LAG with ascending order, or LEAD with descending order),
+     * then an input change can only affect the outputs of rows at or after the changed row,
+     * whose sort column is above the waterline.  In this case we generate a
+     * {@link DBSPLagWithWaterlineOperator}, which discards the outputs below the waterline,
+     * and all inputs below the waterline except the last |offset| ones of each partition,
+     * which may still be read by future rows.
+     *
+     * @param lag        Original operator.
+     * @param source     Input of the new operator.
+     * @param projection Monotone projection of the input.
+     * @param limiter    Bound of the input. */
+    DBSPSimpleOperator boundLagOutputs(
+            DBSPLagOperator lag, OutputPort source, IMaybeMonotoneType projection, OutputPort limiter) {
+        DBSPSimpleOperator unchanged = lag
+                .withInputs(Linq.list(source), false)
+                .to(DBSPSimpleOperator.class);
+        if (!INSERT_RETAIN_VALUES || !lag.comparator.is(DBSPComparatorExpression.class))
+            return unchanged;
+
+        // Find the most significant comparator field
+        DBSPComparatorExpression comparator = lag.comparator.to(DBSPComparatorExpression.class);
+        DBSPFieldComparatorExpression first = null;
+        while (comparator.is(DBSPFieldComparatorExpression.class)) {
+            first = comparator.to(DBSPFieldComparatorExpression.class);
+            comparator = first.source;
+        }
+        if (first == null || !comparator.is(DBSPNoComparatorExpression.class))
+            return unchanged;
+        // Positive offsets look back in the comparator order
+        if (first.ascending != (lag.offset > 0))
+            return unchanged;
+
+        if (!projection.is(PartiallyMonotoneTuple.class))
+            return unchanged;
+        PartiallyMonotoneTuple tuple = projection.to(PartiallyMonotoneTuple.class);
+        IMaybeMonotoneType valuePart = tuple.getField(1);
+        if (!valuePart.mayBeMonotone() || !valuePart.is(PartiallyMonotoneTuple.class))
+            return unchanged;
+        PartiallyMonotoneTuple value = valuePart.to(PartiallyMonotoneTuple.class);
+        IMaybeMonotoneType field = value.getField(first.fieldNo);
+        DBSPType fieldType = field.getType();
+        if (!field.mayBeMonotone() || fieldType.mayBeNull || !fieldType.is(DBSPTypeBaseType.class))
+            return unchanged;
+
+        // |v, control| !control.0 || v.field >= control.1.value.field
+        OutputPort control = this.createDelay(limiter);
+        DBSPVariablePath controlArg = control.outputType().ref().var();
+        DBSPType valueType = source.getOutputIndexedZSetType().elementType;
+        DBSPVariablePath dataArg = valueType.ref().var();
+        CalciteObject node = lag.getNode();
+        DBSPExpression bound = controlArg.deref().field(1)
+                .field(tuple.compressedIndex(1))
+                .field(value.compressedIndex(first.fieldNo));
+        DBSPExpression compare = ExpressionCompiler.makeBinaryExpression(node,
+                DBSPTypeBool.create(false), DBSPOpcode.GTE, dataArg.deref().field(first.fieldNo), bound);
+        compare = ExpressionCompiler.makeBinaryExpression(node,
+                compare.getType(), DBSPOpcode.OR, controlArg.deref().field(0).not(), compare);
+        DBSPClosureExpression retain = compare.closure(dataArg, controlArg);
+
+        DBSPLagWithWaterlineOperator result = new DBSPLagWithWaterlineOperator(
+                lag.getRelNode(), lag.offset, lag.projection, lag.getFunction(), lag.comparator, retain,
+                lag.getOutputIndexedZSetType(), source, control);
+        Logger.INSTANCE.belowLevel(this, 1)
+                .append("Bounded LAG state using ")
+                .appendSupplier(control::toString)
+                .append(" ")
+                .appendSupplier(result::toString)
+                .newline();
+        return result;
+    }
+
     @Override
     public void postorder(DBSPPartitionedRollingAggregateOperator operator) {
         ReplacementExpansion expanded = this.getReplacement(operator);
@@ -0,0 +1,92 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer.monotonicity;
+
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.annotation.BoundedTopK;
+import org.dbsp.sqlCompiler.circuit.annotation.NoIntegrator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessRetainKeysOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAntiJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPChainAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDistinctOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPIndexedTopKOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPIntegrateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPIntegrateTraceRetainKeysOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPIntegrateTraceRetainValuesOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinBaseOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLagOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLagWithWaterlineOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPPartitionedRollingAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPPartitionedRollingAggregateWithWaterlineOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSimpleOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSourceMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamJoinIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPWindowOperator;
+import org.dbsp.util.Linq;
+
+import java.util.List;
+
+/** Classifies the integrated traces maintained by the operators of a circuit.
+ * Shared by the analyses which report or estimate the state of a circuit. */
+public final class IntegratedTraces {
+    private IntegratedTraces() {}
+
+    /** Receives the traces found for an operator */
+    public interface Consumer {
+        /** The integral of 'stream' is garbage-collected by a retain operator */
+        void collected(OutputPort stream);
+
+        /** The operator maintains an integral of 'stream'.
+         *
+         * @param trace   Stream that is integrated: "input N" or "output".
+         * @param bounded True if the operator garbage-collects the trace itself. */
+        void integrated(DBSPSimpleOperator operator, OutputPort stream, String trace, boolean bounded);
+    }
+
+    static void inputs(DBSPSimpleOperator operator, Consumer consumer, boolean bounded, int... inputs) {
+        for (int input: inputs)
+            consumer.integrated(operator, operator.inputs.get(input), "input " + input, bounded);
+    }
+
+    static void output(DBSPSimpleOperator operator, Consumer consumer) {
+        consumer.integrated(operator, operator.outputPort(), "output", false);
+    }
+
+    /** Report to the consumer the traces maintained by an operator */
+    public static void find(DBSPSimpleOperator operator, Consumer consumer) {
+        if (operator.is(DBSPIntegrateTraceRetainKeysOperator.class) ||
+                operator.is(DBSPIntegrateTraceRetainValuesOperator.class)) {
+            consumer.collected(operator.inputs.get(0));
+        } else if (operator.is(DBSPJoinBaseOperator.class)) {
+            if (operator.is(DBSPStreamJoinOperator.class) || operator.is(DBSPStreamJoinIndexOperator.class))
+                return;
+            List<NoIntegrator> noIntegrator = operator.annotations.get(NoIntegrator.class);
+            if (!Linq.any(noIntegrator, n -> n.notNeededOnLeft))
+                inputs(operator, consumer, false, 0);
+            if (!Linq.any(noIntegrator, n -> n.notNeededOnRight))
+                inputs(operator, consumer, false, 1);
+        } else if (operator.is(DBSPAntiJoinOperator.class)) {
+            inputs(operator, consumer, false, 0, 1);
+        } else if (operator.is(DBSPIndexedTopKOperator.class)) {
+            inputs(operator, consumer, operator.hasAnnotation(BoundedTopK.class), 0);
+        } else if (operator.is(DBSPDistinctOperator.class) ||
+                operator.is(DBSPPartitionedRollingAggregateOperator.class) ||
+                operator.is(DBSPIntegrateOperator.class)) {
+            inputs(operator, consumer, false, 0);
+        } else if (operator.is(DBSPAggregateOperator.class) || operator.is(DBSPLagOperator.class)) {
+            inputs(operator, consumer, false, 0);
+            output(operator, consumer);
+        } else if (operator.is(DBSPAggregateLinearPostprocessOperator.class) ||
+                operator.is(DBSPChainAggregateOperator.class) ||
+                operator.is(DBSPSourceMapOperator.class)) {
+            output(operator, consumer);
+        } else if (operator.is(DBSPAggregateLinearPostprocessRetainKeysOperator.class)) {
+            consumer.integrated(operator, operator.outputPort(), "output", true);
+        } else if (operator.is(DBSPPartitionedRollingAggregateWithWaterlineOperator.class) ||
+                operator.is(DBSPLagWithWaterlineOperator.class) ||
+                operator.is(DBSPWindowOperator.class)) {
+            inputs(operator, consumer, true, 0);
+        }
+    }
+}
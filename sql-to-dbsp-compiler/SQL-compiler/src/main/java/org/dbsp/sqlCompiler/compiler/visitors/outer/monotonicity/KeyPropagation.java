@@ -25,6 +25,9 @@ import org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.ForeignKey;
 import org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.ProgramIdentifier;
 import org.dbsp.sqlCompiler.compiler.visitors.inner.Projection;
 import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitVisitor;
+import org.dbsp.sqlCompiler.ir.IDBSPOuterNode;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeTupleBase;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
 import org.dbsp.util.Linq;
 import org.dbsp.util.Logger;
 import org.dbsp.util.Utilities;
@@ -193,6 +196,13 @@ public class KeyPropagation extends CircuitVisitor {
         this.joins = new HashMap<>();
     }
 
+    @Override
+    public Token startVisit(IDBSPOuterNode node) {
+        this.keys.clear();
+        this.joins.clear();
+        return super.startVisit(node);
+    }
+
     void processMap(DBSPUnaryOperator node) {
         if (!node.input().isSimpleNode()) {
             super.postorder(node);
@@ -250,6 +260,53 @@ public class KeyPropagation extends CircuitVisitor {
         return null;
     }
 
+    /** True if the operator produces an indexed Z-set whose index contains all the
+     * fields of a primary key, so each index value appears at most once. */
+    public boolean isUniqueOnKey(DBSPSimpleOperator operator) {
+        if (!operator.outputType.is(DBSPTypeIndexedZSet.class))
+            return false;
+        StreamDescription description = this.keys.get(operator);
+        if (description == null)
+            return false;
+        int indexFields = operator.getOutputIndexedZSetType().getKeyTypeTuple().size();
+        if (description.properties.size() < indexFields)
+            return false;
+        return this.hasKeys(description.prefix(indexFields)) != null;
+    }
+
+    /** True if the join index consists exactly of the fields of the primary key of
+     * the joined table on the key side, and, in the same order, of the fields of a
+     * foreign key referring to it on the other side. */
+    public boolean isExactForeignKeyJoin(JoinDescription description) {
+        DBSPJoinBaseOperator join = description.join().to(DBSPJoinBaseOperator.class);
+        if (!join.left().isSimpleNode() || !join.right().isSimpleNode())
+            return false;
+        StreamDescription left = this.keys.get(join.left().simpleNode());
+        StreamDescription right = this.keys.get(join.right().simpleNode());
+        if (left == null || right == null)
+            return false;
+        StreamDescription key = description.leftIsKey() ? left : right;
+        StreamDescription foreign = description.leftIsKey() ? right : left;
+        int indexFields = join.getKeyType().to(DBSPTypeTupleBase.class).size();
+        if (indexFields != description.table().metadata.getPrimaryKeys().size())
+            return false;
+        for (int i = 0; i < indexFields; i++) {
+            PrimaryKeyField pk = key.get(i).keyField;
+            if (pk == null || pk.table != description.table())
+                return false;
+            boolean found = false;
+            for (ForeignKeyField fk: foreign.get(i).fkFields) {
+                if (fk.table == pk.table && fk.tableFieldIndex == pk.tableFieldIndex) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found)
+                return false;
+        }
+        return true;
+    }
+
     /** Check if desc contains a foreign key that contains all fields of the key
      * of table source.
      * @param source  Table whose key we are looking for.
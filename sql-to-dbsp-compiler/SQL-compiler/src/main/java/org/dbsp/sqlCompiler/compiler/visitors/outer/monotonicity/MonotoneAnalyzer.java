@@ -156,7 +156,7 @@ public class MonotoneAnalyzer implements CircuitTransform, IWritesLogs {
 
         InsertLimiters limiters = new InsertLimiters(
                 this.compiler, expanded, monotonicity.info, expander.expansion,
-                keyPropagation.joins::get, reachableFromError);
+                keyPropagation.joins::get, appendOnly.appendOnly::contains, reachableFromError);
 
         // Notice that we apply the limiters to the original circuit, not to the expanded circuit!
         DBSPCircuit result = limiters.apply(circuit);
@@ -168,6 +168,11 @@ public class MonotoneAnalyzer implements CircuitTransform, IWritesLogs {
         graph.apply(result);
         CheckRetain check = new CheckRetain(this.compiler, graph.getGraphs());
         check.apply(result);
+        if (this.compiler.options.languageOptions.incrementalize) {
+            StateRetention retention = new StateRetention(this.compiler, graph.getGraphs(),
+                    this.compiler.options.ioOptions.warnUnboundedState);
+            retention.apply(result);
+        }
         return result;
     }
 
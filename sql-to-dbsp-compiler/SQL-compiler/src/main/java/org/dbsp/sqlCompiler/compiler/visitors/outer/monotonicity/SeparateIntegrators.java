@@ -8,6 +8,7 @@ import org.dbsp.sqlCompiler.circuit.operator.DBSPIndexedTopKOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPIntegrateOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinBaseOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPLagOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLagWithWaterlineOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPNoopOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPSimpleOperator;
@@ -47,6 +48,7 @@ public class SeparateIntegrators extends CircuitCloneWithGraphsVisitor {
                 operator.is(DBSPPartitionedRollingAggregateOperator.class) ||
                 operator.is(DBSPIntegrateOperator.class) ||
                 operator.is(DBSPLagOperator.class) ||
+                operator.is(DBSPLagWithWaterlineOperator.class) ||
                 operator.is(DBSPIndexedTopKOperator.class) ||
                 (operator.is(DBSPSourceMultisetOperator.class) &&
                         operator.to(DBSPSourceMultisetOperator.class).metadata.materialized) ||
@@ -64,6 +66,7 @@ public class SeparateIntegrators extends CircuitCloneWithGraphsVisitor {
                 operator.is(DBSPAggregateOperator.class) ||
                 operator.is(DBSPIntegrateOperator.class) ||
                 operator.is(DBSPLagOperator.class) ||
+                (operator.is(DBSPLagWithWaterlineOperator.class) && input == 0) ||
                 operator.is(DBSPIndexedTopKOperator.class) ||
                 (operator.is(DBSPSinkOperator.class) &&
                         operator.to(DBSPSinkOperator.class).metadata.viewKind ==
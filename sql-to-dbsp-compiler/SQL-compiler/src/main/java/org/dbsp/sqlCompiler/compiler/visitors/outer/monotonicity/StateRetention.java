@@ -0,0 +1,490 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer.monotonicity;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDeindexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinBaseOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSimpleOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSourceMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSourceTableOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPViewBaseOperator;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.InputColumnMetadata;
+import org.dbsp.sqlCompiler.compiler.frontend.calciteCompiler.ProgramIdentifier;
+import org.dbsp.sqlCompiler.compiler.visitors.VisitDecision;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.InnerVisitor;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitGraph;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitGraphs;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitWithGraphsVisitor;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.RowFields;
+import org.dbsp.sqlCompiler.ir.IDBSPOuterNode;
+import org.dbsp.sqlCompiler.ir.expression.DBSPBaseTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPDerefExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPFieldExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPRawTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.IsNumericType;
+import org.dbsp.sqlCompiler.ir.type.primitive.DBSPTypeDate;
+import org.dbsp.sqlCompiler.ir.type.primitive.DBSPTypeTimestamp;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Linq;
+import org.dbsp.util.Logger;
+import org.dbsp.util.Utilities;
+import org.dbsp.util.graph.Port;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/** Finds the integrated traces of an incremental circuit which are not garbage-collected,
+ * after {@link InsertLimiters} has inserted the retain operators.
+ *
+ * <p>The state of these traces grows with the input.  For each such trace the analysis
+ * computes the columns of the input tables from which the fields of its key are computed;
+ * if one of these columns were monotone, the trace could be garbage-collected.
+ * Columns that do not declare a LATENESS yet, and whose type allows a LATENESS,
+ * are reported as candidates.  The lateness values in the suggested declarations are
+ * placeholders.
+ *
+ * <p>The results are stored in {@link DBSPCompiler#unboundedState}. */
+public class StateRetention extends CircuitWithGraphsVisitor implements IWritesLogs, IntegratedTraces.Consumer {
+    /** A column of an input table */
+    public record SourceColumn(ProgramIdentifier table, InputColumnMetadata column) {
+        /** True if a LATENESS can be declared for the column */
+        public boolean acceptsLateness() {
+            DBSPType type = this.column.type;
+            return type.is(DBSPTypeTimestamp.class) || type.is(DBSPTypeDate.class) || type.is(IsNumericType.class);
+        }
+
+        /** A column declaration with a LATENESS annotation, or null if the column is not a candidate */
+        @Nullable
+        public String suggestedDeclaration() {
+            if (this.column.lateness != null || !this.acceptsLateness())
+                return null;
+            DBSPType type = this.column.type;
+            String value;
+            if (type.is(DBSPTypeTimestamp.class))
+                value = "INTERVAL 1 HOUR";
+            else if (type.is(DBSPTypeDate.class))
+                value = "INTERVAL 1 DAY";
+            else
+                value = "0";
+            String declaration = this.sqlName() + " " + type.asSqlString();
+            if (!type.mayBeNull)
+                declaration += " NOT NULL";
+            return declaration + " LATENESS " + value;
+        }
+
+        /** The name of the column as it is written in a SQL declaration */
+        public String sqlName() {
+            String name = this.column.name.name();
+            if (ProgramIdentifier.needsQuotes(name) || !name.matches("[a-z_][a-z0-9_$]*"))
+                return "\"" + name.replace("\"", "\"\"") + "\"";
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return this.table + "." + this.column.name;
+        }
+    }
+
+    /** An integrated trace which is not garbage-collected.
+     *
+     * @param operator Operator which maintains the trace.
+     * @param trace    Stream that is integrated: "input N" or "output".
+     * @param views    Views computed using the output of the operator.
+     * @param columns  Input columns which contribute to the key of the trace. */
+    public record UnboundedTrace(DBSPSimpleOperator operator, String trace,
+                                 List<ProgramIdentifier> views, Set<SourceColumn> columns) {
+        public String getMessage() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("The ")
+                    .append(this.trace)
+                    .append(" of operator ")
+                    .append(this.operator.operation);
+            if (!this.views.isEmpty()) {
+                builder.append(" used by view");
+                if (this.views.size() > 1)
+                    builder.append("s");
+                builder.append(" ")
+                        .append(String.join(", ", Linq.map(this.views, ProgramIdentifier::singleQuote)));
+            }
+            builder.append(" is stored in a trace that is never garbage-collected.");
+            List<String> candidates = new ArrayList<>();
+            for (SourceColumn column: this.columns)
+                if (column.suggestedDeclaration() != null)
+                    candidates.add(column.toString());
+            if (candidates.isEmpty()) {
+                builder.append(" No input column with a LATENESS could bound it.");
+            } else {
+                builder.append(" It could be garbage-collected if one of these columns had a LATENESS: ")
+                        .append(String.join(", ", candidates));
+            }
+            return builder.toString();
+        }
+
+        public ObjectNode asJson(ObjectMapper mapper) {
+            ObjectNode result = mapper.createObjectNode();
+            result.put("operator", this.operator.getIdString());
+            result.put("operation", this.operator.operation);
+            result.put("trace", this.trace);
+            ArrayNode views = result.putArray("views");
+            for (ProgramIdentifier view: this.views)
+                views.add(view.name());
+            ArrayNode columns = result.putArray("columns");
+            for (SourceColumn column: this.columns) {
+                ObjectNode c = columns.addObject();
+                c.put("table", column.table().name());
+                c.put("column", column.column().name.name());
+                c.put("type", column.column().type.asSqlString());
+                c.put("lateness", column.column().lateness != null);
+                String declaration = column.suggestedDeclaration();
+                if (declaration != null)
+                    c.put("suggestion", declaration);
+            }
+            return result;
+        }
+    }
+
+    /** Report listing all the unbounded traces as JSON */
+    public static ArrayNode asJson(List<UnboundedTrace> traces) {
+        ObjectMapper mapper = Utilities.deterministicObjectMapper();
+        ArrayNode result = mapper.createArrayNode();
+        for (UnboundedTrace trace: traces)
+            result.add(trace.asJson(mapper));
+        return result;
+    }
+
+    /** For each field of each stream the input columns it is computed from */
+    final Map<OutputPort, List<Set<SourceColumn>>> lineage;
+    /** Streams whose integrals are garbage-collected */
+    final Set<OutputPort> collected;
+    /** An integrated stream, which may be garbage-collected */
+    record Candidate(DBSPSimpleOperator operator, OutputPort stream, String trace,
+                     CircuitGraph graph, Set<SourceColumn> columns) {}
+
+    /** Integrated streams, in circuit order */
+    final List<Candidate> candidates;
+    /** True if warnings should be emitted */
+    final boolean warn;
+
+    public StateRetention(DBSPCompiler compiler, CircuitGraphs graphs, boolean warn) {
+        super(compiler, graphs);
+        this.lineage = new HashMap<>();
+        this.collected = new HashSet<>();
+        this.candidates = new ArrayList<>();
+        this.warn = warn;
+    }
+
+    @Override
+    public Token startVisit(IDBSPOuterNode node) {
+        this.lineage.clear();
+        this.collected.clear();
+        this.candidates.clear();
+        this.compiler().unboundedState.clear();
+        return super.startVisit(node);
+    }
+
+    static List<Set<SourceColumn>> empty(int size) {
+        List<Set<SourceColumn>> result = new ArrayList<>();
+        for (int i = 0; i < size; i++)
+            result.add(new LinkedHashSet<>());
+        return result;
+    }
+
+    List<Set<SourceColumn>> getLineage(OutputPort port) {
+        List<Set<SourceColumn>> result = this.lineage.get(port);
+        if (result == null)
+            return empty(RowFields.rowSize(port));
+        return result;
+    }
+
+    static Set<SourceColumn> union(List<Set<SourceColumn>> fields, int start, int end) {
+        Set<SourceColumn> result = new LinkedHashSet<>();
+        for (int i = start; i < end && i < fields.size(); i++)
+            result.addAll(fields.get(i));
+        return result;
+    }
+
+    /** Collects the lineage of an expression in a closure */
+    static class UsedColumns extends InnerVisitor {
+        final DBSPClosureExpression closure;
+        final RowFields.InputField resolve;
+        final List<Set<SourceColumn>> inputs;
+        final Set<SourceColumn> result;
+
+        UsedColumns(DBSPCompiler compiler, DBSPClosureExpression closure,
+                    RowFields.InputField resolve, List<Set<SourceColumn>> inputs) {
+            super(compiler);
+            this.closure = closure;
+            this.resolve = resolve;
+            this.inputs = inputs;
+            this.result = new LinkedHashSet<>();
+        }
+
+        int parameter(DBSPExpression expression) {
+            while (expression.is(DBSPDerefExpression.class))
+                expression = expression.to(DBSPDerefExpression.class).expression;
+            if (!expression.is(DBSPVariablePath.class))
+                return -1;
+            String name = expression.to(DBSPVariablePath.class).variable;
+            for (int i = 0; i < this.closure.parameters.length; i++)
+                if (this.closure.parameters[i].name.equals(name))
+                    return i;
+            return -1;
+        }
+
+        @Override
+        public VisitDecision preorder(DBSPFieldExpression field) {
+            int index = -1;
+            int param = this.parameter(field.expression);
+            if (param >= 0) {
+                index = this.resolve.index(param, -1, field.fieldNo);
+            } else {
+                DBSPExpression source = field.expression;
+                while (source.is(DBSPDerefExpression.class))
+                    source = source.to(DBSPDerefExpression.class).expression;
+                if (source.is(DBSPFieldExpression.class)) {
+                    DBSPFieldExpression component = source.to(DBSPFieldExpression.class);
+                    param = this.parameter(component.expression);
+                    if (param >= 0)
+                        index = this.resolve.index(param, component.fieldNo, field.fieldNo);
+                }
+            }
+            if (index < 0 || index >= this.inputs.size())
+                return VisitDecision.CONTINUE;
+            this.result.addAll(this.inputs.get(index));
+            return VisitDecision.STOP;
+        }
+
+        @Override
+        public void postorder(DBSPVariablePath var) {
+            if (this.parameter(var) >= 0)
+                // Parameter used in some other way: may depend on all inputs
+                this.result.addAll(union(this.inputs, 0, this.inputs.size()));
+        }
+    }
+
+    /** Lineage of the output of a closure, or null if the closure has an unexpected shape */
+    @Nullable
+    List<Set<SourceColumn>> closureLineage(
+            @Nullable DBSPExpression function, RowFields.InputField resolve, List<Set<SourceColumn>> inputs, int size) {
+        if (function == null || !function.is(DBSPClosureExpression.class))
+            return null;
+        DBSPClosureExpression closure = function.to(DBSPClosureExpression.class);
+        List<DBSPExpression> fields = new ArrayList<>();
+        DBSPExpression body = closure.body;
+        List<DBSPExpression> components = new ArrayList<>();
+        if (body.is(DBSPRawTupleExpression.class) && body.to(DBSPRawTupleExpression.class).fields != null)
+            components.addAll(List.of(body.to(DBSPRawTupleExpression.class).fields));
+        else
+            components.add(body);
+        for (DBSPExpression component: components) {
+            DBSPBaseTupleExpression tuple = component.as(DBSPBaseTupleExpression.class);
+            if (tuple == null || tuple.fields == null)
+                return null;
+            fields.addAll(List.of(tuple.fields));
+        }
+        if (fields.size() != size)
+            return null;
+        List<Set<SourceColumn>> result = new ArrayList<>();
+        for (DBSPExpression field: fields) {
+            UsedColumns used = new UsedColumns(this.compiler(), closure, resolve, inputs);
+            used.apply(field);
+            result.add(used.result);
+        }
+        return result;
+    }
+
+    List<Set<SourceColumn>> computeLineage(DBSPSimpleOperator operator) {
+        int size = RowFields.rowSize(operator.outputPort());
+        if (operator.is(DBSPSourceTableOperator.class)) {
+            DBSPSourceTableOperator source = operator.to(DBSPSourceTableOperator.class);
+            List<InputColumnMetadata> columns = new ArrayList<>(source.metadata.getColumns());
+            List<Set<SourceColumn>> result = empty(size);
+            int offset = 0;
+            if (source.is(DBSPSourceMapOperator.class)) {
+                List<Integer> keys = source.to(DBSPSourceMapOperator.class).keyFields;
+                for (int i = 0; i < keys.size(); i++)
+                    result.get(i).add(new SourceColumn(source.tableName, columns.get(keys.get(i))));
+                offset = keys.size();
+            }
+            for (int i = 0; i < columns.size() && offset + i < size; i++)
+                result.get(offset + i).add(new SourceColumn(source.tableName, columns.get(i)));
+            return result;
+        }
+
+        List<List<Set<SourceColumn>>> inputs = new ArrayList<>();
+        for (OutputPort input: operator.inputs)
+            inputs.add(this.getLineage(input));
+
+        if (operator.is(DBSPMapOperator.class) || operator.is(DBSPMapIndexOperator.class)) {
+            OutputPort input = operator.inputs.get(0);
+            int keySize = RowFields.keySize(input);
+            boolean indexed = input.outputType().is(DBSPTypeIndexedZSet.class);
+            int parameters = operator.getClosureFunction().parameters.length;
+            List<Set<SourceColumn>> result = this.closureLineage(operator.function, (p, c, f) -> {
+                if (!indexed)
+                    return p == 0 && c == -1 ? f : -1;
+                if (parameters == 2 && c == -1)
+                    return p == 0 ? f : keySize + f;
+                if (p == 0 && c >= 0)
+                    return c == 0 ? f : keySize + f;
+                return -1;
+            }, inputs.get(0), size);
+            if (result != null)
+                return result;
+        }
+
+        if (operator.is(DBSPJoinBaseOperator.class)) {
+            // Fields of the join: key, left value, right value
+            int keySize = RowFields.keySize(operator.inputs.get(0));
+            int leftSize = RowFields.rowSize(operator.inputs.get(0)) - keySize;
+            List<Set<SourceColumn>> combined = new ArrayList<>();
+            for (int i = 0; i < keySize; i++) {
+                Set<SourceColumn> key = new LinkedHashSet<>(inputs.get(0).get(i));
+                key.addAll(inputs.get(1).get(i));
+                combined.add(key);
+            }
+            combined.addAll(inputs.get(0).subList(keySize, inputs.get(0).size()));
+            combined.addAll(inputs.get(1).subList(keySize, inputs.get(1).size()));
+            List<Set<SourceColumn>> result = this.closureLineage(operator.function, (p, c, f) -> {
+                if (c != -1)
+                    return -1;
+                return switch (p) {
+                    case 0 -> f;
+                    case 1 -> keySize + f;
+                    case 2 -> keySize + leftSize + f;
+                    default -> -1;
+                };
+            }, combined, size);
+            if (result != null)
+                return result;
+        }
+
+        if (operator.is(DBSPDeindexOperator.class)) {
+            List<Set<SourceColumn>> input = inputs.get(0);
+            return new ArrayList<>(input.subList(input.size() - size, input.size()));
+        }
+
+        boolean sameShape = true;
+        for (List<Set<SourceColumn>> input: inputs)
+            sameShape = sameShape && input.size() == size;
+        if (sameShape && !inputs.isEmpty()) {
+            // Filters, distinct, sums, integrals, etc.
+            List<Set<SourceColumn>> result = empty(size);
+            for (List<Set<SourceColumn>> input: inputs)
+                for (int i = 0; i < size; i++)
+                    result.get(i).addAll(input.get(i));
+            return result;
+        }
+
+        List<Set<SourceColumn>> result = empty(size);
+        int keySize = RowFields.keySize(operator.outputPort());
+        if (inputs.size() == 1 && RowFields.keySize(operator.inputs.get(0)) == keySize) {
+            // Aggregates, TopK, etc.: the key is preserved
+            List<Set<SourceColumn>> input = inputs.get(0);
+            Set<SourceColumn> all = union(input, keySize, input.size());
+            for (int i = 0; i < size; i++) {
+                if (i < keySize)
+                    result.get(i).addAll(input.get(i));
+                else
+                    result.get(i).addAll(all);
+            }
+            return result;
+        }
+        for (List<Set<SourceColumn>> input: inputs) {
+            Set<SourceColumn> all = union(input, 0, input.size());
+            for (Set<SourceColumn> field: result)
+                field.addAll(all);
+        }
+        return result;
+    }
+
+    /** Input columns which contribute to the key of the integral of a stream:
+     * the key fields for an indexed collection, all fields otherwise */
+    Set<SourceColumn> keyColumns(OutputPort port) {
+        List<Set<SourceColumn>> lineage = this.getLineage(port);
+        int keySize = RowFields.keySize(port);
+        if (keySize == 0)
+            return union(lineage, 0, lineage.size());
+        return union(lineage, 0, keySize);
+    }
+
+    /** Views computed from the output of an operator */
+    static List<ProgramIdentifier> views(CircuitGraph graph, DBSPOperator operator) {
+        Set<String> names = new TreeSet<>();
+        List<ProgramIdentifier> result = new ArrayList<>();
+        ArrayDeque<DBSPOperator> queue = new ArrayDeque<>();
+        Set<DBSPOperator> visited = new HashSet<>();
+        queue.add(operator);
+        while (!queue.isEmpty()) {
+            DBSPOperator current = queue.removeFirst();
+            if (!visited.add(current))
+                continue;
+            if (current.is(DBSPViewBaseOperator.class)) {
+                ProgramIdentifier view = current.to(DBSPViewBaseOperator.class).viewName;
+                if (names.add(view.name()))
+                    result.add(view);
+                continue;
+            }
+            for (Port<DBSPOperator> successor: graph.getSuccessors(current))
+                queue.add(successor.node());
+        }
+        result.sort((a, b) -> a.name().compareTo(b.name()));
+        return result;
+    }
+
+    @Override
+    public void collected(OutputPort stream) {
+        this.collected.add(stream);
+    }
+
+    @Override
+    public void integrated(DBSPSimpleOperator operator, OutputPort stream, String trace, boolean bounded) {
+        if (bounded)
+            return;
+        this.candidates.add(new Candidate(operator, stream, trace, this.getGraph(), this.keyColumns(stream)));
+    }
+
+    @Override
+    public void postorder(DBSPSimpleOperator operator) {
+        this.lineage.put(operator.outputPort(), this.computeLineage(operator));
+        IntegratedTraces.find(operator, this);
+    }
+
+    @Override
+    public void endVisit() {
+        for (Candidate candidate: this.candidates) {
+            if (this.collected.contains(candidate.stream()))
+                continue;
+            UnboundedTrace trace = new UnboundedTrace(candidate.operator(), candidate.trace(),
+                    views(candidate.graph(), candidate.operator()), candidate.columns());
+            this.compiler().unboundedState.add(trace);
+            Logger.INSTANCE.belowLevel(this, 1)
+                    .append(trace.getMessage())
+                    .newline();
+            if (this.warn)
+                this.compiler().reportWarning(trace.operator().getRelNode().getPositionRange(),
+                        "Unbounded state", trace.getMessage());
+        }
+        super.endVisit();
+    }
+}
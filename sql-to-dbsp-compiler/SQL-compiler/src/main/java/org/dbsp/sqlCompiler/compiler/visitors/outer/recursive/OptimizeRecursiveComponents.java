@@ -0,0 +1,1047 @@
+package org.dbsp.sqlCompiler.compiler.visitors.outer.recursive;
+
+import org.dbsp.sqlCompiler.circuit.DBSPCircuit;
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAntiJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDeltaOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDifferentiateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDistinctOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPFilterOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPFlatMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPIntegrateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPMapOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPNegateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPNestedOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPNoopOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSimpleOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamAntiJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamDistinctOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamJoinIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamJoinOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSubtractOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSumOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPViewDeclarationOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPViewOperator;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.visitors.VisitDecision;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.InnerVisitor;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitCloneVisitor;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitVisitor;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.Passes;
+import org.dbsp.sqlCompiler.ir.IDBSPOuterNode;
+import org.dbsp.sqlCompiler.ir.aggregate.DBSPAggregateList;
+import org.dbsp.sqlCompiler.ir.aggregate.MinMaxAggregate;
+import org.dbsp.sqlCompiler.ir.expression.DBSPBaseTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPBinaryExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPCastExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPCloneExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPDerefExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPFieldExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPOpcode;
+import org.dbsp.sqlCompiler.ir.expression.DBSPRawTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
+import org.dbsp.sqlCompiler.ir.type.DBSPType;
+import org.dbsp.sqlCompiler.ir.type.IsNumericType;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeTuple;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeTupleBase;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeIndexedZSet;
+import org.dbsp.sqlCompiler.ir.type.user.DBSPTypeZSet;
+import org.dbsp.util.IWritesLogs;
+import org.dbsp.util.Linq;
+import org.dbsp.util.Logger;
+import org.dbsp.util.Utilities;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Optimizations specific to the {@link DBSPNestedOperator}s that implement recursive views.
+ *
+ * <p>A recursive component is <em>linear</em> if no operator in the component combines
+ * two collections that both depend on the recursive views, except by adding them.
+ * In a linear component each row produced in an iteration is derived from a single row
+ * of the previous iteration.  Two optimizations are performed:
+ *
+ * <p>- A filter applied to the output of a linear recursive view is pushed inside the
+ * fixpoint computation when the view is only consumed by such filters, and when
+ * every field used by the predicate is copied unchanged by the recursive step.
+ * Then a row that does not satisfy the predicate can never contribute to a row that does.
+ * Projections are not pushed: a projection of a set is a multiset, so the result would
+ * differ unless the consumer applies DISTINCT.
+ *
+ * <p>- A distinct inside a component whose output only flows through linear operators
+ * (maps, filters, joins, sums) into another distinct is removed:
+ * distinct(f(distinct(x))) = distinct(f(x)).  The distinct that precedes the recursive
+ * view is always kept: it ensures that the fixpoint is reached on cyclic data.
+ *
+ * <p>- A MIN or MAX aggregate applied to the output of a linear recursive view, which groups
+ * on all the other view fields, is also applied before the view, inside the fixpoint, when the
+ * recursive step is monotone in the aggregated field (see {@link MonotoneFields}).
+ * Each iteration then only keeps the best value for each key.  This is the case for
+ * shortest-path queries, which otherwise enumerate all paths, and do not terminate on cyclic
+ * graphs.  The aggregate outside the component is kept; it is idempotent. */
+public class OptimizeRecursiveComponents extends Passes {
+    public OptimizeRecursiveComponents(DBSPCompiler compiler) {
+        super("OptimizeRecursive", compiler);
+        AnalyzeRecursiveComponents analysis = new AnalyzeRecursiveComponents(compiler);
+        this.add(analysis);
+        this.add(new RewriteRecursiveComponents(compiler, analysis));
+    }
+
+    /** Describes how the fields of a collection computed inside a recursive component
+     * are obtained from the fields of the recursive view.  For each field the
+     * index of the view field that is copied unchanged into it, or -1.
+     * For a ZSet the key is empty. */
+    record Origin(int[] key, int[] value) {
+        static int size(DBSPType type) {
+            if (type.is(DBSPTypeTupleBase.class))
+                return type.to(DBSPTypeTupleBase.class).size();
+            return 0;
+        }
+
+        static int[] unknown(int size) {
+            int[] result = new int[size];
+            Arrays.fill(result, -1);
+            return result;
+        }
+
+        static Origin unknown(int keySize, int valueSize) {
+            return new Origin(unknown(keySize), unknown(valueSize));
+        }
+
+        static Origin unknown(DBSPType type) {
+            if (type.is(DBSPTypeIndexedZSet.class)) {
+                DBSPTypeIndexedZSet ix = type.to(DBSPTypeIndexedZSet.class);
+                return new Origin(unknown(size(ix.keyType)), unknown(size(ix.elementType)));
+            }
+            return new Origin(new int[0], unknown(size(type.to(DBSPTypeZSet.class).elementType)));
+        }
+
+        static Origin identity(DBSPType type) {
+            int[] value = unknown(size(type.to(DBSPTypeZSet.class).elementType));
+            for (int i = 0; i < value.length; i++)
+                value[i] = i;
+            return new Origin(new int[0], value);
+        }
+
+        static int get(int[] fields, int index) {
+            if (index < 0 || index >= fields.length)
+                return -1;
+            return fields[index];
+        }
+
+        static int[] merge(int[] left, int[] right) {
+            if (left.length != right.length)
+                return unknown(left.length);
+            int[] result = new int[left.length];
+            for (int i = 0; i < left.length; i++)
+                result[i] = left[i] == right[i] ? left[i] : -1;
+            return result;
+        }
+
+        /** Origin of a collection that contains the rows of both collections */
+        Origin merge(Origin other) {
+            return new Origin(merge(this.key, other.key), merge(this.value, other.value));
+        }
+    }
+
+    /** An expression of the form param.field or param.component.field in a closure,
+     * where param is a (dereferenced) parameter.  'component' is -1 in the first case.
+     * Clones and casts that only change nullability are ignored. */
+    record FieldAccess(int parameter, int component, int field) {
+        static DBSPExpression strip(DBSPExpression expression) {
+            while (true) {
+                if (expression.is(DBSPCloneExpression.class))
+                    expression = expression.to(DBSPCloneExpression.class).expression;
+                else if (expression.is(DBSPDerefExpression.class))
+                    expression = expression.to(DBSPDerefExpression.class).expression;
+                else if (expression.is(DBSPCastExpression.class) &&
+                        expression.to(DBSPCastExpression.class).source.getType()
+                                .sameTypeIgnoringNullability(expression.getType()))
+                    // A cast that only changes nullability preserves the value
+                    expression = expression.to(DBSPCastExpression.class).source;
+                else
+                    return expression;
+            }
+        }
+
+        static int parameterIndex(DBSPClosureExpression closure, DBSPExpression expression) {
+            if (!expression.is(DBSPVariablePath.class))
+                return -1;
+            String name = expression.to(DBSPVariablePath.class).variable;
+            for (int i = 0; i < closure.parameters.length; i++)
+                if (closure.parameters[i].name.equals(name))
+                    return i;
+            return -1;
+        }
+
+        @Nullable
+        static FieldAccess analyze(DBSPClosureExpression closure, DBSPExpression expression) {
+            expression = strip(expression);
+            if (!expression.is(DBSPFieldExpression.class))
+                return null;
+            DBSPFieldExpression field = expression.to(DBSPFieldExpression.class);
+            DBSPExpression source = strip(field.expression);
+            int param = parameterIndex(closure, source);
+            if (param >= 0)
+                return new FieldAccess(param, -1, field.fieldNo);
+            if (!source.is(DBSPFieldExpression.class))
+                return null;
+            DBSPFieldExpression component = source.to(DBSPFieldExpression.class);
+            param = parameterIndex(closure, strip(component.expression));
+            if (param >= 0)
+                return new FieldAccess(param, component.fieldNo, field.fieldNo);
+            return null;
+        }
+    }
+
+    /** Resolves a field access in a closure to a field of the recursive view */
+    interface ResolveAccess {
+        int resolve(FieldAccess access);
+    }
+
+    /** Computes the origin of a field produced by an expression in a closure */
+    interface ClassifyField {
+        int classify(DBSPClosureExpression closure, DBSPExpression expression);
+
+        /** Fields that are copies of the input fields */
+        static ClassifyField copies(ResolveAccess resolve) {
+            return (closure, expression) -> {
+                FieldAccess access = FieldAccess.analyze(closure, expression);
+                return access != null ? resolve.resolve(access) : -1;
+            };
+        }
+    }
+
+    /** Collects the fields of the (single) parameter that are used by a closure.
+     * {@link #onlyFields()} returns false if the parameter is used in any other way. */
+    static class UsedFields extends InnerVisitor {
+        final String parameter;
+        final Set<Integer> fields;
+        int references;
+        int fieldReferences;
+
+        UsedFields(DBSPCompiler compiler, String parameter) {
+            super(compiler);
+            this.parameter = parameter;
+            this.fields = new HashSet<>();
+            this.references = 0;
+            this.fieldReferences = 0;
+        }
+
+        @Override
+        public void postorder(DBSPVariablePath var) {
+            if (var.variable.equals(this.parameter))
+                this.references++;
+        }
+
+        @Override
+        public void postorder(DBSPFieldExpression field) {
+            DBSPExpression source = FieldAccess.strip(field.expression);
+            if (source.is(DBSPVariablePath.class) &&
+                    source.to(DBSPVariablePath.class).variable.equals(this.parameter)) {
+                this.fields.add(field.fieldNo);
+                this.fieldReferences++;
+            }
+        }
+
+        boolean onlyFields() {
+            return this.references == this.fieldReferences;
+        }
+    }
+
+    /** Combines the origins of all the closure parameter fields used by an expression.
+     * {@link #other} is set if a parameter is used in any other way. */
+    static class UsedAccesses extends InnerVisitor {
+        final DBSPClosureExpression closure;
+        final ResolveAccess resolve;
+        final List<Integer> origins;
+        boolean other;
+
+        UsedAccesses(DBSPCompiler compiler, DBSPClosureExpression closure, ResolveAccess resolve) {
+            super(compiler);
+            this.closure = closure;
+            this.resolve = resolve;
+            this.origins = new ArrayList<>();
+            this.other = false;
+        }
+
+        @Override
+        public VisitDecision preorder(DBSPFieldExpression field) {
+            FieldAccess access = FieldAccess.analyze(this.closure, field);
+            if (access == null)
+                return VisitDecision.CONTINUE;
+            this.origins.add(this.resolve.resolve(access));
+            return VisitDecision.STOP;
+        }
+
+        @Override
+        public void postorder(DBSPVariablePath var) {
+            if (FieldAccess.parameterIndex(this.closure, var) >= 0)
+                this.other = true;
+        }
+    }
+
+    /** Decides whether a MIN or MAX aggregate over one field of the single view of a
+     * linear component can be applied inside the fixpoint; the other view fields are
+     * the grouping keys.  This holds when the recursive step is monotone in the
+     * aggregated field: the value of this field in a derived row is a non-decreasing
+     * function of its value in the source row, and the aggregated field is not used in
+     * any other way (filters, join keys, other fields).  Then the rows that do not have
+     * the best value in their group can only produce rows that are not the best in their
+     * group, so they can be discarded in every iteration.
+     *
+     * <p>The origins computed use the following codes in addition to field indexes. */
+    static class MonotoneFields {
+        /** Field which may depend on the aggregated field in an unknown way */
+        static final int UNKNOWN = -1;
+        /** Non-decreasing function of the aggregated field, for fixed values of the other fields */
+        static final int MONOTONE = -2;
+        /** Field that does not depend on the recursive view */
+        static final int INDEPENDENT = -3;
+        /** Field that depends only on the view fields which are not aggregated */
+        static final int KEYS = -4;
+
+        final DBSPCompiler compiler;
+        /** Index of the aggregated field in the view */
+        final int aggregated;
+        final Map<OutputPort, Origin> origins;
+
+        MonotoneFields(DBSPCompiler compiler, int aggregated) {
+            this.compiler = compiler;
+            this.aggregated = aggregated;
+            this.origins = new HashMap<>();
+        }
+
+        boolean aggregateLike(int origin) {
+            return origin == this.aggregated || origin == MONOTONE;
+        }
+
+        boolean keyLike(int origin) {
+            return origin == INDEPENDENT || origin == KEYS || (origin >= 0 && origin != this.aggregated);
+        }
+
+        boolean keyLike(int[] origins) {
+            for (int origin: origins)
+                if (!this.keyLike(origin))
+                    return false;
+            return true;
+        }
+
+        int merge(int left, int right) {
+            if (left == right)
+                return left;
+            if (left == UNKNOWN || right == UNKNOWN)
+                return UNKNOWN;
+            if (this.keyLike(left) && this.keyLike(right))
+                return KEYS;
+            return MONOTONE;
+        }
+
+        Origin merge(Origin left, Origin right) {
+            if (left.key().length != right.key().length || left.value().length != right.value().length)
+                return Origin.unknown(left.key().length, left.value().length);
+            int[] key = new int[left.key().length];
+            for (int i = 0; i < key.length; i++)
+                key[i] = this.merge(left.key()[i], right.key()[i]);
+            int[] value = new int[left.value().length];
+            for (int i = 0; i < value.length; i++)
+                value[i] = this.merge(left.value()[i], right.value()[i]);
+            return new Origin(key, value);
+        }
+
+        static boolean isNumeric(DBSPType type) {
+            return type.is(IsNumericType.class);
+        }
+
+        /** Origin of a value computed by an expression in a closure */
+        int classify(DBSPClosureExpression closure, DBSPExpression expression, ResolveAccess resolve) {
+            expression = FieldAccess.strip(expression);
+            FieldAccess access = FieldAccess.analyze(closure, expression);
+            if (access != null)
+                return resolve.resolve(access);
+            if (expression.is(DBSPCastExpression.class)) {
+                DBSPCastExpression cast = expression.to(DBSPCastExpression.class);
+                int source = this.classify(closure, cast.source, resolve);
+                if (this.keyLike(source))
+                    return source == INDEPENDENT ? INDEPENDENT : KEYS;
+                // Casts between numeric types are monotone
+                if (this.aggregateLike(source) && isNumeric(cast.source.getType()) && isNumeric(cast.getType()))
+                    return MONOTONE;
+                return UNKNOWN;
+            }
+            if (expression.is(DBSPBinaryExpression.class)) {
+                DBSPBinaryExpression binary = expression.to(DBSPBinaryExpression.class);
+                DBSPOpcode opcode = binary.opcode;
+                if (opcode == DBSPOpcode.ADD || opcode == DBSPOpcode.SUB ||
+                        opcode == DBSPOpcode.TS_ADD || opcode == DBSPOpcode.TS_SUB) {
+                    int left = this.classify(closure, binary.left, resolve);
+                    int right = this.classify(closure, binary.right, resolve);
+                    // x + c, x - c, c + x
+                    if (this.aggregateLike(left) && this.keyLike(right))
+                        return MONOTONE;
+                    if ((opcode == DBSPOpcode.ADD || opcode == DBSPOpcode.TS_ADD) &&
+                            this.keyLike(left) && this.aggregateLike(right))
+                        return MONOTONE;
+                }
+            }
+            return this.combineUsed(closure, expression, resolve);
+        }
+
+        /** Origin of an arbitrary expression, based on the fields that it uses */
+        int combineUsed(DBSPClosureExpression closure, DBSPExpression expression, ResolveAccess resolve) {
+            UsedAccesses used = new UsedAccesses(this.compiler, closure, resolve);
+            used.apply(expression);
+            if (used.other)
+                return UNKNOWN;
+            int result = INDEPENDENT;
+            for (int origin: used.origins) {
+                if (!this.keyLike(origin))
+                    return UNKNOWN;
+                if (origin != INDEPENDENT)
+                    result = KEYS;
+            }
+            return result;
+        }
+
+        /** Resolve a field access in a join closure with parameters (key, left, right),
+         * where inputs that do not depend on the view have no origin */
+        static int resolveJoin(@Nullable Origin left, @Nullable Origin right, FieldAccess access) {
+            if (access.component() != -1)
+                return UNKNOWN;
+            return switch (access.parameter()) {
+                case 0 -> left != null ? Origin.get(left.key(), access.field()) :
+                        right != null ? Origin.get(right.key(), access.field()) : INDEPENDENT;
+                case 1 -> left != null ? Origin.get(left.value(), access.field()) : INDEPENDENT;
+                case 2 -> right != null ? Origin.get(right.value(), access.field()) : INDEPENDENT;
+                default -> UNKNOWN;
+            };
+        }
+
+        /** Computes the origins of all collections in a linear component.
+         *
+         * @return false if some operator uses the aggregated field in a way
+         * that is not known to be monotone. */
+        boolean compute(DBSPNestedOperator component) {
+            this.origins.clear();
+            for (DBSPOperator operator: component.getAllOperators()) {
+                if (operator.is(DBSPViewDeclarationOperator.class)) {
+                    DBSPSimpleOperator decl = operator.to(DBSPSimpleOperator.class);
+                    this.origins.put(decl.outputPort(), Origin.identity(decl.outputType));
+                    continue;
+                }
+
+                List<Origin> dependent = new ArrayList<>();
+                for (OutputPort input: operator.inputs) {
+                    Origin origin = this.origins.get(input);
+                    if (origin != null)
+                        dependent.add(origin);
+                }
+                if (dependent.isEmpty())
+                    continue;
+                if (!operator.is(DBSPSimpleOperator.class))
+                    return false;
+
+                DBSPSimpleOperator simple = operator.to(DBSPSimpleOperator.class);
+                Origin result;
+                if (simple.is(DBSPSumOperator.class)) {
+                    result = dependent.get(0);
+                    for (int i = 1; i < dependent.size(); i++)
+                        result = this.merge(result, dependent.get(i));
+                } else if (simple.is(DBSPIntegrateOperator.class) ||
+                        simple.is(DBSPDifferentiateOperator.class) ||
+                        simple.is(DBSPDeltaOperator.class) ||
+                        simple.is(DBSPNoopOperator.class) ||
+                        simple.is(DBSPViewOperator.class) ||
+                        AnalyzeRecursiveComponents.isDistinct(simple)) {
+                    result = dependent.get(0);
+                } else if (simple.is(DBSPFilterOperator.class)) {
+                    DBSPType inputType = simple.inputs.get(0).outputType();
+                    Origin input = dependent.get(0);
+                    DBSPClosureExpression predicate = simple.getClosureFunction();
+                    int origin = this.combineUsed(predicate, predicate.body,
+                            access -> AnalyzeRecursiveComponents.resolveUnary(inputType, input, access));
+                    if (!this.keyLike(origin))
+                        return false;
+                    result = input;
+                } else if (simple.is(DBSPMapOperator.class) || simple.is(DBSPMapIndexOperator.class)) {
+                    DBSPType inputType = simple.inputs.get(0).outputType();
+                    Origin input = dependent.get(0);
+                    result = AnalyzeRecursiveComponents.fromClosure(simple, (closure, expression) ->
+                            this.classify(closure, expression,
+                                    access -> AnalyzeRecursiveComponents.resolveUnary(inputType, input, access)));
+                } else if (AnalyzeRecursiveComponents.isJoin(simple)) {
+                    Origin left = this.origins.get(simple.inputs.get(0));
+                    Origin right = this.origins.get(simple.inputs.get(1));
+                    // Rows are matched on the keys
+                    if ((left != null && !this.keyLike(left.key())) ||
+                            (right != null && !this.keyLike(right.key())))
+                        return false;
+                    result = AnalyzeRecursiveComponents.fromClosure(simple, (closure, expression) ->
+                            this.classify(closure, expression, access -> resolveJoin(left, right, access)));
+                } else if ((simple.is(DBSPStreamAntiJoinOperator.class) || simple.is(DBSPAntiJoinOperator.class)) &&
+                        !this.origins.containsKey(simple.inputs.get(1))) {
+                    if (!this.keyLike(dependent.get(0).key()))
+                        return false;
+                    result = dependent.get(0);
+                } else {
+                    return false;
+                }
+                this.origins.put(simple.outputPort(), result);
+            }
+            return true;
+        }
+    }
+
+    /** A MIN or MAX aggregate applied to a recursive view, grouping on all the other fields.
+     *
+     * @param index      Operator that indexes the view by the grouping keys.
+     * @param aggregate  Aggregate applied to the output of 'index'.
+     * @param keys       For each field of the key the corresponding view field.
+     * @param aggregated Index of the aggregated view field. */
+    record PushedAggregate(DBSPMapIndexOperator index, DBSPStreamAggregateOperator aggregate,
+                           int[] keys, int aggregated) {}
+
+    /** Finds the linear recursive components and the operators to rewrite */
+    static class AnalyzeRecursiveComponents extends CircuitVisitor implements IWritesLogs {
+        /** Components that are linear */
+        final Set<DBSPNestedOperator> linear;
+        /** For each recursive view, the predicate to apply before the view */
+        final Map<DBSPViewOperator, DBSPClosureExpression> pushedFilters;
+        /** Filters outside components which become redundant */
+        final Set<DBSPFilterOperator> removedFilters;
+        /** Distinct operators inside components which are redundant */
+        final Set<DBSPSimpleOperator> removedDistincts;
+        /** For each recursive view, the aggregate to apply before the view */
+        final Map<DBSPViewOperator, PushedAggregate> pushedAggregates;
+
+        AnalyzeRecursiveComponents(DBSPCompiler compiler) {
+            super(compiler);
+            this.linear = new HashSet<>();
+            this.pushedFilters = new HashMap<>();
+            this.removedFilters = new HashSet<>();
+            this.removedDistincts = new HashSet<>();
+            this.pushedAggregates = new HashMap<>();
+        }
+
+        @Override
+        public Token startVisit(IDBSPOuterNode node) {
+            this.linear.clear();
+            this.pushedFilters.clear();
+            this.removedFilters.clear();
+            this.removedDistincts.clear();
+            this.pushedAggregates.clear();
+            return super.startVisit(node);
+        }
+
+        static Origin fromClosure(DBSPSimpleOperator operator, ClassifyField classify) {
+            DBSPType outputType = operator.outputType;
+            Origin result = Origin.unknown(outputType);
+            DBSPExpression function = operator.getFunction();
+            if (!function.is(DBSPClosureExpression.class))
+                return result;
+            DBSPClosureExpression closure = function.to(DBSPClosureExpression.class);
+            DBSPExpression body = closure.body;
+            if (outputType.is(DBSPTypeIndexedZSet.class)) {
+                if (!body.is(DBSPRawTupleExpression.class))
+                    return result;
+                DBSPRawTupleExpression raw = body.to(DBSPRawTupleExpression.class);
+                if (raw.fields == null || raw.fields.length != 2 ||
+                        !raw.fields[0].is(DBSPBaseTupleExpression.class) ||
+                        !raw.fields[1].is(DBSPBaseTupleExpression.class))
+                    return result;
+                fill(closure, raw.fields[0].to(DBSPBaseTupleExpression.class), result.key, classify);
+                fill(closure, raw.fields[1].to(DBSPBaseTupleExpression.class), result.value, classify);
+            } else if (body.is(DBSPBaseTupleExpression.class)) {
+                fill(closure, body.to(DBSPBaseTupleExpression.class), result.value, classify);
+            }
+            return result;
+        }
+
+        static void fill(DBSPClosureExpression closure, DBSPBaseTupleExpression tuple,
+                         int[] fields, ClassifyField classify) {
+            if (tuple.fields == null || tuple.fields.length != fields.length)
+                return;
+            for (int i = 0; i < fields.length; i++)
+                fields[i] = classify.classify(closure, tuple.fields[i]);
+        }
+
+        /** Resolve a field access in a closure whose single parameter has the specified origin */
+        static int resolveUnary(DBSPType inputType, Origin input, FieldAccess access) {
+            if (access.parameter() != 0)
+                return -1;
+            if (inputType.is(DBSPTypeIndexedZSet.class)) {
+                if (access.component() == 0)
+                    return Origin.get(input.key(), access.field());
+                else if (access.component() == 1)
+                    return Origin.get(input.value(), access.field());
+                return -1;
+            }
+            if (access.component() != -1)
+                return -1;
+            return Origin.get(input.value(), access.field());
+        }
+
+        /** Resolve a field access in a join closure with parameters (key, left, right) */
+        static int resolveJoin(@Nullable Origin left, @Nullable Origin right, FieldAccess access) {
+            if (access.component() != -1)
+                return -1;
+            return switch (access.parameter()) {
+                case 0 -> {
+                    int result = left != null ? Origin.get(left.key(), access.field()) : -1;
+                    if (result < 0 && right != null)
+                        result = Origin.get(right.key(), access.field());
+                    yield result;
+                }
+                case 1 -> left != null ? Origin.get(left.value(), access.field()) : -1;
+                case 2 -> right != null ? Origin.get(right.value(), access.field()) : -1;
+                default -> -1;
+            };
+        }
+
+        static boolean isJoin(DBSPOperator operator) {
+            return operator.is(DBSPStreamJoinOperator.class) ||
+                    operator.is(DBSPStreamJoinIndexOperator.class) ||
+                    operator.is(DBSPJoinOperator.class) ||
+                    operator.is(DBSPJoinIndexOperator.class);
+        }
+
+        static boolean isDistinct(DBSPOperator operator) {
+            return operator.is(DBSPStreamDistinctOperator.class) ||
+                    operator.is(DBSPDistinctOperator.class);
+        }
+
+        /** Operators f for which distinct(f(distinct(x))) = distinct(f(x)) */
+        static boolean preservesDistinct(DBSPOperator operator) {
+            return operator.is(DBSPMapOperator.class) ||
+                    operator.is(DBSPMapIndexOperator.class) ||
+                    operator.is(DBSPFilterOperator.class) ||
+                    operator.is(DBSPFlatMapOperator.class) ||
+                    operator.is(DBSPSumOperator.class) ||
+                    operator.is(DBSPNoopOperator.class) ||
+                    isJoin(operator);
+        }
+
+        /** Computes the origins of all collections in a component, relative
+         * to the view declarations.  Collections that do not depend on
+         * the declarations have no origin.
+         *
+         * @return true if the component is linear. */
+        static boolean computeOrigins(DBSPNestedOperator component, Map<OutputPort, Origin> origins) {
+            boolean linear = true;
+            for (DBSPOperator operator: component.getAllOperators()) {
+                if (operator.is(DBSPViewDeclarationOperator.class)) {
+                    DBSPSimpleOperator decl = operator.to(DBSPSimpleOperator.class);
+                    origins.put(decl.outputPort(), Origin.identity(decl.outputType));
+                    continue;
+                }
+
+                List<Origin> dependent = new ArrayList<>();
+                for (OutputPort input: operator.inputs) {
+                    Origin origin = origins.get(input);
+                    if (origin != null)
+                        dependent.add(origin);
+                }
+                if (dependent.isEmpty())
+                    continue;
+
+                if (!operator.is(DBSPSimpleOperator.class)) {
+                    for (int i = 0; i < operator.outputCount(); i++)
+                        origins.put(new OutputPort(operator, i), Origin.unknown(operator.outputType(i)));
+                    continue;
+                }
+                DBSPSimpleOperator simple = operator.to(DBSPSimpleOperator.class);
+                if (dependent.size() > 1 && !simple.is(DBSPSumOperator.class))
+                    linear = false;
+
+                Origin result;
+                if (simple.is(DBSPSumOperator.class)) {
+                    result = dependent.get(0);
+                    for (int i = 1; i < dependent.size(); i++)
+                        result = result.merge(dependent.get(i));
+                } else if (simple.is(DBSPIntegrateOperator.class) ||
+                        simple.is(DBSPDifferentiateOperator.class) ||
+                        simple.is(DBSPDeltaOperator.class) ||
+                        simple.is(DBSPFilterOperator.class) ||
+                        simple.is(DBSPNoopOperator.class) ||
+                        simple.is(DBSPNegateOperator.class) ||
+                        simple.is(DBSPViewOperator.class) ||
+                        isDistinct(simple)) {
+                    result = dependent.get(0);
+                } else if (simple.is(DBSPMapOperator.class) || simple.is(DBSPMapIndexOperator.class)) {
+                    DBSPType inputType = simple.inputs.get(0).outputType();
+                    Origin input = dependent.get(0);
+                    result = fromClosure(simple, ClassifyField.copies(access -> resolveUnary(inputType, input, access)));
+                } else if (isJoin(simple)) {
+                    Origin left = origins.get(simple.inputs.get(0));
+                    Origin right = origins.get(simple.inputs.get(1));
+                    result = fromClosure(simple, ClassifyField.copies(access -> resolveJoin(left, right, access)));
+                } else if ((simple.is(DBSPStreamAntiJoinOperator.class) || simple.is(DBSPAntiJoinOperator.class)) &&
+                        !origins.containsKey(simple.inputs.get(1))) {
+                    // Output rows are rows of the left input
+                    result = dependent.get(0);
+                } else {
+                    result = Origin.unknown(simple.outputType);
+                }
+                origins.put(simple.outputPort(), result);
+            }
+            return linear;
+        }
+
+        /** True if all paths from this operator lead to a distinct through
+         * operators that preserve distinct */
+        static boolean reachesDistinct(DBSPOperator operator, Map<DBSPOperator, List<DBSPOperator>> consumers,
+                                       Map<DBSPOperator, Boolean> memo) {
+            Boolean known = memo.get(operator);
+            if (known != null)
+                return known;
+            boolean result;
+            if (isDistinct(operator)) {
+                result = true;
+            } else if (!preservesDistinct(operator)) {
+                result = false;
+            } else {
+                List<DBSPOperator> next = consumers.getOrDefault(operator, List.of());
+                result = !next.isEmpty() && Linq.all(next, n -> reachesDistinct(n, consumers, memo));
+            }
+            memo.put(operator, result);
+            return result;
+        }
+
+        /** True if a negation or a subtraction in the component may contribute to
+         * the input of this operator.  A view declaration receives the outputs
+         * of the component, so the search continues from these outputs.
+         * Removing a distinct is only correct when all weights are positive. */
+        static boolean hasNegationUpstream(DBSPNestedOperator component, DBSPOperator operator) {
+            Set<DBSPOperator> inComponent = new HashSet<>();
+            component.getAllOperators().forEach(inComponent::add);
+            Set<DBSPOperator> visited = new HashSet<>();
+            List<DBSPOperator> toVisit = new ArrayList<>(Linq.map(operator.inputs, OutputPort::node));
+            while (!toVisit.isEmpty()) {
+                DBSPOperator current = toVisit.remove(toVisit.size() - 1);
+                if (!inComponent.contains(current) || !visited.add(current))
+                    continue;
+                if (current.is(DBSPNegateOperator.class) || current.is(DBSPSubtractOperator.class))
+                    return true;
+                if (current.is(DBSPViewDeclarationOperator.class)) {
+                    for (OutputPort port: component.internalOutputs)
+                        if (port != null)
+                            toVisit.add(port.node());
+                }
+                for (OutputPort input: current.inputs)
+                    toVisit.add(input.node());
+            }
+            return false;
+        }
+
+        void findRedundantDistincts(DBSPNestedOperator component) {
+            Map<DBSPOperator, List<DBSPOperator>> consumers = new HashMap<>();
+            Set<DBSPOperator> outputs = new HashSet<>();
+            for (OutputPort port: component.internalOutputs)
+                if (port != null)
+                    outputs.add(port.node());
+            for (DBSPOperator operator: component.getAllOperators())
+                for (OutputPort input: operator.inputs)
+                    consumers.computeIfAbsent(input.node(), k -> new ArrayList<>()).add(operator);
+
+            Map<DBSPOperator, Boolean> memo = new HashMap<>();
+            for (DBSPOperator operator: component.getAllOperators()) {
+                if (!isDistinct(operator) || outputs.contains(operator))
+                    continue;
+                List<DBSPOperator> next = consumers.getOrDefault(operator, List.of());
+                if (next.isEmpty() || outputs.stream().anyMatch(next::contains))
+                    continue;
+                if (hasNegationUpstream(component, operator))
+                    continue;
+                if (Linq.all(next, n -> reachesDistinct(n, consumers, memo))) {
+                    this.removedDistincts.add(operator.to(DBSPSimpleOperator.class));
+                    Logger.INSTANCE.belowLevel(this, 1)
+                            .append("Redundant distinct in recursive component ")
+                            .appendSupplier(operator::toString)
+                            .newline();
+                }
+            }
+        }
+
+        /** The single recursive view of a component, if the component has a single
+         * output, produced by this view, and if the view is not used inside the component,
+         * except through its declaration. */
+        @Nullable
+        static DBSPViewOperator singleView(DBSPNestedOperator component) {
+            if (component.outputViews.size() != 1 || component.declarationByName.size() != 1)
+                return null;
+            OutputPort output = component.internalOutputs.get(0);
+            if (output == null || !output.node().is(DBSPDifferentiateOperator.class))
+                return null;
+            DBSPSimpleOperator diff = output.simpleNode();
+            if (!diff.inputs.get(0).node().is(DBSPViewOperator.class))
+                return null;
+            DBSPViewOperator view = diff.inputs.get(0).node().to(DBSPViewOperator.class);
+            if (!component.declarationByName.containsKey(view.viewName))
+                return null;
+            for (DBSPOperator operator: component.getAllOperators())
+                if (operator != diff && Linq.any(operator.inputs, i -> i.node() == view))
+                    return null;
+            return view;
+        }
+
+        /** Check if the filters that consume the single output of this linear
+         * component can be pushed before the recursive view. */
+        void pushFilters(DBSPViewOperator view, Map<OutputPort, Origin> origins,
+                         List<DBSPOperator> outsideConsumers) {
+            if (outsideConsumers.isEmpty())
+                return;
+            DBSPFilterOperator first = null;
+            for (DBSPOperator consumer: outsideConsumers) {
+                if (!consumer.is(DBSPFilterOperator.class))
+                    return;
+                DBSPFilterOperator filter = consumer.to(DBSPFilterOperator.class);
+                if (first == null)
+                    first = filter;
+                else if (!first.getFunction().equivalent(filter.getFunction()))
+                    return;
+            }
+
+            Origin origin = origins.get(view.input());
+            if (origin == null)
+                return;
+            DBSPClosureExpression predicate = first.getClosureFunction();
+            if (predicate.parameters.length != 1)
+                return;
+            UsedFields used = new UsedFields(this.compiler(), predicate.parameters[0].name);
+            used.apply(predicate.body);
+            if (!used.onlyFields())
+                return;
+            for (int field: used.fields)
+                if (Origin.get(origin.value(), field) != field)
+                    return;
+
+            Utilities.putNew(this.pushedFilters, view, predicate);
+            for (DBSPOperator consumer: outsideConsumers)
+                this.removedFilters.add(consumer.to(DBSPFilterOperator.class));
+            Logger.INSTANCE.belowLevel(this, 1)
+                    .append("Pushing filter into recursive view ")
+                    .append(view.viewName.toString())
+                    .newline();
+        }
+
+        /** Check if the MIN or MAX aggregate that consumes the single output of this
+         * linear component can also be applied before the recursive view.
+         * The aggregate must group on all the other fields of the view. */
+        void pushAggregate(DBSPNestedOperator component, DBSPViewOperator view,
+                           List<DBSPOperator> outsideConsumers, Map<OutputPort, List<DBSPOperator>> consumers) {
+            if (outsideConsumers.size() != 1 || !outsideConsumers.get(0).is(DBSPMapIndexOperator.class))
+                return;
+            DBSPMapIndexOperator index = outsideConsumers.get(0).to(DBSPMapIndexOperator.class);
+            List<DBSPOperator> next = consumers.getOrDefault(index.outputPort(), List.of());
+            if (next.size() != 1 || !next.get(0).is(DBSPStreamAggregateOperator.class))
+                return;
+            DBSPStreamAggregateOperator aggregate = next.get(0).to(DBSPStreamAggregateOperator.class);
+            DBSPAggregateList list = aggregate.aggregateList;
+            if (list == null || list.aggregates.size() != 1 || !list.aggregates.get(0).is(MinMaxAggregate.class))
+                return;
+            MinMaxAggregate minMax = list.aggregates.get(0).to(MinMaxAggregate.class);
+            if (minMax.operation != MinMaxAggregate.Operation.Min &&
+                    minMax.operation != MinMaxAggregate.Operation.Max)
+                return;
+
+            // The index function must be |row| (Tup(row.k0, ...), Tup(row.v0, ...))
+            DBSPClosureExpression closure = index.getClosureFunction();
+            if (closure.parameters.length != 1 || !closure.body.is(DBSPRawTupleExpression.class))
+                return;
+            DBSPRawTupleExpression raw = closure.body.to(DBSPRawTupleExpression.class);
+            if (raw.fields == null || raw.fields.length != 2 ||
+                    !raw.fields[0].is(DBSPBaseTupleExpression.class) ||
+                    !raw.fields[1].is(DBSPBaseTupleExpression.class))
+                return;
+            int[] keys = viewFields(closure, raw.fields[0].to(DBSPBaseTupleExpression.class));
+            int[] values = viewFields(closure, raw.fields[1].to(DBSPBaseTupleExpression.class));
+            if (keys == null || values == null)
+                return;
+            FieldAccess compared = FieldAccess.analyze(minMax.comparedValue, minMax.comparedValue.body);
+            if (compared == null || compared.parameter() != 0 || compared.component() != -1)
+                return;
+            int aggregated = Origin.get(values, compared.field());
+            if (aggregated < 0)
+                return;
+
+            // The grouping keys are all the other fields of the view
+            int size = Origin.size(view.getOutputZSetElementType());
+            if (keys.length != size - 1)
+                return;
+            Set<Integer> keySet = new HashSet<>();
+            for (int key: keys)
+                if (key < 0 || key == aggregated || !keySet.add(key))
+                    return;
+
+            MonotoneFields monotone = new MonotoneFields(this.compiler(), aggregated);
+            if (!monotone.compute(component))
+                return;
+            Origin origin = monotone.origins.get(view.input());
+            if (origin == null)
+                return;
+            for (int i = 0; i < size; i++) {
+                int field = Origin.get(origin.value(), i);
+                if (i == aggregated ? field == MonotoneFields.UNKNOWN : !monotone.keyLike(field))
+                    return;
+            }
+
+            Utilities.putNew(this.pushedAggregates, view, new PushedAggregate(index, aggregate, keys, aggregated));
+            Logger.INSTANCE.belowLevel(this, 1)
+                    .append("Pushing ")
+                    .append(minMax.operation.toString())
+                    .append(" aggregate into recursive view ")
+                    .append(view.viewName.toString())
+                    .newline();
+        }
+
+        /** For each field of the tuple the index of the field of the closure parameter
+         * that it copies.  Null if some field is not a copy. */
+        @Nullable
+        static int[] viewFields(DBSPClosureExpression closure, DBSPBaseTupleExpression tuple) {
+            if (tuple.fields == null)
+                return null;
+            int[] result = new int[tuple.fields.length];
+            for (int i = 0; i < result.length; i++) {
+                FieldAccess access = FieldAccess.analyze(closure, tuple.fields[i]);
+                if (access == null || access.parameter() != 0 || access.component() != -1)
+                    return null;
+                result[i] = access.field();
+            }
+            return result;
+        }
+
+        @Override
+        public void postorder(DBSPCircuit circuit) {
+            // Consumers of each operator output, including the operators inside components
+            Map<OutputPort, List<DBSPOperator>> consumers = new HashMap<>();
+            List<DBSPNestedOperator> components = new ArrayList<>();
+            for (DBSPOperator operator: circuit.getAllOperators()) {
+                List<DBSPOperator> operators = List.of(operator);
+                if (operator.is(DBSPNestedOperator.class)) {
+                    DBSPNestedOperator nested = operator.to(DBSPNestedOperator.class);
+                    components.add(nested);
+                    operators = Linq.list(nested.getAllOperators());
+                }
+                for (DBSPOperator op: operators)
+                    for (OutputPort input: op.inputs)
+                        consumers.computeIfAbsent(input, k -> new ArrayList<>()).add(op);
+            }
+
+            for (DBSPNestedOperator component: components) {
+                Map<OutputPort, Origin> origins = new HashMap<>();
+                boolean linear = computeOrigins(component, origins);
+                Logger.INSTANCE.belowLevel(this, 1)
+                        .append("Recursive component ")
+                        .append(component.getIdString())
+                        .append(linear ? " is linear" : " is not linear")
+                        .newline();
+                this.findRedundantDistincts(component);
+                if (linear) {
+                    this.linear.add(component);
+                    DBSPViewOperator view = singleView(component);
+                    if (view == null)
+                        continue;
+                    List<DBSPOperator> outside = consumers.getOrDefault(new OutputPort(component, 0), List.of());
+                    this.pushFilters(view, origins, outside);
+                    this.pushAggregate(component, view, outside, consumers);
+                }
+            }
+        }
+    }
+
+    /** Applies the rewrites found by {@link AnalyzeRecursiveComponents} */
+    static class RewriteRecursiveComponents extends CircuitCloneVisitor {
+        final AnalyzeRecursiveComponents analysis;
+
+        RewriteRecursiveComponents(DBSPCompiler compiler, AnalyzeRecursiveComponents analysis) {
+            super(compiler, false);
+            this.analysis = analysis;
+        }
+
+        /** Apply the aggregate before the view and convert its output back to view rows */
+        OutputPort applyAggregate(DBSPViewOperator view, PushedAggregate pushed, OutputPort input) {
+            DBSPSimpleOperator index = pushed.index().withInputs(Linq.list(input), true)
+                    .to(DBSPSimpleOperator.class);
+            this.addOperator(index);
+            DBSPSimpleOperator aggregate = pushed.aggregate().withInputs(Linq.list(index.outputPort()), true)
+                    .to(DBSPSimpleOperator.class);
+            this.addOperator(aggregate);
+
+            // |kv| Tup(...), with the keys and the aggregate in the positions of the view fields
+            DBSPTypeTuple rowType = view.getOutputZSetElementType().to(DBSPTypeTuple.class);
+            DBSPVariablePath var = aggregate.getOutputIndexedZSetType().getKVRefType().var();
+            DBSPExpression[] fields = new DBSPExpression[rowType.size()];
+            for (int i = 0; i < pushed.keys().length; i++)
+                fields[pushed.keys()[i]] = var.field(0).deref().field(i).applyCloneIfNeeded();
+            fields[pushed.aggregated()] = var.field(1).deref().field(0).applyCloneIfNeeded();
+            for (int i = 0; i < fields.length; i++)
+                fields[i] = fields[i].cast(view.getRelNode(), rowType.getFieldType(i), false);
+            DBSPMapOperator map = new DBSPMapOperator(view.getRelNode(),
+                    new DBSPTupleExpression(fields).closure(var), aggregate.outputPort());
+            this.addOperator(map);
+            return map.outputPort();
+        }
+
+        @Override
+        public void postorder(DBSPViewOperator operator) {
+            DBSPClosureExpression predicate = this.analysis.pushedFilters.get(operator);
+            PushedAggregate aggregate = this.analysis.pushedAggregates.get(operator);
+            if (predicate == null && aggregate == null) {
+                super.postorder(operator);
+                return;
+            }
+            OutputPort input = this.mapped(operator.input());
+            if (predicate != null) {
+                DBSPFilterOperator filter = new DBSPFilterOperator(operator.getRelNode(), predicate, input);
+                this.addOperator(filter);
+                input = filter.outputPort();
+            }
+            if (aggregate != null)
+                input = this.applyAggregate(operator, aggregate, input);
+            DBSPSimpleOperator result = operator.withInputs(Linq.list(input), false)
+                    .to(DBSPSimpleOperator.class);
+            this.map(operator, result);
+        }
+
+        @Override
+        public void postorder(DBSPFilterOperator operator) {
+            if (this.analysis.removedFilters.contains(operator)) {
+                this.map(operator.outputPort(), this.mapped(operator.input()), false);
+                return;
+            }
+            super.postorder(operator);
+        }
+
+        @Override
+        public void postorder(DBSPStreamDistinctOperator operator) {
+            if (this.analysis.removedDistincts.contains(operator)) {
+                this.map(operator.outputPort(), this.mapped(operator.input()), false);
+                return;
+            }
+            super.postorder(operator);
+        }
+
+        @Override
+        public void postorder(DBSPDistinctOperator operator) {
+            if (this.analysis.removedDistincts.contains(operator)) {
+                this.map(operator.outputPort(), this.mapped(operator.input()), false);
+                return;
+            }
+            super.postorder(operator);
+        }
+    }
+}
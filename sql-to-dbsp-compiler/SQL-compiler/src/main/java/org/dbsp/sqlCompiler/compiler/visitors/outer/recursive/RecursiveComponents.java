@@ -10,7 +10,8 @@ import org.dbsp.sqlCompiler.compiler.visitors.outer.Passes;
  * - Fix SCC by normalizing connections between some operations
  * - Group SCC nodes into {@link DBSPNestedOperator} operators
  * - Convert LeftJoin operators into joins + antijoins in recursive components
- * - Validate contents of nested operators. */
+ * - Validate contents of nested operators
+ * - Optimize linear recursive components. */
 public class RecursiveComponents extends Passes {
     public RecursiveComponents(DBSPCompiler compiler) {
         super("Recursive", compiler);
@@ -22,5 +23,6 @@ public class RecursiveComponents extends Passes {
         this.add(new BuildNestedOperators(compiler, graph2.getGraphs()));
         this.add(new ValidateRecursiveOperators(compiler));
         this.add(new SubstituteLeftJoins(compiler));
+        this.add(new OptimizeRecursiveComponents(compiler));
     }
 }
@@ -6,6 +6,7 @@ import org.dbsp.sqlCompiler.circuit.operator.DBSPIndexedTopKOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPIntegrateTraceRetainKeysOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPIntegrateTraceRetainValuesOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPLagOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLagWithWaterlineOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPNestedOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPNowOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
@@ -74,6 +75,11 @@ public class ValidateRecursiveOperators extends CircuitVisitor {
         this.reject(node, "LAG", false);
     }
 
+    @Override
+    public void postorder(DBSPLagWithWaterlineOperator node) {
+        this.reject(node, "LAG", false);
+    }
+
     @Override
     public void postorder(DBSPNestedOperator node) {
         this.reject(node, "recursion", true);
@@ -0,0 +1,59 @@
+package org.dbsp.sqlCompiler.compiler.ir;
+
+import org.dbsp.sqlCompiler.compiler.CompilerOptions;
+import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.frontend.calciteObject.CalciteObject;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.RemoveClones;
+import org.dbsp.sqlCompiler.ir.expression.DBSPBlockExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPClosureExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPRawTupleExpression;
+import org.dbsp.sqlCompiler.ir.expression.DBSPTupleExpression;
+import org.dbsp.sqlCompiler.ir.statement.DBSPLetStatement;
+import org.dbsp.sqlCompiler.ir.type.DBSPTypeCode;
+import org.dbsp.sqlCompiler.ir.type.derived.DBSPTypeTuple;
+import org.dbsp.sqlCompiler.ir.type.primitive.DBSPTypeInteger;
+import org.dbsp.util.Linq;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Tests for the RemoveClones visitor */
+public class RemoveClonesTests {
+    @Test
+    public void removeClones() {
+        final DBSPCompiler compiler = new DBSPCompiler(new CompilerOptions());
+        final var tuple = new DBSPTypeTuple(
+                DBSPTypeInteger.getType(CalciteObject.EMPTY, DBSPTypeCode.INT64, false),
+                new DBSPTypeTuple(DBSPTypeInteger.getType(CalciteObject.EMPTY, DBSPTypeCode.INT16, true))
+        );
+        final var var = tuple.ref().var();
+
+        // The field of the parameter must be cloned, the local variable is moved
+        DBSPLetStatement stat = new DBSPLetStatement("t", var.deref().field(1).applyClone());
+        DBSPClosureExpression clo0 = new DBSPBlockExpression(Linq.list(stat),
+                new DBSPTupleExpression(stat.getVarReference().applyClone())).closure(var);
+        RemoveClones remove = new RemoveClones(compiler);
+        remove.apply(clo0);
+        Assert.assertEquals(2, remove.cloneCount);
+        Assert.assertEquals(1, remove.removedCount);
+
+        // The local variable is used twice, it must be cloned
+        stat = new DBSPLetStatement("t", var.deref().field(1).applyClone());
+        DBSPClosureExpression clo1 = new DBSPBlockExpression(Linq.list(stat),
+                new DBSPTupleExpression(stat.getVarReference().applyClone(),
+                        stat.getVarReference().applyClone())).closure(var);
+        remove = new RemoveClones(compiler);
+        remove.apply(clo1);
+        Assert.assertEquals(3, remove.cloneCount);
+        Assert.assertEquals(0, remove.removedCount);
+
+        // A borrowed clone of an owned field is replaced by a borrow of the field,
+        // but a borrowed clone of a reference is kept
+        DBSPClosureExpression clo2 = new DBSPRawTupleExpression(
+                var.deref().field(1).applyClone().borrow(),
+                var.applyClone().borrow()).closure(var);
+        remove = new RemoveClones(compiler);
+        remove.apply(clo2);
+        Assert.assertEquals(2, remove.cloneCount);
+        Assert.assertEquals(1, remove.removedCount);
+    }
+}
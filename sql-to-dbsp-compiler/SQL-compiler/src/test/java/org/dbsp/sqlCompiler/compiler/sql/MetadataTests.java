@@ -27,6 +27,7 @@ import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import javax.annotation.Nullable;
 import javax.sql.DataSource;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -165,6 +166,129 @@ public class MetadataTests extends BaseSQLTests {
         }
     }
 
+    @Test
+    public void estimatesTest() throws SQLException, IOException {
+        String sql = """
+                CREATE TABLE T(id INT NOT NULL PRIMARY KEY, x INT) WITH ('expected_size' = '1000');
+                CREATE TABLE S(id INT NOT NULL, y VARCHAR) WITH ('expected_size' = '100');
+                CREATE VIEW V AS SELECT T.x, S.y FROM T JOIN S ON T.id = S.id;
+                CREATE VIEW W AS SELECT x, COUNT(*) FROM T GROUP BY x;""";
+        File file = createInputScript(sql);
+        File json = this.createTempJsonFile();
+        CompilerMain.execute("-i", "--dataflow", json.getPath(), "--noRust", file.getPath());
+        ObjectMapper mapper = Utilities.deterministicObjectMapper();
+        JsonNode parsed = mapper.readTree(json);
+        JsonNode views = parsed.get("estimates").get("views");
+        for (String view: List.of("v", "w")) {
+            JsonNode estimate = views.get(view);
+            Assert.assertNotNull(estimate);
+            Assert.assertTrue(estimate.get("state_bytes").asLong() > 0);
+            Assert.assertTrue(estimate.get("work").asLong() > 0);
+            Assert.assertTrue(estimate.get("declared_sizes").asBoolean());
+        }
+        boolean found = false;
+        ObjectNode df = (ObjectNode) parsed.get("mir");
+        for (var prop: df.properties()) {
+            JsonNode table = prop.getValue().get("table");
+            if (table != null && table.asText().equals("t")) {
+                Assert.assertEquals(1000, prop.getValue().get("estimates").get("rows").asLong());
+                found = true;
+            }
+        }
+        Assert.assertTrue(found);
+    }
+
+    @Nullable
+    static JsonNode findTable(JsonNode dataflow, String name) {
+        ObjectNode mir = (ObjectNode) dataflow.get("mir");
+        for (var prop: mir.properties()) {
+            JsonNode table = prop.getValue().get("table");
+            if (table != null && table.asText().equals(name))
+                return prop.getValue();
+        }
+        return null;
+    }
+
+    @Test
+    public void profileTest() throws SQLException, IOException {
+        String sql = """
+                CREATE TABLE T(id INT NOT NULL PRIMARY KEY, x INT) WITH ('expected_size' = '1000');
+                CREATE TABLE S(id INT NOT NULL, y VARCHAR) WITH ('expected_size' = '100');
+                CREATE VIEW V AS SELECT T.x, S.y FROM T JOIN S ON T.id = S.id;""";
+        File file = createInputScript(sql);
+        File json = this.createTempJsonFile();
+        CompilerMain.execute("-i", "--dataflow", json.getPath(), "--noRust", file.getPath());
+        ObjectMapper mapper = Utilities.deterministicObjectMapper();
+        JsonNode t = findTable(mapper.readTree(json), "t");
+        Assert.assertNotNull(t);
+        String id = t.get("persistent_id").asText();
+
+        // A profile reporting that T is much larger than declared
+        File profile = this.createTempJsonFile();
+        ObjectNode metrics = mapper.createObjectNode();
+        metrics.putObject(id).put("rows", 5000000).put("state_bytes", 1000000).put("time", 1.5);
+        mapper.writeValue(profile, metrics);
+        CompilerMessages messages = CompilerMain.execute("-i", "--dataflow", json.getPath(),
+                "--profile", profile.getPath(), "--noRust", file.getPath());
+        Assert.assertEquals(0, messages.errorCount());
+        Assert.assertFalse(messages.toString().contains("Profile not used"));
+        t = findTable(mapper.readTree(json), "t");
+        Assert.assertNotNull(t);
+        Assert.assertEquals(5000000, t.get("estimates").get("rows").asLong());
+
+        // The same table size in the format produced by the pipeline: two workers,
+        // each storing half of the rows of T in the integral of the table.  The records
+        // in the output batches count every insertion and deletion, and are not rows.
+        String worker = """
+                {
+                  "metadata": {
+                    "": {
+                      "entries": [
+                        ["total size", 2500000],
+                        ["used bytes", 500000]
+                      ]
+                    },
+                    "n2": {
+                      "entries": [
+                        ["persistent_id", "%1$s"],
+                        ["time", { "secs": 0, "nanos": 750000000 }],
+                        ["invocations", 10],
+                        ["output batches", { "entries": [
+                          ["batches", 10], ["min size", 0], ["max size", 9000000],
+                          ["avg size", 900000], ["total records", 9000000]
+                        ] }]
+                      ]
+                    },
+                    "n3": {
+                      "entries": [
+                        ["persistent_id", "%1$s.integral"],
+                        ["time%%", [5, 100]],
+                        ["total size", 2500000],
+                        ["allocated bytes", 600000],
+                        ["used bytes", 500000],
+                        ["batches", 3]
+                      ]
+                    }
+                  }
+                }""".formatted(id);
+        Files.writeString(profile.toPath(),
+                "{ \"worker_profiles\": [" + worker + ", " + worker + "] }");
+        messages = CompilerMain.execute("-i", "--dataflow", json.getPath(),
+                "--profile", profile.getPath(), "--noRust", file.getPath());
+        Assert.assertEquals(0, messages.errorCount());
+        Assert.assertFalse(messages.toString().contains("Profile not used"));
+        t = findTable(mapper.readTree(json), "t");
+        Assert.assertNotNull(t);
+        Assert.assertEquals(5000000, t.get("estimates").get("rows").asLong());
+
+        // A profile that does not match the program
+        metrics = mapper.createObjectNode();
+        metrics.putObject("0123456789").put("rows", 10);
+        mapper.writeValue(profile, metrics);
+        messages = CompilerMain.execute("-i", "--noRust", "--profile", profile.getPath(), file.getPath());
+        Assert.assertTrue(messages.toString().contains("Profile not used"));
+    }
+
     @Test
     public void issue3341() {
         String sql = """
@@ -538,6 +662,59 @@ public class MetadataTests extends BaseSQLTests {
         Assert.assertFalse(used.get("unused").asBoolean());
     }
 
+    @Test
+    public void inputFilters() {
+        DBSPCompiler compiler = this.testCompiler();
+        compiler.submitStatementsForCompilation("""
+                CREATE TABLE T(x INTEGER, y VARCHAR);
+                CREATE TABLE T1(x INTEGER) with ('materialized' = 'true');
+                CREATE TABLE T2(x INTEGER) with ('materialized' = 'true', 'input_filter' = 'true');
+                CREATE VIEW V0 AS SELECT * FROM T WHERE x > 10;
+                CREATE VIEW V1 AS SELECT y FROM T WHERE y = 'a';
+                CREATE VIEW V2 AS SELECT * FROM T1 WHERE x > 10;
+                CREATE TABLE T3(x INTEGER);
+                CREATE VIEW V3 AS SELECT * FROM T2 WHERE x IS NULL;
+                CREATE VIEW V4 AS SELECT * FROM T3 WHERE (x > 10) IS NOT TRUE;
+                CREATE TABLE T4(x INTEGER NOT NULL PRIMARY KEY, y INTEGER);
+                CREATE VIEW V5 AS SELECT * FROM T4 WHERE y > 10;""");
+        DBSPCircuit circuit = compiler.getFinalCircuit(false);
+        Assert.assertNotNull(circuit);
+        ObjectNode json = compiler.getIOMetadataAsJson();
+        JsonNode inputs = json.get("inputs");
+
+        // Rows of T are used only if they satisfy one of the filters
+        JsonNode t = inputs.get(0);
+        Assert.assertEquals("t", t.get("name").asText());
+        JsonNode filter = t.get("filter");
+        Assert.assertNotNull(filter);
+        Assert.assertEquals("or", filter.get("op").asText());
+        Assert.assertEquals(2, filter.get("args").size());
+
+        // Materialized tables are not filtered by default
+        JsonNode t1 = inputs.get(1);
+        Assert.assertEquals("t1", t1.get("name").asText());
+        Assert.assertNull(t1.get("filter"));
+
+        JsonNode t2 = inputs.get(2);
+        Assert.assertEquals("t2", t2.get("name").asText());
+        filter = t2.get("filter");
+        Assert.assertNotNull(filter);
+        Assert.assertEquals("is_null", filter.get("op").asText());
+        Assert.assertEquals("x", filter.get("arg").get("column").asText());
+
+        // Rows where x is NULL must not be dropped
+        JsonNode t3 = inputs.get(3);
+        Assert.assertEquals("t3", t3.get("name").asText());
+        filter = t3.get("filter");
+        Assert.assertNotNull(filter);
+        Assert.assertEquals("is_not_true", filter.get("op").asText());
+
+        // Rows of tables with primary keys can update or delete other rows
+        JsonNode t4 = inputs.get(4);
+        Assert.assertEquals("t4", t4.get("name").asText());
+        Assert.assertNull(t4.get("filter"));
+    }
+
     @Test
     public void issue3427() {
         DBSPCompiler compiler = this.testCompiler();
@@ -948,12 +1125,18 @@ public class MetadataTests extends BaseSQLTests {
                       Generate an input for each CREATE TABLE, even if the table is not used\s
                       by any view
                       Default: false
+                    --autoInternBudget
+                      Maximum number of string columns the compiler chooses to intern
+                      Default: 4
                     --crates
                       Followed by a program name. Generates code using multiple crates;\s
                       `outputFile` is interpreted as a directory.
                       Default: <empty string>
                     --dataflow
                       Emit the Dataflow graph of the program in the specified JSON file
+                    --eagerAggregation
+                      Pre-aggregate join inputs below GROUP BY with SUM or COUNT
+                      Default: false
                     --enterprise
                       Generate code supporting enterprise features
                       Default: false
@@ -980,6 +1163,9 @@ public class MetadataTests extends BaseSQLTests {
                     --js, -js
                       Emit a JSON file containing the schema of all views and tables in the\s
                       specified file.
+                    --lateMaterialization
+                      Join wide columns back by primary key at the end of views
+                      Default: false
                     --lenient
                       Lenient SQL validation.  If true it allows duplicate column names in a\s
                       view.\s
@@ -987,9 +1173,16 @@ public class MetadataTests extends BaseSQLTests {
                     --no-restrict-io
                       Do not restrict the types of columns allowed in tables and views
                       Default: false
+                    --noAutoIntern
+                      Only intern the string columns declared as INTERNED
+                      Default: false
                     --noRust
                       Do not generate Rust output files
                       Default: false
+                    --nullBitmapWidth
+                      Store tuples with at least this many fields, some nullable, using a null\s
+                      bitmap (0 = never)
+                      Default: 0
                     --outputsAreSets
                       Ensure that outputs never contain duplicates
                       Default: false
@@ -998,15 +1191,31 @@ public class MetadataTests extends BaseSQLTests {
                     --png, -png
                       Emit a png image of the circuit instead of Rust
                       Default: false
+                    --profile
+                      Recompile the program using the runtime profile in the specified JSON\s
+                      file\s
+                    --stateReport
+                      Emit a JSON report of the integrated traces that are never\s
+                      garbage-collected in the specified file
                     --streaming
                       Compiling a streaming program, where only inserts are allowed
                       Default: false
                     --trimInputs
                       Do not ingest unused fields of input tables
                       Default: false
+                    --trustForeignKeys
+                      Assume FOREIGN KEY constraints always hold; used to eliminate joins
+                      Default: false
                     --unaryPlusNoop
                       Compile unary plus into a no-operation; similar to sqlite
                       Default: false
+                    --viewMatching
+                      Compute views from previously defined views when this needs less state
+                      Default: false
+                    --warnUnboundedState
+                      Report a warning for each integrated trace that is never\s
+                      garbage-collected\s
+                      Default: false
                     -O
                       Optimization level (0, 1, or 2)
                       Default: 2
@@ -34,6 +34,7 @@ import org.dbsp.sqlCompiler.circuit.OutputPort;
 import org.dbsp.sqlCompiler.circuit.operator.IInputOperator;
 import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
 import org.dbsp.sqlCompiler.compiler.TestUtil;
+import org.dbsp.sqlCompiler.compiler.visitors.inner.RemoveClones;
 import org.dbsp.sqlCompiler.compiler.visitors.outer.LateMaterializations;
 import org.dbsp.util.HashString;
 import org.dbsp.sqlCompiler.compiler.backend.JsonDecoder;
@@ -92,6 +93,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /** Miscellaneous tests that do not fit into standard categories */
 public class OtherTests extends BaseSQLTests implements IWritesLogs { // interface used for testing
@@ -190,6 +193,33 @@ public class OtherTests extends BaseSQLTests implements IWritesLogs { // interfa
         Logger.INSTANCE.setLoggingLevel(Passes.class, 0);
     }
 
+    // Check that RemoveClones removes clones from the closures of a typical query
+    @Test
+    public void removeClonesCount() {
+        StringBuilder builder = new StringBuilder();
+        Appendable save = Logger.INSTANCE.setDebugStream(builder);
+        int previous = Logger.INSTANCE.setLoggingLevel(RemoveClones.class, 1);
+        DBSPCompiler compiler = this.testCompiler();
+        compiler.submitStatementsForCompilation("""
+                CREATE TABLE T(id INT NOT NULL, name VARCHAR, amount DECIMAL(10, 2));
+                CREATE TABLE S(id INT NOT NULL, city VARCHAR);
+                CREATE VIEW V AS SELECT S.city, UPPER(T.name) AS name, COUNT(*) AS c, SUM(T.amount) AS s
+                FROM T JOIN S ON T.id = S.id
+                WHERE T.name IS NOT NULL
+                GROUP BY S.city, T.name;""");
+        getCircuit(compiler);
+        Logger.INSTANCE.setLoggingLevel(RemoveClones.class, previous);
+        Logger.INSTANCE.setDebugStream(save);
+
+        Matcher matcher = Pattern.compile("Removed (\\d+) out of (\\d+) clones")
+                .matcher(builder.toString());
+        Assert.assertTrue(matcher.find());
+        int removed = Integer.parseInt(matcher.group(1));
+        int total = Integer.parseInt(matcher.group(2));
+        Assert.assertTrue(removed > 0);
+        Assert.assertTrue(removed < total);
+    }
+
     @Test
     public void toCsvTest() {
         DBSPCompiler compiler = testCompiler();
@@ -1,5 +1,6 @@
 package org.dbsp.sqlCompiler.compiler.sql;
 
+import org.dbsp.sqlCompiler.circuit.operator.DBSPPartitionedRollingAggregateOperator;
 import org.dbsp.sqlCompiler.compiler.sql.quidem.ScottBaseTests;
 import org.dbsp.util.Linq;
 import org.junit.Assert;
@@ -248,4 +249,33 @@ public class WindowTests extends ScottBaseTests {
                  200                     | 01|          1""");
         }
     }
+
+    @Test
+    public void testFuseRollingAggregates() {
+        // Two views with the same window share a rolling aggregate
+        var ccs = this.getCCS("""
+                CREATE TABLE W(k INT NOT NULL, t INT NOT NULL, v INT);
+                CREATE LOCAL VIEW V0 AS SELECT t, SUM(v) OVER (PARTITION BY k ORDER BY t
+                    RANGE BETWEEN 10 PRECEDING AND CURRENT ROW) AS s FROM W;
+                CREATE LOCAL VIEW V1 AS SELECT t, MAX(v) OVER (PARTITION BY k ORDER BY t
+                    RANGE BETWEEN 10 PRECEDING AND CURRENT ROW) AS m FROM W;
+                CREATE VIEW V AS SELECT V0.t, s, m FROM V0 JOIN V1 ON V0.t = V1.t;""");
+        Assert.assertEquals(1, ccs.countOperators(DBSPPartitionedRollingAggregateOperator.class));
+        ccs.step("INSERT INTO W VALUES(1, 1, 10), (1, 5, 20), (1, 20, 5);", """
+                 t  | s  | m  | weight
+                ----------------------
+                 1  | 10 | 10 | 1
+                 5  | 30 | 20 | 1
+                 20 | 5  | 5  | 1""");
+        ccs.step("REMOVE FROM W VALUES(1, 5, 20);", """
+                 t  | s  | m  | weight
+                ----------------------
+                 5  | 30 | 20 | -1""");
+        ccs.step("INSERT INTO W VALUES(1, 15, 7);", """
+                 t  | s  | m  | weight
+                ----------------------
+                 15 | 7  | 7  | 1
+                 20 | 5  | 5  | -1
+                 20 | 12 | 7  | 1""");
+    }
 }
@@ -1,7 +1,15 @@
 package org.dbsp.sqlCompiler.compiler.sql.recursive;
 
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateOperatorBase;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPChainOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDistinctIncrementalOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDistinctOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPFilterOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPNestedOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPPrimitiveAggregateOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPSinkOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamDistinctOperator;
 import org.dbsp.sqlCompiler.compiler.frontend.statements.DeclareViewStatement;
 import org.dbsp.sqlCompiler.compiler.sql.tools.BaseSQLTests;
 import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitVisitor;
@@ -491,6 +499,143 @@ public class RecursiveTests extends BaseSQLTests {
                  2 | 1""");
     }
 
+    @Test
+    public void testFilterPushdown() {
+        // The filter on the recursive view is applied inside the fixpoint
+        String sql = """
+                CREATE TABLE E(src INT NOT NULL, dst INT NOT NULL);
+                DECLARE RECURSIVE VIEW R(src INT NOT NULL, dst INT NOT NULL);
+                CREATE LOCAL VIEW R AS SELECT * FROM E UNION
+                    SELECT R.src, E.dst FROM R JOIN E ON R.dst = E.src;
+                CREATE VIEW O AS SELECT * FROM R WHERE src = 0;""";
+        var ccs = this.getCCS(sql);
+        ccs.step("INSERT INTO E VALUES(0, 1), (1, 2), (2, 0), (3, 4)", """
+                 src | dst | weight
+                --------------------
+                 0   | 1   | 1
+                 0   | 2   | 1
+                 0   | 0   | 1""");
+        CircuitVisitor visitor = new CircuitVisitor(ccs.compiler) {
+            int inside = 0;
+            int outside = 0;
+
+            @Override
+            public void postorder(DBSPOperator operator) {
+                if (!operator.is(DBSPFilterOperator.class) && !operator.is(DBSPChainOperator.class))
+                    return;
+                if (this.getParent().is(DBSPNestedOperator.class))
+                    this.inside++;
+                else
+                    this.outside++;
+            }
+
+            @Override
+            public void endVisit() {
+                Assert.assertEquals(0, this.outside);
+                Assert.assertTrue(this.inside > 0);
+            }
+        };
+        ccs.visit(visitor);
+    }
+
+    @Test
+    public void testLinearDistinct() {
+        // The DISTINCT in the recursive branch is redundant with the one of the UNION
+        String sql = """
+                CREATE TABLE E(src INT NOT NULL, dst INT NOT NULL);
+                DECLARE RECURSIVE VIEW R(src INT NOT NULL, dst INT NOT NULL);
+                CREATE VIEW R AS SELECT * FROM E UNION
+                    SELECT DISTINCT R.src, E.dst FROM R JOIN E ON R.dst = E.src;""";
+        var ccs = this.getCCS(sql);
+        ccs.step("INSERT INTO E VALUES(0, 1), (1, 2)", """
+                 src | dst | weight
+                --------------------
+                 0   | 1   | 1
+                 1   | 2   | 1
+                 0   | 2   | 1""");
+        CircuitVisitor visitor = new CircuitVisitor(ccs.compiler) {
+            int distinct = 0;
+
+            @Override
+            public void postorder(DBSPOperator operator) {
+                if (this.getParent().is(DBSPNestedOperator.class) &&
+                        (operator.is(DBSPStreamDistinctOperator.class) ||
+                                operator.is(DBSPDistinctOperator.class) ||
+                                operator.is(DBSPDistinctIncrementalOperator.class)))
+                    this.distinct++;
+            }
+
+            @Override
+            public void endVisit() {
+                Assert.assertEquals(1, this.distinct);
+            }
+        };
+        ccs.visit(visitor);
+    }
+
+    @Test
+    public void testMinPushdown() {
+        // Shortest paths; the MIN aggregate is applied inside the fixpoint,
+        // so the computation terminates although the graph has cycles
+        String sql = """
+                CREATE TABLE E(src INT NOT NULL, dst INT NOT NULL, w INT NOT NULL);
+                DECLARE RECURSIVE VIEW P(src INT NOT NULL, dst INT NOT NULL, d INT NOT NULL);
+                CREATE LOCAL VIEW P AS SELECT * FROM E UNION
+                    SELECT P.src, E.dst, P.d + E.w FROM P JOIN E ON P.dst = E.src;
+                CREATE VIEW S AS SELECT src, dst, MIN(d) AS d FROM P GROUP BY src, dst;""";
+        var ccs = this.getCCS(sql);
+        ccs.step("INSERT INTO E VALUES(0, 1, 1), (1, 0, 1), (1, 2, 5), (0, 2, 1)", """
+                 src | dst | d | weight
+                ------------------------
+                 0   | 1   | 1 | 1
+                 0   | 2   | 1 | 1
+                 0   | 0   | 2 | 1
+                 1   | 0   | 1 | 1
+                 1   | 1   | 2 | 1
+                 1   | 2   | 2 | 1""");
+        CircuitVisitor visitor = new CircuitVisitor(ccs.compiler) {
+            int aggregates = 0;
+
+            @Override
+            public void postorder(DBSPOperator operator) {
+                if (this.getParent().is(DBSPNestedOperator.class) &&
+                        (operator.is(DBSPAggregateOperatorBase.class) ||
+                                operator.is(DBSPPrimitiveAggregateOperator.class)))
+                    this.aggregates++;
+            }
+
+            @Override
+            public void endVisit() {
+                Assert.assertTrue(this.aggregates > 0);
+            }
+        };
+        ccs.visit(visitor);
+    }
+
+    @Test
+    public void testExceptDistinct() {
+        // The DISTINCT of the EXCEPT must be kept: without it the rows of B which
+        // are not produced by the join would cancel rows of E in the UNION
+        String sql = """
+                CREATE TABLE E(src INT NOT NULL, dst INT NOT NULL);
+                CREATE TABLE B(src INT NOT NULL, dst INT NOT NULL);
+                DECLARE RECURSIVE VIEW R(src INT NOT NULL, dst INT NOT NULL);
+                CREATE VIEW R AS SELECT * FROM E UNION
+                    (SELECT DISTINCT R.src, E.dst FROM R JOIN E ON R.dst = E.src
+                     EXCEPT SELECT * FROM B);""";
+        var ccs = this.getCCS(sql);
+        ccs.step("""
+                INSERT INTO E VALUES(0, 1), (1, 2), (2, 3);
+                INSERT INTO B VALUES(0, 1), (0, 3);""", """
+                 src | dst | weight
+                --------------------
+                 0   | 1   | 1
+                 1   | 2   | 1
+                 2   | 3   | 1
+                 0   | 2   | 1
+                 1   | 3   | 1""");
+    }
+
     @Test
     public void illegalRecursiveTests() {
         String sql = """
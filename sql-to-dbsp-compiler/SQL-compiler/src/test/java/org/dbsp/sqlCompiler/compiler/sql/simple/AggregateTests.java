@@ -1,8 +1,18 @@
 package org.dbsp.sqlCompiler.compiler.sql.simple;
 
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.annotation.Sharded;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateOperatorBase;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPChainAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPDistinctOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSimpleOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSourceMultisetOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamAggregateOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamDistinctOperator;
 import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
+import org.dbsp.sqlCompiler.compiler.sql.tools.CompilerCircuitStream;
 import org.dbsp.sqlCompiler.compiler.sql.tools.SqlIoTest;
 import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitVisitor;
 import org.dbsp.sqlCompiler.ir.aggregate.DBSPMinMax;
@@ -498,4 +508,231 @@ public class AggregateTests extends SqlIoTest {
         };
         cc.visit(visitor);
     }
+
+    @Test
+    public void testRollupFromFinest() {
+        this.withAndWithoutOption(
+                "CREATE VIEW V AS SELECT J, K, SUM(I), MAX(I), COUNT(*) FROM NN GROUP BY ROLLUP(J, K);",
+                (options, shared) -> {
+                    if (!shared)
+                        options.ioOptions.skipCalciteOptimizations = "Shared grouping sets";
+                },
+                (ccs, shared) -> {
+                    int[] readers = new int[1];
+                    ccs.visit(new CircuitVisitor(ccs.compiler) {
+                        @Override
+                        public void postorder(DBSPOperator operator) {
+                            for (OutputPort input: operator.inputs)
+                                if (input.node().is(DBSPSourceMultisetOperator.class))
+                                    readers[0]++;
+                        }
+                    });
+                    // Only the finest grouping reads the table
+                    if (shared)
+                        Assert.assertEquals(1, readers[0]);
+                    else
+                        Assert.assertTrue(readers[0] > 1);
+                });
+
+        this.qs("""
+                SELECT J, K, SUM(I), MAX(I), COUNT(*) FROM NN GROUP BY ROLLUP(J, K);
+                 j    | k    | s | m | c
+                -------------------------
+                 0    | 0    | 0 | 0 | 1
+                 1    | 1    | 1 | 1 | 1
+                 NULL | 0    | 2 | 2 | 1
+                 NULL | 1    | 3 | 3 | 1
+                 0    | NULL | 0 | 0 | 1
+                 1    | NULL | 1 | 1 | 1
+                 NULL | NULL | 5 | 3 | 2
+                 NULL | NULL | 6 | 3 | 4
+                (8 rows)""");
+
+        // MAX is rolled up correctly when the maximum is deleted
+        var ccs = this.getCCS("""
+                CREATE TABLE G(a INT, b INT, v INT);
+                CREATE VIEW V AS SELECT a, b, MAX(v) AS m, COUNT(*) AS c FROM G GROUP BY ROLLUP(a, b);""");
+        ccs.step("INSERT INTO G VALUES(1, 1, 10), (1, 2, 20), (2, 1, 5);", """
+                 a | b | m  | c | weight
+                ------------------------
+                 1 | 1 | 10 | 1 | 1
+                 1 | 2 | 20 | 1 | 1
+                 2 | 1 | 5  | 1 | 1
+                 1 |   | 20 | 2 | 1
+                 2 |   | 5  | 1 | 1
+                   |   | 20 | 3 | 1""");
+        ccs.step("REMOVE FROM G VALUES(1, 2, 20);", """
+                 a | b | m  | c | weight
+                ------------------------
+                 1 | 2 | 20 | 1 | -1
+                 1 |   | 20 | 2 | -1
+                 1 |   | 10 | 1 | 1
+                   |   | 20 | 3 | -1
+                   |   | 10 | 2 | 1""");
+
+        // SUM is rolled up, while COUNT(DISTINCT) is computed from the table
+        ccs = this.getCCS("""
+                CREATE TABLE G(a INT, b INT, v INT);
+                CREATE VIEW V AS SELECT a, b, SUM(v) AS s, COUNT(DISTINCT v) AS d
+                FROM G GROUP BY ROLLUP(a, b);""");
+        ccs.step("INSERT INTO G VALUES(1, 1, 10), (1, 2, 10), (2, 1, 5);", """
+                 a | b | s  | d | weight
+                ------------------------
+                 1 | 1 | 10 | 1 | 1
+                 1 | 2 | 10 | 1 | 1
+                 2 | 1 | 5  | 1 | 1
+                 1 |   | 20 | 1 | 1
+                 2 |   | 5  | 1 | 1
+                   |   | 25 | 2 | 1""");
+        ccs.step("REMOVE FROM G VALUES(1, 2, 10);", """
+                 a | b | s  | d | weight
+                ------------------------
+                 1 | 2 | 10 | 1 | -1
+                 1 |   | 20 | 1 | -1
+                 1 |   | 10 | 1 | 1
+                   |   | 25 | 2 | -1
+                   |   | 15 | 2 | 1""");
+    }
+
+    @Test
+    public void testFuseAggregates() {
+        // V0 and V1 aggregate the same table by the same key and share an aggregate;
+        // MAX is not linear, and is computed separately
+        var ccs = this.getCCS("""
+                CREATE TABLE F(j INT NOT NULL, i INT);
+                CREATE LOCAL VIEW V0 AS SELECT j, SUM(i) AS s FROM F GROUP BY j;
+                CREATE LOCAL VIEW V1 AS SELECT j, COUNT(*) AS c FROM F GROUP BY j;
+                CREATE LOCAL VIEW V2 AS SELECT j, MAX(i) AS m FROM F GROUP BY j;
+                CREATE VIEW V AS SELECT j, s AS v FROM V0
+                UNION ALL SELECT j, c FROM V1
+                UNION ALL SELECT j, m FROM V2;""");
+        Assert.assertEquals(1, ccs.countOperators(DBSPAggregateLinearPostprocessOperator.class));
+        ccs.step("INSERT INTO F VALUES(1, 10), (1, 20), (2, 5);", """
+                 j | v  | weight
+                -----------------
+                 1 | 30 | 1
+                 1 | 2  | 1
+                 1 | 20 | 1
+                 2 | 5  | 2
+                 2 | 1  | 1""");
+        ccs.step("REMOVE FROM F VALUES(1, 20);", """
+                 j | v  | weight
+                -----------------
+                 1 | 30 | -1
+                 1 | 2  | -1
+                 1 | 20 | -1
+                 1 | 10 | 2
+                 1 | 1  | 1""");
+    }
+
+    @Test
+    public void testEagerAggregation() {
+        // With eager aggregation F is aggregated before the join
+        this.withAndWithoutOption("""
+                CREATE TABLE D(id INT NOT NULL PRIMARY KEY, region INT);
+                CREATE TABLE F(id INT, amount INT);
+                CREATE VIEW V AS SELECT D.region, SUM(F.amount) AS total
+                FROM F JOIN D ON F.id = D.id GROUP BY D.region;""",
+                (options, eager) -> options.languageOptions.eagerAggregation = eager,
+                (ccs, eager) -> {
+                    Assert.assertEquals(eager ? 2 : 1,
+                            ccs.countOperators(DBSPAggregateLinearPostprocessOperator.class));
+                    ccs.step("""
+                            INSERT INTO D VALUES(1, 100), (2, 200), (3, 100);
+                            INSERT INTO F VALUES(1, 10), (1, 5), (2, 7), (3, 1), (NULL, 1000);""", """
+                             region | total | weight
+                            -------------------------
+                             100    | 16    | 1
+                             200    | 7     | 1""");
+                    ccs.step("REMOVE FROM F VALUES(1, 10);", """
+                             region | total | weight
+                            -------------------------
+                             100    | 16    | -1
+                             100    | 6     | 1""");
+                });
+
+        // MAX is not linear, and is not computed before the join
+        int[] operators = new int[2];
+        this.withAndWithoutOption("""
+                CREATE TABLE D(id INT NOT NULL PRIMARY KEY, region INT);
+                CREATE TABLE F(id INT, amount INT);
+                CREATE VIEW V AS SELECT D.region, MAX(F.amount) AS m
+                FROM F JOIN D ON F.id = D.id GROUP BY D.region;""",
+                (options, eager) -> options.languageOptions.eagerAggregation = eager,
+                (ccs, eager) -> operators[eager ? 1 : 0] = ccs.countOperators(DBSPOperator.class));
+        Assert.assertEquals(operators[0], operators[1]);
+    }
+
+    @Test
+    public void testShardedJoinOutput() {
+        // The output of the join is already sharded by the key of the aggregate
+        var ccs = this.getCCS("""
+                CREATE TABLE L(k INT NOT NULL, x INT);
+                CREATE TABLE R(k INT NOT NULL, y INT);
+                CREATE VIEW V AS SELECT L.k, SUM(x), COUNT(y) FROM L JOIN R ON L.k = R.k GROUP BY L.k;""");
+        int[] sharded = new int[1];
+        ccs.visit(new CircuitVisitor(ccs.compiler) {
+            @Override
+            public void postorder(DBSPSimpleOperator operator) {
+                if (operator.hasAnnotation(Sharded.class))
+                    sharded[0]++;
+            }
+        });
+        Assert.assertTrue(sharded[0] > 0);
+        ccs.step("""
+                INSERT INTO L VALUES(1, 10), (1, 20), (2, 30);
+                INSERT INTO R VALUES(1, 1), (2, NULL);""", """
+                 k | sum | count | weight
+                --------------------------
+                 1 | 30  | 2     | 1
+                 2 | 30  | 0     | 1""");
+    }
+
+    /** Number of distinct operators, and of aggregate operators with a key of a single field */
+    static int[] countDistinctAndAggregates(CompilerCircuitStream ccs) {
+        int[] counts = new int[3];
+        ccs.visit(new CircuitVisitor(ccs.compiler) {
+            @Override
+            public void postorder(DBSPSimpleOperator operator) {
+                if (operator.is(DBSPStreamDistinctOperator.class) || operator.is(DBSPDistinctOperator.class))
+                    counts[0]++;
+                if (operator.is(DBSPAggregateOperatorBase.class)) {
+                    int keySize = operator.getOutputIndexedZSetType().getKeyTypeTuple().size();
+                    counts[keySize == 1 ? 1 : 2]++;
+                }
+            }
+        });
+        return counts;
+    }
+
+    @Test
+    public void testFunctionalDependencies() {
+        // The DISTINCT is applied to a set
+        String tables = """
+                CREATE TABLE T(id INT NOT NULL PRIMARY KEY, name VARCHAR);
+                CREATE TABLE S(id INT NOT NULL, v INT);
+                """;
+        var ccs = this.getCCS(tables + "CREATE VIEW D AS SELECT DISTINCT id, name FROM T;");
+        Assert.assertEquals(0, countDistinctAndAggregates(ccs)[0]);
+        ccs.step("INSERT INTO T VALUES(1, 'a'), (2, NULL);", """
+                 id | name | weight
+                ---------------------
+                 1  | a| 1
+                 2  |NULL| 1""");
+
+        // T.name is determined by T.id, so it is removed from the grouping key
+        ccs = this.getCCS(tables + """
+                CREATE VIEW V AS SELECT T.id, T.name, ARRAY_AGG(S.v) AS a
+                FROM T JOIN S ON T.id = S.id GROUP BY T.id, T.name;""");
+        int[] counts = countDistinctAndAggregates(ccs);
+        Assert.assertTrue(counts[1] > 0);
+        Assert.assertEquals(0, counts[2]);
+        ccs.step("""
+                INSERT INTO T VALUES(1, 'a'), (2, NULL);
+                INSERT INTO S VALUES(1, 10), (1, 20), (2, 30);""", """
+                 id | name | a | weight
+                -------------------------
+                 1  | a| { 10, 20 } | 1
+                 2  |NULL| { 30 } | 1""");
+    }
 }
@@ -1,10 +1,14 @@
 package org.dbsp.sqlCompiler.compiler.sql.simple;
 
+import org.dbsp.sqlCompiler.circuit.annotation.AutoInterned;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPSourceMultisetOperator;
 import org.dbsp.sqlCompiler.compiler.CompilerOptions;
 import org.dbsp.sqlCompiler.compiler.TestUtil;
 import org.dbsp.sqlCompiler.compiler.frontend.ExpressionCompiler;
 import org.dbsp.sqlCompiler.compiler.frontend.calciteObject.CalciteObject;
+import org.dbsp.sqlCompiler.compiler.sql.tools.CompilerCircuitStream;
 import org.dbsp.sqlCompiler.compiler.sql.tools.SqlIoTest;
+import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitVisitor;
 import org.dbsp.sqlCompiler.ir.expression.DBSPExpression;
 import org.dbsp.sqlCompiler.ir.expression.DBSPVariablePath;
 import org.dbsp.sqlCompiler.ir.type.DBSPType;
@@ -15,6 +19,9 @@ import org.dbsp.util.Linq;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class InternTests extends SqlIoTest {
     @Override
     public CompilerOptions testOptions() {
@@ -133,4 +140,43 @@ public class InternTests extends SqlIoTest {
                     Some(Tup2::new((n.unwrap().0), (n.unwrap().1), ))
                 }""", expr3.toString());
     }
+
+    static List<String> autoInterned(CompilerCircuitStream ccs) {
+        List<String> interned = new ArrayList<>();
+        ccs.visit(new CircuitVisitor(ccs.compiler) {
+            @Override
+            public void postorder(DBSPSourceMultisetOperator operator) {
+                for (AutoInterned column: operator.annotations.get(AutoInterned.class))
+                    interned.add(column.column);
+            }
+        });
+        return interned;
+    }
+
+    @Test
+    public void testAutoIntern() {
+        // s has few declared values, u has many, so only s is interned
+        var ccs = this.getCCS("""
+                CREATE TABLE T(x INT, s VARCHAR, u VARCHAR) WITH (
+                  'distinct_values' = '{"s": 10, "u": 1000000000}'
+                );
+                CREATE VIEW V AS SELECT COUNT(x), s, u FROM T GROUP BY s, u;""");
+        List<String> interned = autoInterned(ccs);
+        Assert.assertEquals(1, interned.size());
+        Assert.assertTrue(interned.get(0).equalsIgnoreCase("s"));
+        ccs.step("INSERT INTO T VALUES(0, 'a', 'b'), (1, 'a', 'b');", """
+                 count | s | u | weight
+                ------------------------
+                 2     | a| b| 1""");
+    }
+
+    @Test
+    public void testNoAutoInternWithoutStatistics() {
+        // s is a join and GROUP BY key stored in several traces, but has no statistics
+        var ccs = this.getCCS("""
+                CREATE TABLE T(x INT, s VARCHAR);
+                CREATE TABLE S(y INT, s VARCHAR);
+                CREATE VIEW V AS SELECT COUNT(x), T.s FROM T JOIN S ON T.s = S.s GROUP BY T.s;""");
+        Assert.assertTrue(autoInterned(ccs).isEmpty());
+    }
 }
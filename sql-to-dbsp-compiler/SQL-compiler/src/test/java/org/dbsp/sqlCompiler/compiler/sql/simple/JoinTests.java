@@ -0,0 +1,105 @@
+package org.dbsp.sqlCompiler.compiler.sql.simple;
+
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinBaseOperator;
+import org.dbsp.sqlCompiler.compiler.sql.tools.SqlIoTest;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Tests for the optimizations of inner joins */
+public class JoinTests extends SqlIoTest {
+    @Test
+    public void testStarJoin() {
+        // D1 and D2 are unique on the join key, so they are joined before F
+        var ccs = this.getCCS("""
+                CREATE TABLE F(id INT NOT NULL, v INT);
+                CREATE TABLE D1(id INT NOT NULL PRIMARY KEY, a INT);
+                CREATE TABLE D2(id INT NOT NULL PRIMARY KEY, b INT);
+                CREATE VIEW V AS SELECT F.v, D1.a, D2.b
+                FROM F JOIN D1 ON F.id = D1.id JOIN D2 ON F.id = D2.id;""");
+        ccs.step("""
+                INSERT INTO F VALUES(1, 10), (1, 11), (2, 20);
+                INSERT INTO D1 VALUES(1, 100), (2, 200);
+                INSERT INTO D2 VALUES(1, 1000);""", """
+                 v  | a   | b    | weight
+                ---------------------------
+                 10 | 100 | 1000 | 1
+                 11 | 100 | 1000 | 1""");
+        ccs.step("INSERT INTO D2 VALUES(2, 2000);", """
+                 v  | a   | b    | weight
+                ---------------------------
+                 20 | 200 | 2000 | 1""");
+    }
+
+    @Test
+    public void testJoinElimination() {
+        this.withAndWithoutOption("""
+                CREATE TABLE D(id INT NOT NULL PRIMARY KEY, name VARCHAR);
+                CREATE TABLE F(id INT NOT NULL FOREIGN KEY REFERENCES D(id), v INT);
+                CREATE VIEW V AS SELECT F.v FROM F JOIN D ON F.id = D.id;""",
+                (options, trust) -> options.languageOptions.trustForeignKeys = trust,
+                (ccs, trust) -> {
+                    Assert.assertEquals(trust ? 0 : 1, ccs.countOperators(DBSPJoinBaseOperator.class));
+                    ccs.step("""
+                            INSERT INTO D VALUES(1, 'a'), (2, 'b');
+                            INSERT INTO F VALUES(1, 10), (1, 11);""", """
+                             v  | weight
+                            -------------
+                             10 | 1
+                             11 | 1""");
+                });
+    }
+
+    @Test
+    public void testSemiAntiJoin() {
+        // EXISTS and NOT EXISTS are compiled to semi and anti joins
+        var ccs = this.getCCS("""
+                CREATE TABLE T(x INT, y INT);
+                CREATE TABLE S(x INT, z INT);
+                CREATE VIEW V AS
+                SELECT 0 AS tag, x, y FROM T WHERE EXISTS (SELECT 1 FROM S WHERE S.x = T.x)
+                UNION ALL
+                SELECT 1 AS tag, x, y FROM T WHERE NOT EXISTS (SELECT 1 FROM S WHERE S.x = T.x);""");
+        ccs.step("""
+                INSERT INTO T VALUES(1, 10), (1, 10), (2, 20), (NULL, 30);
+                INSERT INTO S VALUES(1, 0), (1, 1), (NULL, 2);""", """
+                 tag | x | y  | weight
+                -----------------------
+                 0   | 1 | 10 | 2
+                 1   | 2 | 20 | 1
+                 1   |   | 30 | 1""");
+        ccs.step("INSERT INTO S VALUES(2, 5);", """
+                 tag | x | y  | weight
+                -----------------------
+                 0   | 2 | 20 | 1
+                 1   | 2 | 20 | -1""");
+    }
+
+    @Test
+    public void testLateMaterialization() {
+        // The payload is joined back from F at the end
+        this.withAndWithoutOption("""
+                CREATE TABLE F(id INT NOT NULL PRIMARY KEY, k1 INT, k2 INT, payload VARCHAR)
+                WITH ('expected_size' = '1000000');
+                CREATE TABLE D1(k INT NOT NULL PRIMARY KEY, a INT) WITH ('expected_size' = '10');
+                CREATE TABLE D2(k INT NOT NULL PRIMARY KEY, b INT) WITH ('expected_size' = '10');
+                CREATE VIEW V AS SELECT F.payload, D1.a, D2.b
+                FROM F JOIN D1 ON F.k1 = D1.k JOIN D2 ON F.k2 = D2.k;""",
+                (options, late) -> options.languageOptions.lateMaterialization = late,
+                (ccs, late) -> {
+                    Assert.assertEquals(late ? 3 : 2, ccs.countOperators(DBSPJoinBaseOperator.class));
+                    ccs.step("""
+                            INSERT INTO D1 VALUES(1, 10), (2, 20);
+                            INSERT INTO D2 VALUES(1, 100);
+                            INSERT INTO F VALUES(1, 1, 1, 'x'), (2, 2, 1, 'y'), (3, 1, 2, 'z');""", """
+                             payload | a  | b   | weight
+                            ----------------------------
+                             x| 10 | 100 | 1
+                             y| 20 | 100 | 1""");
+                    ccs.step("INSERT INTO F VALUES(2, 2, 1, 'w');", """
+                             payload | a  | b   | weight
+                            ----------------------------
+                             y| 20 | 100 | -1
+                             w| 20 | 100 | 1""");
+                });
+    }
+}
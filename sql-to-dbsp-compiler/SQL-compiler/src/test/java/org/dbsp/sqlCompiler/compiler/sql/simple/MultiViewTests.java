@@ -23,6 +23,7 @@
 
 package org.dbsp.sqlCompiler.compiler.sql.simple;
 
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinBaseOperator;
 import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
 import org.dbsp.sqlCompiler.compiler.frontend.TableData;
 import org.dbsp.sqlCompiler.compiler.sql.tools.BaseSQLTests;
@@ -34,6 +35,7 @@ import org.dbsp.sqlCompiler.ir.expression.literal.DBSPBoolLiteral;
 import org.dbsp.sqlCompiler.ir.expression.literal.DBSPDoubleLiteral;
 import org.dbsp.sqlCompiler.ir.expression.literal.DBSPI32Literal;
 import org.dbsp.sqlCompiler.ir.expression.DBSPZSetExpression;
+import org.junit.Assert;
 import org.junit.Test;
 
 /** Tests where multiple views are defined in the same circuit. */
@@ -107,4 +109,55 @@ public class MultiViewTests extends BaseSQLTests {
         );
         ccs.addChange(change);
     }
+
+    /** Two views compute the same join, with the inputs in a different order. */
+    @Test
+    public void testSharedJoin() {
+        var ccs = this.getCCS("""
+                CREATE TABLE T(x INT, y INT);
+                CREATE TABLE S(x INT, z INT);
+                CREATE LOCAL VIEW V0 AS SELECT T.y AS a, S.z AS b FROM T JOIN S ON T.x = S.x;
+                CREATE LOCAL VIEW V1 AS SELECT S.z + 1 AS a, T.x AS b FROM S JOIN T ON S.x = T.x;
+                CREATE VIEW V AS SELECT * FROM V0 UNION ALL SELECT * FROM V1;""");
+        Assert.assertEquals(1, ccs.countOperators(DBSPJoinBaseOperator.class));
+        ccs.step("""
+                INSERT INTO T VALUES(1, 10), (2, 20);
+                INSERT INTO S VALUES(1, 100), (3, 300);""", """
+                 a   | b   | weight
+                --------------------
+                 10  | 100 | 1
+                 101 | 1   | 1""");
+    }
+
+    /** View B is a rollup of view A. */
+    @Test
+    public void testViewMatching() {
+        this.withAndWithoutOption("""
+                CREATE TABLE T(x INT, y INT, v INT) WITH ('expected_size' = '1000000');
+                CREATE TABLE S(x INT, z INT) WITH ('expected_size' = '10');
+                CREATE LOCAL VIEW A AS SELECT T.y, S.z, SUM(T.v) AS s, COUNT(*) AS c
+                FROM T JOIN S ON T.x = S.x GROUP BY T.y, S.z;
+                CREATE VIEW B AS SELECT T.y, SUM(T.v) AS s, COUNT(*) AS c
+                FROM T JOIN S ON T.x = S.x GROUP BY T.y;""",
+                (options, match) -> {
+                    options.languageOptions.viewMatching = match;
+                    options.ioOptions.quiet = false;
+                },
+                (ccs, match) -> {
+                    Assert.assertEquals(match, ccs.compiler.messages.toString()
+                            .contains("View 'b' is computed from view 'a'"));
+                    ccs.step("""
+                            INSERT INTO T VALUES(1, 1, 10), (1, 1, 20), (2, 2, 5);
+                            INSERT INTO S VALUES(1, 100), (1, 200), (2, 300);""", """
+                             y | s  | c | weight
+                            ---------------------
+                             1 | 60 | 4 | 1
+                             2 | 5  | 1 | 1""");
+                    ccs.step("REMOVE FROM S VALUES(1, 200);", """
+                             y | s  | c | weight
+                            ---------------------
+                             1 | 60 | 4 | -1
+                             1 | 30 | 2 | 1""");
+                });
+    }
 }
@@ -0,0 +1,58 @@
+package org.dbsp.sqlCompiler.compiler.sql.simple;
+
+import org.dbsp.sqlCompiler.compiler.CompilerOptions;
+import org.dbsp.sqlCompiler.compiler.backend.rust.FindPackedTuples;
+import org.dbsp.sqlCompiler.compiler.backend.rust.PackedTuples;
+import org.dbsp.sqlCompiler.compiler.sql.tools.SqlIoTest;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Tests with wide tuples represented using a null bitmap */
+public class PackedTupleTests extends SqlIoTest {
+    @Override
+    public CompilerOptions testOptions() {
+        CompilerOptions options = super.testOptions();
+        options.languageOptions.incrementalize = true;
+        options.languageOptions.nullBitmapWidth = 3;
+        return options;
+    }
+
+    @Test
+    public void testPacked() {
+        var ccs = this.getCCS("""
+                CREATE TABLE T(x INT NOT NULL, y INT, s VARCHAR, z INT);
+                CREATE VIEW V AS SELECT x, y + 1 AS y, s, z FROM T WHERE x > 0;""");
+        PackedTuples packed = new PackedTuples();
+        ccs.visit(new FindPackedTuples(ccs.compiler, packed));
+        Assert.assertFalse(packed.isEmpty());
+        ccs.step("INSERT INTO T VALUES(1, NULL, 'a', 2), (0, 1, NULL, NULL);", """
+                 x | y | s | z | weight
+                ------------------------
+                 1 |   | a| 2 | 1""");
+    }
+
+    @Test
+    public void testJoin() {
+        var ccs = this.getCCS("""
+                CREATE TABLE T(x INT NOT NULL, y INT, s VARCHAR, z INT);
+                CREATE VIEW W AS SELECT T.x, T.s, S.y, S.z FROM T JOIN T AS S ON T.x = S.x;""");
+        ccs.step("INSERT INTO T VALUES(1, NULL, 'a', 2), (0, 1, NULL, NULL);", """
+                 x | s | y | z | weight
+                ------------------------
+                 1 | a|   | 2 | 1
+                 0 |NULL| 1 |   | 1""");
+    }
+
+    @Test
+    public void testAggregate() {
+        // The accumulators of the aggregates are not packed
+        var ccs = this.getCCS("""
+                CREATE TABLE T(x INT NOT NULL, y INT, s VARCHAR, z INT);
+                CREATE VIEW V AS SELECT x, SUM(y) AS y, MAX(s) AS s, MIN(z) AS z
+                FROM T GROUP BY x;""");
+        ccs.step("INSERT INTO T VALUES(1, NULL, 'a', 2), (1, 1, NULL, NULL);", """
+                 x | y | s | z | weight
+                ------------------------
+                 1 | 1 | a| 2 | 1""");
+    }
+}
@@ -1,7 +1,9 @@
 package org.dbsp.sqlCompiler.compiler.sql.simple;
 
 import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinBaseOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPLagOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPStreamAggregateOperator;
 import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
 import org.dbsp.sqlCompiler.compiler.sql.tools.Change;
@@ -1447,5 +1449,29 @@ public class Regression1Tests extends SqlIoTest {
                  👋
                 (1 row)""");
     }
+
+    @Test
+    public void testConstantJoin() {
+        // A join of two constant collections is evaluated at compile time
+        var ccs = this.getCCS("""
+                CREATE TABLE T(x INT);
+                CREATE VIEW V AS SELECT L.x, L.y, R.v
+                FROM (VALUES (1, 100), (2, 200)) AS L(x, y)
+                JOIN (VALUES (1, 10), (3, 30)) AS R(x, v) ON L.x = R.x
+                WHERE R.v > 5;""");
+        ccs.visit(new CircuitVisitor(ccs.compiler) {
+            @Override
+            public void postorder(DBSPOperator operator) {
+                Assert.assertFalse(operator.is(DBSPJoinBaseOperator.class));
+            }
+        });
+        ccs.step("", """
+                 x | y   | v  | weight
+                -----------------------
+                 1 | 100 | 10 | 1""");
+        ccs.step("INSERT INTO T VALUES(1);", """
+                 x | y | v | weight
+                --------------------""");
+    }
 }
  
\ No newline at end of file
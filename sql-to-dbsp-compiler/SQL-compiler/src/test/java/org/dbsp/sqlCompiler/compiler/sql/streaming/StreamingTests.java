@@ -1,13 +1,18 @@
 package org.dbsp.sqlCompiler.compiler.sql.streaming;
 
+import org.dbsp.sqlCompiler.circuit.OutputPort;
+import org.dbsp.sqlCompiler.circuit.annotation.BoundedTopK;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPAggregateLinearPostprocessRetainKeysOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPChainAggregateOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPControlledKeyFilterOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPFlatMapIndexOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPIndexedTopKOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPIntegrateTraceRetainKeysOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPIntegrateTraceRetainValuesOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPJoinBaseOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLagOperator;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPLagWithWaterlineOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPPartitionedRollingAggregateWithWaterlineOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPWaterlineOperator;
 import org.dbsp.sqlCompiler.circuit.operator.DBSPWindowOperator;
@@ -37,6 +42,9 @@ import org.dbsp.util.Linq;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.HashSet;
+import java.util.Set;
+
 /** Tests that exercise streaming features. */
 public class StreamingTests extends StreamingTestBase {
     @Test
@@ -358,6 +366,83 @@ public class StreamingTests extends StreamingTestBase {
         ccs.visit(visitor);
     }
 
+    @Test
+    public void testLagWithWaterline() {
+        // The state of LAG is bounded when it looks back along a monotone column;
+        // LEAD over the same ascending order looks forward, so its state is not.
+        String sql = """
+                CREATE TABLE t(
+                    x INT,
+                    ts TIMESTAMP NOT NULL LATENESS INTERVAL 1 HOUR
+                );
+
+                CREATE VIEW v AS SELECT ts, x, LAG(x) OVER (PARTITION BY x ORDER BY ts) FROM t;
+                CREATE VIEW w AS SELECT ts, x, LEAD(x) OVER (PARTITION BY x ORDER BY ts) FROM t;""";
+        var ccs = this.getCCS(sql);
+        CircuitVisitor visitor = new CircuitVisitor(ccs.compiler) {
+            int lag = 0;
+            int lagWithWaterline = 0;
+
+            @Override
+            public void postorder(DBSPLagOperator operator) {
+                this.lag++;
+            }
+
+            @Override
+            public void postorder(DBSPLagWithWaterlineOperator operator) {
+                this.lagWithWaterline++;
+            }
+
+            @Override
+            public void endVisit() {
+                Assert.assertEquals(1, this.lag);
+                Assert.assertEquals(1, this.lagWithWaterline);
+            }
+        };
+        ccs.visit(visitor);
+    }
+
+    @Test
+    public void testLagWithWaterlineValues() {
+        // Rows far below the waterline are discarded, but LAG still finds
+        // the last rows of each partition below the waterline.
+        String sql = """
+                CREATE TABLE t(p INT NOT NULL, ts INT NOT NULL LATENESS 10, x INT);
+                CREATE VIEW v AS SELECT p, ts, x, LAG(x, 2) OVER (PARTITION BY p ORDER BY ts) AS prev FROM t;""";
+        var ccs = this.getCCS(sql);
+        Assert.assertEquals(1, ccs.countOperators(DBSPLagWithWaterlineOperator.class));
+        Assert.assertEquals(0, ccs.countOperators(DBSPLagOperator.class));
+        ccs.step("INSERT INTO t VALUES(1, 0, 10), (1, 1, 11), (2, 0, 20);",
+                """
+                         p | ts | x  | prev | weight
+                        -----------------------------
+                         1 | 0  | 10 |      | 1
+                         1 | 1  | 11 |      | 1
+                         2 | 0  | 20 |      | 1""");
+        ccs.step("INSERT INTO t VALUES(1, 50, 12);",
+                """
+                         p | ts | x  | prev | weight
+                        -----------------------------
+                         1 | 50 | 12 | 10   | 1""");
+        ccs.step("INSERT INTO t VALUES(1, 100, 13), (2, 100, 21);",
+                """
+                         p | ts  | x  | prev | weight
+                        ------------------------------
+                         1 | 100 | 13 | 11   | 1
+                         2 | 100 | 21 |      | 1""");
+        ccs.step("INSERT INTO t VALUES(1, 200, 14), (2, 200, 22);",
+                """
+                         p | ts  | x  | prev | weight
+                        ------------------------------
+                         1 | 200 | 14 | 12   | 1
+                         2 | 200 | 22 | 20   | 1""");
+        ccs.step("INSERT INTO t VALUES(1, 300, 15);",
+                """
+                         p | ts  | x  | prev | weight
+                        ------------------------------
+                         1 | 300 | 15 | 13   | 1""");
+    }
+
     @Test
     public void chainAggregateGroupByJoin() {
         String sql = """
@@ -700,6 +785,187 @@ public class StreamingTests extends StreamingTestBase {
         ccs.visit(visitor);
     }
 
+    @Test
+    public void testBoundedTopK() {
+        String sql = """
+                CREATE TABLE T(x INT NOT NULL, y VARCHAR) WITH ('append_only' = 'true');
+                CREATE VIEW V AS SELECT x, y, rn FROM
+                (SELECT x, y, ROW_NUMBER() OVER (ORDER BY x DESC, y) AS rn FROM T)
+                WHERE rn <= 2;""";
+        CompilerCircuitStream ccs = this.getCCS(sql);
+        ccs.visit(new CircuitVisitor(ccs.compiler) {
+            int retain = 0;
+
+            @Override
+            public void postorder(DBSPIntegrateTraceRetainValuesOperator operator) {
+                this.retain++;
+            }
+
+            @Override
+            public void endVisit() {
+                Assert.assertEquals(1, this.retain);
+            }
+        });
+        ccs.step("INSERT INTO T VALUES(1, 'a'), (5, 'b'), (3, 'c');",
+                """
+                         x | y | rn | weight
+                        ---------------------
+                         5 | b| 1  | 1
+                         3 | c| 2  | 1""");
+        ccs.step("INSERT INTO T VALUES(4, 'd');",
+                """
+                         x | y | rn | weight
+                        ---------------------
+                         3 | c| 2  | -1
+                         4 | d| 2  | 1""");
+        // Sorts after the second row; does not change the output
+        ccs.step("INSERT INTO T VALUES(2, 'e');",
+                """
+                         x | y | rn | weight
+                        ---------------------""");
+        ccs.step("INSERT INTO T VALUES(5, 'a');",
+                """
+                         x | y | rn | weight
+                        ---------------------
+                         5 | a| 1  | 1
+                         5 | b| 1  | -1
+                         5 | b| 2  | 1
+                         4 | d| 2  | -1""");
+
+        // Rows deleted from a table that is not append-only may have to be
+        // replaced by rows sorting after the bound, so nothing is discarded
+        ccs = this.getCCS(sql.replace(" WITH ('append_only' = 'true')", ""));
+        ccs.visit(new CircuitVisitor(ccs.compiler) {
+            @Override
+            public void postorder(DBSPIntegrateTraceRetainValuesOperator operator) {
+                Assert.fail("TopK over an updatable table should not be bounded");
+            }
+        });
+        ccs.step("INSERT INTO T VALUES(1, 'a'), (5, 'b'), (3, 'c');",
+                """
+                         x | y | rn | weight
+                        ---------------------
+                         5 | b| 1  | 1
+                         3 | c| 2  | 1""");
+        ccs.step("REMOVE FROM T VALUES(5, 'b');",
+                """
+                         x | y | rn | weight
+                        ---------------------
+                         5 | b| 1  | -1
+                         3 | c| 2  | -1
+                         3 | c| 1  | 1
+                         1 | a| 2  | 1""");
+    }
+
+    @Test
+    public void testBoundedPartitionedTopK() {
+        String sql = """
+                CREATE TABLE T(x INT NOT NULL, y INT NOT NULL) WITH ('append_only' = 'true');
+                CREATE VIEW V AS SELECT x, y, rn FROM
+                (SELECT x, y, ROW_NUMBER() OVER (PARTITION BY x ORDER BY y) AS rn FROM T)
+                WHERE rn <= 2;""";
+        CompilerCircuitStream ccs = this.getCCS(sql);
+        ccs.visit(new CircuitVisitor(ccs.compiler) {
+            int bounded = 0;
+
+            @Override
+            public void postorder(DBSPIndexedTopKOperator operator) {
+                if (operator.hasAnnotation(BoundedTopK.class))
+                    this.bounded++;
+            }
+
+            @Override
+            public void endVisit() {
+                Assert.assertEquals(1, this.bounded);
+            }
+        });
+        ccs.step("INSERT INTO T VALUES(1, 10), (1, 20), (1, 30), (2, 5);",
+                """
+                         x | y  | rn | weight
+                        ----------------------
+                         1 | 10 | 1  | 1
+                         1 | 20 | 2  | 1
+                         2 | 5  | 1  | 1""");
+        ccs.step("INSERT INTO T VALUES(1, 15), (2, 7);",
+                """
+                         x | y  | rn | weight
+                        ----------------------
+                         1 | 20 | 2  | -1
+                         1 | 15 | 2  | 1
+                         2 | 7  | 2  | 1""");
+        // Sorts after the second row of the group; does not change the output
+        ccs.step("INSERT INTO T VALUES(1, 25);",
+                """
+                         x | y  | rn | weight
+                        ----------------------""");
+        ccs.step("INSERT INTO T VALUES(1, 5), (2, 6);",
+                """
+                         x | y  | rn | weight
+                        ----------------------
+                         1 | 5  | 1  | 1
+                         1 | 10 | 1  | -1
+                         1 | 10 | 2  | 1
+                         1 | 15 | 2  | -1
+                         2 | 6  | 2  | 1
+                         2 | 7  | 2  | -1""");
+
+        // RANK may output more than K rows per group, so it is not bounded
+        ccs = this.getCCS(sql.replace("ROW_NUMBER()", "RANK()"));
+        ccs.visit(new CircuitVisitor(ccs.compiler) {
+            @Override
+            public void postorder(DBSPIndexedTopKOperator operator) {
+                Assert.assertFalse(operator.hasAnnotation(BoundedTopK.class));
+            }
+        });
+    }
+
+    @Test
+    public void testBandJoin() {
+        String sql = """
+                CREATE TABLE A(ts TIMESTAMP NOT NULL LATENESS INTERVAL 1 HOUR, x INT);
+                CREATE TABLE B(ts TIMESTAMP NOT NULL LATENESS INTERVAL 1 HOUR, y INT);
+                CREATE VIEW V AS SELECT A.x, B.y FROM A JOIN B
+                ON A.ts BETWEEN B.ts - INTERVAL 10 MINUTES AND B.ts + INTERVAL 10 MINUTES;""";
+        CompilerCircuitStream ccs = this.getCCS(sql);
+        ccs.visit(new CircuitVisitor(ccs.compiler) {
+            final Set<OutputPort> retained = new HashSet<>();
+
+            @Override
+            public void postorder(DBSPJoinBaseOperator join) {
+                // Not a cross join
+                Assert.assertEquals(1, join.getKeyType().to(DBSPTypeTuple.class).size());
+            }
+
+            @Override
+            public void postorder(DBSPIntegrateTraceRetainValuesOperator operator) {
+                this.retained.add(operator.left());
+            }
+
+            @Override
+            public void endVisit() {
+                // The state of both join inputs is garbage-collected
+                Assert.assertEquals(2, this.retained.size());
+            }
+        });
+        ccs.step("""
+                INSERT INTO A VALUES('2024-01-01 00:00:00', 1);
+                INSERT INTO B VALUES('2024-01-01 00:05:00', 10);""",
+                """
+                         x | y | weight
+                        -----------------
+                         1 | 10 | 1""");
+        ccs.step("INSERT INTO B VALUES('2024-01-01 00:30:00', 20);",
+                """
+                         x | y | weight
+                        -----------------""");
+        ccs.step("INSERT INTO A VALUES('2024-01-01 00:25:00', 2), ('2024-01-01 00:09:59', 3);",
+                """
+                         x | y | weight
+                        -----------------
+                         2 | 20 | 1
+                         3 | 10 | 1""");
+    }
+
     @Test
     public void issue2004() {
         String sql = """
@@ -838,6 +1104,36 @@ public class StreamingTests extends StreamingTestBase {
         TestUtil.assertMessagesContain(compiler, "View 'w' used in LATENESS statement not found");
     }
 
+    @Test
+    public void testUnboundedStateReport() {
+        String sql = """
+                CREATE TABLE T(ts TIMESTAMP NOT NULL, x INT);
+                CREATE TABLE S("Ts" TIMESTAMP NOT NULL, y INT);
+                CREATE VIEW V AS SELECT T.x, S.y FROM T JOIN S ON T.ts = S."Ts";""";
+        DBSPCompiler compiler = this.testCompiler();
+        compiler.options.ioOptions.warnUnboundedState = true;
+        compiler.submitStatementsForCompilation(sql);
+        this.getCCS(compiler);
+        Assert.assertFalse(compiler.unboundedState.isEmpty());
+        boolean suggested = false;
+        boolean quoted = false;
+        for (var trace: compiler.unboundedState) {
+            for (var column: trace.columns()) {
+                String declaration = column.suggestedDeclaration();
+                if (column.table().name().equals("t") && column.column().name.name().equals("ts")) {
+                    Assert.assertEquals("ts TIMESTAMP NOT NULL LATENESS INTERVAL 1 HOUR", declaration);
+                    suggested = true;
+                } else if (column.table().name().equals("s") && column.column().name.name().equals("Ts")) {
+                    Assert.assertEquals("\"Ts\" TIMESTAMP NOT NULL LATENESS INTERVAL 1 HOUR", declaration);
+                    quoted = true;
+                }
+            }
+        }
+        Assert.assertTrue(suggested);
+        Assert.assertTrue(quoted);
+        TestUtil.assertMessagesContain(compiler, "never garbage-collected");
+    }
+
     @Test
     public void testEmitFinal() {
         String sql = """
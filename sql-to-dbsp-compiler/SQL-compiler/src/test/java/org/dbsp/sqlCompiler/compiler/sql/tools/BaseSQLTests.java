@@ -58,6 +58,7 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.function.BiConsumer;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -91,6 +92,25 @@ public class BaseSQLTests {
         return new CompilerCircuit(compiler);
     }
 
+    /** Compile a program twice, with an option enabled and disabled.
+     * The results of both compilations should then be compared by 'check'.
+     *
+     * @param sql       Program to compile.
+     * @param setOption Sets the option in the compiler options to the supplied value.
+     * @param check     Receives each compiled circuit and the value of the option;
+     *                  usually checks the circuit shape and steps the circuit
+     *                  with the same inputs and outputs for both values. */
+    public void withAndWithoutOption(String sql, BiConsumer<CompilerOptions, Boolean> setOption,
+                                     BiConsumer<CompilerCircuitStream, Boolean> check) {
+        for (boolean enabled: new boolean[] { true, false }) {
+            DBSPCompiler compiler = this.testCompiler();
+            setOption.accept(compiler.options, enabled);
+            this.prepareInputs(compiler);
+            compiler.submitStatementsForCompilation(sql);
+            check.accept(new CompilerCircuitStream(compiler, this), enabled);
+        }
+    }
+
     public CompilerCircuitStream getCCS(String sql, List<String> inputs, List<String> outputs) {
         DBSPCompiler compiler = this.testCompiler();
         this.prepareInputs(compiler);
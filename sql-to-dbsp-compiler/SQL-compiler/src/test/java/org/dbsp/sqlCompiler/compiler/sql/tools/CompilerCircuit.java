@@ -1,6 +1,7 @@
 package org.dbsp.sqlCompiler.compiler.sql.tools;
 
 import org.dbsp.sqlCompiler.circuit.DBSPCircuit;
+import org.dbsp.sqlCompiler.circuit.operator.DBSPOperator;
 import org.dbsp.sqlCompiler.compiler.DBSPCompiler;
 import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitTransform;
 import org.dbsp.sqlCompiler.compiler.visitors.outer.CircuitVisitor;
@@ -31,6 +32,19 @@ public class CompilerCircuit {
         visitor.apply(this.circuit);
     }
 
+    /** Number of operators of the circuit which are instances of the specified class */
+    public int countOperators(Class<? extends DBSPOperator> clazz) {
+        int[] count = new int[1];
+        this.visit(new CircuitVisitor(this.compiler) {
+            @Override
+            public void postorder(DBSPOperator operator) {
+                if (clazz.isInstance(operator))
+                    count[0]++;
+            }
+        });
+        return count[0];
+    }
+
     public DBSPCircuit getCircuit() {
         return this.circuit;
     }